@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.data;
+
+public class BatchItemResult<I, R> {
+    private I item;
+    private R result;
+    private Throwable failure;
+
+    public BatchItemResult() {
+    }
+
+    public static <I, R> BatchItemResult<I, R> success(I item, R result) {
+        BatchItemResult<I, R> itemResult = new BatchItemResult<>();
+        itemResult.setItem(item);
+        itemResult.setResult(result);
+        return itemResult;
+    }
+
+    public static <I, R> BatchItemResult<I, R> failure(I item, Throwable failure) {
+        BatchItemResult<I, R> itemResult = new BatchItemResult<>();
+        itemResult.setItem(item);
+        itemResult.setFailure(failure);
+        return itemResult;
+    }
+
+    public boolean isSuccess() {
+        return failure == null;
+    }
+
+    public I getItem() {
+        return item;
+    }
+
+    public void setItem(I item) {
+        this.item = item;
+    }
+
+    public R getResult() {
+        return result;
+    }
+
+    public void setResult(R result) {
+        this.result = result;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public void setFailure(Throwable failure) {
+        this.failure = failure;
+    }
+}
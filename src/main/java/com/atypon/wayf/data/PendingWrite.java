@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.data;
+
+import com.atypon.wayf.data.identity.IdentityProvider;
+
+/**
+ * A write to the WAYF cloud that could not be sent while it was unreachable, kept until it can be replayed.
+ */
+public class PendingWrite {
+    private long sequence;
+    private WayfOperation operation;
+    private String localId;
+    private IdentityProvider identityProvider;
+    private Long identityProviderId;
+    private long createdAtMillis;
+
+    public PendingWrite() {
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public WayfOperation getOperation() {
+        return operation;
+    }
+
+    public void setOperation(WayfOperation operation) {
+        this.operation = operation;
+    }
+
+    public String getLocalId() {
+        return localId;
+    }
+
+    public void setLocalId(String localId) {
+        this.localId = localId;
+    }
+
+    public IdentityProvider getIdentityProvider() {
+        return identityProvider;
+    }
+
+    public void setIdentityProvider(IdentityProvider identityProvider) {
+        this.identityProvider = identityProvider;
+    }
+
+    public Long getIdentityProviderId() {
+        return identityProviderId;
+    }
+
+    public void setIdentityProviderId(Long identityProviderId) {
+        this.identityProviderId = identityProviderId;
+    }
+
+    public long getCreatedAtMillis() {
+        return createdAtMillis;
+    }
+
+    public void setCreatedAtMillis(long createdAtMillis) {
+        this.createdAtMillis = createdAtMillis;
+    }
+}
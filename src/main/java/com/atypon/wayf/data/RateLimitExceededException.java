@@ -0,0 +1,27 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.data;
+
+/**
+ * Thrown instead of calling the WAYF cloud when the client-side rate limit would be exceeded by waiting no longer than
+ * allowed. {@link #getRetryAfterMillis()} estimates when a permit is next available.
+ */
+public class RateLimitExceededException extends WayfException {
+    public RateLimitExceededException(String message, long retryAfterMillis) {
+        super(0, message, retryAfterMillis);
+    }
+}
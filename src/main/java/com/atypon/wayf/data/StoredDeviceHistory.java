@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.data;
+
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+
+import java.util.List;
+
+public class StoredDeviceHistory {
+    private List<IdentityProviderUsage> history;
+    private long storedAtMillis;
+    private boolean refreshRequired;
+
+    public StoredDeviceHistory() {
+    }
+
+    public StoredDeviceHistory(List<IdentityProviderUsage> history, long storedAtMillis, boolean refreshRequired) {
+        this.history = history;
+        this.storedAtMillis = storedAtMillis;
+        this.refreshRequired = refreshRequired;
+    }
+
+    public List<IdentityProviderUsage> getHistory() {
+        return history;
+    }
+
+    public void setHistory(List<IdentityProviderUsage> history) {
+        this.history = history;
+    }
+
+    /**
+     * When the history was last read from the WAYF cloud.
+     */
+    public long getStoredAtMillis() {
+        return storedAtMillis;
+    }
+
+    public void setStoredAtMillis(long storedAtMillis) {
+        this.storedAtMillis = storedAtMillis;
+    }
+
+    /**
+     * Whether the history has been changed locally since it was read, so that it no longer matches the WAYF cloud.
+     */
+    public boolean isRefreshRequired() {
+        return refreshRequired;
+    }
+
+    public void setRefreshRequired(boolean refreshRequired) {
+        this.refreshRequired = refreshRequired;
+    }
+}
@@ -18,18 +18,44 @@ package com.atypon.wayf.data;
 
 public class WayfException extends Exception {
     private int status;
+    private long retryAfterMillis;
 
     public WayfException(int status, String message) {
         super(message);
         this.status = status;
     }
 
+    public WayfException(int status, String message, long retryAfterMillis) {
+        super(message);
+        this.status = status;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
     public WayfException(int status, String message, Throwable t) {
         super(message, t);
         this.status = status;
     }
 
+    public WayfException(String message) {
+        super(message);
+    }
+
     public WayfException(String message, Throwable t) {
         super(message, t);
     }
+
+    /**
+     * The HTTP status returned by the WAYF cloud, or 0 if the request failed before a response was received.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * How long the WAYF cloud asked the client to wait before retrying, from the Retry-After header, or 0 if it did
+     * not say.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.data;
+
+public enum WayfOperation {
+    REGISTER_LOCAL_ID(true),
+    GET_DEVICE_HISTORY(true),
+    ADD_IDENTITY_PROVIDER_USAGE(false),
+    REMOVE_IDENTITY_PROVIDER_OPTION(true);
+
+    private final boolean idempotent;
+
+    WayfOperation(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    /**
+     * Whether sending the request more than once has the same effect as sending it once. Adding an identity provider
+     * usage records one more usage each time it is received, so it is not.
+     */
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A transport-neutral WAYF HTTP request. The URL is complete and already encoded; transports send it as is.
+ */
+public class WayfRequest {
+    public enum Method {
+        GET,
+        POST,
+        PUT,
+        DELETE
+    }
+
+    private final Method method;
+    private final String url;
+    private final Map<String, String> headers = new LinkedHashMap<>(4);
+    private byte[] body;
+    private Object bodySource;
+    private long serializationNanos;
+
+    public WayfRequest(Method method, String url) {
+        this.method = method;
+        this.url = url;
+    }
+
+    public WayfRequest header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public WayfRequest body(byte[] body) {
+        this.body = body;
+        return this;
+    }
+
+    /**
+     * The object the body was serialized from, which lets a transport write it again in another format.
+     */
+    public WayfRequest bodySource(Object bodySource) {
+        this.bodySource = bodySource;
+        return this;
+    }
+
+    public WayfRequest serializationNanos(long serializationNanos) {
+        this.serializationNanos = serializationNanos;
+        return this;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public String getHeader(String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+
+        return null;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public Object getBodySource() {
+        return bodySource;
+    }
+
+    public int getBodyLength() {
+        return body != null? body.length : 0;
+    }
+
+    /**
+     * Time spent serializing the body, or 0 if there is none.
+     */
+    public long getSerializationNanos() {
+        return serializationNanos;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + url;
+    }
+}
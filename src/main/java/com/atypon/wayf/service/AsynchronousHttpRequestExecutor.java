@@ -0,0 +1,30 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service;
+
+import com.atypon.wayf.data.WayfOperation;
+
+import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
+
+public interface AsynchronousHttpRequestExecutor<R> {
+    <T> CompletableFuture<T> executeAsync(WayfOperation operation, R request, Type responseType);
+
+    default <T> CompletableFuture<T> executeAsync(WayfOperation operation, R request, Class<T> responseClass) {
+        return executeAsync(operation, request, (Type) responseClass);
+    }
+}
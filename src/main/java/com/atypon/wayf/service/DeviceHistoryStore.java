@@ -0,0 +1,41 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service;
+
+import com.atypon.wayf.data.PendingWrite;
+import com.atypon.wayf.data.StoredDeviceHistory;
+import com.atypon.wayf.data.WayfException;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Local persistence for the last known device history of each localId and for writes waiting to be sent to the WAYF
+ * cloud.
+ */
+public interface DeviceHistoryStore extends Closeable {
+    StoredDeviceHistory getHistory(String localId);
+    void putHistory(String localId, StoredDeviceHistory history) throws WayfException;
+
+    /**
+     * Persists the write and assigns its sequence number. Pending writes are returned in sequence order.
+     */
+    PendingWrite addPendingWrite(PendingWrite pendingWrite) throws WayfException;
+    List<PendingWrite> getPendingWrites();
+    boolean hasPendingWrites(String localId);
+    void removePendingWrite(long sequence) throws WayfException;
+}
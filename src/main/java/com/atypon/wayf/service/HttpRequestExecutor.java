@@ -17,7 +17,68 @@
 package com.atypon.wayf.service;
 
 import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
 
+import java.lang.reflect.Array;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.function.Consumer;
+
+/**
+ * Sends WAYF requests. Transports implement at least one of {@link #execute(WayfOperation, Object, Type)} and the
+ * original {@link #execute(Object, Class)}; each defaults to the other, and a transport that implements neither fails
+ * with an {@link IllegalStateException}.
+ */
 public interface HttpRequestExecutor<R> {
-    <T> T execute(R request, Class<T> responseClass) throws WayfException;
+
+    /**
+     * Transports written before operations were passed receive a parameterized response type as its raw class.
+     */
+    @SuppressWarnings("unchecked")
+    default <T> T execute(WayfOperation operation, R request, Type responseType) throws WayfException {
+        Type responseClass = responseType instanceof ParameterizedType? ((ParameterizedType) responseType).getRawType() : responseType;
+        return execute(request, (Class<T>) responseClass);
+    }
+
+    /**
+     * Executes a request without naming its operation, so per-operation policies and metrics do not apply to it.
+     */
+    default <T> T execute(R request, Class<T> responseClass) throws WayfException {
+        // Every call through either default ends up here, so this is the one place that can stop them calling each other
+        try {
+            if (getClass().getMethod("execute", WayfOperation.class, Object.class, Type.class).getDeclaringClass() == HttpRequestExecutor.class) {
+                throw new IllegalStateException(getClass().getName() + " must implement execute(WayfOperation, R, Type) or execute(R, Class)");
+            }
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return execute(null, request, (Type) responseClass);
+    }
+
+    /**
+     * Reads the response as an array of the element type and passes each element to the consumer. Transports that can
+     * hand elements over as they are read should override this.
+     */
+    default <T> void executeForEach(WayfOperation operation, R request, Class<T> elementType, Consumer<? super T> consumer) throws WayfException {
+        T[] elements = execute(operation, request, (Type) Array.newInstance(elementType, 0).getClass());
+
+        if (elements != null) {
+            for (T element : elements) {
+                consumer.accept(element);
+            }
+        }
+    }
+
+    default <T> T execute(WayfOperation operation, R request, Class<T> responseClass) throws WayfException {
+        return execute(operation, request, (Type) responseClass);
+    }
+
+    /**
+     * Opens connections to the host of the given URL ahead of the first request, so that the first call does not pay
+     * for DNS, TCP and TLS setup. Failures are logged rather than thrown. Transports that keep no connections of their
+     * own do nothing.
+     */
+    default void warmUp(String url) {
+    }
 }
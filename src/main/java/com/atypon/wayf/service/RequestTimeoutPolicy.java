@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service;
+
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.service.metrics.MetricsListener;
+
+/**
+ * Chooses the socket timeout of each request. Policies are fed the metrics of every completed request so that they can
+ * derive timeouts from observed latency.
+ */
+public interface RequestTimeoutPolicy extends MetricsListener {
+
+    /**
+     * The socket timeout in milliseconds for the next request of the given operation, or 0 to use the transport's
+     * configured default.
+     */
+    int getTimeoutMillis(WayfOperation operation);
+}
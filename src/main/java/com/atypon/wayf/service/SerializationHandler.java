@@ -18,7 +18,112 @@ package com.atypon.wayf.service;
 
 import com.atypon.wayf.data.WayfException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
 public interface SerializationHandler {
+    String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
+    String SMILE_CONTENT_TYPE = "application/x-jackson-smile";
+
     <T> T deserialize(String json, Class<T> returnType) throws WayfException;
     String serialize(Object toSerialize) throws WayfException;
+
+    /**
+     * Reads the whole stream as UTF-8 and passes it to {@link #deserialize(String, Class)}, which reads a parameterized
+     * type as its raw class. Handlers that can read from the stream directly should override this.
+     */
+    @SuppressWarnings("unchecked")
+    default <T> T deserialize(InputStream inputStream, Type returnType) throws WayfException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+
+        try {
+            int read;
+            while ((read = inputStream.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+        } catch (IOException e) {
+            throw new WayfException("Could not read type", e);
+        }
+
+        Type returnClass = returnType instanceof ParameterizedType? ((ParameterizedType) returnType).getRawType() : returnType;
+        return deserialize(new String(buffer.toByteArray(), StandardCharsets.UTF_8), (Class<T>) returnClass);
+    }
+
+    default <T> T deserialize(byte[] bytes, Type returnType) throws WayfException {
+        return deserialize(new ByteArrayInputStream(bytes), returnType);
+    }
+
+    /**
+     * Encodes {@link #serialize(Object)} as UTF-8. Handlers that can write bytes directly should override this.
+     */
+    default byte[] serializeToBytes(Object toSerialize) throws WayfException {
+        return serialize(toSerialize).getBytes(StandardCharsets.UTF_8);
+    }
+
+    default void serialize(Object toSerialize, OutputStream outputStream) throws WayfException {
+        try {
+            outputStream.write(serializeToBytes(toSerialize));
+        } catch (IOException e) {
+            throw new WayfException("Could not serialize type", e);
+        }
+    }
+
+    /**
+     * Reads the stream as an array of the element type and passes each element to the consumer. Handlers that can
+     * hand elements over as they are read should override this.
+     */
+    default <T> void deserializeEach(InputStream inputStream, Class<T> elementType, Consumer<? super T> consumer) throws WayfException {
+        T[] elements = deserialize(inputStream, Array.newInstance(elementType, 0).getClass());
+
+        if (elements != null) {
+            for (T element : elements) {
+                consumer.accept(element);
+            }
+        }
+    }
+
+    /**
+     * The Content-Type of what this handler serializes.
+     */
+    default String getContentType() {
+        return JSON_CONTENT_TYPE;
+    }
+
+    /**
+     * The Accept header to send with every request, or null to send none.
+     */
+    default String getAccept() {
+        return null;
+    }
+
+    /**
+     * Returns the handler that reads a response body of the given Content-Type, which is null when the server sent none.
+     */
+    default SerializationHandler forContentType(String contentType) {
+        return this;
+    }
+
+    /**
+     * Returns the handler that writes the next request body, together with that body's {@link #getContentType()}.
+     */
+    default SerializationHandler forRequestBody() {
+        return this;
+    }
+
+    /**
+     * Called when the server answered 415 Unsupported Media Type, meaning it could not read a request body written by
+     * {@link #forRequestBody()}. If that then returns a handler with another Content-Type, the request is sent once more
+     * with its body in that format.
+     */
+    default void onUnsupportedMediaType() {
+    }
 }
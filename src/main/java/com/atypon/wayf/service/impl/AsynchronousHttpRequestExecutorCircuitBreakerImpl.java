@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.CircuitBreakerOpenException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.service.AsynchronousHttpRequestExecutor;
+
+import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Guards another {@link AsynchronousHttpRequestExecutor} with a {@link CircuitBreaker}. While the breaker is open, the
+ * returned future fails immediately with a {@link CircuitBreakerOpenException}. Outcomes are classified as in
+ * {@link HttpRequestExecutorCircuitBreakerImpl}, and the latency recorded is the time until the delegate's future
+ * completes. A breaker may be shared with a synchronous executor so that both see the same window.
+ */
+public class AsynchronousHttpRequestExecutorCircuitBreakerImpl<R> implements AsynchronousHttpRequestExecutor<R> {
+    private final AsynchronousHttpRequestExecutor<R> delegate;
+    private final CircuitBreaker circuitBreaker;
+
+    public AsynchronousHttpRequestExecutorCircuitBreakerImpl(AsynchronousHttpRequestExecutor<R> delegate) {
+        this(delegate, new CircuitBreaker());
+    }
+
+    public AsynchronousHttpRequestExecutorCircuitBreakerImpl(AsynchronousHttpRequestExecutor<R> delegate, CircuitBreaker circuitBreaker) {
+        this.delegate = delegate;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    @Override
+    public <T> CompletableFuture<T> executeAsync(WayfOperation operation, R request, Type responseType) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        try {
+            circuitBreaker.acquirePermission();
+        } catch (CircuitBreakerOpenException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = delegate.executeAsync(operation, request, responseType);
+        } catch (Throwable t) {
+            record(t, System.nanoTime() - start);
+            result.completeExceptionally(t);
+            return result;
+        }
+
+        future.whenComplete((response, failure) -> {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null? failure.getCause() : failure;
+            record(cause, System.nanoTime() - start);
+
+            if (cause == null) {
+                result.complete(response);
+            } else {
+                result.completeExceptionally(cause);
+            }
+        });
+
+        return result;
+    }
+
+    private void record(Throwable failure, long durationNanos) {
+        if (failure != null && HttpRequestExecutorCircuitBreakerImpl.isFailure(failure)) {
+            circuitBreaker.onFailure(durationNanos);
+        } else {
+            circuitBreaker.onSuccess(durationNanos);
+        }
+    }
+}
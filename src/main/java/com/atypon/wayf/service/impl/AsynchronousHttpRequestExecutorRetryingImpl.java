@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.service.AsynchronousHttpRequestExecutor;
+import com.atypon.wayf.service.metrics.MetricsListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries failed requests of another {@link AsynchronousHttpRequestExecutor} as allowed by a {@link RetryPolicy}.
+ * Backoff delays are timers on a shared scheduler thread, so no thread waits while a retry is pending.
+ */
+public class AsynchronousHttpRequestExecutorRetryingImpl<R> implements AsynchronousHttpRequestExecutor<R> {
+    private static final Logger LOG = LoggerFactory.getLogger(AsynchronousHttpRequestExecutorRetryingImpl.class);
+
+    private final AsynchronousHttpRequestExecutor<R> delegate;
+    private final RetryPolicy retryPolicy;
+    private MetricsListener metricsListener;
+
+    public AsynchronousHttpRequestExecutorRetryingImpl(AsynchronousHttpRequestExecutor<R> delegate) {
+        this(delegate, new RetryPolicy());
+    }
+
+    public AsynchronousHttpRequestExecutorRetryingImpl(AsynchronousHttpRequestExecutor<R> delegate, RetryPolicy retryPolicy) {
+        this.delegate = delegate;
+        this.retryPolicy = retryPolicy;
+    }
+
+    public AsynchronousHttpRequestExecutorRetryingImpl<R> metricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    @Override
+    public <T> CompletableFuture<T> executeAsync(WayfOperation operation, R request, Type responseType) {
+        retryPolicy.onRequest();
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(operation, request, responseType, 1, result);
+        return result;
+    }
+
+    private <T> void attempt(WayfOperation operation, R request, Type responseType, int attempt, CompletableFuture<T> result) {
+        CompletableFuture<T> future;
+        try {
+            future = delegate.executeAsync(operation, request, responseType);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+
+        future.whenComplete((response, failure) -> {
+            if (failure == null) {
+                result.complete(response);
+                return;
+            }
+
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null? failure.getCause() : failure;
+            long delayMillis = result.isDone()? -1 : retryPolicy.retryDelayMillis(operation, attempt, cause);
+
+            if (delayMillis < 0) {
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            LOG.debug("Retrying [{}] after attempt [{}] failed, in [{}] ms", operation, attempt, delayMillis);
+            notifyRetry(operation, attempt, cause);
+
+            Scheduler.INSTANCE.schedule(() -> attempt(operation, request, responseType, attempt + 1, result), delayMillis, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private void notifyRetry(WayfOperation operation, int attempt, Throwable failure) {
+        if (metricsListener == null) {
+            return;
+        }
+
+        try {
+            metricsListener.onRetry(operation, attempt, failure);
+        } catch (RuntimeException e) {
+            LOG.warn("Metrics listener failed", e);
+        }
+    }
+
+    // Created on first use so that clients which never retry asynchronously do not start the thread
+    private static class Scheduler {
+        private static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wayf-retry-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the number of calls in flight. Like a semaphore, except that background calls may not take the last
+ * {@code reserved} permits, which are left for interactive calls.
+ */
+class Bulkhead {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final int maxConcurrentCalls;
+    private final int reserved;
+
+    private int inUse;
+
+    Bulkhead(int maxConcurrentCalls, double reservedFraction) {
+        if (maxConcurrentCalls <= 0) {
+            throw new IllegalArgumentException("The maximum number of concurrent calls must be positive");
+        }
+
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.reserved = Math.min(maxConcurrentCalls - 1, (int) (maxConcurrentCalls * reservedFraction));
+    }
+
+    boolean tryAcquire(boolean interactive, long timeoutNanos) throws InterruptedException {
+        int limit = interactive? maxConcurrentCalls : maxConcurrentCalls - reserved;
+        long remaining = timeoutNanos;
+
+        lock.lockInterruptibly();
+        try {
+            while (inUse >= limit) {
+                if (remaining <= 0) {
+                    return false;
+                }
+
+                remaining = released.awaitNanos(remaining);
+            }
+
+            inUse++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release() {
+        lock.lock();
+        try {
+            inUse--;
+
+            // Waiters of both priorities share the condition, so wake them all and let each re-check its own limit
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getInUse() {
+        lock.lock();
+        try {
+            return inUse;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.CircuitBreakerOpenException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the outcome of the most recent calls to the WAYF cloud in a count-based sliding window. The breaker opens
+ * when either the failure rate or the latency at the configured percentile crosses its threshold; while open, calls
+ * are rejected without being sent. After the open duration a limited number of probe calls are let through, and the
+ * breaker closes again once all of them succeed.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private int windowSize = 100;
+    private int minimumCalls = 20;
+    private double failureRateThreshold = 0.5;
+    private double latencyPercentile = 100;
+    private long latencyThresholdNanos = Long.MAX_VALUE;
+    private long openDurationNanos = TimeUnit.SECONDS.toNanos(30);
+    private int probeCalls = 3;
+
+    private volatile State state = State.CLOSED;
+    private boolean[] failedCalls = new boolean[windowSize];
+    private boolean[] slowCalls = new boolean[windowSize];
+    private int position;
+    private int recordedCalls;
+    private int failedCount;
+    private int slowCount;
+    private long openedAt;
+    private int probesRemaining;
+    private int probeSuccesses;
+
+    public CircuitBreaker() {
+    }
+
+    public CircuitBreaker windowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be positive");
+        }
+
+        lock.lock();
+        try {
+            this.windowSize = windowSize;
+            this.failedCalls = new boolean[windowSize];
+            this.slowCalls = new boolean[windowSize];
+            clearWindow();
+        } finally {
+            lock.unlock();
+        }
+
+        return this;
+    }
+
+    public CircuitBreaker minimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    public CircuitBreaker failureRateThreshold(double failureRateThreshold) {
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+            throw new IllegalArgumentException("Failure rate threshold must be in (0, 1]");
+        }
+
+        this.failureRateThreshold = failureRateThreshold;
+        return this;
+    }
+
+    /**
+     * Opens the breaker when the given latency percentile (0-100) of the calls in the window exceeds the threshold,
+     * for example {@code latencyThreshold(99, 2, TimeUnit.SECONDS)} to trip on a p99 above two seconds.
+     */
+    public CircuitBreaker latencyThreshold(double percentile, long threshold, TimeUnit unit) {
+        if (percentile <= 0 || percentile >= 100) {
+            throw new IllegalArgumentException("Latency percentile must be in (0, 100)");
+        }
+
+        this.latencyPercentile = percentile;
+        this.latencyThresholdNanos = unit.toNanos(threshold);
+        return this;
+    }
+
+    public CircuitBreaker openDuration(long openDuration, TimeUnit unit) {
+        this.openDurationNanos = unit.toNanos(openDuration);
+        return this;
+    }
+
+    public CircuitBreaker probeCalls(int probeCalls) {
+        if (probeCalls < 1) {
+            throw new IllegalArgumentException("Probe calls must be positive");
+        }
+
+        this.probeCalls = probeCalls;
+        return this;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Reserves the right to send one call, or throws if the breaker is open. Every successful acquisition must be
+     * followed by {@link #onSuccess(long)} or {@link #onFailure(long)}.
+     */
+    public void acquirePermission() throws CircuitBreakerOpenException {
+        if (state == State.CLOSED) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (state == State.OPEN) {
+                if (System.nanoTime() - openedAt < openDurationNanos) {
+                    throw new CircuitBreakerOpenException("WAYF circuit breaker is open");
+                }
+
+                state = State.HALF_OPEN;
+                probesRemaining = probeCalls;
+                probeSuccesses = 0;
+            }
+
+            if (state == State.HALF_OPEN) {
+                if (probesRemaining == 0) {
+                    throw new CircuitBreakerOpenException("WAYF circuit breaker is half-open and waiting for probe calls");
+                }
+
+                probesRemaining--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void onSuccess(long durationNanos) {
+        record(false, durationNanos);
+    }
+
+    public void onFailure(long durationNanos) {
+        record(true, durationNanos);
+    }
+
+    private void record(boolean failed, long durationNanos) {
+        boolean slow = durationNanos > latencyThresholdNanos;
+
+        lock.lock();
+        try {
+            switch (state) {
+                case HALF_OPEN:
+                    if (failed || slow) {
+                        open();
+                    } else if (++probeSuccesses >= probeCalls) {
+                        state = State.CLOSED;
+                        clearWindow();
+                    }
+                    break;
+
+                case OPEN:
+                    // A call permitted before the breaker tripped; the window was already reset
+                    break;
+
+                default:
+                    recordInWindow(failed, slow);
+
+                    if (recordedCalls >= minimumCalls && isTripped()) {
+                        open();
+                    }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordInWindow(boolean failed, boolean slow) {
+        if (recordedCalls == windowSize) {
+            failedCount -= failedCalls[position]? 1 : 0;
+            slowCount -= slowCalls[position]? 1 : 0;
+        } else {
+            recordedCalls++;
+        }
+
+        failedCalls[position] = failed;
+        slowCalls[position] = slow;
+        failedCount += failed? 1 : 0;
+        slowCount += slow? 1 : 0;
+
+        position = (position + 1) % windowSize;
+    }
+
+    // The latency percentile is above the threshold exactly when more than (100 - percentile)% of the calls were slower
+    // than it, so no histogram is needed
+    private boolean isTripped() {
+        double failureRate = (double) failedCount / recordedCalls;
+        double slowRate = (double) slowCount / recordedCalls;
+
+        return failureRate >= failureRateThreshold || slowRate > (100 - latencyPercentile) / 100;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        clearWindow();
+    }
+
+    private void clearWindow() {
+        for (int index = 0; index < failedCalls.length; index++) {
+            failedCalls[index] = false;
+            slowCalls[index] = false;
+        }
+
+        position = 0;
+        recordedCalls = 0;
+        failedCount = 0;
+        slowCount = 0;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * gzip and deflate coding of request and response bodies, shared by the transport implementations. Response bodies are
+ * decoded as the deserializer reads them, so a compressed body is never inflated into memory in full.
+ */
+final class ContentEncoding {
+    static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+    static final String GZIP = "gzip";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private ContentEncoding() {
+    }
+
+    /**
+     * Returns the request with its body gzipped if the body is at least {@code thresholdBytes} long, or the request
+     * itself otherwise. A negative threshold disables request compression.
+     */
+    static WayfRequest compress(WayfRequest request, int thresholdBytes) {
+        if (thresholdBytes < 0 || request.getBody() == null || request.getBodyLength() < thresholdBytes
+                || request.getHeader(CONTENT_ENCODING_HEADER) != null) {
+            return request;
+        }
+
+        WayfRequest compressed = new WayfRequest(request.getMethod(), request.getUrl());
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            compressed.header(header.getKey(), header.getValue());
+        }
+
+        return compressed
+                .header(CONTENT_ENCODING_HEADER, GZIP)
+                .body(gzip(request.getBody()))
+                .serializationNanos(request.getSerializationNanos());
+    }
+
+    static byte[] gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 32);
+
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            // Writing to a byte array cannot fail
+            throw new UncheckedIOException(e);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Wraps the body in a decoder for its Content-Encoding, which may be null. An empty body, such as that of a 204 or
+     * an error response some servers still label as compressed, is returned as it is.
+     */
+    static InputStream decode(String contentEncoding, InputStream body) throws IOException {
+        if (contentEncoding == null) {
+            return body;
+        }
+
+        String coding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        if (coding.isEmpty() || coding.equals("identity")) {
+            return body;
+        }
+
+        PushbackInputStream pushback = new PushbackInputStream(body, 2);
+
+        int first = pushback.read();
+        if (first == -1) {
+            return pushback;
+        }
+        pushback.unread(first);
+
+        switch (coding) {
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(pushback, BUFFER_SIZE);
+            case "deflate":
+                return inflate(pushback);
+            default:
+                throw new IOException("Unsupported Content-Encoding [" + contentEncoding + "]");
+        }
+    }
+
+    // Servers disagree on whether deflate means a zlib stream, as the RFC says, or raw deflate data, so check for a
+    // zlib header before choosing
+    private static InputStream inflate(PushbackInputStream pushback) throws IOException {
+        int first = pushback.read();
+        int second = first != -1? pushback.read() : -1;
+
+        if (second != -1) {
+            pushback.unread(second);
+        }
+
+        if (first != -1) {
+            pushback.unread(first);
+        }
+
+        boolean zlib = second != -1 && (first & 0x0F) == 8 && ((first << 8) | second) % 31 == 0;
+        Inflater inflater = new Inflater(!zlib);
+
+        // InflaterInputStream only ends inflaters it created itself
+        return new InflaterInputStream(pushback, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.PendingWrite;
+import com.atypon.wayf.data.StoredDeviceHistory;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.service.DeviceHistoryStore;
+import com.atypon.wayf.service.SerializationHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * {@link DeviceHistoryStore} backed by a single append-only log file. Every change is appended as a length-prefixed,
+ * CRC-checked record and the current state is kept in memory, so reads never touch the disk. On startup the log is
+ * replayed and an incomplete record left by a crash is cut off. A corrupt record with valid records after it is copied
+ * to a {@code .corrupt} file next to the log and skipped, and the log is then rewritten without it. Once the log has
+ * grown past the compaction threshold and is more than twice the size of its live records, it is rewritten and
+ * atomically swapped in.
+ * <p>
+ * Pending writes are forced to disk before they are acknowledged; histories are not, since losing one only means it
+ * is read from the WAYF cloud again. For the same reason, once more than {@link #maxHistories(int)} histories are
+ * stored the least recently stored ones are evicted, except those of localIds with pending writes.
+ */
+public class DeviceHistoryStoreFileImpl implements DeviceHistoryStore {
+    private static final Logger LOG = LoggerFactory.getLogger(DeviceHistoryStoreFileImpl.class);
+
+    private static final byte HISTORY_RECORD = 'H';
+    private static final byte PENDING_WRITE_RECORD = 'P';
+    private static final byte REMOVE_PENDING_WRITE_RECORD = 'R';
+
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    private static final long DEFAULT_COMPACTION_THRESHOLD_BYTES = 8L * 1024 * 1024;
+    private static final int DEFAULT_MAX_HISTORIES = 100000;
+
+    private final Path file;
+    private final SerializationHandler serializationHandler;
+
+    private final ConcurrentMap<String, StoredDeviceHistory> histories = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Long, PendingWrite> pendingWrites = new ConcurrentSkipListMap<>();
+
+    // Everything below is guarded by the write lock
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // In access order, so that it iterates from the least recently stored history
+    private final Map<String, Integer> historyRecordBytes = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Long, Integer> pendingWriteRecordBytes = new HashMap<>();
+    private long liveBytes;
+    private long fileBytes;
+    private long nextSequence = 1;
+    private long compactionThresholdBytes = DEFAULT_COMPACTION_THRESHOLD_BYTES;
+    private int maxHistories = DEFAULT_MAX_HISTORIES;
+    private FileChannel channel;
+    private IOException failure;
+
+    public DeviceHistoryStoreFileImpl(Path file, SerializationHandler serializationHandler) throws WayfException {
+        this.file = file;
+        this.serializationHandler = serializationHandler;
+
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+
+            this.channel = openChannel(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            replay();
+        } catch (IOException e) {
+            throw new WayfException("Could not open device history store [" + file + "]", e);
+        }
+    }
+
+    public DeviceHistoryStoreFileImpl compactionThresholdBytes(long compactionThresholdBytes) {
+        this.compactionThresholdBytes = compactionThresholdBytes;
+        return this;
+    }
+
+    public DeviceHistoryStoreFileImpl maxHistories(int maxHistories) {
+        if (maxHistories < 1) {
+            throw new IllegalArgumentException("The maximum number of stored histories must be positive");
+        }
+
+        writeLock.lock();
+        try {
+            this.maxHistories = maxHistories;
+            evictHistories();
+        } finally {
+            writeLock.unlock();
+        }
+
+        return this;
+    }
+
+    @Override
+    public StoredDeviceHistory getHistory(String localId) {
+        return histories.get(localId);
+    }
+
+    @Override
+    public void putHistory(String localId, StoredDeviceHistory history) throws WayfException {
+        StoredDeviceHistory stored = new StoredDeviceHistory(
+                Collections.unmodifiableList(new ArrayList<>(history.getHistory())),
+                history.getStoredAtMillis(),
+                history.isRefreshRequired());
+
+        writeLock.lock();
+        try {
+            int recordBytes = append(encodeHistory(localId, stored), false);
+
+            Integer previousBytes = historyRecordBytes.put(localId, recordBytes);
+            liveBytes += recordBytes - (previousBytes != null? previousBytes : 0);
+            histories.put(localId, stored);
+
+            evictHistories();
+            compactIfNeeded();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public PendingWrite addPendingWrite(PendingWrite pendingWrite) throws WayfException {
+        writeLock.lock();
+        try {
+            pendingWrite.setSequence(nextSequence);
+
+            int recordBytes = append(encodePendingWrite(pendingWrite), true);
+
+            nextSequence++;
+            pendingWriteRecordBytes.put(pendingWrite.getSequence(), recordBytes);
+            liveBytes += recordBytes;
+            pendingWrites.put(pendingWrite.getSequence(), pendingWrite);
+
+            return pendingWrite;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public List<PendingWrite> getPendingWrites() {
+        return new ArrayList<>(pendingWrites.values());
+    }
+
+    @Override
+    public boolean hasPendingWrites(String localId) {
+        if (pendingWrites.isEmpty()) {
+            return false;
+        }
+
+        for (PendingWrite pendingWrite : pendingWrites.values()) {
+            if (pendingWrite.getLocalId().equals(localId)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public void removePendingWrite(long sequence) throws WayfException {
+        writeLock.lock();
+        try {
+            if (!pendingWrites.containsKey(sequence)) {
+                return;
+            }
+
+            append(encodeRemovePendingWrite(sequence), true);
+
+            pendingWrites.remove(sequence);
+            liveBytes -= pendingWriteRecordBytes.remove(sequence);
+
+            compactIfNeeded();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            channel.close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Bytes that do not start a valid record are skipped up to the next offset that does. If no valid record follows,
+    // they are what a crash left of the last record and are cut off; otherwise they are a corrupt record in the middle
+    // of the log, which is quarantined so that the valid records after it are kept
+    private void replay() throws IOException, WayfException {
+        long size = channel.size();
+        long position = 0;
+        boolean corrupt = false;
+
+        while (position < size) {
+            byte[] payload = readRecord(position, size);
+            if (payload != null) {
+                apply(payload, HEADER_BYTES + payload.length);
+                position += HEADER_BYTES + payload.length;
+                continue;
+            }
+
+            long next = position + 1;
+            while (next < size && readRecord(next, size) == null) {
+                next++;
+            }
+
+            if (next == size) {
+                break;
+            }
+
+            LOG.error("Skipping [{}] corrupt bytes at offset [{}] of device history store [{}]", next - position, position, file);
+            quarantine(position, next);
+            corrupt = true;
+            position = next;
+        }
+
+        if (position < size) {
+            LOG.warn("Discarding [{}] bytes of incomplete records at the end of device history store [{}]", size - position, file);
+            channel.truncate(position);
+        }
+
+        fileBytes = position;
+        channel.position(position);
+
+        // Otherwise the corrupt bytes would be found, and quarantined again, on every start
+        if (corrupt) {
+            compact();
+        }
+    }
+
+    // Returns the payload of the record at the position, or null if no complete record with a valid checksum starts there
+    private byte[] readRecord(long position, long size) throws IOException {
+        if (size - position <= HEADER_BYTES) {
+            return null;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + 1);
+        readFully(header, position);
+
+        int length = header.getInt(0);
+        byte type = header.get(HEADER_BYTES);
+        if (length < 1 || length > MAX_RECORD_BYTES || length > size - position - HEADER_BYTES
+                || (type != HISTORY_RECORD && type != PENDING_WRITE_RECORD && type != REMOVE_PENDING_WRITE_RECORD)) {
+            return null;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(payload, position + HEADER_BYTES);
+
+        return header.getInt(4) == checksum(payload.array(), 0, length)? payload.array() : null;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of device history store [" + file + "]");
+            }
+        }
+    }
+
+    private void quarantine(long start, long end) {
+        Path quarantined = file.resolveSibling(file.getFileName() + ".corrupt");
+
+        try (FileChannel out = FileChannel.open(quarantined, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            for (long position = start; position < end; ) {
+                position += channel.transferTo(position, end - position, out);
+            }
+        } catch (IOException e) {
+            LOG.error("Could not quarantine corrupt bytes of device history store [{}] to [{}]", file, quarantined, e);
+        }
+    }
+
+    private void apply(byte[] payload, int recordBytes) throws IOException, WayfException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        switch (in.readByte()) {
+            case HISTORY_RECORD: {
+                String localId = in.readUTF();
+                StoredDeviceHistory history = serializationHandler.deserialize(in, StoredDeviceHistory.class);
+                history.setHistory(Collections.unmodifiableList(history.getHistory()));
+
+                Integer previousBytes = historyRecordBytes.put(localId, recordBytes);
+                liveBytes += recordBytes - (previousBytes != null? previousBytes : 0);
+                histories.put(localId, history);
+
+                // Evicting at the same points as when the log was written leaves the same histories
+                evictHistories();
+                break;
+            }
+
+            case PENDING_WRITE_RECORD: {
+                PendingWrite pendingWrite = serializationHandler.deserialize(in, PendingWrite.class);
+
+                pendingWriteRecordBytes.put(pendingWrite.getSequence(), recordBytes);
+                liveBytes += recordBytes;
+                pendingWrites.put(pendingWrite.getSequence(), pendingWrite);
+                nextSequence = Math.max(nextSequence, pendingWrite.getSequence() + 1);
+                break;
+            }
+
+            case REMOVE_PENDING_WRITE_RECORD: {
+                long sequence = in.readLong();
+
+                Integer removedBytes = pendingWriteRecordBytes.remove(sequence);
+                if (removedBytes != null) {
+                    liveBytes -= removedBytes;
+                }
+                pendingWrites.remove(sequence);
+                break;
+            }
+
+            default:
+                throw new IOException("Unknown record type in device history store [" + file + "]");
+        }
+    }
+
+    // A failed write is cut off again so later records do not land behind a torn one, which replay would stop at. If
+    // even that fails, the store refuses further writes rather than acknowledge records it cannot replay
+    private int append(ByteBuffer record, boolean force) throws WayfException {
+        if (failure != null) {
+            throw new WayfException("Device history store [" + file + "] is unusable after an earlier write failure", failure);
+        }
+
+        int recordBytes = record.remaining();
+
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            try {
+                channel.truncate(fileBytes);
+                channel.position(fileBytes);
+            } catch (IOException rollbackFailure) {
+                e.addSuppressed(rollbackFailure);
+                failure = e;
+
+                LOG.error("Could not roll back a failed write to device history store [{}]", file, rollbackFailure);
+            }
+
+            throw new WayfException("Could not write to device history store [" + file + "]", e);
+        }
+
+        fileBytes += recordBytes;
+        return recordBytes;
+    }
+
+    // An evicted history's records become dead bytes, which the next compaction drops
+    private void evictHistories() {
+        if (histories.size() <= maxHistories) {
+            return;
+        }
+
+        Set<String> pendingLocalIds = new HashSet<>();
+        for (PendingWrite pendingWrite : pendingWrites.values()) {
+            pendingLocalIds.add(pendingWrite.getLocalId());
+        }
+
+        Iterator<Map.Entry<String, Integer>> leastRecent = historyRecordBytes.entrySet().iterator();
+        while (histories.size() > maxHistories && leastRecent.hasNext()) {
+            Map.Entry<String, Integer> entry = leastRecent.next();
+
+            if (!pendingLocalIds.contains(entry.getKey())) {
+                leastRecent.remove();
+                liveBytes -= entry.getValue();
+                histories.remove(entry.getKey());
+            }
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (fileBytes < compactionThresholdBytes || fileBytes < 2 * liveBytes) {
+            return;
+        }
+
+        compact();
+    }
+
+    private void compact() {
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = 0;
+
+            // Written from the least recently stored, so that replaying the compacted log keeps the eviction order
+            for (String localId : historyRecordBytes.keySet()) {
+                written += writeFully(out, encodeHistory(localId, histories.get(localId)));
+            }
+
+            for (PendingWrite pendingWrite : pendingWrites.values()) {
+                written += writeFully(out, encodePendingWrite(pendingWrite));
+            }
+
+            out.force(true);
+
+            channel.close();
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            channel = openChannel(StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(written);
+            fileBytes = written;
+            liveBytes = written;
+
+            LOG.debug("Compacted device history store [{}] to [{}] bytes", file, written);
+        } catch (IOException | WayfException e) {
+            // The old log is still complete; try again after the next write
+            LOG.warn("Could not compact device history store [{}]", file, e);
+
+            try {
+                if (!channel.isOpen()) {
+                    channel = openChannel(StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    channel.position(channel.size());
+                }
+            } catch (IOException reopenFailure) {
+                LOG.error("Could not reopen device history store [{}]", file, reopenFailure);
+            }
+        }
+    }
+
+    // Overridden in tests to inject I/O failures
+    FileChannel openChannel(OpenOption... options) throws IOException {
+        return FileChannel.open(file, options);
+    }
+
+    private ByteBuffer encodeHistory(String localId, StoredDeviceHistory history) throws WayfException {
+        return encode(HISTORY_RECORD, localId, history, 0);
+    }
+
+    private ByteBuffer encodePendingWrite(PendingWrite pendingWrite) throws WayfException {
+        return encode(PENDING_WRITE_RECORD, null, pendingWrite, 0);
+    }
+
+    private ByteBuffer encodeRemovePendingWrite(long sequence) throws WayfException {
+        return encode(REMOVE_PENDING_WRITE_RECORD, null, null, sequence);
+    }
+
+    private ByteBuffer encode(byte type, String localId, Object body, long sequence) throws WayfException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeLong(0);
+            out.writeByte(type);
+
+            if (localId != null) {
+                out.writeUTF(localId);
+            }
+
+            if (body != null) {
+                out.flush();
+                serializationHandler.serialize(body, bytes);
+            } else {
+                out.writeLong(sequence);
+            }
+
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            int length = record.capacity() - HEADER_BYTES;
+
+            record.putInt(0, length);
+            record.putInt(4, checksum(record.array(), HEADER_BYTES, length));
+
+            return record;
+        } catch (IOException e) {
+            throw new WayfException("Could not encode device history store record", e);
+        }
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer record) throws IOException {
+        int recordBytes = record.remaining();
+
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+
+        return recordBytes;
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+}
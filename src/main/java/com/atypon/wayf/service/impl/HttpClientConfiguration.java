@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+/**
+ * Connection pool and timeout settings for {@link HttpRequestExecutorHttpClientImpl}. All durations are in
+ * milliseconds.
+ */
+public class HttpClientConfiguration {
+    private int maxConnectionsTotal = 200;
+    private int maxConnectionsPerRoute = 50;
+    private int connectTimeoutMillis = 2000;
+    private int socketTimeoutMillis = 5000;
+    private int connectionRequestTimeoutMillis = 1000;
+    private long keepAliveMillis = 30000;
+    private long maxIdleMillis = 60000;
+    private long idleEvictionIntervalMillis = 5000;
+    private boolean acceptCompressedResponses = true;
+    private int requestCompressionThresholdBytes = -1;
+    private int warmConnections = 1;
+    private long keepAlivePingIntervalMillis = 0;
+
+    public HttpClientConfiguration() {
+    }
+
+    public HttpClientConfiguration maxConnectionsTotal(int maxConnectionsTotal) {
+        this.maxConnectionsTotal = maxConnectionsTotal;
+        return this;
+    }
+
+    public HttpClientConfiguration maxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        return this;
+    }
+
+    public HttpClientConfiguration connectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    public HttpClientConfiguration socketTimeoutMillis(int socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+        return this;
+    }
+
+    public HttpClientConfiguration connectionRequestTimeoutMillis(int connectionRequestTimeoutMillis) {
+        this.connectionRequestTimeoutMillis = connectionRequestTimeoutMillis;
+        return this;
+    }
+
+    public HttpClientConfiguration keepAliveMillis(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+        return this;
+    }
+
+    public HttpClientConfiguration maxIdleMillis(long maxIdleMillis) {
+        this.maxIdleMillis = maxIdleMillis;
+        return this;
+    }
+
+    public HttpClientConfiguration idleEvictionIntervalMillis(long idleEvictionIntervalMillis) {
+        this.idleEvictionIntervalMillis = idleEvictionIntervalMillis;
+        return this;
+    }
+
+    /**
+     * Whether to advertise gzip and deflate in Accept-Encoding. Compressed responses are decoded either way.
+     */
+    public HttpClientConfiguration acceptCompressedResponses(boolean acceptCompressedResponses) {
+        this.acceptCompressedResponses = acceptCompressedResponses;
+        return this;
+    }
+
+    /**
+     * Request bodies of at least this many bytes are sent gzipped. Negative, the default, never compresses requests,
+     * since the server has to accept a gzip Content-Encoding for this to work.
+     */
+    public HttpClientConfiguration requestCompressionThresholdBytes(int requestCompressionThresholdBytes) {
+        this.requestCompressionThresholdBytes = requestCompressionThresholdBytes;
+        return this;
+    }
+
+    /**
+     * How many connections {@code warmUp} opens to the WAYF host, capped at the per-route maximum.
+     */
+    public HttpClientConfiguration warmConnections(int warmConnections) {
+        this.warmConnections = warmConnections;
+        return this;
+    }
+
+    /**
+     * Once {@code warmUp} has run, how often to send a GET request for the warmed-up URL over each warm connection so
+     * that neither side closes it for being idle. Should be shorter than both maxIdleMillis and the server's idle
+     * timeout. Zero, the default, never pings.
+     */
+    public HttpClientConfiguration keepAlivePingIntervalMillis(long keepAlivePingIntervalMillis) {
+        this.keepAlivePingIntervalMillis = keepAlivePingIntervalMillis;
+        return this;
+    }
+
+    public int getMaxConnectionsTotal() {
+        return maxConnectionsTotal;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public int getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    public int getConnectionRequestTimeoutMillis() {
+        return connectionRequestTimeoutMillis;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public long getMaxIdleMillis() {
+        return maxIdleMillis;
+    }
+
+    public long getIdleEvictionIntervalMillis() {
+        return idleEvictionIntervalMillis;
+    }
+
+    public boolean isAcceptCompressedResponses() {
+        return acceptCompressedResponses;
+    }
+
+    public int getRequestCompressionThresholdBytes() {
+        return requestCompressionThresholdBytes;
+    }
+
+    public int getWarmConnections() {
+        return warmConnections;
+    }
+
+    public long getKeepAlivePingIntervalMillis() {
+        return keepAlivePingIntervalMillis;
+    }
+}
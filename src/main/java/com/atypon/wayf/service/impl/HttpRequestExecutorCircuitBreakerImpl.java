@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.service.HttpRequestExecutor;
+
+import java.lang.reflect.Type;
+import java.util.function.Consumer;
+
+/**
+ * Guards another {@link HttpRequestExecutor} with a {@link CircuitBreaker}. While the breaker is open, requests fail
+ * immediately with a {@link com.atypon.wayf.data.CircuitBreakerOpenException} instead of tying up the calling thread.
+ * Transport errors and 5xx/429 responses count as failures; other 4xx responses and exceptions thrown by the caller's
+ * consumer do not. {@link AsynchronousHttpRequestExecutorCircuitBreakerImpl} guards asynchronous executors.
+ */
+public class HttpRequestExecutorCircuitBreakerImpl<R> implements HttpRequestExecutor<R> {
+    private final HttpRequestExecutor<R> delegate;
+    private final CircuitBreaker circuitBreaker;
+
+    public HttpRequestExecutorCircuitBreakerImpl(HttpRequestExecutor<R> delegate) {
+        this(delegate, new CircuitBreaker());
+    }
+
+    public HttpRequestExecutorCircuitBreakerImpl(HttpRequestExecutor<R> delegate, CircuitBreaker circuitBreaker) {
+        this.delegate = delegate;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    @Override
+    public <T> T execute(WayfOperation operation, R request, Type responseType) throws WayfException {
+        circuitBreaker.acquirePermission();
+
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            return delegate.execute(operation, request, responseType);
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            record(failure, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public <T> void executeForEach(WayfOperation operation, R request, Class<T> elementType, Consumer<? super T> consumer) throws WayfException {
+        circuitBreaker.acquirePermission();
+
+        // The delegate may wrap whatever the consumer throws, so it is flagged here rather than recognised afterwards
+        boolean[] consumerFailed = new boolean[1];
+        Consumer<T> guardedConsumer = element -> {
+            try {
+                consumer.accept(element);
+            } catch (Throwable t) {
+                consumerFailed[0] = true;
+                throw t;
+            }
+        };
+
+        long start = System.nanoTime();
+        Throwable failure = null;
+        try {
+            delegate.executeForEach(operation, request, elementType, guardedConsumer);
+        } catch (Throwable t) {
+            failure = consumerFailed[0]? null : t;
+            throw t;
+        } finally {
+            record(failure, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void warmUp(String url) {
+        delegate.warmUp(url);
+    }
+
+    // Every permitted call is recorded, whatever it threw; a half-open probe that went unrecorded would leave the breaker
+    // waiting for it forever
+    private void record(Throwable failure, long durationNanos) {
+        if (failure != null && isFailure(failure)) {
+            circuitBreaker.onFailure(durationNanos);
+        } else {
+            circuitBreaker.onSuccess(durationNanos);
+        }
+    }
+
+    static boolean isFailure(Throwable failure) {
+        if (!(failure instanceof WayfException)) {
+            return true;
+        }
+
+        int status = ((WayfException) failure).getStatus();
+        return status == 0 || status == 429 || status >= 500;
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.service.AsynchronousHttpRequestExecutor;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import com.atypon.wayf.service.RequestTimeoutPolicy;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.metrics.MetricsListener;
+import com.atypon.wayf.service.metrics.RequestMetrics;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.DefaultConnectionKeepAliveStrategy;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Executes WAYF requests on an Apache HttpClient 5 async client. With {@code FORCE_HTTP_2} it speaks only HTTP/2 and
+ * concurrent requests to the WAYF cloud are multiplexed as streams on a single connection per host. With the default
+ * {@code NEGOTIATE} it picks HTTP/2 over TLS (ALPN) and falls back to HTTP/1.1 when the server does not offer it, but
+ * HttpClient 5.2's connection pool then leases each connection to one exchange at a time, so concurrent requests still
+ * open a connection each. Requires {@code httpclient5} on the classpath, and each instance should be closed once it is
+ * no longer needed.
+ */
+public class HttpRequestExecutorHttp2Impl implements HttpRequestExecutor<WayfRequest>, AsynchronousHttpRequestExecutor<WayfRequest>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(HttpRequestExecutorHttp2Impl.class);
+
+    private final HttpResponseHandler responseHandler;
+    private final RequestConfig requestConfig;
+    private final CloseableHttpAsyncClient httpClient;
+    private final boolean acceptCompressedResponses;
+    private final int requestCompressionThresholdBytes;
+    private final int warmConnections;
+    private final Set<String> warmUrls = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService keepAlivePinger;
+    private MetricsListener metricsListener;
+    private RequestTimeoutPolicy timeoutPolicy;
+
+    public HttpRequestExecutorHttp2Impl(SerializationHandler serializationHandler) {
+        this(serializationHandler, new HttpClientConfiguration());
+    }
+
+    public HttpRequestExecutorHttp2Impl(SerializationHandler serializationHandler, HttpClientConfiguration configuration) {
+        this(serializationHandler, configuration, HttpVersionPolicy.NEGOTIATE);
+    }
+
+    /**
+     * @param versionPolicy {@code NEGOTIATE} to use HTTP/2 only when ALPN selects it, or {@code FORCE_HTTP_2} to speak
+     *                      only HTTP/2, multiplexed on one connection per host, over TLS and with prior knowledge over
+     *                      plain-text connections
+     */
+    public HttpRequestExecutorHttp2Impl(SerializationHandler serializationHandler, HttpClientConfiguration configuration, HttpVersionPolicy versionPolicy) {
+        this.responseHandler = new HttpResponseHandler(serializationHandler);
+        this.acceptCompressedResponses = configuration.isAcceptCompressedResponses();
+        this.requestCompressionThresholdBytes = configuration.getRequestCompressionThresholdBytes();
+
+        ConnectionConfig connectionConfig = ConnectionConfig.custom()
+                .setConnectTimeout(Timeout.ofMilliseconds(configuration.getConnectTimeoutMillis()))
+                .setSocketTimeout(Timeout.ofMilliseconds(configuration.getSocketTimeoutMillis()))
+                .build();
+
+        this.requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(Timeout.ofMilliseconds(configuration.getConnectionRequestTimeoutMillis()))
+                .setResponseTimeout(Timeout.ofMilliseconds(configuration.getSocketTimeoutMillis()))
+                .build();
+
+        this.httpClient = versionPolicy == HttpVersionPolicy.FORCE_HTTP_2?
+                multiplexingClient(configuration, connectionConfig, requestConfig) :
+                pooledClient(configuration, connectionConfig, requestConfig, versionPolicy);
+
+        httpClient.start();
+
+        this.warmConnections = Math.min(Math.max(1, configuration.getWarmConnections()), configuration.getMaxConnectionsPerRoute());
+
+        long pingIntervalMillis = configuration.getKeepAlivePingIntervalMillis();
+        if (pingIntervalMillis > 0) {
+            this.keepAlivePinger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wayf-keep-alive-pinger");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            keepAlivePinger.scheduleWithFixedDelay(this::ping, pingIntervalMillis, pingIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.keepAlivePinger = null;
+        }
+    }
+
+    // HttpClient 5.2 only shares a connection between concurrent exchanges in its HTTP/2-only client, which keeps one
+    // connection per host and opens a stream on it for each request. Its default retry strategy would resend requests
+    // on a 503, which is RetryPolicy's decision to make
+    private static CloseableHttpAsyncClient multiplexingClient(HttpClientConfiguration configuration, ConnectionConfig connectionConfig, RequestConfig requestConfig) {
+        return HttpAsyncClients.customHttp2()
+                .setDefaultConnectionConfig(connectionConfig)
+                .setDefaultRequestConfig(requestConfig)
+                .evictIdleConnections(TimeValue.ofMilliseconds(configuration.getMaxIdleMillis()))
+                .disableAutomaticRetries()
+                .build();
+    }
+
+    private static CloseableHttpAsyncClient pooledClient(HttpClientConfiguration configuration, ConnectionConfig connectionConfig, RequestConfig requestConfig, HttpVersionPolicy versionPolicy) {
+        PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(configuration.getMaxConnectionsTotal())
+                .setMaxConnPerRoute(configuration.getMaxConnectionsPerRoute())
+                .setDefaultConnectionConfig(connectionConfig)
+                .setDefaultTlsConfig(TlsConfig.custom()
+                        .setVersionPolicy(versionPolicy)
+                        .build())
+                .build();
+
+        long defaultKeepAliveMillis = configuration.getKeepAliveMillis();
+
+        return HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy((response, context) -> {
+                    TimeValue keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return TimeValue.isPositive(keepAlive)? keepAlive : TimeValue.ofMilliseconds(defaultKeepAliveMillis);
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofMilliseconds(configuration.getMaxIdleMillis()))
+                .build();
+    }
+
+    public HttpRequestExecutorHttp2Impl metricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    public HttpRequestExecutorHttp2Impl timeoutPolicy(RequestTimeoutPolicy timeoutPolicy) {
+        this.timeoutPolicy = timeoutPolicy;
+        return this;
+    }
+
+    @Override
+    public <T> T execute(WayfOperation operation, WayfRequest request, Type responseType) throws WayfException {
+        return send(operation, request, (status, retryAfter, contentType, body, metrics) -> responseHandler.handle(status, retryAfter, contentType, body, responseType, metrics));
+    }
+
+    @Override
+    public <T> void executeForEach(WayfOperation operation, WayfRequest request, Class<T> elementType, Consumer<? super T> consumer) throws WayfException {
+        send(operation, request, (status, retryAfter, contentType, body, metrics) -> {
+            responseHandler.handleEach(status, retryAfter, contentType, body, elementType, consumer, metrics);
+            return null;
+        });
+    }
+
+    @Override
+    public <T> CompletableFuture<T> executeAsync(WayfOperation operation, WayfRequest request, Type responseType) {
+        return responseHandler.sendAsyncWithBodyFormatFallback(request, sent -> executeAsyncOnce(operation, sent, responseType));
+    }
+
+    private <T> CompletableFuture<T> executeAsyncOnce(WayfOperation operation, WayfRequest request, Type responseType) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        LOG.debug("Executing asynchronous request with method [{}], URL [{}], headers [{}], and [{}] body bytes", request.getMethod(), request.getUrl(), request.getHeaders(), request.getBodyLength());
+
+        RequestMetrics metrics = new RequestMetrics(operation);
+
+        metrics.setSerializationNanos(request.getSerializationNanos());
+        long start = System.nanoTime();
+
+        // The callback runs on the client's I/O reactor thread, as with the Unirest asynchronous executor
+        httpClient.execute(toHttpClientRequest(operation, request, metrics), new FutureCallback<SimpleHttpResponse>() {
+            @Override
+            public void completed(SimpleHttpResponse response) {
+                T result;
+                try {
+                    result = read(response, metrics, (status, retryAfter, contentType, body, readMetrics) ->
+                            responseHandler.handle(status, retryAfter, contentType, body, responseType, readMetrics));
+                } catch (Exception e) {
+                    metrics.setException(e);
+                    completeMetrics(metrics, start);
+
+                    future.completeExceptionally(e);
+                    return;
+                }
+
+                completeMetrics(metrics, start);
+                future.complete(result);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                LOG.error("Could not execute HTTP request", e);
+
+                WayfException exception = new WayfException("Could not execute HTTP request", e);
+                metrics.setException(exception);
+                completeMetrics(metrics, start);
+
+                future.completeExceptionally(exception);
+            }
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Sends the configured number of concurrent GET requests for the URL, which opens that many connections unless
+     * {@code FORCE_HTTP_2} multiplexes them on one, and keeps them alive from then on if keep-alive pings are configured.
+     */
+    @Override
+    public void warmUp(String url) {
+        try {
+            get(url).get();
+            warmUrls.add(url);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RuntimeException e) {
+            LOG.warn("Could not open a connection to [{}] ahead of the first request", url, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (keepAlivePinger != null) {
+            keepAlivePinger.shutdownNow();
+        }
+
+        httpClient.close(CloseMode.GRACEFUL);
+    }
+
+    private void ping() {
+        for (String url : warmUrls) {
+            try {
+                get(url).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | RuntimeException e) {
+                LOG.debug("Could not keep the connections to [{}] alive", url, e);
+            }
+        }
+    }
+
+    private CompletableFuture<Void> get(String url) {
+        CompletableFuture<?>[] exchanges = new CompletableFuture<?>[warmConnections];
+
+        for (int i = 0; i < warmConnections; i++) {
+            exchanges[i] = exchange(SimpleRequestBuilder.get(url).build());
+        }
+
+        return CompletableFuture.allOf(exchanges);
+    }
+
+    // Synchronous calls wait for the exchange and then deserialize on the calling thread, so consumers passed to
+    // executeForEach never run on the I/O reactor. Waiting parks on a CompletableFuture rather than HttpClient's own
+    // future, whose monitor-based wait would pin the carrier thread of a virtual thread.
+    private <T> T send(WayfOperation operation, WayfRequest request, ResponseReader<T> reader) throws WayfException {
+        return responseHandler.sendWithBodyFormatFallback(request, sent -> sendOnce(operation, sent, reader));
+    }
+
+    private <T> T sendOnce(WayfOperation operation, WayfRequest request, ResponseReader<T> reader) throws WayfException {
+        LOG.debug("Executing request with method [{}], URL [{}], headers [{}], and [{}] body bytes", request.getMethod(), request.getUrl(), request.getHeaders(), request.getBodyLength());
+
+        RequestMetrics metrics = new RequestMetrics(operation);
+
+        metrics.setSerializationNanos(request.getSerializationNanos());
+        long start = System.nanoTime();
+
+        try {
+            SimpleHttpResponse response = await(exchange(toHttpClientRequest(operation, request, metrics)));
+
+            return read(response, metrics, reader);
+        } catch (WayfException | RuntimeException e) {
+            metrics.setException(e);
+            throw e;
+        } finally {
+            completeMetrics(metrics, start);
+        }
+    }
+
+    private CompletableFuture<SimpleHttpResponse> exchange(SimpleHttpRequest request) {
+        CompletableFuture<SimpleHttpResponse> response = new CompletableFuture<>();
+
+        Future<SimpleHttpResponse> exchange = httpClient.execute(request, new FutureCallback<SimpleHttpResponse>() {
+            @Override
+            public void completed(SimpleHttpResponse result) {
+                response.complete(result);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                response.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                response.cancel(false);
+            }
+        });
+
+        response.whenComplete((result, e) -> {
+            if (response.isCancelled()) {
+                exchange.cancel(true);
+            }
+        });
+
+        return response;
+    }
+
+    private static SimpleHttpResponse await(CompletableFuture<SimpleHttpResponse> response) throws WayfException {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            response.cancel(true);
+            Thread.currentThread().interrupt();
+
+            throw new WayfException("Interrupted while waiting for the HTTP response", e);
+        } catch (ExecutionException e) {
+            LOG.error("Could not execute HTTP request", e.getCause());
+
+            throw new WayfException("Could not execute HTTP request", e.getCause());
+        }
+    }
+
+    // The whole response has already been buffered by the client, but a compressed body stays compressed in memory and
+    // is only decoded as the deserializer reads it
+    private static <T> T read(SimpleHttpResponse response, RequestMetrics metrics, ResponseReader<T> reader) throws WayfException {
+        ResponseBody body = body(response);
+
+        try {
+            return reader.read(response.getCode(), header(response, HttpResponseHandler.RETRY_AFTER_HEADER),
+                    header(response, HttpResponseHandler.CONTENT_TYPE_HEADER), body != null? body.getStream() : null, metrics);
+        } finally {
+            if (body != null) {
+                body.finish(metrics);
+            }
+        }
+    }
+
+    private SimpleHttpRequest toHttpClientRequest(WayfOperation operation, WayfRequest request, RequestMetrics metrics) {
+        WayfRequest wireRequest = ContentEncoding.compress(request, requestCompressionThresholdBytes);
+
+        SimpleRequestBuilder builder = SimpleRequestBuilder.create(wireRequest.getMethod().name())
+                .setUri(wireRequest.getUrl());
+
+        for (Map.Entry<String, String> header : wireRequest.getHeaders().entrySet()) {
+            builder.addHeader(header.getKey(), header.getValue());
+        }
+
+        if (acceptCompressedResponses && wireRequest.getHeader(ContentEncoding.ACCEPT_ENCODING_HEADER) == null) {
+            builder.addHeader(ContentEncoding.ACCEPT_ENCODING_HEADER, ContentEncoding.ACCEPTED_ENCODINGS);
+        }
+
+        if (wireRequest.getBody() != null) {
+            metrics.setBytesSent(wireRequest.getBodyLength());
+            metrics.setUncompressedBytesSent(request.getBodyLength());
+
+            String contentType = wireRequest.getHeader(HttpHeaders.CONTENT_TYPE);
+            builder.setBody(wireRequest.getBody(), contentType != null? ContentType.parse(contentType) : ContentType.APPLICATION_OCTET_STREAM);
+        }
+
+        int timeoutMillis = timeoutPolicy != null? timeoutPolicy.getTimeoutMillis(operation) : 0;
+        if (timeoutMillis > 0) {
+            builder.setRequestConfig(RequestConfig.copy(requestConfig).setResponseTimeout(Timeout.ofMilliseconds(timeoutMillis)).build());
+        }
+
+        return builder.build();
+    }
+
+    private static ResponseBody body(SimpleHttpResponse response) throws WayfException {
+        byte[] body = response.getBodyBytes();
+
+        if (body == null) {
+            return null;
+        }
+
+        return ResponseBody.open(response.getCode(), new ByteArrayInputStream(body), header(response, ContentEncoding.CONTENT_ENCODING_HEADER));
+    }
+
+    private static String header(SimpleHttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null? header.getValue() : null;
+    }
+
+    private void completeMetrics(RequestMetrics metrics, long start) {
+        metrics.setTotalNanos(System.nanoTime() - start);
+
+        notify(metricsListener, metrics);
+        notify(timeoutPolicy, metrics);
+    }
+
+    private static void notify(MetricsListener listener, RequestMetrics metrics) {
+        if (listener == null) {
+            return;
+        }
+
+        try {
+            listener.onRequestCompleted(metrics);
+        } catch (RuntimeException e) {
+            LOG.warn("Metrics listener failed", e);
+        }
+    }
+
+    private interface ResponseReader<T> {
+        T read(int status, String retryAfter, String contentType, InputStream body, RequestMetrics metrics) throws WayfException;
+    }
+}
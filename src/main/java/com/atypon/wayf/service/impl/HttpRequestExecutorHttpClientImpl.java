@@ -0,0 +1,275 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import com.atypon.wayf.service.RequestTimeoutPolicy;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.metrics.MetricsListener;
+import com.atypon.wayf.service.metrics.RequestMetrics;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Executes WAYF requests on a dedicated Apache HttpClient whose connection pool is owned by this executor, rather than
+ * on the JVM-wide client Unirest uses. Each instance should be closed once it is no longer needed.
+ */
+public class HttpRequestExecutorHttpClientImpl implements HttpRequestExecutor<WayfRequest>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(HttpRequestExecutorHttpClientImpl.class);
+
+    private final HttpResponseHandler responseHandler;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final RequestConfig requestConfig;
+    private final CloseableHttpClient httpClient;
+    private final ScheduledExecutorService idleConnectionEvictor;
+    private final WarmConnectionPool warmConnectionPool;
+    private final boolean acceptCompressedResponses;
+    private final int requestCompressionThresholdBytes;
+    private MetricsListener metricsListener;
+    private RequestTimeoutPolicy timeoutPolicy;
+
+    public HttpRequestExecutorHttpClientImpl(SerializationHandler serializationHandler) {
+        this(serializationHandler, new HttpClientConfiguration());
+    }
+
+    public HttpRequestExecutorHttpClientImpl(SerializationHandler serializationHandler, HttpClientConfiguration configuration) {
+        this.responseHandler = new HttpResponseHandler(serializationHandler);
+        this.acceptCompressedResponses = configuration.isAcceptCompressedResponses();
+        this.requestCompressionThresholdBytes = configuration.getRequestCompressionThresholdBytes();
+
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(configuration.getMaxConnectionsTotal());
+        connectionManager.setDefaultMaxPerRoute(configuration.getMaxConnectionsPerRoute());
+
+        this.requestConfig = RequestConfig.custom()
+                .setConnectTimeout(configuration.getConnectTimeoutMillis())
+                .setSocketTimeout(configuration.getSocketTimeoutMillis())
+                .setConnectionRequestTimeout(configuration.getConnectionRequestTimeoutMillis())
+                .build();
+
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy(configuration.getKeepAliveMillis()))
+                // Content coding is handled by this executor, which also counts the compressed bytes
+                .disableContentCompression()
+                .build();
+
+        this.idleConnectionEvictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wayf-idle-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long maxIdleMillis = configuration.getMaxIdleMillis();
+        long evictionIntervalMillis = configuration.getIdleEvictionIntervalMillis();
+        idleConnectionEvictor.scheduleWithFixedDelay(() -> {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(maxIdleMillis, TimeUnit.MILLISECONDS);
+        }, evictionIntervalMillis, evictionIntervalMillis, TimeUnit.MILLISECONDS);
+
+        this.warmConnectionPool = new WarmConnectionPool(connectionManager, configuration);
+
+        // Pings share the evictor's thread; they only touch hosts that have been warmed up
+        long pingIntervalMillis = configuration.getKeepAlivePingIntervalMillis();
+        if (pingIntervalMillis > 0) {
+            idleConnectionEvictor.scheduleWithFixedDelay(warmConnectionPool::ping, pingIntervalMillis, pingIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public HttpRequestExecutorHttpClientImpl metricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    public HttpRequestExecutorHttpClientImpl timeoutPolicy(RequestTimeoutPolicy timeoutPolicy) {
+        this.timeoutPolicy = timeoutPolicy;
+        return this;
+    }
+
+    @Override
+    public <T> T execute(WayfOperation operation, WayfRequest request, Type responseType) throws WayfException {
+        return send(operation, request, (status, retryAfter, contentType, body, metrics) -> responseHandler.handle(status, retryAfter, contentType, body, responseType, metrics));
+    }
+
+    @Override
+    public <T> void executeForEach(WayfOperation operation, WayfRequest request, Class<T> elementType, Consumer<? super T> consumer) throws WayfException {
+        send(operation, request, (status, retryAfter, contentType, body, metrics) -> {
+            responseHandler.handleEach(status, retryAfter, contentType, body, elementType, consumer, metrics);
+            return null;
+        });
+    }
+
+    /**
+     * Opens the configured number of warm connections to the URL's host, and keeps them alive from then on if keep-alive
+     * pings are configured.
+     */
+    @Override
+    public void warmUp(String url) {
+        try {
+            int open = warmConnectionPool.warmUp(url);
+            LOG.debug("Opened [{}] connections to [{}] ahead of the first request", open, url);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not open a connection to [{}] ahead of the first request", url, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        idleConnectionEvictor.shutdownNow();
+        httpClient.close();
+    }
+
+    private <T> T send(WayfOperation operation, WayfRequest request, ResponseReader<T> reader) throws WayfException {
+        return responseHandler.sendWithBodyFormatFallback(request, sent -> sendOnce(operation, sent, reader));
+    }
+
+    // The body is handed to the deserializer as the socket stream itself, decompressed on the fly if it is compressed;
+    // whatever the deserializer leaves unread is consumed afterwards so the connection can return to the pool
+    private <T> T sendOnce(WayfOperation operation, WayfRequest request, ResponseReader<T> reader) throws WayfException {
+        LOG.debug("Executing request with method [{}], URL [{}], headers [{}], and [{}] body bytes", request.getMethod(), request.getUrl(), request.getHeaders(), request.getBodyLength());
+
+        RequestMetrics metrics = new RequestMetrics(operation);
+
+        metrics.setSerializationNanos(request.getSerializationNanos());
+        long start = System.nanoTime();
+
+        try (CloseableHttpResponse response = httpClient.execute(toHttpClientRequest(request, metrics).build())) {
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            ResponseBody body = null;
+
+            try {
+                if (entity != null) {
+                    body = ResponseBody.open(status, entity.getContent(), header(response, ContentEncoding.CONTENT_ENCODING_HEADER));
+                }
+
+                return reader.read(status, header(response, HttpResponseHandler.RETRY_AFTER_HEADER),
+                        header(response, HttpResponseHandler.CONTENT_TYPE_HEADER), body != null? body.getStream() : null, metrics);
+            } finally {
+                if (body != null) {
+                    body.finish(metrics);
+                }
+
+                EntityUtils.consumeQuietly(entity);
+            }
+        } catch (IOException e) {
+            LOG.error("Could not execute HTTP request", e);
+
+            WayfException exception = new WayfException("Could not execute HTTP request", e);
+            metrics.setException(exception);
+            throw exception;
+        } catch (WayfException | RuntimeException e) {
+            metrics.setException(e);
+            throw e;
+        } finally {
+            completeMetrics(metrics, start);
+        }
+    }
+
+    private void completeMetrics(RequestMetrics metrics, long start) {
+        metrics.setTotalNanos(System.nanoTime() - start);
+
+        notify(metricsListener, metrics);
+        notify(timeoutPolicy, metrics);
+    }
+
+    private static void notify(MetricsListener listener, RequestMetrics metrics) {
+        if (listener == null) {
+            return;
+        }
+
+        try {
+            listener.onRequestCompleted(metrics);
+        } catch (RuntimeException e) {
+            LOG.warn("Metrics listener failed", e);
+        }
+    }
+
+    private RequestBuilder toHttpClientRequest(WayfRequest request, RequestMetrics metrics) {
+        WayfRequest wireRequest = ContentEncoding.compress(request, requestCompressionThresholdBytes);
+
+        RequestBuilder builder = RequestBuilder.create(wireRequest.getMethod().name())
+                .setUri(wireRequest.getUrl());
+
+        for (Map.Entry<String, String> header : wireRequest.getHeaders().entrySet()) {
+            builder.addHeader(header.getKey(), header.getValue());
+        }
+
+        if (acceptCompressedResponses && wireRequest.getHeader(ContentEncoding.ACCEPT_ENCODING_HEADER) == null) {
+            builder.addHeader(ContentEncoding.ACCEPT_ENCODING_HEADER, ContentEncoding.ACCEPTED_ENCODINGS);
+        }
+
+        if (wireRequest.getBody() != null) {
+            metrics.setBytesSent(wireRequest.getBodyLength());
+            metrics.setUncompressedBytesSent(request.getBodyLength());
+
+            builder.setEntity(new ByteArrayEntity(wireRequest.getBody()));
+        }
+
+        int timeoutMillis = timeoutPolicy != null? timeoutPolicy.getTimeoutMillis(metrics.getOperation()) : 0;
+        if (timeoutMillis > 0) {
+            builder.setConfig(RequestConfig.copy(requestConfig).setSocketTimeout(timeoutMillis).build());
+        }
+
+        return builder;
+    }
+
+    private interface ResponseReader<T> {
+        T read(int status, String retryAfter, String contentType, InputStream body, RequestMetrics metrics) throws WayfException;
+    }
+
+    private static String header(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null? header.getValue() : null;
+    }
+
+    private static ConnectionKeepAliveStrategy keepAliveStrategy(long defaultKeepAliveMillis) {
+        // Honour the server's Keep-Alive header when present, otherwise keep connections for the configured duration
+        return (HttpResponse response, HttpContext context) -> {
+            long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0? keepAlive : defaultKeepAliveMillis;
+        };
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.ConcurrencyLimitExceededException;
+import com.atypon.wayf.data.RateLimitExceededException;
+import com.atypon.wayf.data.RequestPriority;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import com.atypon.wayf.service.metrics.LatencyHistogram;
+
+import java.lang.reflect.Type;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Throttles another {@link HttpRequestExecutor} with token-bucket rate limits and concurrency bulkheads, configured per
+ * operation (one per WAYF endpoint) and, when a publisher key is configured, per publisher. A call waits up to
+ * {@code maxWait} for its permits and otherwise fails with a {@link RateLimitExceededException} or
+ * {@link ConcurrencyLimitExceededException} without reaching the delegate.
+ * <p>
+ * A fraction of every limit is reserved for {@link RequestPriority#INTERACTIVE} operations, so background work cannot
+ * exhaust it. Device history reads and identity provider changes are interactive by default, registering local IDs is
+ * background. Limits should be configured before the executor is used, and it belongs outside any retrying or circuit
+ * breaking executor so that local rejections are neither retried nor counted as cloud failures.
+ * <p>
+ * Tokens taken by a call that is then rejected are returned. Once more than {@code maxPublishers} publishers are
+ * tracked, the limits of idle publishers are dropped; their buckets are full, so they restart exactly where they were.
+ */
+public class HttpRequestExecutorRateLimitingImpl<R> implements HttpRequestExecutor<R> {
+    private static final double DEFAULT_RESERVED_FOR_INTERACTIVE = 0.2;
+    private static final long DEFAULT_MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int DEFAULT_MAX_PUBLISHERS = 10000;
+
+    private final HttpRequestExecutor<R> delegate;
+    private final Map<WayfOperation, RateLimiter> rateLimiters = new EnumMap<>(WayfOperation.class);
+    private final Map<WayfOperation, Bulkhead> bulkheads = new EnumMap<>(WayfOperation.class);
+    private final Map<WayfOperation, RequestPriority> priorities = new EnumMap<>(WayfOperation.class);
+    private final Map<WayfOperation, LatencyHistogram> waitTimes = new EnumMap<>(WayfOperation.class);
+    private final Map<WayfOperation, AtomicLong> rejectedCounts = new EnumMap<>(WayfOperation.class);
+    private final ConcurrentMap<String, PublisherLimits> publisherLimits = new ConcurrentHashMap<>();
+
+    private Function<? super R, String> publisherKey;
+    private double publisherPermitsPerSecond;
+    private int publisherBurst;
+    private int publisherMaxConcurrentCalls;
+    private double reservedForInteractive = DEFAULT_RESERVED_FOR_INTERACTIVE;
+    private long maxWaitNanos = DEFAULT_MAX_WAIT_NANOS;
+    private int maxPublishers = DEFAULT_MAX_PUBLISHERS;
+
+    public HttpRequestExecutorRateLimitingImpl(HttpRequestExecutor<R> delegate) {
+        this.delegate = delegate;
+
+        for (WayfOperation operation : WayfOperation.values()) {
+            priorities.put(operation, RequestPriority.INTERACTIVE);
+            waitTimes.put(operation, new LatencyHistogram());
+            rejectedCounts.put(operation, new AtomicLong());
+        }
+        priorities.put(WayfOperation.REGISTER_LOCAL_ID, RequestPriority.BACKGROUND);
+    }
+
+    public HttpRequestExecutorRateLimitingImpl<R> rateLimit(WayfOperation operation, double permitsPerSecond, int burst) {
+        rateLimiters.put(operation, new RateLimiter(permitsPerSecond, burst, reservedForInteractive));
+        return this;
+    }
+
+    public HttpRequestExecutorRateLimitingImpl<R> maxConcurrentCalls(WayfOperation operation, int maxConcurrentCalls) {
+        bulkheads.put(operation, new Bulkhead(maxConcurrentCalls, reservedForInteractive));
+        return this;
+    }
+
+    public HttpRequestExecutorRateLimitingImpl<R> priority(WayfOperation operation, RequestPriority priority) {
+        priorities.put(operation, priority);
+        return this;
+    }
+
+    /**
+     * Extracts the publisher a request is made for, for example its Authorization header. Requests with a null key
+     * are only subject to the per-operation limits.
+     */
+    public HttpRequestExecutorRateLimitingImpl<R> publisherKey(Function<? super R, String> publisherKey) {
+        this.publisherKey = publisherKey;
+        return this;
+    }
+
+    public HttpRequestExecutorRateLimitingImpl<R> perPublisherRateLimit(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("A rate limit needs a positive rate and burst size");
+        }
+
+        this.publisherPermitsPerSecond = permitsPerSecond;
+        this.publisherBurst = burst;
+        return this;
+    }
+
+    public HttpRequestExecutorRateLimitingImpl<R> perPublisherMaxConcurrentCalls(int maxConcurrentCalls) {
+        if (maxConcurrentCalls <= 0) {
+            throw new IllegalArgumentException("The maximum number of concurrent calls must be positive");
+        }
+
+        this.publisherMaxConcurrentCalls = maxConcurrentCalls;
+        return this;
+    }
+
+    /**
+     * How many publishers to track before the limits of idle ones, with full buckets and no calls in flight, are dropped.
+     */
+    public HttpRequestExecutorRateLimitingImpl<R> maxPublishers(int maxPublishers) {
+        if (maxPublishers <= 0) {
+            throw new IllegalArgumentException("The maximum number of tracked publishers must be positive");
+        }
+
+        this.maxPublishers = maxPublishers;
+        return this;
+    }
+
+    /**
+     * Drops the limits of a publisher that no longer makes calls, for example one whose subscription ended.
+     */
+    public void removePublisher(String key) {
+        publisherLimits.remove(key);
+    }
+
+    int getPublisherCount() {
+        return publisherLimits.size();
+    }
+
+    /**
+     * The fraction of each limit that background operations may not use. Applies to limits configured after this call.
+     */
+    public HttpRequestExecutorRateLimitingImpl<R> reservedForInteractive(double fraction) {
+        if (fraction < 0 || fraction >= 1) {
+            throw new IllegalArgumentException("The reserved fraction must be at least 0 and less than 1");
+        }
+
+        this.reservedForInteractive = fraction;
+        return this;
+    }
+
+    public HttpRequestExecutorRateLimitingImpl<R> maxWait(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("The maximum wait for a permit must not be negative");
+        }
+
+        this.maxWaitNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * Time calls of the operation spent waiting for their permits, in nanoseconds, including calls that were rejected.
+     */
+    public LatencyHistogram getWaitTimeHistogram(WayfOperation operation) {
+        return waitTimes.get(operation);
+    }
+
+    public long getRejectedCount(WayfOperation operation) {
+        return rejectedCounts.get(operation).get();
+    }
+
+    @Override
+    public <T> T execute(WayfOperation operation, R request, Type responseType) throws WayfException {
+        Bulkhead[] acquired = acquire(operation, request);
+
+        try {
+            return delegate.execute(operation, request, responseType);
+        } finally {
+            release(acquired);
+        }
+    }
+
+    @Override
+    public <T> void executeForEach(WayfOperation operation, R request, Class<T> elementType, Consumer<? super T> consumer) throws WayfException {
+        Bulkhead[] acquired = acquire(operation, request);
+
+        try {
+            delegate.executeForEach(operation, request, elementType, consumer);
+        } finally {
+            release(acquired);
+        }
+    }
+
+    @Override
+    public void warmUp(String url) {
+        delegate.warmUp(url);
+    }
+
+    // Rate limits are taken before bulkhead permits so that a call never holds a concurrency slot while it is throttled,
+    // and a publisher's own limits before the shared ones so that a publisher over its limit neither uses up shared
+    // tokens nor holds shared slots that other publishers need. A call rejected part way returns whatever it took.
+    private Bulkhead[] acquire(WayfOperation operation, R request) throws WayfException {
+        boolean interactive = priorities.get(operation) == RequestPriority.INTERACTIVE;
+        PublisherLimits publisher = publisherLimits(request);
+        RateLimiter[] taken = new RateLimiter[2];
+        Bulkhead[] acquired = new Bulkhead[2];
+
+        long start = System.nanoTime();
+        long deadline = start + maxWaitNanos;
+
+        try {
+            if (publisher != null) {
+                taken[0] = awaitRate(operation, publisher.rateLimiter, interactive, deadline);
+            }
+            taken[1] = awaitRate(operation, rateLimiters.get(operation), interactive, deadline);
+
+            if (publisher != null) {
+                acquired[0] = awaitBulkhead(operation, publisher.bulkhead, interactive, deadline);
+            }
+            acquired[1] = awaitBulkhead(operation, bulkheads.get(operation), interactive, deadline);
+
+            return acquired;
+        } catch (InterruptedException e) {
+            refund(taken);
+            release(acquired);
+            Thread.currentThread().interrupt();
+
+            throw new WayfException("Interrupted while waiting for a WAYF call permit", e);
+        } catch (WayfException | RuntimeException e) {
+            refund(taken);
+            release(acquired);
+            throw e;
+        } finally {
+            if (operation != null) {
+                waitTimes.get(operation).record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private RateLimiter awaitRate(WayfOperation operation, RateLimiter rateLimiter, boolean interactive, long deadline) throws WayfException, InterruptedException {
+        if (rateLimiter == null) {
+            return null;
+        }
+
+        long waitNanos;
+        while ((waitNanos = rateLimiter.tryAcquire(interactive)) > 0) {
+            // No point in waiting out the rest of the budget when the next token is known to arrive too late
+            if (waitNanos > deadline - System.nanoTime()) {
+                countRejection(operation);
+
+                throw new RateLimitExceededException("The client-side rate limit for " + operation + " was reached",
+                        Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+            }
+
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+
+        return rateLimiter;
+    }
+
+    private Bulkhead awaitBulkhead(WayfOperation operation, Bulkhead bulkhead, boolean interactive, long deadline) throws WayfException, InterruptedException {
+        if (bulkhead == null) {
+            return null;
+        }
+
+        if (!bulkhead.tryAcquire(interactive, deadline - System.nanoTime())) {
+            countRejection(operation);
+
+            throw new ConcurrencyLimitExceededException("The client-side concurrency limit for " + operation + " was reached");
+        }
+
+        return bulkhead;
+    }
+
+    private void countRejection(WayfOperation operation) {
+        if (operation != null) {
+            rejectedCounts.get(operation).incrementAndGet();
+        }
+    }
+
+    private static void refund(RateLimiter[] taken) {
+        for (RateLimiter rateLimiter : taken) {
+            if (rateLimiter != null) {
+                rateLimiter.refund();
+            }
+        }
+    }
+
+    private static void release(Bulkhead[] acquired) {
+        for (Bulkhead bulkhead : acquired) {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+        }
+    }
+
+    private PublisherLimits publisherLimits(R request) {
+        if (publisherKey == null || (publisherBurst == 0 && publisherMaxConcurrentCalls == 0)) {
+            return null;
+        }
+
+        String key = publisherKey.apply(request);
+        if (key == null) {
+            return null;
+        }
+
+        PublisherLimits limits = publisherLimits.get(key);
+        if (limits == null) {
+            limits = publisherLimits.computeIfAbsent(key, ignored -> new PublisherLimits());
+
+            if (publisherLimits.size() > maxPublishers) {
+                evictIdlePublishers(key);
+            }
+        }
+
+        return limits;
+    }
+
+    // An idle publisher's limits are indistinguishable from new ones, so dropping them loses nothing. A caller that
+    // looked them up just before they were dropped still uses the dropped instance, which at worst grants that
+    // publisher one extra burst.
+    private void evictIdlePublishers(String keep) {
+        publisherLimits.entrySet().removeIf(entry -> !entry.getKey().equals(keep) && entry.getValue().isIdle());
+    }
+
+    private class PublisherLimits {
+        private final RateLimiter rateLimiter;
+        private final Bulkhead bulkhead;
+
+        private PublisherLimits() {
+            this.rateLimiter = publisherBurst > 0? new RateLimiter(publisherPermitsPerSecond, publisherBurst, reservedForInteractive) : null;
+            this.bulkhead = publisherMaxConcurrentCalls > 0? new Bulkhead(publisherMaxConcurrentCalls, reservedForInteractive) : null;
+        }
+
+        private boolean isIdle() {
+            return (rateLimiter == null || rateLimiter.isFull()) && (bulkhead == null || bulkhead.getInUse() == 0);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import com.atypon.wayf.service.metrics.MetricsListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Type;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Retries failed requests of another {@link HttpRequestExecutor} as allowed by a {@link RetryPolicy}. The calling
+ * thread sleeps through the backoff.
+ */
+public class HttpRequestExecutorRetryingImpl<R> implements HttpRequestExecutor<R> {
+    private static final Logger LOG = LoggerFactory.getLogger(HttpRequestExecutorRetryingImpl.class);
+
+    private final HttpRequestExecutor<R> delegate;
+    private final RetryPolicy retryPolicy;
+    private MetricsListener metricsListener;
+
+    public HttpRequestExecutorRetryingImpl(HttpRequestExecutor<R> delegate) {
+        this(delegate, new RetryPolicy());
+    }
+
+    public HttpRequestExecutorRetryingImpl(HttpRequestExecutor<R> delegate, RetryPolicy retryPolicy) {
+        this.delegate = delegate;
+        this.retryPolicy = retryPolicy;
+    }
+
+    public HttpRequestExecutorRetryingImpl<R> metricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    @Override
+    public <T> T execute(WayfOperation operation, R request, Type responseType) throws WayfException {
+        retryPolicy.onRequest();
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return delegate.execute(operation, request, responseType);
+            } catch (WayfException e) {
+                if (!awaitRetry(operation, attempt, e)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    // Once an element has been handed to the consumer a retry would deliver it twice, so only failures before the
+    // first element are retried
+    @Override
+    public <T> void executeForEach(WayfOperation operation, R request, Class<T> elementType, Consumer<? super T> consumer) throws WayfException {
+        retryPolicy.onRequest();
+
+        AtomicBoolean consumed = new AtomicBoolean();
+        Consumer<T> trackingConsumer = element -> {
+            consumed.set(true);
+            consumer.accept(element);
+        };
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                delegate.executeForEach(operation, request, elementType, trackingConsumer);
+                return;
+            } catch (WayfException e) {
+                if (consumed.get() || !awaitRetry(operation, attempt, e)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void warmUp(String url) {
+        delegate.warmUp(url);
+    }
+
+    private boolean awaitRetry(WayfOperation operation, int attempt, WayfException failure) {
+        long delayMillis = retryPolicy.retryDelayMillis(operation, attempt, failure);
+        if (delayMillis < 0) {
+            return false;
+        }
+
+        LOG.debug("Retrying [{}] after attempt [{}] failed, in [{}] ms", operation, attempt, delayMillis);
+        notifyRetry(operation, attempt, failure);
+
+        try {
+            Thread.sleep(delayMillis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void notifyRetry(WayfOperation operation, int attempt, Throwable failure) {
+        if (metricsListener == null) {
+            return;
+        }
+
+        try {
+            metricsListener.onRetry(operation, attempt, failure);
+        } catch (RuntimeException e) {
+            LOG.warn("Metrics listener failed", e);
+        }
+    }
+}
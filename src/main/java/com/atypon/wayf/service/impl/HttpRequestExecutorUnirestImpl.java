@@ -16,65 +16,272 @@
 
 package com.atypon.wayf.service.impl;
 
-import com.atypon.wayf.data.ErrorResponse;
 import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.service.AsynchronousHttpRequestExecutor;
 import com.atypon.wayf.service.HttpRequestExecutor;
 import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.metrics.MetricsListener;
+import com.atypon.wayf.service.metrics.RequestMetrics;
 import com.atypon.wayf.service.v1.impl.WayfServiceImpl;
 import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.http.async.Callback;
 import com.mashape.unirest.http.exceptions.UnirestException;
 import com.mashape.unirest.request.HttpRequest;
+import com.mashape.unirest.request.HttpRequestWithBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class HttpRequestExecutorUnirestImpl implements HttpRequestExecutor<HttpRequest> {
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Executes WAYF requests on the JVM-wide Unirest client. Unirest itself asks for, and transparently decompresses, gzip
+ * responses, buffering the decompressed body; as the compressed size is never exposed, both received byte counts in the
+ * metrics are the decompressed size.
+ */
+public class HttpRequestExecutorUnirestImpl implements HttpRequestExecutor<WayfRequest>, AsynchronousHttpRequestExecutor<WayfRequest> {
     private static final Logger LOG = LoggerFactory.getLogger(WayfServiceImpl.class);
 
-    private SerializationHandler serializationHandler;
+    private HttpResponseHandler responseHandler;
+    private MetricsListener metricsListener;
+    private int requestCompressionThresholdBytes = -1;
 
     public HttpRequestExecutorUnirestImpl(SerializationHandler serializationHandler) {
-        this.serializationHandler = serializationHandler;
+        this.responseHandler = new HttpResponseHandler(serializationHandler);
+    }
+
+    public HttpRequestExecutorUnirestImpl metricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+        return this;
+    }
+
+    /**
+     * Request bodies of at least this many bytes are sent gzipped. Negative, the default, never compresses requests.
+     */
+    public HttpRequestExecutorUnirestImpl requestCompressionThresholdBytes(int requestCompressionThresholdBytes) {
+        this.requestCompressionThresholdBytes = requestCompressionThresholdBytes;
+        return this;
+    }
+
+    @Override
+    public <T> T execute(WayfOperation operation, WayfRequest request, Type responseType) throws WayfException {
+        return responseHandler.sendWithBodyFormatFallback(request, sent -> executeOnce(operation, sent, responseType));
+    }
+
+    @Override
+    public <T> void executeForEach(WayfOperation operation, WayfRequest request, Class<T> elementType, Consumer<? super T> consumer) throws WayfException {
+        responseHandler.sendWithBodyFormatFallback(request, sent -> {
+            executeForEachOnce(operation, sent, elementType, consumer);
+            return null;
+        });
+    }
+
+    @Override
+    public <T> CompletableFuture<T> executeAsync(WayfOperation operation, WayfRequest request, Type responseType) {
+        return responseHandler.sendAsyncWithBodyFormatFallback(request, sent -> executeAsyncOnce(operation, sent, responseType));
+    }
+
+    private <T> T executeOnce(WayfOperation operation, WayfRequest request, Type responseType) throws WayfException {
+        WayfRequest wireRequest = ContentEncoding.compress(request, requestCompressionThresholdBytes);
+        RequestMetrics metrics = startMetrics(operation, request, wireRequest);
+        long start = System.nanoTime();
+
+        try {
+            HttpResponse<InputStream> response = send(wireRequest);
+            setBytesReceived(metrics, response);
+
+            return responseHandler.handle(response.getStatus(), header(response, HttpResponseHandler.RETRY_AFTER_HEADER),
+                    header(response, HttpResponseHandler.CONTENT_TYPE_HEADER), response.getBody(), responseType, metrics);
+        } catch (WayfException | RuntimeException e) {
+            metrics.setException(e);
+            throw e;
+        } finally {
+            completeMetrics(metrics, start);
+        }
+    }
+
+    private <T> void executeForEachOnce(WayfOperation operation, WayfRequest request, Class<T> elementType, Consumer<? super T> consumer) throws WayfException {
+        WayfRequest wireRequest = ContentEncoding.compress(request, requestCompressionThresholdBytes);
+        RequestMetrics metrics = startMetrics(operation, request, wireRequest);
+        long start = System.nanoTime();
+
+        try {
+            HttpResponse<InputStream> response = send(wireRequest);
+            setBytesReceived(metrics, response);
+
+            responseHandler.handleEach(response.getStatus(), header(response, HttpResponseHandler.RETRY_AFTER_HEADER),
+                    header(response, HttpResponseHandler.CONTENT_TYPE_HEADER), response.getBody(), elementType, consumer, metrics);
+        } catch (WayfException | RuntimeException e) {
+            metrics.setException(e);
+            throw e;
+        } finally {
+            completeMetrics(metrics, start);
+        }
+    }
+
+    private <T> CompletableFuture<T> executeAsyncOnce(WayfOperation operation, WayfRequest request, Type responseType) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        LOG.debug("Executing asynchronous request with method [{}], URL [{}], headers [{}], and [{}] body bytes", request.getMethod(), request.getUrl(), request.getHeaders(), request.getBodyLength());
+
+        WayfRequest wireRequest = ContentEncoding.compress(request, requestCompressionThresholdBytes);
+        RequestMetrics metrics = startMetrics(operation, request, wireRequest);
+        long start = System.nanoTime();
+
+        // Unirest dispatches asynchronous requests through its HttpAsyncClient, so no thread is parked while the
+        // request is in flight. The callback runs on the client's I/O dispatcher thread.
+        toUnirestRequest(wireRequest).asBinaryAsync(new Callback<InputStream>() {
+            @Override
+            public void completed(HttpResponse<InputStream> response) {
+                T result;
+                try {
+                    setBytesReceived(metrics, response);
+                    result = responseHandler.handle(response.getStatus(), header(response, HttpResponseHandler.RETRY_AFTER_HEADER),
+                            header(response, HttpResponseHandler.CONTENT_TYPE_HEADER), response.getBody(), responseType, metrics);
+                } catch (Exception e) {
+                    metrics.setException(e);
+                    completeMetrics(metrics, start);
+
+                    future.completeExceptionally(e);
+                    return;
+                }
+
+                completeMetrics(metrics, start);
+                future.complete(result);
+            }
+
+            @Override
+            public void failed(UnirestException e) {
+                LOG.error("Could not execute HTTP request", e);
+
+                WayfException exception = new WayfException("Could not execute HTTP request", e);
+                metrics.setException(exception);
+                completeMetrics(metrics, start);
+
+                future.completeExceptionally(exception);
+            }
+
+            @Override
+            public void cancelled() {
+                future.cancel(false);
+            }
+        });
+
+        return future;
     }
 
-    public <T> T execute(HttpRequest request, Class<T> responseClass) throws WayfException {
-        HttpResponse<String> response = null;
+    /**
+     * Opens a connection in Unirest's JVM-wide pool, which every Unirest executor shares.
+     */
+    @Override
+    public void warmUp(String url) {
+        try {
+            Unirest.get(url).asBinary();
+        } catch (UnirestException | RuntimeException e) {
+            LOG.warn("Could not open a connection to [{}] ahead of the first request", url, e);
+        }
+    }
 
-        LOG.debug("Executing request with method [{}], URL [{}], headers [{}], and body [{}]", request.getHttpMethod(), request.getUrl(), request.getHeaders(), request.getBody());
+    // Reading the response as binary hands the raw body bytes to the deserializer instead of first decoding them into
+    // an intermediate String
+    private HttpResponse<InputStream> send(WayfRequest request) throws WayfException {
+        LOG.debug("Executing request with method [{}], URL [{}], headers [{}], and [{}] body bytes", request.getMethod(), request.getUrl(), request.getHeaders(), request.getBodyLength());
 
         try {
-            response = request.asString();
+            return toUnirestRequest(request).asBinary();
         } catch (UnirestException e) {
             LOG.error("Could not execute HTTP request", e);
 
             throw new WayfException("Could not execute HTTP request", e);
         }
+    }
+
+    private RequestMetrics startMetrics(WayfOperation operation, WayfRequest request, WayfRequest wireRequest) {
+        RequestMetrics metrics = new RequestMetrics(operation);
+        metrics.setSerializationNanos(request.getSerializationNanos());
+        metrics.setBytesSent(wireRequest.getBodyLength());
+        metrics.setUncompressedBytesSent(request.getBodyLength());
+        return metrics;
+    }
+
+    private static void setBytesReceived(RequestMetrics metrics, HttpResponse<InputStream> response) {
+        long bytesReceived = available(response.getBody());
+        metrics.setBytesReceived(bytesReceived);
+        metrics.setUncompressedBytesReceived(bytesReceived);
+    }
+
+    // Unirest applies its own URL normalization when sending, exactly as it did when the services built Unirest
+    // requests themselves, so the request on the wire is unchanged
+    private static HttpRequest toUnirestRequest(WayfRequest request) {
+        String url = request.getUrl();
+
+        switch (request.getMethod()) {
+            case GET:
+                return withHeaders(Unirest.get(url), request);
+            case POST:
+                return withBody(Unirest.post(url), request);
+            case PUT:
+                return withBody(Unirest.put(url), request);
+            case DELETE:
+                return withBody(Unirest.delete(url), request);
+            default:
+                throw new IllegalArgumentException("Unsupported HTTP method [" + request.getMethod() + "]");
+        }
+    }
 
-        LOG.debug("WAYF Cloud responded with code [{}], body [{}]", response.getStatus(), response.getBody());
+    private static HttpRequest withBody(HttpRequestWithBody unirestRequest, WayfRequest request) {
+        withHeaders(unirestRequest, request);
 
-        // If the response was in the error range, the return type will be ErrorResponse. Create an exception with the
-        // HTTP response code and error message.
-        if (response.getStatus() > 299) {
-            ErrorResponse errorResponse = serializationHandler.deserialize(response.getBody(), ErrorResponse.class);
+        return request.getBody() != null? unirestRequest.body(request.getBody()).getHttpRequest() : unirestRequest;
+    }
 
-            String message = errorResponse != null? errorResponse.getMessage() : null;
-            throw new WayfException(response.getStatus(), message);
+    private static HttpRequest withHeaders(HttpRequest unirestRequest, WayfRequest request) {
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            unirestRequest.header(header.getKey(), header.getValue());
         }
 
-        if (responseClass == null || responseClass == Void.class) {
-            return null;
+        return unirestRequest;
+    }
+
+    private void completeMetrics(RequestMetrics metrics, long start) {
+        if (metricsListener == null) {
+            return;
         }
 
+        metrics.setTotalNanos(System.nanoTime() - start);
+
         try {
-            return serializationHandler.deserialize(response.getBody(), responseClass);
-        } catch (Exception e) {
-            LOG.error("Could not deserialize response with code [{}], body [{}]", response.getStatus(), response.getBody());
-
-            if (WayfException.class.isAssignableFrom(e.getClass())) {
-                throw (WayfException) e;
-            } else {
-                throw new WayfException("Could not deserialize WAYF response", e);
+            metricsListener.onRequestCompleted(metrics);
+        } catch (RuntimeException e) {
+            LOG.warn("Metrics listener failed", e);
+        }
+    }
+
+    // Unirest keeps header names as received, so look headers up case-insensitively
+    private static String header(HttpResponse<?> response, String name) {
+        for (Map.Entry<String, List<String>> header : response.getHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
             }
         }
+
+        return null;
     }
 
+    // Unirest buffers the whole response, so what is still available before deserialization is the body size
+    private static long available(InputStream body) {
+        try {
+            return body != null? body.available() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
 }
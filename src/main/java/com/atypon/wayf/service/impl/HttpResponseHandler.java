@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.ErrorResponse;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.metrics.RequestMetrics;
+import org.apache.http.client.utils.DateUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.lang.reflect.Type;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Turns a raw WAYF response into either the deserialized response type or a {@link WayfException}. Shared by the
+ * transport implementations so that every transport surfaces errors identically.
+ */
+class HttpResponseHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(HttpResponseHandler.class);
+
+    private SerializationHandler serializationHandler;
+
+    HttpResponseHandler(SerializationHandler serializationHandler) {
+        this.serializationHandler = serializationHandler;
+    }
+
+    static final String RETRY_AFTER_HEADER = "Retry-After";
+    static final String CONTENT_TYPE_HEADER = "Content-Type";
+
+    /**
+     * @param contentType the response's Content-Type, which picks the format the body is read in; may be null
+     */
+    <T> T handle(int status, String retryAfter, String contentType, InputStream body, Type responseType, RequestMetrics metrics) throws WayfException {
+        LOG.debug("WAYF Cloud responded with code [{}]", status);
+        metrics.setStatus(status);
+
+        SerializationHandler reader = serializationHandler.forContentType(contentType);
+
+        if (status > 299) {
+            throw toException(status, retryAfter, reader, body);
+        }
+
+        if (responseType == null || responseType == Void.class || body == null) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        try {
+            return reader.deserialize(body, responseType);
+        } catch (Exception e) {
+            throw toDeserializationException(status, e);
+        } finally {
+            metrics.setDeserializationNanos(System.nanoTime() - start);
+        }
+    }
+
+    <T> void handleEach(int status, String retryAfter, String contentType, InputStream body, Class<T> elementType, Consumer<? super T> consumer, RequestMetrics metrics) throws WayfException {
+        LOG.debug("WAYF Cloud responded with code [{}]", status);
+        metrics.setStatus(status);
+
+        SerializationHandler reader = serializationHandler.forContentType(contentType);
+
+        if (status > 299) {
+            throw toException(status, retryAfter, reader, body);
+        }
+
+        if (body == null) {
+            return;
+        }
+
+        // The consumer runs inside the element loop, so its own time is counted as deserialization time here
+        long start = System.nanoTime();
+        try {
+            reader.deserializeEach(body, elementType, consumer);
+        } catch (Exception e) {
+            throw toDeserializationException(status, e);
+        } finally {
+            metrics.setDeserializationNanos(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Sends the request and, if the server could not read its body and the serialization handler has since switched to
+     * another request body format, sends it once more in that format, so the caller never sees the 415.
+     */
+    <T> T sendWithBodyFormatFallback(WayfRequest request, RequestSender<T> sender) throws WayfException {
+        try {
+            return sender.send(request);
+        } catch (WayfException e) {
+            WayfRequest reformatted = reformat(request, e);
+            if (reformatted == null) {
+                throw e;
+            }
+
+            return sender.send(reformatted);
+        }
+    }
+
+    <T> CompletableFuture<T> sendAsyncWithBodyFormatFallback(WayfRequest request, Function<WayfRequest, CompletableFuture<T>> sender) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        sender.apply(request).whenComplete((result, failure) -> {
+            WayfRequest reformatted;
+            try {
+                reformatted = failure != null? reformat(request, failure) : null;
+            } catch (WayfException e) {
+                future.completeExceptionally(e);
+                return;
+            }
+
+            if (reformatted == null) {
+                complete(future, result, failure);
+            } else {
+                sender.apply(reformatted).whenComplete((retried, retryFailure) -> complete(future, retried, retryFailure));
+            }
+        });
+
+        return future;
+    }
+
+    private static <T> void complete(CompletableFuture<T> future, T result, Throwable failure) {
+        if (failure != null) {
+            future.completeExceptionally(failure);
+        } else {
+            future.complete(result);
+        }
+    }
+
+    // Returns null unless the failure is a 415 for a body that would now be written in a different format
+    private WayfRequest reformat(WayfRequest request, Throwable failure) throws WayfException {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null? failure.getCause() : failure;
+        if (!(cause instanceof WayfException) || ((WayfException) cause).getStatus() != 415 || request.getBodySource() == null) {
+            return null;
+        }
+
+        SerializationHandler writer = serializationHandler.forRequestBody();
+        if (writer.getContentType().equals(request.getHeader(CONTENT_TYPE_HEADER))) {
+            return null;
+        }
+
+        LOG.debug("Resending [{}] with a [{}] body after the server could not read [{}]", request, writer.getContentType(), request.getHeader(CONTENT_TYPE_HEADER));
+
+        long start = System.nanoTime();
+        byte[] body = writer.serializeToBytes(request.getBodySource());
+        long serializationNanos = System.nanoTime() - start;
+
+        WayfRequest reformatted = new WayfRequest(request.getMethod(), request.getUrl());
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            if (!header.getKey().equalsIgnoreCase(CONTENT_TYPE_HEADER)) {
+                reformatted.header(header.getKey(), header.getValue());
+            }
+        }
+
+        return reformatted.header(CONTENT_TYPE_HEADER, writer.getContentType())
+                .body(body)
+                .bodySource(request.getBodySource())
+                .serializationNanos(serializationNanos);
+    }
+
+    interface RequestSender<T> {
+        T send(WayfRequest request) throws WayfException;
+    }
+
+    // If the response was in the error range, the body will be an ErrorResponse. Create an exception with the HTTP
+    // response code and error message.
+    private WayfException toException(int status, String retryAfter, SerializationHandler reader, InputStream body) {
+        // 415 Unsupported Media Type: the server could not read the request body's format
+        if (status == 415) {
+            serializationHandler.onUnsupportedMediaType();
+        }
+
+        ErrorResponse errorResponse = null;
+
+        if (body != null) {
+            try {
+                errorResponse = reader.deserialize(body, ErrorResponse.class);
+            } catch (Exception e) {
+                LOG.debug("Could not read error response with code [{}]", status, e);
+            }
+        }
+
+        String message = errorResponse != null? errorResponse.getMessage() : null;
+        return new WayfException(status, message, parseRetryAfter(retryAfter));
+    }
+
+    // Retry-After is either a number of seconds or an HTTP date
+    static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) {
+            return 0;
+        }
+
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(retryAfter.trim())));
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(retryAfter);
+            return date != null? Math.max(0, date.getTime() - System.currentTimeMillis()) : 0;
+        }
+    }
+
+    private WayfException toDeserializationException(int status, Exception e) {
+        LOG.error("Could not deserialize response with code [{}]", status);
+
+        if (WayfException.class.isAssignableFrom(e.getClass())) {
+            return (WayfException) e;
+        } else {
+            return new WayfException("Could not deserialize WAYF response", e);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket refilled continuously at a fixed rate up to its burst size. Background calls may not take the last
+ * {@code reserved} tokens, which are left for interactive calls.
+ */
+class RateLimiter {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final double permitsPerNano;
+    private final double capacity;
+    private final double reserved;
+
+    private double tokens;
+    private long refilledAt;
+
+    RateLimiter(double permitsPerSecond, int burst, double reservedFraction) {
+        if (permitsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("A rate limit needs a positive rate and burst size");
+        }
+
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = burst;
+        this.reserved = Math.min(burst - 1, Math.floor(burst * reservedFraction));
+        this.tokens = burst;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Takes a token and returns 0, or takes nothing and returns the nanoseconds until one should be available.
+     */
+    long tryAcquire(boolean interactive) {
+        double floor = interactive? 0 : reserved;
+
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * permitsPerNano);
+            refilledAt = now;
+
+            if (tokens >= floor + 1) {
+                tokens -= 1;
+                return 0;
+            }
+
+            return Math.max(1, (long) Math.ceil((floor + 1 - tokens) / permitsPerNano));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a token taken by a call that was then rejected before it was made.
+     */
+    void refund() {
+        lock.lock();
+        try {
+            tokens = Math.min(capacity, tokens + 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isFull() {
+        lock.lock();
+        try {
+            return tokens + (System.nanoTime() - refilledAt) * permitsPerNano >= capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.service.RequestTimeoutPolicy;
+import com.atypon.wayf.service.metrics.LatencyHistogram;
+import com.atypon.wayf.service.metrics.RequestMetrics;
+
+import java.net.SocketTimeoutException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Derives each operation's socket timeout from the latency of its requests: the configured percentile of the previous
+ * window, multiplied by a safety factor and clamped to [minimum, maximum]. Until a window with enough samples has
+ * completed the transport default is used. Failed requests count too, and a request that timed out is recorded as
+ * taking at least the timeout it was given, so that the timeout grows when latency rises rather than excluding the
+ * very requests that show it.
+ */
+public class RequestTimeoutPolicyAdaptiveImpl implements RequestTimeoutPolicy {
+    private double percentile = 99;
+    private double multiplier = 2;
+    private int minimumTimeoutMillis = 250;
+    private int maximumTimeoutMillis = 5000;
+    private long minimumSamples = 100;
+    private long windowNanos = TimeUnit.MINUTES.toNanos(1);
+
+    private final Map<WayfOperation, AtomicReference<Window>> windows = new EnumMap<>(WayfOperation.class);
+
+    public RequestTimeoutPolicyAdaptiveImpl() {
+        for (WayfOperation operation : WayfOperation.values()) {
+            windows.put(operation, new AtomicReference<>(new Window(System.nanoTime(), 0)));
+        }
+    }
+
+    public RequestTimeoutPolicyAdaptiveImpl percentile(double percentile) {
+        this.percentile = percentile;
+        return this;
+    }
+
+    public RequestTimeoutPolicyAdaptiveImpl multiplier(double multiplier) {
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    public RequestTimeoutPolicyAdaptiveImpl minimumTimeoutMillis(int minimumTimeoutMillis) {
+        this.minimumTimeoutMillis = minimumTimeoutMillis;
+        return this;
+    }
+
+    public RequestTimeoutPolicyAdaptiveImpl maximumTimeoutMillis(int maximumTimeoutMillis) {
+        this.maximumTimeoutMillis = maximumTimeoutMillis;
+        return this;
+    }
+
+    public RequestTimeoutPolicyAdaptiveImpl minimumSamples(long minimumSamples) {
+        this.minimumSamples = minimumSamples;
+        return this;
+    }
+
+    public RequestTimeoutPolicyAdaptiveImpl window(long window, TimeUnit unit) {
+        this.windowNanos = unit.toNanos(window);
+        return this;
+    }
+
+    @Override
+    public int getTimeoutMillis(WayfOperation operation) {
+        return operation != null? windows.get(operation).get().timeoutMillis : 0;
+    }
+
+    @Override
+    public void onRequestCompleted(RequestMetrics metrics) {
+        if (metrics.getOperation() == null) {
+            return;
+        }
+
+        AtomicReference<Window> reference = windows.get(metrics.getOperation());
+        Window window = reference.get();
+
+        // The timeout in force is the one the request was given unless the window rotated while it was in flight
+        long latencyNanos = metrics.getTotalNanos();
+        if (isTimeout(metrics.getException())) {
+            latencyNanos = Math.max(latencyNanos, TimeUnit.MILLISECONDS.toNanos(window.timeoutMillis));
+        }
+
+        long now = System.nanoTime();
+        if (now - window.startedAt >= windowNanos) {
+            Window next = new Window(now, timeoutFor(window));
+
+            // Only one thread rotates; the others record into whichever window is current
+            reference.compareAndSet(window, next);
+            window = reference.get();
+        }
+
+        window.latencies.record(latencyNanos);
+    }
+
+    private static boolean isTimeout(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private int timeoutFor(Window completed) {
+        if (completed.latencies.getCount() < minimumSamples) {
+            return completed.timeoutMillis;
+        }
+
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(completed.latencies.getValueAtPercentile(percentile));
+        long timeout = (long) Math.ceil(latencyMillis * multiplier);
+
+        return (int) Math.max(minimumTimeoutMillis, Math.min(maximumTimeoutMillis, timeout));
+    }
+
+    private static class Window {
+        private final long startedAt;
+        private final int timeoutMillis;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        private Window(long startedAt, int timeoutMillis) {
+            this.startedAt = startedAt;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.service.metrics.RequestMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A response body decoded as it is read, counting its bytes both on the wire and after decoding.
+ */
+final class ResponseBody {
+    private final CountingInputStream wire;
+    private final InputStream decoder;
+    private final CountingInputStream decoded;
+
+    ResponseBody(InputStream body, String contentEncoding) throws IOException {
+        this.wire = new CountingInputStream(body);
+        this.decoder = ContentEncoding.decode(contentEncoding, wire);
+        this.decoded = decoder == wire? wire : new CountingInputStream(decoder);
+    }
+
+    /**
+     * Opens the body of a response with the given status. A body that cannot be decoded fails a successful response
+     * with a {@link WayfException} carrying its status, and is left out of an error response, which is still reported by
+     * its status and Retry-After alone.
+     */
+    static ResponseBody open(int status, InputStream body, String contentEncoding) throws WayfException {
+        try {
+            return new ResponseBody(body, contentEncoding);
+        } catch (IOException e) {
+            if (status > 299) {
+                return null;
+            }
+
+            throw new WayfException(status, "Could not decode HTTP response body", e);
+        }
+    }
+
+    InputStream getStream() {
+        return decoded;
+    }
+
+    // Reads whatever the deserializer left behind, so that both counts cover the whole body and a pooled connection
+    // can be reused, then releases the decoder
+    void finish(RequestMetrics metrics) {
+        decoded.drain();
+        wire.drain();
+
+        metrics.setBytesReceived(wire.getCount());
+        metrics.setUncompressedBytesReceived(decoded.getCount());
+
+        if (decoder != wire) {
+            try {
+                decoder.close();
+            } catch (IOException e) {
+                // Nothing is left to read at this point
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.CircuitBreakerOpenException;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether and when a failed WAYF request is retried.
+ * <ul>
+ *     <li>429 and 503 responses mean the request was rejected before being processed, so they are retried for every
+ *     operation, waiting at least as long as the Retry-After header asks.</li>
+ *     <li>Other 5xx responses and transport errors are only retried for idempotent operations, except for refused
+ *     connections, where the request was never sent.</li>
+ *     <li>Backoff is exponential with full jitter, and every retry must be paid for from the {@link RetryBudget}.</li>
+ * </ul>
+ */
+public class RetryPolicy {
+    private int maxAttempts = 3;
+    private long initialBackoffMillis = 100;
+    private long maxBackoffMillis = 2000;
+    private double backoffMultiplier = 2;
+    private long maxRetryAfterMillis = TimeUnit.SECONDS.toMillis(10);
+    private RetryBudget retryBudget = new RetryBudget();
+
+    public RetryPolicy() {
+    }
+
+    public RetryPolicy maxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Max attempts must be positive");
+        }
+
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public RetryPolicy backoff(long initialBackoff, long maxBackoff, TimeUnit unit) {
+        this.initialBackoffMillis = unit.toMillis(initialBackoff);
+        this.maxBackoffMillis = unit.toMillis(maxBackoff);
+        return this;
+    }
+
+    public RetryPolicy backoffMultiplier(double backoffMultiplier) {
+        this.backoffMultiplier = backoffMultiplier;
+        return this;
+    }
+
+    /**
+     * Requests whose Retry-After asks for a longer wait than this fail immediately instead.
+     */
+    public RetryPolicy maxRetryAfter(long maxRetryAfter, TimeUnit unit) {
+        this.maxRetryAfterMillis = unit.toMillis(maxRetryAfter);
+        return this;
+    }
+
+    public RetryPolicy retryBudget(RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+        return this;
+    }
+
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Called once per request, before its first attempt.
+     */
+    public void onRequest() {
+        retryBudget.onRequest();
+    }
+
+    /**
+     * The delay in milliseconds before retrying after the given 1-based attempt failed, or -1 if it should not be
+     * retried.
+     */
+    public long retryDelayMillis(WayfOperation operation, int attempt, Throwable failure) {
+        if (attempt >= maxAttempts || !isRetryable(operation, failure)) {
+            return -1;
+        }
+
+        long retryAfterMillis = ((WayfException) failure).getRetryAfterMillis();
+        if (retryAfterMillis > maxRetryAfterMillis) {
+            return -1;
+        }
+
+        if (!retryBudget.tryAcquireRetry()) {
+            return -1;
+        }
+
+        double backoff = Math.min(maxBackoffMillis, initialBackoffMillis * Math.pow(backoffMultiplier, attempt - 1));
+        long jitteredBackoff = ThreadLocalRandom.current().nextLong((long) backoff + 1);
+
+        return Math.max(jitteredBackoff, retryAfterMillis);
+    }
+
+    private static boolean isRetryable(WayfOperation operation, Throwable failure) {
+        if (!(failure instanceof WayfException) || failure instanceof CircuitBreakerOpenException) {
+            return false;
+        }
+
+        int status = ((WayfException) failure).getStatus();
+
+        if (status == 429 || status == 503) {
+            return true;
+        }
+
+        // A call that does not name its operation is treated as non-idempotent
+        boolean idempotent = operation != null && operation.isIdempotent();
+
+        if (status == 0) {
+            return idempotent? isTransportFailure(failure) : isConnectionRefused(failure);
+        }
+
+        return idempotent && status >= 500 && status != 501;
+    }
+
+    // A WayfException without a status either wraps an I/O error from the transport or a deserialization error; only the
+    // former is worth retrying
+    private static boolean isTransportFailure(Throwable failure) {
+        for (Throwable cause = failure.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof JsonProcessingException) {
+                return false;
+            }
+
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isConnectionRefused(Throwable failure) {
+        for (Throwable cause = failure.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.service.SerializationHandler;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.function.Consumer;
+
+/**
+ * Negotiates a preferred wire format, typically a compact binary one such as Smile, with a fallback to JSON.
+ * <p>
+ * Every request asks for the preferred format first, and each response is read in whichever format its Content-Type
+ * names, so a server that only speaks JSON keeps working unchanged. Request bodies are written as JSON until the server
+ * has answered in the preferred format once, and in the preferred format from then on. A server that can produce the
+ * preferred format need not be able to read it, so once it answers 415 Unsupported Media Type request bodies go back
+ * to JSON for good, and the call that got the 415 is sent again as JSON.
+ */
+public class SerializationHandlerContentNegotiatingImpl implements SerializationHandler {
+    private final SerializationHandler preferred;
+    private final SerializationHandler fallback;
+    private final String preferredMediaType;
+    private final String accept;
+
+    private volatile boolean preferredAccepted;
+    private volatile boolean preferredRejected;
+
+    public SerializationHandlerContentNegotiatingImpl(SerializationHandler preferred, SerializationHandler fallback) {
+        if (preferred == null || fallback == null) {
+            throw new IllegalArgumentException("Both a preferred and a fallback SerializationHandler are required");
+        }
+
+        this.preferred = preferred;
+        this.fallback = fallback;
+        this.preferredMediaType = mediaType(preferred.getContentType());
+        this.accept = preferredMediaType + ", " + mediaType(fallback.getContentType()) + ";q=0.5";
+    }
+
+    public boolean isPreferredAccepted() {
+        return preferredAccepted;
+    }
+
+    @Override
+    public String getContentType() {
+        return forRequestBody().getContentType();
+    }
+
+    @Override
+    public String getAccept() {
+        return accept;
+    }
+
+    @Override
+    public SerializationHandler forContentType(String contentType) {
+        if (contentType != null && preferredMediaType.equalsIgnoreCase(mediaType(contentType))) {
+            if (!preferredRejected) {
+                preferredAccepted = true;
+            }
+
+            return preferred;
+        }
+
+        return fallback;
+    }
+
+    @Override
+    public void onUnsupportedMediaType() {
+        preferredRejected = true;
+        preferredAccepted = false;
+    }
+
+    @Override
+    public SerializationHandler forRequestBody() {
+        return preferredAccepted? preferred : fallback;
+    }
+
+    // Without a Content-Type to go on, reads and String serialization use the fallback format
+
+    @Override
+    public <T> T deserialize(String json, Class<T> returnType) throws WayfException {
+        return fallback.deserialize(json, returnType);
+    }
+
+    @Override
+    public <T> T deserialize(InputStream inputStream, Type returnType) throws WayfException {
+        return fallback.deserialize(inputStream, returnType);
+    }
+
+    @Override
+    public <T> T deserialize(byte[] bytes, Type returnType) throws WayfException {
+        return fallback.deserialize(bytes, returnType);
+    }
+
+    @Override
+    public <T> void deserializeEach(InputStream inputStream, Class<T> elementType, Consumer<? super T> consumer) throws WayfException {
+        fallback.deserializeEach(inputStream, elementType, consumer);
+    }
+
+    @Override
+    public String serialize(Object toSerialize) throws WayfException {
+        return fallback.serialize(toSerialize);
+    }
+
+    @Override
+    public byte[] serializeToBytes(Object toSerialize) throws WayfException {
+        return forRequestBody().serializeToBytes(toSerialize);
+    }
+
+    @Override
+    public void serialize(Object toSerialize, OutputStream outputStream) throws WayfException {
+        forRequestBody().serialize(toSerialize, outputStream);
+    }
+
+    private static String mediaType(String contentType) {
+        int parameters = contentType.indexOf(';');
+        return (parameters < 0? contentType : contentType.substring(0, parameters)).trim();
+    }
+}
@@ -16,21 +16,105 @@
 
 package com.atypon.wayf.service.impl;
 
+import com.atypon.wayf.data.ErrorResponse;
 import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.data.identity.OauthEntity;
+import com.atypon.wayf.data.identity.OpenAthensEntity;
+import com.atypon.wayf.data.identity.SamlEntity;
 import com.atypon.wayf.service.SerializationHandler;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Jackson backed {@link SerializationHandler}. ObjectReaders and ObjectWriters are immutable and thread-safe, so one is
+ * built per type on first use and reused for every subsequent call; the WAYF model types are prepared up front. As a
+ * consequence, the ObjectMapper must be fully configured before it is handed to this class.
+ */
 public class SerializationHandlerObjectMapperImpl implements SerializationHandler {
+    private static final Type[] WAYF_TYPES = {
+            IdentityProvider.class,
+            SamlEntity.class,
+            OpenAthensEntity.class,
+            OauthEntity.class,
+            IdentityProviderUsage.class,
+            new TypeReference<List<IdentityProviderUsage>>() {}.getType(),
+            ErrorResponse.class
+    };
+
     private ObjectMapper objectMapper;
+    private final String contentType;
+
+    private final ConcurrentMap<Type, ObjectReader> readers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
 
     public SerializationHandlerObjectMapperImpl(ObjectMapper objectMapper) {
+        this(objectMapper, JSON_CONTENT_TYPE);
+    }
+
+    /**
+     * @param contentType the Content-Type of the ObjectMapper's format, e.g. {@link #SMILE_CONTENT_TYPE} for a mapper
+     *                    built on a SmileFactory
+     */
+    public SerializationHandlerObjectMapperImpl(ObjectMapper objectMapper, String contentType) {
         this.objectMapper = objectMapper;
+        this.contentType = contentType;
+
+        for (Type type : WAYF_TYPES) {
+            readerFor(type);
+
+            if (type instanceof Class) {
+                writerFor((Class<?>) type);
+            }
+        }
     }
 
     @Override
     public <T> T deserialize(String json, Class<T> returnType) throws WayfException {
         try {
-            return objectMapper.readValue(json, returnType);
+            return readerFor(returnType).readValue(json);
+        } catch (Exception e) {
+            throw new WayfException("Could not deserialize type", e);
+        }
+    }
+
+    @Override
+    public <T> T deserialize(InputStream inputStream, Type returnType) throws WayfException {
+        try {
+            return readerFor(returnType).readValue(inputStream);
+        } catch (Exception e) {
+            throw new WayfException("Could not deserialize type", e);
+        }
+    }
+
+    @Override
+    public <T> T deserialize(byte[] bytes, Type returnType) throws WayfException {
+        try {
+            return readerFor(returnType).readValue(bytes);
+        } catch (Exception e) {
+            throw new WayfException("Could not deserialize type", e);
+        }
+    }
+
+    @Override
+    public <T> void deserializeEach(InputStream inputStream, Class<T> elementType, Consumer<? super T> consumer) throws WayfException {
+        // Binds one array element at a time so that arbitrarily long arrays never have to be held in memory
+        try (MappingIterator<T> iterator = readerFor(elementType).readValues(inputStream)) {
+            while (iterator.hasNextValue()) {
+                consumer.accept(iterator.nextValue());
+            }
         } catch (Exception e) {
             throw new WayfException("Could not deserialize type", e);
         }
@@ -39,9 +123,66 @@ public class SerializationHandlerObjectMapperImpl implements SerializationHandle
     @Override
     public String serialize(Object toSerialize) throws WayfException {
         try {
-            return objectMapper.writeValueAsString(toSerialize);
+            return writerFor(toSerialize).writeValueAsString(toSerialize);
+        } catch (Exception e) {
+            throw new WayfException("Could not serialize type", e);
+        }
+    }
+
+    @Override
+    public byte[] serializeToBytes(Object toSerialize) throws WayfException {
+        try {
+            return writerFor(toSerialize).writeValueAsBytes(toSerialize);
         } catch (Exception e) {
             throw new WayfException("Could not serialize type", e);
         }
     }
+
+    @Override
+    public void serialize(Object toSerialize, OutputStream outputStream) throws WayfException {
+        try {
+            writerFor(toSerialize).writeValue(outputStream, toSerialize);
+        } catch (Exception e) {
+            throw new WayfException("Could not serialize type", e);
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    private ObjectReader readerFor(Type type) {
+        ObjectReader reader = readers.get(type);
+
+        if (reader == null) {
+            reader = objectMapper.readerFor(objectMapper.getTypeFactory().constructType(type));
+
+            ObjectReader existing = readers.putIfAbsent(type, reader);
+            if (existing != null) {
+                reader = existing;
+            }
+        }
+
+        return reader;
+    }
+
+    private ObjectWriter writerFor(Object toSerialize) {
+        return toSerialize == null? objectMapper.writer() : writerFor(toSerialize.getClass());
+    }
+
+    private ObjectWriter writerFor(Class<?> type) {
+        ObjectWriter writer = writers.get(type);
+
+        if (writer == null) {
+            writer = objectMapper.writerFor(type);
+
+            ObjectWriter existing = writers.putIfAbsent(type, writer);
+            if (existing != null) {
+                writer = existing;
+            }
+        }
+
+        return writer;
+    }
 }
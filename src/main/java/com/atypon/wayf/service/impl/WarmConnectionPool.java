@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a number of connections to each warmed-up host open in the connection pool of
+ * {@link HttpRequestExecutorHttpClientImpl}. {@link #warmUp(String)} opens them, and every {@link #ping()} reopens any
+ * that have been closed; each connection is sent a GET request for the URL every time.
+ * <p>
+ * The pool hands the most recently released connection out first, so connections are all leased before any is
+ * released; leasing and releasing them one at a time would open, or ping, the same connection again and again.
+ */
+class WarmConnectionPool {
+    private static final Logger LOG = LoggerFactory.getLogger(WarmConnectionPool.class);
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final int connections;
+    private final int connectTimeoutMillis;
+    private final int socketTimeoutMillis;
+    private final int connectionRequestTimeoutMillis;
+    private final long keepAliveMillis;
+    private final Set<String> urls = ConcurrentHashMap.newKeySet();
+
+    WarmConnectionPool(PoolingHttpClientConnectionManager connectionManager, HttpClientConfiguration configuration) {
+        this.connectionManager = connectionManager;
+        this.connections = Math.min(Math.max(1, configuration.getWarmConnections()), configuration.getMaxConnectionsPerRoute());
+        this.connectTimeoutMillis = configuration.getConnectTimeoutMillis();
+        this.socketTimeoutMillis = configuration.getSocketTimeoutMillis();
+        this.connectionRequestTimeoutMillis = configuration.getConnectionRequestTimeoutMillis();
+        this.keepAliveMillis = configuration.getKeepAliveMillis();
+    }
+
+    /**
+     * Opens connections to the URL's host and keeps them warm on every later ping. Returns how many are open.
+     */
+    int warmUp(String url) throws IOException {
+        int open = refresh(url, false);
+        urls.add(url);
+        return open;
+    }
+
+    void ping() {
+        for (String url : urls) {
+            try {
+                refresh(url, true);
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Could not keep the connections to [{}] alive", url, e);
+            }
+        }
+    }
+
+    private int refresh(String url, boolean ping) throws IOException {
+        URI uri = URI.create(url);
+        HttpRoute route = route(uri);
+        HttpHost target = route.getTargetHost();
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty()? "/" : uri.getRawPath();
+
+        HttpClientContext context = HttpClientContext.create();
+        List<HttpClientConnection> leased = new ArrayList<>(connections);
+        int open = 0;
+
+        try {
+            for (int i = 0; i < connections; i++) {
+                HttpClientConnection connection = lease(route);
+                if (connection == null) {
+                    break;
+                }
+
+                leased.add(connection);
+            }
+
+            for (HttpClientConnection connection : leased) {
+                // A failed ping closes the connection, which is then replaced like any other closed one
+                if (ping && connection.isOpen()) {
+                    get(connection, target, path, context);
+                }
+
+                // HttpClient's stale check fails on a connection that has never exchanged a request, so every new
+                // connection is also sent one
+                if (!connection.isOpen()) {
+                    connectionManager.connect(connection, route, connectTimeoutMillis, context);
+                    connectionManager.routeComplete(connection, route, context);
+
+                    get(connection, target, path, context);
+                }
+
+                if (connection.isOpen()) {
+                    open++;
+                }
+            }
+        } finally {
+            // Connections that were never opened, or were closed, are dropped from the pool rather than returned to it
+            for (HttpClientConnection connection : leased) {
+                connectionManager.releaseConnection(connection, null, keepAliveMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        return open;
+    }
+
+    // Returns null once the rest of the pool is busy with requests, which keep those connections alive themselves
+    private HttpClientConnection lease(HttpRoute route) throws IOException {
+        ConnectionRequest request = connectionManager.requestConnection(route, null);
+
+        try {
+            return request.get(connectionRequestTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ConnectionPoolTimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new IOException("Could not lease a connection to [" + route.getTargetHost() + "]", e.getCause());
+        }
+    }
+
+    // A GET rather than a HEAD, since a HEAD response that carries no Content-Length cannot be reused, and the body is
+    // read so that the connection can be
+    private void get(HttpClientConnection connection, HttpHost target, String path, HttpContext context) {
+        try {
+            connection.setSocketTimeout(socketTimeoutMillis);
+
+            BasicHttpRequest request = new BasicHttpRequest("GET", path, HttpVersion.HTTP_1_1);
+            request.addHeader(HTTP.TARGET_HOST, target.toHostString());
+
+            connection.sendRequestHeader(request);
+            connection.flush();
+
+            HttpResponse response;
+            do {
+                response = connection.receiveResponseHeader();
+            } while (response.getStatusLine().getStatusCode() < 200);
+
+            connection.receiveResponseEntity(response);
+            EntityUtils.consume(response.getEntity());
+
+            if (!DefaultConnectionReuseStrategy.INSTANCE.keepAlive(response, context)) {
+                connection.close();
+            }
+        } catch (IOException | HttpException | RuntimeException e) {
+            LOG.debug("Keep-alive ping to [{}] failed", target, e);
+
+            try {
+                connection.shutdown();
+            } catch (IOException ignored) {
+                // Already unusable, and replaced by the caller
+            }
+        }
+    }
+
+    // Mirrors how HttpClient's default route planner routes a request without a proxy, so that the connections opened
+    // here are the ones requests later lease
+    private static HttpRoute route(URI uri) throws IOException {
+        HttpHost host = URIUtils.extractHost(uri);
+        if (host == null) {
+            throw new IllegalArgumentException("Could not determine the host of [" + uri + "]");
+        }
+
+        HttpHost target = host.getPort() > 0? host : new HttpHost(host.getHostName(), DefaultSchemePortResolver.INSTANCE.resolve(host), host.getSchemeName());
+
+        return new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.metrics;
+
+import com.atypon.wayf.data.WayfOperation;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Built-in {@link MetricsListener} keeping per-operation latency histograms (in nanoseconds) and error counts, from
+ * which p50/p99/p999 can be exported.
+ */
+public class HistogramMetricsListener implements MetricsListener {
+    private final Map<WayfOperation, LatencyHistogram> latencies = new EnumMap<>(WayfOperation.class);
+    private final Map<WayfOperation, LatencyHistogram> serializationLatencies = new EnumMap<>(WayfOperation.class);
+    private final Map<WayfOperation, LatencyHistogram> deserializationLatencies = new EnumMap<>(WayfOperation.class);
+    private final Map<WayfOperation, AtomicLong> errorCounts = new EnumMap<>(WayfOperation.class);
+    private final Map<WayfOperation, AtomicLong> bytesSent = new EnumMap<>(WayfOperation.class);
+    private final Map<WayfOperation, AtomicLong> bytesReceived = new EnumMap<>(WayfOperation.class);
+    private final Map<WayfOperation, AtomicLong> uncompressedBytesSent = new EnumMap<>(WayfOperation.class);
+    private final Map<WayfOperation, AtomicLong> uncompressedBytesReceived = new EnumMap<>(WayfOperation.class);
+    private final Map<WayfOperation, AtomicLong> retryCounts = new EnumMap<>(WayfOperation.class);
+
+    public HistogramMetricsListener() {
+        // Populated once up front so that the maps are only ever read afterwards
+        for (WayfOperation operation : WayfOperation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            serializationLatencies.put(operation, new LatencyHistogram());
+            deserializationLatencies.put(operation, new LatencyHistogram());
+            errorCounts.put(operation, new AtomicLong());
+            bytesSent.put(operation, new AtomicLong());
+            bytesReceived.put(operation, new AtomicLong());
+            uncompressedBytesSent.put(operation, new AtomicLong());
+            uncompressedBytesReceived.put(operation, new AtomicLong());
+            retryCounts.put(operation, new AtomicLong());
+        }
+    }
+
+    @Override
+    public void onRequestCompleted(RequestMetrics metrics) {
+        WayfOperation operation = metrics.getOperation();
+        if (operation == null) {
+            return;
+        }
+
+        latencies.get(operation).record(metrics.getTotalNanos());
+        deserializationLatencies.get(operation).record(metrics.getDeserializationNanos());
+        if (metrics.getSerializationNanos() > 0) {
+            serializationLatencies.get(operation).record(metrics.getSerializationNanos());
+        }
+        bytesSent.get(operation).addAndGet(metrics.getBytesSent());
+        bytesReceived.get(operation).addAndGet(metrics.getBytesReceived());
+        uncompressedBytesSent.get(operation).addAndGet(metrics.getUncompressedBytesSent());
+        uncompressedBytesReceived.get(operation).addAndGet(metrics.getUncompressedBytesReceived());
+
+        if (!metrics.isSuccess()) {
+            errorCounts.get(operation).incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onRetry(WayfOperation operation, int attempt, Throwable failure) {
+        if (operation != null) {
+            retryCounts.get(operation).incrementAndGet();
+        }
+    }
+
+    public LatencyHistogram getLatencyHistogram(WayfOperation operation) {
+        return latencies.get(operation);
+    }
+
+    /**
+     * Request body serialization times; calls without a body are not recorded.
+     */
+    public LatencyHistogram getSerializationHistogram(WayfOperation operation) {
+        return serializationLatencies.get(operation);
+    }
+
+    public LatencyHistogram getDeserializationHistogram(WayfOperation operation) {
+        return deserializationLatencies.get(operation);
+    }
+
+    public long getRequestCount(WayfOperation operation) {
+        return latencies.get(operation).getCount();
+    }
+
+    public long getErrorCount(WayfOperation operation) {
+        return errorCounts.get(operation).get();
+    }
+
+    public long getRetryCount(WayfOperation operation) {
+        return retryCounts.get(operation).get();
+    }
+
+    public long getBytesSent(WayfOperation operation) {
+        return bytesSent.get(operation).get();
+    }
+
+    public long getBytesReceived(WayfOperation operation) {
+        return bytesReceived.get(operation).get();
+    }
+
+    public long getUncompressedBytesSent(WayfOperation operation) {
+        return uncompressedBytesSent.get(operation).get();
+    }
+
+    public long getUncompressedBytesReceived(WayfOperation operation) {
+        return uncompressedBytesReceived.get(operation).get();
+    }
+
+    /**
+     * Uncompressed over on-the-wire response bytes across all of the operation's calls so far, or 1 before any.
+     */
+    public double getResponseCompressionRatio(WayfOperation operation) {
+        long received = getBytesReceived(operation);
+        long uncompressed = getUncompressedBytesReceived(operation);
+        return received > 0 && uncompressed > 0? (double) uncompressed / received : 1.0;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.metrics;
+
+import com.atypon.wayf.data.WayfOperation;
+
+/**
+ * Receives one {@link RequestMetrics} per executed WAYF request. Implementations are called on the thread that
+ * completed the request and must therefore be cheap and thread-safe.
+ */
+public interface MetricsListener {
+    void onRequestCompleted(RequestMetrics metrics);
+
+    /**
+     * Called when a failed attempt is about to be retried. {@code attempt} is the 1-based number of the attempt that
+     * failed.
+     */
+    default void onRetry(WayfOperation operation, int attempt, Throwable failure) {
+    }
+}
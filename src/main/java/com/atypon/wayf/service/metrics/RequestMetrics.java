@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.metrics;
+
+import com.atypon.wayf.data.WayfOperation;
+
+public class RequestMetrics {
+    private WayfOperation operation;
+    private int status;
+    private long bytesSent;
+    private long bytesReceived;
+    private long uncompressedBytesSent;
+    private long uncompressedBytesReceived;
+    private long totalNanos;
+    private long serializationNanos;
+    private long deserializationNanos;
+    private Throwable exception;
+
+    public RequestMetrics() {
+    }
+
+    public RequestMetrics(WayfOperation operation) {
+        this.operation = operation;
+    }
+
+    public WayfOperation getOperation() {
+        return operation;
+    }
+
+    public void setOperation(WayfOperation operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * The HTTP status of the response, or 0 if no response was received.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * Request body bytes on the wire, after any compression.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public void setBytesSent(long bytesSent) {
+        this.bytesSent = bytesSent;
+    }
+
+    /**
+     * Response body bytes on the wire, before any decompression.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public void setBytesReceived(long bytesReceived) {
+        this.bytesReceived = bytesReceived;
+    }
+
+    public long getUncompressedBytesSent() {
+        return uncompressedBytesSent;
+    }
+
+    public void setUncompressedBytesSent(long uncompressedBytesSent) {
+        this.uncompressedBytesSent = uncompressedBytesSent;
+    }
+
+    public long getUncompressedBytesReceived() {
+        return uncompressedBytesReceived;
+    }
+
+    public void setUncompressedBytesReceived(long uncompressedBytesReceived) {
+        this.uncompressedBytesReceived = uncompressedBytesReceived;
+    }
+
+    /**
+     * Uncompressed over on-the-wire request body size; 1 when the body was not compressed or there was none.
+     */
+    public double getRequestCompressionRatio() {
+        return compressionRatio(uncompressedBytesSent, bytesSent);
+    }
+
+    /**
+     * Uncompressed over on-the-wire response body size; 1 when the body was not compressed or there was none.
+     */
+    public double getResponseCompressionRatio() {
+        return compressionRatio(uncompressedBytesReceived, bytesReceived);
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public void setTotalNanos(long totalNanos) {
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * Time spent serializing the request body. Bodies are serialized before the request reaches the transport, so this
+     * is not part of {@link #getTotalNanos()}.
+     */
+    public long getSerializationNanos() {
+        return serializationNanos;
+    }
+
+    public void setSerializationNanos(long serializationNanos) {
+        this.serializationNanos = serializationNanos;
+    }
+
+    /**
+     * Time spent binding the response body. Transports that stream the body from the socket read part of it while
+     * deserializing, so this may include some network time.
+     */
+    public long getDeserializationNanos() {
+        return deserializationNanos;
+    }
+
+    public void setDeserializationNanos(long deserializationNanos) {
+        this.deserializationNanos = deserializationNanos;
+    }
+
+    public long getNetworkNanos() {
+        return totalNanos - deserializationNanos;
+    }
+
+    public Throwable getException() {
+        return exception;
+    }
+
+    public void setException(Throwable exception) {
+        this.exception = exception;
+    }
+
+    public boolean isSuccess() {
+        return exception == null;
+    }
+
+    private static double compressionRatio(long uncompressedBytes, long bytes) {
+        return bytes > 0 && uncompressedBytes > 0? (double) uncompressedBytes / bytes : 1.0;
+    }
+}
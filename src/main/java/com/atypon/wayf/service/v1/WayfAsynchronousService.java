@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1;
+
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking counterpart of {@link WayfSynchronousService}. Failed calls complete their future exceptionally with a
+ * {@link com.atypon.wayf.data.WayfException}.
+ */
+public interface WayfAsynchronousService extends WayfService {
+    CompletableFuture<Void> registerLocalId(String localId);
+    CompletableFuture<List<IdentityProviderUsage>> getDeviceHistory(String localId);
+    CompletableFuture<IdentityProvider> addIdentityProviderUsage(String localId, IdentityProvider identityProvider);
+    CompletableFuture<Void> removeIdentityProviderOption(String localId, Long identityProviderId);
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1;
+
+import com.atypon.wayf.data.BatchItemResult;
+import com.atypon.wayf.data.identity.DeviceIdentityProviderUsage;
+import com.atypon.wayf.data.identity.IdentityProvider;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Bulk variants of the WAYF write operations. Each call blocks until every item has completed and returns one result
+ * per item, in input order; a failed item never fails the whole batch.
+ */
+public interface WayfBatchService extends WayfService {
+    List<BatchItemResult<String, Void>> registerLocalIds(Collection<String> localIds);
+    List<BatchItemResult<DeviceIdentityProviderUsage, IdentityProvider>> addIdentityProviderUsages(Collection<DeviceIdentityProviderUsage> usages);
+}
@@ -17,42 +17,58 @@
 package com.atypon.wayf.service.v1;
 
 import com.atypon.wayf.data.WayfEnvironment;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.service.AsynchronousHttpRequestExecutor;
 import com.atypon.wayf.service.HttpRequestExecutor;
-import com.atypon.wayf.service.SerializationHandler;
-import com.atypon.wayf.service.impl.HttpRequestExecutorUnirestImpl;
-import com.atypon.wayf.service.impl.SerializationHandlerObjectMapperImpl;
+import com.atypon.wayf.service.impl.HttpClientConfiguration;
+import com.atypon.wayf.service.impl.HttpRequestExecutorHttp2Impl;
+import com.atypon.wayf.service.impl.HttpRequestExecutorHttpClientImpl;
+import com.atypon.wayf.service.v1.impl.WayfAsynchronousServiceImpl;
+import com.atypon.wayf.service.v1.impl.WayfAsynchronousServiceVirtualThreadImpl;
+import com.atypon.wayf.service.v1.impl.WayfBatchServiceImpl;
+import com.atypon.wayf.service.v1.impl.WayfDeviceHistoryProcessor;
+import com.atypon.wayf.service.v1.impl.WayfMultiTenantServiceImpl;
 import com.atypon.wayf.service.v1.impl.WayfServiceImpl;
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Properties;
-
-public class WayfClient {
-    private static final String SANDBOX_URL_PROPERTY = "sandbox.url";
-    private static final String PRODUCTION_URL_PROPERTY = "production.url";
-
-    private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ");
-
-    private static SerializationHandler serializationHandler ;
-    private static Properties properties;
-    private static Map<WayfEnvironment, String> environmentToUrlMap;
-    private static HttpRequestExecutor httpRequestExecutor;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds WAYF services. Transports the client creates itself, from {@link #using(HttpClientConfiguration)},
+ * {@link #usingHttp2(HttpClientConfiguration)} or {@link #onVirtualThreads()}, are owned by the client and released by
+ * {@link #close()}; services obtained from the client cannot be used after that. Executors passed to
+ * {@link #using(HttpRequestExecutor)} and those of the {@link WayfClientConfiguration} remain the caller's to close.
+ */
+public class WayfClient implements Closeable {
+    private final WayfClientConfiguration configuration;
+    private final List<Closeable> ownedExecutors = new ArrayList<>();
 
     private String publisherToken;
     private WayfEnvironment environment;
+    private HttpRequestExecutor<WayfRequest> clientHttpRequestExecutor;
+    private boolean virtualThreads;
+
+    private WayfClient(WayfClientConfiguration configuration) {
+        this.configuration = configuration;
+    }
 
+    /**
+     * Connects with {@link WayfClientConfiguration#defaults()}, which is built on the first call and shared by every
+     * later one.
+     */
     public static WayfClient connect() {
-        initEnvironmentToUrlMap();
-        initSerializationHandler();
+        return connect(WayfClientConfiguration.defaults());
+    }
+
+    public static WayfClient connect(WayfClientConfiguration configuration) {
+        if (configuration == null) {
+            throw new IllegalArgumentException("A non-null configuration is required to connect to the WAYF service");
+        }
 
-        return new WayfClient();
+        return new WayfClient(configuration);
     }
 
     public WayfClient to(WayfEnvironment environment) {
@@ -65,75 +81,154 @@ public class WayfClient {
         return this;
     }
 
-    public WayfSynchronousService synchronously() {
-        if (publisherToken == null || publisherToken.isEmpty()) {
-            throw new IllegalArgumentException("A non-null and non-empty API token is required to use the WAYF service");
-        }
+    public WayfClient using(HttpRequestExecutor<WayfRequest> httpRequestExecutor) {
+        this.clientHttpRequestExecutor = httpRequestExecutor;
+        return this;
+    }
 
-        if (environment == null) {
-            throw new IllegalArgumentException("An environment must be specified to use the WAYF service");
-        }
+    public WayfClient using(HttpClientConfiguration httpClientConfiguration) {
+        return using(own(new HttpRequestExecutorHttpClientImpl(configuration.getSerializationHandler(), httpClientConfiguration)));
+    }
 
-        String baseUrl = environmentToUrlMap.get(environment);
-        if (baseUrl == null || baseUrl.isEmpty()) {
-            throw new RuntimeException("Could not find WAYF URL for environment [" + environment + "]");
-        }
+    /**
+     * Uses an HTTP/2 transport for both synchronous and asynchronous services, multiplexing concurrent calls on one
+     * connection. The WAYF cloud must speak HTTP/2: over TLS it is selected with ALPN, over plain HTTP it is spoken
+     * with prior knowledge. Requires httpclient5 on the classpath.
+     */
+    public WayfClient usingHttp2(HttpClientConfiguration httpClientConfiguration) {
+        return using(own(new HttpRequestExecutorHttp2Impl(configuration.getSerializationHandler(), httpClientConfiguration, HttpVersionPolicy.FORCE_HTTP_2)));
+    }
+
+    /**
+     * Runs asynchronous and batched calls as blocking calls on virtual threads (platform threads before Java 21).
+     * Unless another transport is chosen with {@code using}, this also selects the HTTP/2 transport of
+     * {@link #usingHttp2}, whose blocking calls park rather than pin the carrier thread.
+     */
+    public WayfClient onVirtualThreads() {
+        this.virtualThreads = true;
+        return this;
+    }
+
+    public WayfSynchronousService synchronously() {
+        String baseUrl = resolveBaseUrl();
 
         return new WayfServiceImpl()
                 .baseUrl(baseUrl)
                 .publisherApiToken(publisherToken)
-                .serializationHandler(serializationHandler)
-                .httpRequestExecutor(httpRequestExecutor);
+                .serializationHandler(configuration.getSerializationHandler())
+                .httpRequestExecutor(resolveHttpRequestExecutor());
+    }
+
+    /**
+     * Returns a service for many publishers that share this client's transport and serializer. The token given to
+     * {@link #as(String)} is not used; each publisher's token is passed to
+     * {@link WayfMultiTenantService#forPublisher(String)} instead.
+     */
+    public WayfMultiTenantService multiTenant() {
+        return new WayfMultiTenantServiceImpl()
+                .baseUrl(resolveEnvironmentUrl())
+                .serializationHandler(configuration.getSerializationHandler())
+                .httpRequestExecutor(resolveHttpRequestExecutor());
     }
 
-    private static void initSerializationHandler() {
-        if (serializationHandler != null) {
-            return;
+    public WayfAsynchronousService asynchronously() {
+        if (virtualThreads) {
+            return new WayfAsynchronousServiceVirtualThreadImpl(synchronously());
         }
 
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.setDateFormat(DATE_FORMAT);
-        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        String baseUrl = resolveBaseUrl();
 
-        serializationHandler = new SerializationHandlerObjectMapperImpl(objectMapper);
-        httpRequestExecutor = new HttpRequestExecutorUnirestImpl(serializationHandler);
+        return new WayfAsynchronousServiceImpl()
+                .baseUrl(baseUrl)
+                .publisherApiToken(publisherToken)
+                .serializationHandler(configuration.getSerializationHandler())
+                .httpRequestExecutor(resolveAsynchronousHttpRequestExecutor());
     }
 
-    private static void initProperties() {
-        properties = new Properties();
+    public WayfBatchService batched(int maxConcurrency) {
+        return new WayfBatchServiceImpl(asynchronously(), maxConcurrency);
+    }
 
-        InputStream envProperties = Thread.currentThread().getContextClassLoader().getResourceAsStream("wayf-environment.properties");
+    /**
+     * Returns a Reactive Streams processor that reads the device history of every localId published to it, keeping at
+     * most {@code maxInFlight} reads outstanding; see {@link WayfDeviceHistoryProcessor}. Requires reactive-streams on
+     * the classpath.
+     */
+    public WayfDeviceHistoryProcessor deviceHistories(int maxInFlight, boolean ordered) {
+        return new WayfDeviceHistoryProcessor(asynchronously(), maxInFlight, ordered);
+    }
+
+    /**
+     * Closes every transport this client created. Each is closed even if closing another fails.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+
+        synchronized (ownedExecutors) {
+            for (Closeable executor : ownedExecutors) {
+                try {
+                    executor.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+
+            ownedExecutors.clear();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
 
-        try (Reader reader = new InputStreamReader(envProperties)){
-            properties.load(reader);
-        } catch (Exception e) {
-            throw new RuntimeException("Could not read WAYF environment properties");
+    private <E extends HttpRequestExecutor<WayfRequest> & Closeable> E own(E executor) {
+        synchronized (ownedExecutors) {
+            ownedExecutors.add(executor);
         }
+
+        return executor;
     }
 
-    private static void initEnvironmentToUrlMap() {
-        if (environmentToUrlMap != null) {
-            return;
+    private HttpRequestExecutor<WayfRequest> resolveHttpRequestExecutor() {
+        if (virtualThreads && clientHttpRequestExecutor == null) {
+            clientHttpRequestExecutor = own(new HttpRequestExecutorHttp2Impl(configuration.getSerializationHandler(), new HttpClientConfiguration(), HttpVersionPolicy.FORCE_HTTP_2));
         }
 
-        if (properties == null) {
-            initProperties();
+        return clientHttpRequestExecutor != null? clientHttpRequestExecutor : configuration.getHttpRequestExecutor();
+    }
+
+    @SuppressWarnings("unchecked")
+    private AsynchronousHttpRequestExecutor<WayfRequest> resolveAsynchronousHttpRequestExecutor() {
+        if (clientHttpRequestExecutor instanceof AsynchronousHttpRequestExecutor) {
+            return (AsynchronousHttpRequestExecutor<WayfRequest>) clientHttpRequestExecutor;
         }
 
-        String sandboxUrl = properties.getProperty(SANDBOX_URL_PROPERTY);
+        return configuration.getAsynchronousHttpRequestExecutor();
+    }
 
-        if (sandboxUrl == null || sandboxUrl.isEmpty()) {
-            throw new RuntimeException("Could not determine the sandbox environment's URL");
+    private String resolveBaseUrl() {
+        if (publisherToken == null || publisherToken.isEmpty()) {
+            throw new IllegalArgumentException("A non-null and non-empty API token is required to use the WAYF service");
         }
 
-        String productionUrl = properties.getProperty(PRODUCTION_URL_PROPERTY);
+        return resolveEnvironmentUrl();
+    }
 
-        if (productionUrl == null || productionUrl.isEmpty()) {
-            throw new RuntimeException("Could not determine the production environment's URL");
+    private String resolveEnvironmentUrl() {
+        if (environment == null) {
+            throw new IllegalArgumentException("An environment must be specified to use the WAYF service");
+        }
+
+        String baseUrl = configuration.getEnvironmentUrl(environment);
+        if (baseUrl == null || baseUrl.isEmpty()) {
+            throw new RuntimeException("Could not find WAYF URL for environment [" + environment + "]");
         }
 
-        environmentToUrlMap = new HashMap<>();
-        environmentToUrlMap.put(WayfEnvironment.SANDBOX, sandboxUrl);
-        environmentToUrlMap.put(WayfEnvironment.PRODUCTION, productionUrl);
+        return baseUrl;
     }
 }
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1;
+
+import com.atypon.wayf.data.WayfEnvironment;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.data.identity.OauthEntity;
+import com.atypon.wayf.data.identity.OauthProvider;
+import com.atypon.wayf.data.identity.OpenAthensEntity;
+import com.atypon.wayf.data.identity.SamlEntity;
+import com.atypon.wayf.service.AsynchronousHttpRequestExecutor;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.impl.HttpRequestExecutorUnirestImpl;
+import com.atypon.wayf.service.impl.SerializationHandlerObjectMapperImpl;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything a {@link WayfClient} shares between the services it creates: the environment URLs, the serializer and the
+ * transport. A configuration is immutable and thread-safe, so it can be built once, for example while a serverless
+ * function initializes, and handed to {@link WayfClient#connect(WayfClientConfiguration)} by every request after.
+ */
+public final class WayfClientConfiguration {
+    private static final Logger LOG = LoggerFactory.getLogger(WayfClientConfiguration.class);
+
+    private static final String ENVIRONMENT_PROPERTIES = "wayf-environment.properties";
+    private static final String SANDBOX_URL_PROPERTY = "sandbox.url";
+    private static final String PRODUCTION_URL_PROPERTY = "production.url";
+
+    private static final Type DEVICE_HISTORY_TYPE = new TypeReference<List<IdentityProviderUsage>>() {}.getType();
+
+    private static volatile WayfClientConfiguration defaults;
+
+    private final Map<WayfEnvironment, String> environmentUrls;
+    private final SerializationHandler serializationHandler;
+    private final HttpRequestExecutor<WayfRequest> httpRequestExecutor;
+    private final AsynchronousHttpRequestExecutor<WayfRequest> asynchronousHttpRequestExecutor;
+    private final long buildNanos;
+
+    private WayfClientConfiguration(Map<WayfEnvironment, String> environmentUrls, SerializationHandler serializationHandler,
+                                    HttpRequestExecutor<WayfRequest> httpRequestExecutor,
+                                    AsynchronousHttpRequestExecutor<WayfRequest> asynchronousHttpRequestExecutor, long buildNanos) {
+        this.environmentUrls = environmentUrls;
+        this.serializationHandler = serializationHandler;
+        this.httpRequestExecutor = httpRequestExecutor;
+        this.asynchronousHttpRequestExecutor = asynchronousHttpRequestExecutor;
+        this.buildNanos = buildNanos;
+    }
+
+    /**
+     * The configuration {@link WayfClient#connect()} uses: URLs from {@code wayf-environment.properties}, the default
+     * JSON serializer and the JVM-wide Unirest transport. It is built on first use and then shared.
+     */
+    public static WayfClientConfiguration defaults() {
+        WayfClientConfiguration configuration = defaults;
+
+        if (configuration == null) {
+            synchronized (WayfClientConfiguration.class) {
+                configuration = defaults;
+
+                if (configuration == null) {
+                    configuration = builder().build();
+                    defaults = configuration;
+                }
+            }
+        }
+
+        return configuration;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The environment's base URL, or null if none is configured.
+     */
+    public String getEnvironmentUrl(WayfEnvironment environment) {
+        return environmentUrls.get(environment);
+    }
+
+    public SerializationHandler getSerializationHandler() {
+        return serializationHandler;
+    }
+
+    public HttpRequestExecutor<WayfRequest> getHttpRequestExecutor() {
+        return httpRequestExecutor;
+    }
+
+    public AsynchronousHttpRequestExecutor<WayfRequest> getAsynchronousHttpRequestExecutor() {
+        return asynchronousHttpRequestExecutor;
+    }
+
+    /**
+     * How long building this configuration took, including any serialization pre-warming and connection warm-up. This
+     * is only the client's share of a cold start: the first request's own latency is reported by the transport's
+     * metrics, and class loading before {@link #builder()} is not measured at all.
+     */
+    public long getBuildNanos() {
+        return buildNanos;
+    }
+
+    public static final class Builder {
+        private final Map<WayfEnvironment, String> environmentUrls = new EnumMap<>(WayfEnvironment.class);
+        private final Set<WayfEnvironment> warmUpEnvironments = EnumSet.noneOf(WayfEnvironment.class);
+        private SerializationHandler serializationHandler;
+        private HttpRequestExecutor<WayfRequest> httpRequestExecutor;
+        private boolean prewarmSerialization;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets an environment's base URL. Once any URL is set, {@code wayf-environment.properties} is not read.
+         */
+        public Builder environmentUrl(WayfEnvironment environment, String url) {
+            if (environment == null || url == null || url.isEmpty()) {
+                throw new IllegalArgumentException("A non-null environment and a non-null and non-empty URL are required");
+            }
+
+            environmentUrls.put(environment, url);
+            return this;
+        }
+
+        public Builder serializationHandler(SerializationHandler serializationHandler) {
+            this.serializationHandler = serializationHandler;
+            return this;
+        }
+
+        /**
+         * The transport shared by every service. If it is also an {@link AsynchronousHttpRequestExecutor} it serves
+         * asynchronous services too; otherwise they use Unirest.
+         */
+        public Builder httpRequestExecutor(HttpRequestExecutor<WayfRequest> httpRequestExecutor) {
+            this.httpRequestExecutor = httpRequestExecutor;
+            return this;
+        }
+
+        /**
+         * Round-trips a sample device history through the serializer while building, so that Jackson's introspection
+         * of every {@link IdentityProvider} subtype happens now rather than during the first request.
+         */
+        public Builder prewarmSerialization() {
+            this.prewarmSerialization = true;
+            return this;
+        }
+
+        /**
+         * Opens a connection to each environment's URL while building, so that the first request does not pay for
+         * DNS, TCP and TLS setup.
+         */
+        public Builder warmUpConnections(WayfEnvironment... environments) {
+            Collections.addAll(warmUpEnvironments, environments);
+            return this;
+        }
+
+        public WayfClientConfiguration build() {
+            long start = System.nanoTime();
+
+            Map<WayfEnvironment, String> urls = new EnumMap<>(environmentUrls);
+            if (urls.isEmpty()) {
+                loadEnvironmentUrls(urls);
+            }
+
+            long environmentLoaded = System.nanoTime();
+
+            SerializationHandler handler = serializationHandler != null? serializationHandler : defaultSerializationHandler();
+
+            HttpRequestExecutorUnirestImpl unirestExecutor = null;
+            if (httpRequestExecutor == null || !(httpRequestExecutor instanceof AsynchronousHttpRequestExecutor)) {
+                unirestExecutor = new HttpRequestExecutorUnirestImpl(handler);
+            }
+
+            HttpRequestExecutor<WayfRequest> executor = httpRequestExecutor != null? httpRequestExecutor : unirestExecutor;
+            AsynchronousHttpRequestExecutor<WayfRequest> asynchronousExecutor = unirestExecutor != null? unirestExecutor : asynchronous(executor);
+
+            if (prewarmSerialization) {
+                prewarm(handler);
+
+                SerializationHandler requestBodyHandler = handler.forRequestBody();
+                if (requestBodyHandler != handler) {
+                    prewarm(requestBodyHandler);
+                }
+            }
+
+            long serializationReady = System.nanoTime();
+
+            for (WayfEnvironment environment : warmUpEnvironments) {
+                String url = urls.get(environment);
+                if (url == null) {
+                    throw new IllegalArgumentException("Could not find WAYF URL for environment [" + environment + "] to warm up");
+                }
+
+                executor.warmUp(url);
+            }
+
+            long end = System.nanoTime();
+
+            LOG.info("WAYF client configuration built in [{}] ms: environment [{}] ms, serialization [{}] ms, connection warm-up [{}] ms",
+                    millis(end - start), millis(environmentLoaded - start), millis(serializationReady - environmentLoaded), millis(end - serializationReady));
+
+            return new WayfClientConfiguration(Collections.unmodifiableMap(urls), handler, executor, asynchronousExecutor, end - start);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static AsynchronousHttpRequestExecutor<WayfRequest> asynchronous(HttpRequestExecutor<WayfRequest> executor) {
+            return (AsynchronousHttpRequestExecutor<WayfRequest>) executor;
+        }
+
+        private static SerializationHandler defaultSerializationHandler() {
+            ObjectMapper objectMapper = new ObjectMapper();
+            objectMapper.setDateFormat(new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ"));
+            objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+            objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+            return new SerializationHandlerObjectMapperImpl(objectMapper);
+        }
+
+        private static void loadEnvironmentUrls(Map<WayfEnvironment, String> urls) {
+            Properties properties = new Properties();
+
+            // The context class loader is not always set, e.g. on threads created by some serverless runtimes
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            if (classLoader == null) {
+                classLoader = WayfClientConfiguration.class.getClassLoader();
+            }
+
+            InputStream envProperties = classLoader.getResourceAsStream(ENVIRONMENT_PROPERTIES);
+            if (envProperties == null) {
+                throw new RuntimeException("Could not read WAYF environment properties");
+            }
+
+            try (Reader reader = new InputStreamReader(envProperties)) {
+                properties.load(reader);
+            } catch (Exception e) {
+                throw new RuntimeException("Could not read WAYF environment properties", e);
+            }
+
+            String sandboxUrl = properties.getProperty(SANDBOX_URL_PROPERTY);
+
+            if (sandboxUrl == null || sandboxUrl.isEmpty()) {
+                throw new RuntimeException("Could not determine the sandbox environment's URL");
+            }
+
+            String productionUrl = properties.getProperty(PRODUCTION_URL_PROPERTY);
+
+            if (productionUrl == null || productionUrl.isEmpty()) {
+                throw new RuntimeException("Could not determine the production environment's URL");
+            }
+
+            urls.put(WayfEnvironment.SANDBOX, sandboxUrl);
+            urls.put(WayfEnvironment.PRODUCTION, productionUrl);
+        }
+
+        // Exercises every path a response takes: whole-history and streamed reads, and each subtype read through the
+        // polymorphic base type
+        private static void prewarm(SerializationHandler handler) {
+            try {
+                List<IdentityProviderUsage> history = sampleHistory();
+                byte[] bytes = handler.serializeToBytes(history);
+
+                handler.deserialize(bytes, DEVICE_HISTORY_TYPE);
+                handler.deserializeEach(new ByteArrayInputStream(bytes), IdentityProviderUsage.class, usage -> {});
+
+                for (IdentityProviderUsage usage : history) {
+                    handler.deserialize(handler.serializeToBytes(usage.getIdp()), IdentityProvider.class);
+                }
+            } catch (WayfException | RuntimeException e) {
+                LOG.warn("Could not pre-warm the serialization handler", e);
+            }
+        }
+
+        private static List<IdentityProviderUsage> sampleHistory() {
+            SamlEntity samlEntity = new SamlEntity();
+            samlEntity.setEntityId("https://idp.example.edu/idp/shibboleth");
+
+            OpenAthensEntity openAthensEntity = new OpenAthensEntity();
+            openAthensEntity.setEntityId("https://idp.openathens.net/openathens");
+
+            OauthEntity oauthEntity = new OauthEntity();
+            oauthEntity.setProvider(OauthProvider.GOOGLE);
+
+            List<IdentityProviderUsage> history = new ArrayList<>();
+
+            for (IdentityProvider identityProvider : new IdentityProvider[] {samlEntity, openAthensEntity, oauthEntity}) {
+                identityProvider.setId((long) history.size());
+                identityProvider.setCreatedDate(new Date(0));
+
+                IdentityProviderUsage usage = new IdentityProviderUsage();
+                usage.setIdp(identityProvider);
+                usage.setFrequency(1.0);
+                usage.setLastActiveDate(new Date(0));
+                history.add(usage);
+            }
+
+            return history;
+        }
+
+        private static long millis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1;
+
+import com.atypon.wayf.service.metrics.TenantMetrics;
+
+/**
+ * Serves many publishers from one client. Every publisher's calls share the same transport, serializer and URL
+ * templates; only the API token sent with each call differs.
+ */
+public interface WayfMultiTenantService extends WayfService {
+    /**
+     * Returns the service acting as the publisher with the given API token. The same instance is returned for the same
+     * token until it is removed.
+     */
+    WayfSynchronousService forPublisher(String publisherApiToken);
+
+    /**
+     * Returns the publisher's call counters, or null if no service has been requested for the token.
+     */
+    TenantMetrics getMetrics(String publisherApiToken);
+
+    void removePublisher(String publisherApiToken);
+
+    int getPublisherCount();
+}
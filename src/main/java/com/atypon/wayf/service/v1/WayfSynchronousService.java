@@ -21,10 +21,27 @@ import com.atypon.wayf.data.identity.IdentityProvider;
 import com.atypon.wayf.data.identity.IdentityProviderUsage;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface WayfSynchronousService extends  WayfService {
     void registerLocalId(String localId) throws WayfException;
     List<IdentityProviderUsage> getDeviceHistory(String localId) throws WayfException;
     IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) throws WayfException;
     void removeIdentityProviderOption(String localId, Long identityProviderId) throws WayfException;
+
+    /**
+     * Passes each IdentityProvider usage in the device's history to the consumer. By default the history is read in
+     * full first; implementations that can hand usages over as they are read should override this.
+     */
+    default void getDeviceHistory(String localId, Consumer<? super IdentityProviderUsage> consumer) throws WayfException {
+        if (consumer == null) {
+            throw new IllegalArgumentException("A non-null consumer is required to read a device's history");
+        }
+
+        List<IdentityProviderUsage> history = getDeviceHistory(localId);
+
+        if (history != null) {
+            history.forEach(consumer);
+        }
+    }
 }
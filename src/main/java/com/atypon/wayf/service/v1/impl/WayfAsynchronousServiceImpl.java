@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.AsynchronousHttpRequestExecutor;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.v1.WayfAsynchronousService;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class WayfAsynchronousServiceImpl implements WayfAsynchronousService {
+    private final WayfRequestFactory requestFactory;
+    private volatile String publisherApiToken;
+    private volatile AsynchronousHttpRequestExecutor<WayfRequest> httpRequestExecutor;
+
+    public WayfAsynchronousServiceImpl() {
+        this.requestFactory = new WayfRequestFactory();
+    }
+
+    public WayfAsynchronousServiceImpl baseUrl(String baseUrl) {
+        requestFactory.setBaseUrl(baseUrl);
+        return this;
+    }
+
+    public WayfAsynchronousServiceImpl serializationHandler(SerializationHandler serializationHandler) {
+        requestFactory.setSerializationHandler(serializationHandler);
+        return this;
+    }
+
+    public WayfAsynchronousServiceImpl publisherApiToken(String publisherApiToken) {
+        this.publisherApiToken = publisherApiToken;
+        requestFactory.setPublisherApiToken(publisherApiToken);
+        return this;
+    }
+
+    public WayfAsynchronousServiceImpl httpRequestExecutor(AsynchronousHttpRequestExecutor<WayfRequest> httpRequestExecutor) {
+        this.httpRequestExecutor = httpRequestExecutor;
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<Void> registerLocalId(String localId) {
+        try {
+            return httpRequestExecutor.executeAsync(WayfOperation.REGISTER_LOCAL_ID, requestFactory.registerLocalId(localId), Void.class);
+        } catch (WayfException e) {
+            return failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<IdentityProviderUsage>> getDeviceHistory(String localId) {
+        try {
+            return httpRequestExecutor.executeAsync(WayfOperation.GET_DEVICE_HISTORY, requestFactory.getDeviceHistory(localId), WayfRequestFactory.DEVICE_HISTORY_TYPE);
+        } catch (WayfException e) {
+            return failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<IdentityProvider> addIdentityProviderUsage(String localId, IdentityProvider identityProvider) {
+        try {
+            return httpRequestExecutor.executeAsync(WayfOperation.ADD_IDENTITY_PROVIDER_USAGE, requestFactory.addIdentityProviderUsage(localId, identityProvider), IdentityProvider.class);
+        } catch (WayfException e) {
+            return failedFuture(e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> removeIdentityProviderOption(String localId, Long identityProviderId) {
+        try {
+            return httpRequestExecutor.executeAsync(WayfOperation.REMOVE_IDENTITY_PROVIDER_OPTION, requestFactory.removeIdentityProviderOption(localId, identityProviderId), Void.class);
+        } catch (WayfException e) {
+            return failedFuture(e);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+}
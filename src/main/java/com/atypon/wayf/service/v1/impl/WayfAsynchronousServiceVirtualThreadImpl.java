@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.impl.VirtualThreads;
+import com.atypon.wayf.service.v1.WayfAsynchronousService;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs every call of a blocking {@link WayfSynchronousService} on its own thread, by default a new virtual thread on
+ * Java 21 and later. Blocked calls then cost a parked virtual thread rather than a platform thread, so tens of
+ * thousands can be in flight at once without an asynchronous transport.
+ */
+public class WayfAsynchronousServiceVirtualThreadImpl implements WayfAsynchronousService {
+    private final WayfSynchronousService delegate;
+    private final Executor executor;
+
+    public WayfAsynchronousServiceVirtualThreadImpl(WayfSynchronousService delegate) {
+        this(delegate, SharedExecutorHolder.EXECUTOR);
+    }
+
+    public WayfAsynchronousServiceVirtualThreadImpl(WayfSynchronousService delegate, Executor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Void> registerLocalId(String localId) {
+        return submit(() -> {
+            delegate.registerLocalId(localId);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<IdentityProviderUsage>> getDeviceHistory(String localId) {
+        return submit(() -> delegate.getDeviceHistory(localId));
+    }
+
+    @Override
+    public CompletableFuture<IdentityProvider> addIdentityProviderUsage(String localId, IdentityProvider identityProvider) {
+        return submit(() -> delegate.addIdentityProviderUsage(localId, identityProvider));
+    }
+
+    @Override
+    public CompletableFuture<Void> removeIdentityProviderOption(String localId, Long identityProviderId) {
+        return submit(() -> {
+            delegate.removeIdentityProviderOption(localId, identityProviderId);
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(WayfCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(call.call());
+                } catch (Throwable t) {
+                    // An Error still completes the future, so callers waiting on it are not left hanging
+                    future.completeExceptionally(t);
+
+                    if (t instanceof Error) {
+                        throw (Error) t;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new WayfException("Could not schedule the WAYF call", e));
+        }
+
+        return future;
+    }
+
+    private interface WayfCall<T> {
+        T call() throws WayfException;
+    }
+
+    private static class SharedExecutorHolder {
+        private static final ExecutorService EXECUTOR = VirtualThreads.newThreadPerTaskExecutor("wayf-virtual-");
+    }
+}
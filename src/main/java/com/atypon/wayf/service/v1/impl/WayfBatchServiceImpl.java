@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.BatchItemResult;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.identity.DeviceIdentityProviderUsage;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.service.v1.WayfAsynchronousService;
+import com.atypon.wayf.service.v1.WayfBatchService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Pipelines batch items through a {@link WayfAsynchronousService}, keeping at most {@code maxConcurrency} requests in
+ * flight at any time.
+ */
+public class WayfBatchServiceImpl implements WayfBatchService {
+    private final WayfAsynchronousService asynchronousService;
+    private final int maxConcurrency;
+
+    public WayfBatchServiceImpl(WayfAsynchronousService asynchronousService, int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("The maximum batch concurrency must be positive");
+        }
+
+        this.asynchronousService = asynchronousService;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    @Override
+    public List<BatchItemResult<String, Void>> registerLocalIds(Collection<String> localIds) {
+        return executeBatch(localIds, asynchronousService::registerLocalId);
+    }
+
+    @Override
+    public List<BatchItemResult<DeviceIdentityProviderUsage, IdentityProvider>> addIdentityProviderUsages(Collection<DeviceIdentityProviderUsage> usages) {
+        return executeBatch(usages, usage -> asynchronousService.addIdentityProviderUsage(usage.getLocalId(), usage.getIdentityProvider()));
+    }
+
+    private <I, R> List<BatchItemResult<I, R>> executeBatch(Collection<I> items, Function<I, CompletableFuture<R>> operation) {
+        if (items == null) {
+            throw new IllegalArgumentException("A non-null collection of items is required to execute a batch");
+        }
+
+        Semaphore inFlight = new Semaphore(maxConcurrency);
+        List<CompletableFuture<BatchItemResult<I, R>>> pending = new ArrayList<>(items.size());
+
+        boolean interrupted = false;
+        for (I item : items) {
+            if (!interrupted) {
+                try {
+                    inFlight.acquire();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            // Once interrupted, stop dispatching and report every remaining item as failed
+            if (interrupted) {
+                pending.add(CompletableFuture.completedFuture(
+                        BatchItemResult.failure(item, new WayfException("Batch was interrupted before the item was sent"))));
+                continue;
+            }
+
+            CompletableFuture<R> call;
+            try {
+                call = operation.apply(item);
+            } catch (RuntimeException e) {
+                call = new CompletableFuture<>();
+                call.completeExceptionally(e);
+            }
+
+            pending.add(call.handle((result, failure) -> {
+                inFlight.release();
+
+                return failure == null? BatchItemResult.success(item, result) : BatchItemResult.failure(item, unwrap(failure));
+            }));
+        }
+
+        List<BatchItemResult<I, R>> results = new ArrayList<>(pending.size());
+        for (CompletableFuture<BatchItemResult<I, R>> itemResult : pending) {
+            results.add(itemResult.join());
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        return results;
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null? failure.getCause() : failure;
+    }
+}
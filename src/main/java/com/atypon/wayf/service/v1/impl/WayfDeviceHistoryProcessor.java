@@ -0,0 +1,349 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.BatchItemResult;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.v1.WayfAsynchronousService;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Reactive Streams {@link Processor} that reads the device history of every localId it is sent through a
+ * {@link WayfAsynchronousService}, and publishes one result per localId; a failed read is published as a failed result
+ * rather than failing the stream. Requires {@code reactive-streams} on the classpath.
+ * <p>
+ * LocalIds are only requested from upstream to meet the subscriber's demand, and never more than {@code maxInFlight}
+ * are being read or waiting to be delivered at once, so memory stays bounded however many localIds are published. In
+ * ordered mode results are published in the order their localIds arrived, and a slow read holds back the results
+ * behind it; unordered, each result is published as soon as it completes.
+ * <p>
+ * A processor serves a single subscriber, once.
+ */
+public class WayfDeviceHistoryProcessor implements Processor<String, BatchItemResult<String, List<IdentityProviderUsage>>> {
+    private final WayfAsynchronousService asynchronousService;
+    private final int maxInFlight;
+    private final boolean ordered;
+
+    // Only the thread that raises wip from zero delivers signals, so the subscriber is never called concurrently
+    private final AtomicInteger wip = new AtomicInteger();
+    private final Object lock = new Object();
+
+    // Guarded by lock
+    private Subscription upstream;
+    private Subscriber<? super BatchItemResult<String, List<IdentityProviderUsage>>> downstream;
+    private boolean downstreamAssigned;
+    private long requested;
+    private long upstreamPending;
+    private int inFlight;
+    private long nextSequence;
+    private long nextToPublish;
+    private final Map<Long, BatchItemResult<String, List<IdentityProviderUsage>>> completedBySequence = new HashMap<>();
+    private final Queue<BatchItemResult<String, List<IdentityProviderUsage>>> completed = new ArrayDeque<>();
+    private boolean upstreamDone;
+    private Throwable upstreamError;
+    private Throwable demandError;
+    private boolean cancelled;
+    private boolean terminated;
+
+    /**
+     * @param ordered whether to publish results in the order their localIds arrived rather than as they complete
+     */
+    public WayfDeviceHistoryProcessor(WayfAsynchronousService asynchronousService, int maxInFlight, boolean ordered) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("The maximum number of in-flight reads must be positive");
+        }
+
+        this.asynchronousService = asynchronousService;
+        this.maxInFlight = maxInFlight;
+        this.ordered = ordered;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super BatchItemResult<String, List<IdentityProviderUsage>>> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+
+        boolean rejected;
+        synchronized (lock) {
+            rejected = downstreamAssigned;
+            downstreamAssigned = true;
+        }
+
+        if (rejected) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("A device history processor supports a single subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(new DownstreamSubscription());
+
+        // Published only once onSubscribe has returned, so that nothing is delivered before it
+        synchronized (lock) {
+            if (!cancelled) {
+                downstream = subscriber;
+            }
+        }
+
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        Objects.requireNonNull(subscription, "subscription");
+
+        boolean accepted;
+        synchronized (lock) {
+            accepted = upstream == null && !cancelled && !terminated;
+            if (accepted) {
+                upstream = subscription;
+            }
+        }
+
+        if (!accepted) {
+            subscription.cancel();
+            return;
+        }
+
+        drain();
+    }
+
+    @Override
+    public void onNext(String localId) {
+        Objects.requireNonNull(localId, "localId");
+
+        long sequence;
+        synchronized (lock) {
+            if (cancelled || terminated) {
+                return;
+            }
+
+            upstreamPending--;
+            inFlight++;
+            sequence = nextSequence++;
+        }
+
+        CompletableFuture<List<IdentityProviderUsage>> read;
+        try {
+            read = asynchronousService.getDeviceHistory(localId);
+        } catch (RuntimeException e) {
+            read = new CompletableFuture<>();
+            read.completeExceptionally(e);
+        }
+
+        read.whenComplete((history, failure) -> {
+            BatchItemResult<String, List<IdentityProviderUsage>> result = failure == null
+                    ? BatchItemResult.success(localId, history)
+                    : BatchItemResult.failure(localId, unwrap(failure));
+
+            synchronized (lock) {
+                inFlight--;
+
+                if (!cancelled) {
+                    if (ordered) {
+                        completedBySequence.put(sequence, result);
+                    } else {
+                        completed.add(result);
+                    }
+                }
+            }
+
+            drain();
+        });
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        Objects.requireNonNull(throwable, "throwable");
+
+        synchronized (lock) {
+            upstreamDone = true;
+            upstreamError = throwable;
+        }
+
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (lock) {
+            upstreamDone = true;
+        }
+
+        drain();
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            while (deliverNext()) {
+                // Keep delivering while there is both a result and demand for it
+            }
+
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    // Delivers at most one signal, or requests more localIds, and returns whether to go round again
+    private boolean deliverNext() {
+        Subscriber<? super BatchItemResult<String, List<IdentityProviderUsage>>> subscriber;
+        BatchItemResult<String, List<IdentityProviderUsage>> next = null;
+        Throwable error = null;
+        boolean complete = false;
+        Subscription toCancel = null;
+        Subscription toRequestFrom = null;
+        long toRequest = 0;
+
+        synchronized (lock) {
+            subscriber = downstream;
+            if (subscriber == null || cancelled || terminated) {
+                return false;
+            }
+
+            if (demandError != null) {
+                error = demandError;
+                toCancel = upstream;
+                terminate();
+            } else if (requested > 0 && (next = pollCompleted()) != null) {
+                if (requested != Long.MAX_VALUE) {
+                    requested--;
+                }
+            } else if (upstreamDone && inFlight == 0 && buffered() == 0) {
+                error = upstreamError;
+                complete = error == null;
+                terminate();
+            } else if (!upstreamDone && upstream != null) {
+                // Outstanding localIds will each produce a result, so they count against both the demand and the bound
+                long outstanding = inFlight + buffered() + upstreamPending;
+                toRequest = Math.min(maxInFlight - outstanding, requested - outstanding);
+
+                if (toRequest > 0) {
+                    upstreamPending += toRequest;
+                    toRequestFrom = upstream;
+                }
+            }
+        }
+
+        if (next != null) {
+            subscriber.onNext(next);
+            return true;
+        }
+
+        if (toCancel != null) {
+            toCancel.cancel();
+        }
+
+        if (complete) {
+            subscriber.onComplete();
+        } else if (error != null) {
+            subscriber.onError(error);
+        } else if (toRequest > 0) {
+            toRequestFrom.request(toRequest);
+        }
+
+        return false;
+    }
+
+    // Called with lock held
+    private BatchItemResult<String, List<IdentityProviderUsage>> pollCompleted() {
+        if (!ordered) {
+            return completed.poll();
+        }
+
+        BatchItemResult<String, List<IdentityProviderUsage>> next = completedBySequence.remove(nextToPublish);
+        if (next != null) {
+            nextToPublish++;
+        }
+
+        return next;
+    }
+
+    // Called with lock held
+    private int buffered() {
+        return ordered? completedBySequence.size() : completed.size();
+    }
+
+    // Called with lock held
+    private void terminate() {
+        terminated = true;
+        downstream = null;
+        upstream = null;
+        completedBySequence.clear();
+        completed.clear();
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null? failure.getCause() : failure;
+    }
+
+    private class DownstreamSubscription implements Subscription {
+        @Override
+        public void request(long n) {
+            synchronized (lock) {
+                if (n <= 0) {
+                    if (demandError == null) {
+                        demandError = new IllegalArgumentException("A subscriber must request a positive number of results, but requested " + n);
+                    }
+                } else {
+                    requested = requested + n < 0? Long.MAX_VALUE : requested + n;
+                }
+            }
+
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            Subscription toCancel;
+            synchronized (lock) {
+                if (cancelled || terminated) {
+                    return;
+                }
+
+                cancelled = true;
+                toCancel = upstream;
+                terminate();
+            }
+
+            if (toCancel != null) {
+                toCancel.cancel();
+            }
+        }
+    }
+}
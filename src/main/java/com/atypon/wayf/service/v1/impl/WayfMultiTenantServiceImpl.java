@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.ConcurrencyLimitExceededException;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.metrics.TenantMetrics;
+import com.atypon.wayf.service.v1.WayfMultiTenantService;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * {@link WayfMultiTenantService} over a single {@link HttpRequestExecutor} and request factory. A publisher's service
+ * holds nothing but its precomputed Authorization header, a semaphore bounding its concurrent calls and its counters,
+ * so thousands of publishers cost no more connections or serializers than one.
+ */
+public class WayfMultiTenantServiceImpl implements WayfMultiTenantService {
+    private static final int DEFAULT_MAX_CONCURRENT_CALLS_PER_PUBLISHER = 64;
+
+    private final WayfRequestFactory requestFactory;
+    private final ConcurrentMap<String, PublisherService> publishers = new ConcurrentHashMap<>();
+
+    private volatile HttpRequestExecutor<WayfRequest> httpRequestExecutor;
+    private volatile int maxConcurrentCallsPerPublisher = DEFAULT_MAX_CONCURRENT_CALLS_PER_PUBLISHER;
+    private volatile long maxWaitNanos;
+
+    public WayfMultiTenantServiceImpl() {
+        this.requestFactory = new WayfRequestFactory();
+    }
+
+    public WayfMultiTenantServiceImpl baseUrl(String baseUrl) {
+        requestFactory.setBaseUrl(baseUrl);
+        return this;
+    }
+
+    public WayfMultiTenantServiceImpl serializationHandler(SerializationHandler serializationHandler) {
+        requestFactory.setSerializationHandler(serializationHandler);
+        return this;
+    }
+
+    public WayfMultiTenantServiceImpl httpRequestExecutor(HttpRequestExecutor<WayfRequest> httpRequestExecutor) {
+        this.httpRequestExecutor = httpRequestExecutor;
+        return this;
+    }
+
+    /**
+     * Applies to publishers whose service is created after this call.
+     */
+    public WayfMultiTenantServiceImpl maxConcurrentCallsPerPublisher(int maxConcurrentCallsPerPublisher) {
+        if (maxConcurrentCallsPerPublisher <= 0) {
+            throw new IllegalArgumentException("The maximum number of concurrent calls per publisher must be positive");
+        }
+
+        this.maxConcurrentCallsPerPublisher = maxConcurrentCallsPerPublisher;
+        return this;
+    }
+
+    /**
+     * How long a call waits for one of its publisher's permits before failing with a
+     * {@link ConcurrencyLimitExceededException}. Calls fail immediately by default.
+     */
+    public WayfMultiTenantServiceImpl maxWait(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("The maximum wait for a call permit must not be negative");
+        }
+
+        this.maxWaitNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    @Override
+    public WayfSynchronousService forPublisher(String publisherApiToken) {
+        if (publisherApiToken == null || publisherApiToken.isEmpty()) {
+            throw new IllegalArgumentException("A non-null and non-empty API token is required to use the WAYF service");
+        }
+
+        return publishers.computeIfAbsent(publisherApiToken, PublisherService::new);
+    }
+
+    @Override
+    public TenantMetrics getMetrics(String publisherApiToken) {
+        PublisherService publisher = publisherApiToken != null? publishers.get(publisherApiToken) : null;
+        return publisher != null? publisher.metrics : null;
+    }
+
+    @Override
+    public void removePublisher(String publisherApiToken) {
+        if (publisherApiToken != null) {
+            publishers.remove(publisherApiToken);
+        }
+    }
+
+    @Override
+    public int getPublisherCount() {
+        return publishers.size();
+    }
+
+    private class PublisherService implements WayfSynchronousService {
+        private final String authorizationHeaderValue;
+        private final int maxConcurrentCalls;
+        private final Semaphore permits;
+        private final TenantMetrics metrics = new TenantMetrics();
+
+        private PublisherService(String publisherApiToken) {
+            this.authorizationHeaderValue = WayfRequestFactory.buildPublisherTokenAuthorizationValue(publisherApiToken);
+            this.maxConcurrentCalls = maxConcurrentCallsPerPublisher;
+            this.permits = new Semaphore(maxConcurrentCalls);
+        }
+
+        @Override
+        public void registerLocalId(String localId) throws WayfException {
+            WayfRequest request = requestFactory.registerLocalId(localId, authorizationHeaderValue);
+
+            call(() -> httpRequestExecutor.execute(WayfOperation.REGISTER_LOCAL_ID, request, Void.class));
+        }
+
+        @Override
+        public List<IdentityProviderUsage> getDeviceHistory(String localId) throws WayfException {
+            WayfRequest request = requestFactory.getDeviceHistory(localId, authorizationHeaderValue);
+
+            return call(() -> httpRequestExecutor.execute(WayfOperation.GET_DEVICE_HISTORY, request, WayfRequestFactory.DEVICE_HISTORY_TYPE));
+        }
+
+        @Override
+        public void getDeviceHistory(String localId, Consumer<? super IdentityProviderUsage> consumer) throws WayfException {
+            if (consumer == null) {
+                throw new IllegalArgumentException("A non-null consumer is required to read a device's history");
+            }
+
+            WayfRequest request = requestFactory.getDeviceHistory(localId, authorizationHeaderValue);
+
+            call(() -> {
+                httpRequestExecutor.executeForEach(WayfOperation.GET_DEVICE_HISTORY, request, IdentityProviderUsage.class, consumer);
+                return null;
+            });
+        }
+
+        @Override
+        public IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) throws WayfException {
+            WayfRequest request = requestFactory.addIdentityProviderUsage(localId, identityProvider, authorizationHeaderValue);
+
+            return call(() -> httpRequestExecutor.execute(WayfOperation.ADD_IDENTITY_PROVIDER_USAGE, request, IdentityProvider.class));
+        }
+
+        @Override
+        public void removeIdentityProviderOption(String localId, Long identityProviderId) throws WayfException {
+            WayfRequest request = requestFactory.removeIdentityProviderOption(localId, identityProviderId, authorizationHeaderValue);
+
+            call(() -> httpRequestExecutor.execute(WayfOperation.REMOVE_IDENTITY_PROVIDER_OPTION, request, Void.class));
+        }
+
+        private <T> T call(WayfCall<T> call) throws WayfException {
+            acquirePermit();
+
+            metrics.recordCallStarted();
+            long start = System.nanoTime();
+            boolean success = false;
+
+            try {
+                T result = call.call();
+                success = true;
+                return result;
+            } finally {
+                permits.release();
+                metrics.recordCallCompleted(System.nanoTime() - start, success);
+            }
+        }
+
+        private void acquirePermit() throws WayfException {
+            boolean acquired;
+
+            try {
+                long waitNanos = maxWaitNanos;
+                acquired = waitNanos > 0? permits.tryAcquire(waitNanos, TimeUnit.NANOSECONDS) : permits.tryAcquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new WayfException("Interrupted while waiting for a WAYF call permit", e);
+            }
+
+            if (!acquired) {
+                metrics.recordRejected();
+                throw new ConcurrencyLimitExceededException("The publisher already has " + maxConcurrentCalls + " WAYF calls in flight");
+            }
+        }
+    }
+
+    private interface WayfCall<T> {
+        T call() throws WayfException;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.v1.WayfService;
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Validates the arguments of, and builds the HTTP requests for, each WAYF operation. Shared by the synchronous and
+ * asynchronous service implementations.
+ * <p>
+ * The full URL template of every endpoint is split into literal segments whenever the base URL changes, so building a
+ * request is a single pass into one StringBuilder instead of concatenation, regex route-parameter substitution and two
+ * encoding passes. Configuration is held in volatile fields and the templates are immutable, so one factory can be
+ * shared by any number of threads.
+ */
+class WayfRequestFactory {
+    private static final String CONTENT_TYPE_HEADER = "Content-Type";
+    private static final String ACCEPT_HEADER = "Accept";
+
+    static final Type DEVICE_HISTORY_TYPE = new TypeReference<List<IdentityProviderUsage>>() {}.getType();
+
+    private static final String AUTHORIZATION_HEADER_API_TOKEN_PREFIX = "Token ";
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private volatile UrlTemplates urlTemplates = new UrlTemplates(null);
+    private volatile SerializationHandler serializationHandler;
+    private volatile String authorizationHeaderValue;
+
+    WayfRequestFactory() {
+    }
+
+    void setBaseUrl(String baseUrl) {
+        this.urlTemplates = new UrlTemplates(baseUrl);
+    }
+
+    void setSerializationHandler(SerializationHandler serializationHandler) {
+        this.serializationHandler = serializationHandler;
+    }
+
+    void setPublisherApiToken(String publisherApiToken) {
+        this.authorizationHeaderValue = buildPublisherTokenAuthorizationValue(publisherApiToken);
+    }
+
+    WayfRequest registerLocalId(String localId) throws WayfException {
+        return registerLocalId(localId, authorizationHeaderValue);
+    }
+
+    WayfRequest getDeviceHistory(String localId) throws WayfException {
+        return getDeviceHistory(localId, authorizationHeaderValue);
+    }
+
+    WayfRequest addIdentityProviderUsage(String localId, IdentityProvider identityProvider) throws WayfException {
+        return addIdentityProviderUsage(localId, identityProvider, authorizationHeaderValue);
+    }
+
+    WayfRequest removeIdentityProviderOption(String localId, Long identityProviderId) throws WayfException {
+        return removeIdentityProviderOption(localId, identityProviderId, authorizationHeaderValue);
+    }
+
+    // The variants below take the Authorization header value per call, so one factory can serve many publishers
+
+    WayfRequest registerLocalId(String localId, String authorizationHeaderValue) throws WayfException {
+        if (localId == null || localId.isEmpty()) {
+            throw new IllegalArgumentException("In order to register a local ID, a non-null and non-empty value is required");
+        }
+
+        return newRequest(WayfRequest.Method.POST, urlTemplates.registerLocalId.expand(localId), authorizationHeaderValue);
+    }
+
+    WayfRequest getDeviceHistory(String localId, String authorizationHeaderValue) throws WayfException {
+        if (localId == null || localId.isEmpty()) {
+            throw new IllegalArgumentException("A non-null and non-empty localId is required to read a device's history");
+        }
+
+        return newRequest(WayfRequest.Method.GET, urlTemplates.deviceHistory.expand(localId), authorizationHeaderValue);
+    }
+
+    WayfRequest addIdentityProviderUsage(String localId, IdentityProvider identityProvider, String authorizationHeaderValue) throws WayfException {
+        if (localId == null || localId.isEmpty()) {
+            throw new IllegalArgumentException("A non-null and non-empty localId is required to add an IdentityProvider usage to a device");
+        }
+
+        if (identityProvider == null) {
+            throw new IllegalArgumentException("A non-null IdentityProvider is required to add an IdentityProvider usage to a device");
+        }
+
+        // The body's Content-Type comes from the same handler that writes it, since a negotiating handler may switch
+        // formats between calls
+        SerializationHandler writer = serializationHandler.forRequestBody();
+
+        long start = System.nanoTime();
+        byte[] body = writer.serializeToBytes(identityProvider);
+        long serializationNanos = System.nanoTime() - start;
+
+        return newRequest(WayfRequest.Method.POST, urlTemplates.addIdentityProviderUsage.expand(localId), authorizationHeaderValue)
+                .header(CONTENT_TYPE_HEADER, writer.getContentType())
+                .body(body)
+                .bodySource(identityProvider)
+                .serializationNanos(serializationNanos);
+    }
+
+    WayfRequest removeIdentityProviderOption(String localId, Long identityProviderId, String authorizationHeaderValue) throws WayfException {
+        if (localId == null || localId.isEmpty()) {
+            throw new IllegalArgumentException("A non-null and non-empty localId is required to remove an IdentityProvider from a device");
+        }
+
+        if (identityProviderId == null) {
+            throw new IllegalArgumentException("A non-null IdentityProvider ID is required to remove an IdentityProvider from a device");
+        }
+
+        return newRequest(WayfRequest.Method.DELETE, urlTemplates.removeIdentityProviderOption.expand(localId, identityProviderId), authorizationHeaderValue);
+    }
+
+    private WayfRequest newRequest(WayfRequest.Method method, String url, String authorizationHeaderValue) {
+        WayfRequest request = new WayfRequest(method, url)
+                .header(WayfService.PUBLISHER_API_TOKEN_HEADER, authorizationHeaderValue);
+
+        SerializationHandler handler = serializationHandler;
+        String accept = handler != null? handler.getAccept() : null;
+
+        return accept != null? request.header(ACCEPT_HEADER, accept) : request;
+    }
+
+    static String buildPublisherTokenAuthorizationValue(String publisherApiToken) {
+        return AUTHORIZATION_HEADER_API_TOKEN_PREFIX + publisherApiToken;
+    }
+
+    /**
+     * Appends the localId exactly as the previous Unirest-based request building put it on the URL: form-encoded with
+     * {@link java.net.URLEncoder} and then escaped again by Unirest's route parameter encoder. Characters URLEncoder
+     * leaves alone pass through, a space becomes {@code %2B}, and every other UTF-8 byte becomes {@code %25XX}.
+     */
+    static void appendEncodedLocalId(StringBuilder url, String localId) {
+        int length = localId.length();
+
+        for (int index = 0; index < length; index++) {
+            char c = localId.charAt(index);
+
+            if (isUrlEncoderSafe(c)) {
+                url.append(c);
+            } else if (c == ' ') {
+                url.append("%2B");
+            } else if (c < 0x80) {
+                appendDoubleEncodedByte(url, c);
+            } else {
+                // URLEncoder encodes each run of non-ASCII characters as one string, which also decides how surrogate
+                // pairs and unpaired surrogates come out
+                int end = index + 1;
+                while (end < length && localId.charAt(end) >= 0x80) {
+                    end++;
+                }
+
+                for (byte b : localId.substring(index, end).getBytes(StandardCharsets.UTF_8)) {
+                    appendDoubleEncodedByte(url, b & 0xFF);
+                }
+
+                index = end - 1;
+            }
+        }
+    }
+
+    private static boolean isUrlEncoderSafe(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '.' || c == '-' || c == '*' || c == '_';
+    }
+
+    private static void appendDoubleEncodedByte(StringBuilder url, int b) {
+        url.append("%25").append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xF]);
+    }
+
+    private static class UrlTemplates {
+        private final UrlTemplate registerLocalId;
+        private final UrlTemplate deviceHistory;
+        private final UrlTemplate addIdentityProviderUsage;
+        private final UrlTemplate removeIdentityProviderOption;
+
+        private UrlTemplates(String baseUrl) {
+            this.registerLocalId = new UrlTemplate(baseUrl + WayfService.REGISTER_LOCAL_ID_URL);
+            this.deviceHistory = new UrlTemplate(baseUrl + WayfService.DEVICE_HISTORY_URL);
+            this.addIdentityProviderUsage = new UrlTemplate(baseUrl + WayfService.ADD_IDENTITY_PROVIDER_USAGE_URL);
+            this.removeIdentityProviderOption = new UrlTemplate(baseUrl + WayfService.REMOVE_IDENTITY_PROVIDER_OPTION);
+        }
+    }
+
+    /**
+     * A URL split around its {@code {localId}} and optional {@code {id}} route parameters.
+     */
+    private static class UrlTemplate {
+        private static final String LOCAL_ID_PLACEHOLDER = "{" + WayfService.LOCAL_ID_URL_PARAM + "}";
+        private static final String IDP_ID_PLACEHOLDER = "{" + WayfService.IDP_ID + "}";
+
+        private final String beforeLocalId;
+        private final String afterLocalId;
+        private final String afterIdpId;
+
+        private UrlTemplate(String url) {
+            int localIdStart = url.indexOf(LOCAL_ID_PLACEHOLDER);
+            int localIdEnd = localIdStart + LOCAL_ID_PLACEHOLDER.length();
+            int idpIdStart = url.indexOf(IDP_ID_PLACEHOLDER, localIdEnd);
+
+            this.beforeLocalId = url.substring(0, localIdStart);
+
+            if (idpIdStart < 0) {
+                this.afterLocalId = url.substring(localIdEnd);
+                this.afterIdpId = null;
+            } else {
+                this.afterLocalId = url.substring(localIdEnd, idpIdStart);
+                this.afterIdpId = url.substring(idpIdStart + IDP_ID_PLACEHOLDER.length());
+            }
+        }
+
+        private String expand(String localId) {
+            StringBuilder url = new StringBuilder(beforeLocalId.length() + localId.length() * 3 + afterLocalId.length());
+
+            url.append(beforeLocalId);
+            appendEncodedLocalId(url, localId);
+            url.append(afterLocalId);
+
+            return url.toString();
+        }
+
+        private String expand(String localId, long identityProviderId) {
+            StringBuilder url = new StringBuilder(beforeLocalId.length() + localId.length() * 3 + afterLocalId.length() + 20 + afterIdpId.length());
+
+            url.append(beforeLocalId);
+            appendEncodedLocalId(url, localId);
+            url.append(afterLocalId).append(identityProviderId).append(afterIdpId);
+
+            return url.toString();
+        }
+    }
+}
@@ -16,161 +16,87 @@
 
 package com.atypon.wayf.service.v1.impl;
 
-import com.atypon.wayf.data.WayfEnvironment;
 import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.WayfRequest;
 import com.atypon.wayf.data.identity.IdentityProvider;
 import com.atypon.wayf.data.identity.IdentityProviderUsage;
 import com.atypon.wayf.service.HttpRequestExecutor;
 import com.atypon.wayf.service.SerializationHandler;
-import com.atypon.wayf.service.v1.WayfService;
 import com.atypon.wayf.service.v1.WayfSynchronousService;
-import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.request.HttpRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.URLEncoder;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 public class WayfServiceImpl implements WayfSynchronousService {
     private static final Logger LOG = LoggerFactory.getLogger(WayfServiceImpl.class);
 
-    private static final String AUTHORIZATION_HEADER_API_TOKEN_PREFIX = "Token ";
-
-    private String baseUrl;
-    private Map<String, String> cachedFullUrls;
-    private SerializationHandler serializationHandler;
-    private String publisherApiToken;
-    private String authorizationHeaderValue;
-    private HttpRequestExecutor<HttpRequest> httpRequestExecutor;
+    private final WayfRequestFactory requestFactory;
+    private volatile String publisherApiToken;
+    private volatile HttpRequestExecutor<WayfRequest> httpRequestExecutor;
 
     public WayfServiceImpl() {
-        this.cachedFullUrls = new HashMap<>();
+        this.requestFactory = new WayfRequestFactory();
     }
 
     public WayfServiceImpl baseUrl(String baseUrl) {
-        this.baseUrl = baseUrl;
+        requestFactory.setBaseUrl(baseUrl);
         return this;
     }
 
+    /**
+     * @deprecated URLs are now precomputed from the base URL, so there is nothing left to cache; the map is ignored.
+     */
+    @Deprecated
     public WayfServiceImpl cachedFullUrls(Map<String, String> cachedFullUrls) {
-        this.cachedFullUrls = cachedFullUrls;
         return this;
     }
 
     public WayfServiceImpl serializationHandler(SerializationHandler serializationHandler) {
-        this.serializationHandler = serializationHandler;
+        requestFactory.setSerializationHandler(serializationHandler);
         return this;
     }
 
     public WayfServiceImpl publisherApiToken(String publisherApiToken) {
         this.publisherApiToken = publisherApiToken;
-        this.authorizationHeaderValue = buildPublisherTokenAuthorizationValue(publisherApiToken);
+        requestFactory.setPublisherApiToken(publisherApiToken);
         return this;
     }
 
-    public WayfServiceImpl httpRequestExecutor(HttpRequestExecutor<HttpRequest> httpRequestExecutor) {
+    public WayfServiceImpl httpRequestExecutor(HttpRequestExecutor<WayfRequest> httpRequestExecutor) {
         this.httpRequestExecutor = httpRequestExecutor;
         return this;
     }
 
     @Override
     public void registerLocalId(String localId) throws WayfException {
-        if (localId == null || localId.isEmpty()) {
-            throw new IllegalArgumentException("In order to register a local ID, a non-null and non-empty value is required");
-        }
-
-        String encodedLocalId = urlEncode(localId);
-
-        httpRequestExecutor.execute(
-                Unirest.post(buildUrl(WayfServiceImpl.REGISTER_LOCAL_ID_URL))
-                        .header(PUBLISHER_API_TOKEN_HEADER, authorizationHeaderValue)
-                        .routeParam(LOCAL_ID_URL_PARAM, encodedLocalId),
-                Void.class
-        );
+        httpRequestExecutor.execute(WayfOperation.REGISTER_LOCAL_ID, requestFactory.registerLocalId(localId), Void.class);
     }
 
     @Override
     public List<IdentityProviderUsage> getDeviceHistory(String localId) throws WayfException {
-        if (localId == null || localId.isEmpty()) {
-            throw new IllegalArgumentException("A non-null and non-empty localId is required to read a device's history");
-        }
-
-        String encodedLocalId = urlEncode(localId);
-
-        return httpRequestExecutor.execute(
-                Unirest.get(buildUrl(WayfServiceImpl.DEVICE_HISTORY_URL))
-                        .header(PUBLISHER_API_TOKEN_HEADER, authorizationHeaderValue)
-                        .routeParam(LOCAL_ID_URL_PARAM, encodedLocalId),
-                List.class
-        );
+        return httpRequestExecutor.execute(WayfOperation.GET_DEVICE_HISTORY, requestFactory.getDeviceHistory(localId), WayfRequestFactory.DEVICE_HISTORY_TYPE);
     }
 
     @Override
-    public IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) throws WayfException {
-        if (localId == null || localId.isEmpty()) {
-            throw new IllegalArgumentException("A non-null and non-empty localId is required to add an IdentityProvider usage to a device");
-        }
-
-        if (identityProvider == null) {
-            throw new IllegalArgumentException("A non-null IdentityProvider is required to add an IdentityProvider usage to a device");
+    public void getDeviceHistory(String localId, Consumer<? super IdentityProviderUsage> consumer) throws WayfException {
+        if (consumer == null) {
+            throw new IllegalArgumentException("A non-null consumer is required to read a device's history");
         }
 
-        String encodedLocalId = urlEncode(localId);
-
-        return httpRequestExecutor.execute(
-                Unirest.post(buildUrl(WayfService.ADD_IDENTITY_PROVIDER_USAGE_URL))
-                        .header(PUBLISHER_API_TOKEN_HEADER, authorizationHeaderValue)
-                        .routeParam(LOCAL_ID_URL_PARAM, encodedLocalId)
-                        .body(serializationHandler.serialize(identityProvider))
-                        .getHttpRequest(),
-                IdentityProvider.class
-        );
+        httpRequestExecutor.executeForEach(WayfOperation.GET_DEVICE_HISTORY, requestFactory.getDeviceHistory(localId), IdentityProviderUsage.class, consumer);
     }
 
     @Override
-    public void removeIdentityProviderOption(String localId, Long identityProviderId) throws WayfException{
-        if (localId == null || localId.isEmpty()) {
-            throw new IllegalArgumentException("A non-null and non-empty localId is required to remove an IdentityProvider from a device");
-        }
-
-        if (identityProviderId == null) {
-            throw new IllegalArgumentException("A non-null IdentityProvider ID is required to remove an IdentityProvider from a device");
-        }
-
-        String encodedLocalId = urlEncode(localId);
-
-        httpRequestExecutor.execute(
-                Unirest.delete(buildUrl(WayfService.REMOVE_IDENTITY_PROVIDER_OPTION))
-                        .header(PUBLISHER_API_TOKEN_HEADER, authorizationHeaderValue)
-                        .routeParam(LOCAL_ID_URL_PARAM, encodedLocalId)
-                        .routeParam(IDP_ID, identityProviderId.toString()),
-                Void.class
-        );
-    }
-
-    private String buildUrl(String requestPath) {
-        String fullUrl = cachedFullUrls.get(requestPath);
-
-        if (fullUrl == null) {
-            fullUrl = baseUrl + requestPath;
-            cachedFullUrls.put(requestPath, fullUrl);
-        }
-
-        return fullUrl;
-    }
-
-    private String buildPublisherTokenAuthorizationValue(String publisherApiToken) {
-        return AUTHORIZATION_HEADER_API_TOKEN_PREFIX + publisherApiToken;
+    public IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) throws WayfException {
+        return httpRequestExecutor.execute(WayfOperation.ADD_IDENTITY_PROVIDER_USAGE, requestFactory.addIdentityProviderUsage(localId, identityProvider), IdentityProvider.class);
     }
 
-    private String urlEncode(String stringToEncode) throws WayfException {
-        try {
-            return URLEncoder.encode(stringToEncode, "UTF-8");
-        } catch (Exception e) {
-            throw new WayfException("Could not encode string [" + stringToEncode + "]", e);
-        }
+    @Override
+    public void removeIdentityProviderOption(String localId, Long identityProviderId) throws WayfException{
+        httpRequestExecutor.execute(WayfOperation.REMOVE_IDENTITY_PROVIDER_OPTION, requestFactory.removeIdentityProviderOption(localId, identityProviderId), Void.class);
     }
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Read-through cache of device histories in front of another {@link WayfSynchronousService}. Entries expire after a
+ * fixed time-to-live and the least recently used entries are evicted once either the entry count or the estimated
+ * memory bound is exceeded. Writes made through this service invalidate the cached history of the affected localId.
+ */
+public class WayfSynchronousServiceCachingImpl implements WayfSynchronousService {
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+    private static final long DEFAULT_MAX_WEIGHT_BYTES = 16L * 1024 * 1024;
+    private static final long DEFAULT_TIME_TO_LIVE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    // Rough per-entry footprint used to bound the cache by memory without walking object graphs
+    private static final long ENTRY_OVERHEAD_BYTES = 128;
+    private static final long ESTIMATED_USAGE_WEIGHT_BYTES = 512;
+
+    private final WayfSynchronousService delegate;
+    private final LinkedHashMap<String, CachedDeviceHistory> cache;
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long maxWeightBytes = DEFAULT_MAX_WEIGHT_BYTES;
+    private long timeToLiveNanos = DEFAULT_TIME_TO_LIVE_NANOS;
+
+    private long weightBytes;
+
+    // Bumped when each write completes so that a read which was in flight during a write does not cache the
+    // pre-write history
+    private final AtomicLong writeGeneration = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public WayfSynchronousServiceCachingImpl(WayfSynchronousService delegate) {
+        this.delegate = delegate;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public WayfSynchronousServiceCachingImpl maxEntries(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("The maximum number of cached entries must be positive");
+        }
+
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    public WayfSynchronousServiceCachingImpl maxWeightBytes(long maxWeightBytes) {
+        if (maxWeightBytes <= 0) {
+            throw new IllegalArgumentException("The maximum cache weight must be positive");
+        }
+
+        this.maxWeightBytes = maxWeightBytes;
+        return this;
+    }
+
+    public WayfSynchronousServiceCachingImpl timeToLive(long duration, TimeUnit unit) {
+        if (duration <= 0) {
+            throw new IllegalArgumentException("The cache time-to-live must be positive");
+        }
+
+        this.timeToLiveNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    @Override
+    public void registerLocalId(String localId) throws WayfException {
+        delegate.registerLocalId(localId);
+    }
+
+    @Override
+    public List<IdentityProviderUsage> getDeviceHistory(String localId) throws WayfException {
+        List<IdentityProviderUsage> cached = getCachedHistory(localId, System.nanoTime());
+
+        if (cached != null) {
+            return cached;
+        }
+
+        long generation = writeGeneration.get();
+        List<IdentityProviderUsage> history = delegate.getDeviceHistory(localId);
+
+        if (history == null) {
+            return null;
+        }
+
+        List<IdentityProviderUsage> immutableHistory = Collections.unmodifiableList(new ArrayList<>(history));
+
+        synchronized (cache) {
+            if (generation == writeGeneration.get()) {
+                put(localId, new CachedDeviceHistory(immutableHistory, System.nanoTime(), estimateWeight(localId, immutableHistory)));
+            }
+        }
+
+        return immutableHistory;
+    }
+
+    /**
+     * Visits the cached history when present; otherwise streams from the delegate without populating the cache.
+     */
+    @Override
+    public void getDeviceHistory(String localId, Consumer<? super IdentityProviderUsage> consumer) throws WayfException {
+        List<IdentityProviderUsage> cached = getCachedHistory(localId, System.nanoTime());
+
+        if (cached != null) {
+            cached.forEach(consumer);
+        } else {
+            delegate.getDeviceHistory(localId, consumer);
+        }
+    }
+
+    @Override
+    public IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) throws WayfException {
+        try {
+            return delegate.addIdentityProviderUsage(localId, identityProvider);
+        } finally {
+            completeWrite(localId);
+        }
+    }
+
+    @Override
+    public void removeIdentityProviderOption(String localId, Long identityProviderId) throws WayfException {
+        try {
+            delegate.removeIdentityProviderOption(localId, identityProviderId);
+        } finally {
+            completeWrite(localId);
+        }
+    }
+
+    public void invalidate(String localId) {
+        synchronized (cache) {
+            remove(localId);
+        }
+    }
+
+    // Any read that started before this point may have seen the pre-write history, so it must not be cached
+    private void completeWrite(String localId) {
+        synchronized (cache) {
+            writeGeneration.incrementAndGet();
+            remove(localId);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (cache) {
+            cache.clear();
+            weightBytes = 0;
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getWeightBytes() {
+        synchronized (cache) {
+            return weightBytes;
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    private List<IdentityProviderUsage> getCachedHistory(String localId, long now) {
+        synchronized (cache) {
+            CachedDeviceHistory cached = cache.get(localId);
+
+            if (cached != null) {
+                if (now - cached.loadedAt < timeToLiveNanos) {
+                    hitCount.incrementAndGet();
+                    return cached.history;
+                }
+
+                remove(localId);
+                evictionCount.incrementAndGet();
+            }
+        }
+
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    private void put(String localId, CachedDeviceHistory entry) {
+        remove(localId);
+
+        cache.put(localId, entry);
+        weightBytes += entry.weightBytes;
+
+        // Iteration order of an access-ordered LinkedHashMap is least recently used first
+        Iterator<Map.Entry<String, CachedDeviceHistory>> iterator = cache.entrySet().iterator();
+        while ((cache.size() > maxEntries || weightBytes > maxWeightBytes) && iterator.hasNext()) {
+            Map.Entry<String, CachedDeviceHistory> eldest = iterator.next();
+
+            weightBytes -= eldest.getValue().weightBytes;
+            iterator.remove();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    private void remove(String localId) {
+        CachedDeviceHistory removed = cache.remove(localId);
+
+        if (removed != null) {
+            weightBytes -= removed.weightBytes;
+        }
+    }
+
+    private static long estimateWeight(String localId, List<IdentityProviderUsage> history) {
+        return ENTRY_OVERHEAD_BYTES + 2L * localId.length() + ESTIMATED_USAGE_WEIGHT_BYTES * history.size();
+    }
+
+    private static class CachedDeviceHistory {
+        private final List<IdentityProviderUsage> history;
+        private final long loadedAt;
+        private final long weightBytes;
+
+        private CachedDeviceHistory(List<IdentityProviderUsage> history, long loadedAt, long weightBytes) {
+            this.history = history;
+            this.loadedAt = loadedAt;
+            this.weightBytes = weightBytes;
+        }
+    }
+}
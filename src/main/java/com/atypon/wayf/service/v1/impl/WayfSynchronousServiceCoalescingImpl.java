@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Deduplicates concurrent device history reads in front of another {@link WayfSynchronousService}. The first caller
+ * for a localId performs the request; callers arriving while it is in flight wait for and share its result, including
+ * its failure. Nothing is kept once the request completes, so this only coalesces overlapping calls and never serves
+ * stale data. The shared history is unmodifiable.
+ */
+public class WayfSynchronousServiceCoalescingImpl implements WayfSynchronousService {
+    private final WayfSynchronousService delegate;
+    private final ConcurrentMap<String, CompletableFuture<List<IdentityProviderUsage>>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    public WayfSynchronousServiceCoalescingImpl(WayfSynchronousService delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void registerLocalId(String localId) throws WayfException {
+        delegate.registerLocalId(localId);
+    }
+
+    @Override
+    public List<IdentityProviderUsage> getDeviceHistory(String localId) throws WayfException {
+        if (localId == null) {
+            return delegate.getDeviceHistory(null);
+        }
+
+        CompletableFuture<List<IdentityProviderUsage>> call = new CompletableFuture<>();
+        CompletableFuture<List<IdentityProviderUsage>> existing = inFlight.putIfAbsent(localId, call);
+
+        if (existing != null) {
+            coalescedCount.incrementAndGet();
+            return await(existing);
+        }
+
+        requestCount.incrementAndGet();
+        try {
+            List<IdentityProviderUsage> history = delegate.getDeviceHistory(localId);
+            List<IdentityProviderUsage> sharedHistory = history != null? Collections.unmodifiableList(history) : null;
+
+            call.complete(sharedHistory);
+            return sharedHistory;
+        } catch (Throwable t) {
+            // Followers are released whatever the leader threw, or they would wait forever
+            call.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(localId, call);
+        }
+    }
+
+    // A streaming read joins an in-flight request if there is one, but is not itself shared since its elements go
+    // straight to the caller's consumer
+    @Override
+    public void getDeviceHistory(String localId, Consumer<? super IdentityProviderUsage> consumer) throws WayfException {
+        CompletableFuture<List<IdentityProviderUsage>> existing = localId != null? inFlight.get(localId) : null;
+
+        if (existing == null) {
+            requestCount.incrementAndGet();
+            delegate.getDeviceHistory(localId, consumer);
+            return;
+        }
+
+        if (consumer == null) {
+            throw new IllegalArgumentException("A non-null consumer is required to read a device's history");
+        }
+
+        coalescedCount.incrementAndGet();
+
+        List<IdentityProviderUsage> history = await(existing);
+        if (history != null) {
+            history.forEach(consumer);
+        }
+    }
+
+    @Override
+    public IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) throws WayfException {
+        try {
+            return delegate.addIdentityProviderUsage(localId, identityProvider);
+        } finally {
+            detach(localId);
+        }
+    }
+
+    @Override
+    public void removeIdentityProviderOption(String localId, Long identityProviderId) throws WayfException {
+        try {
+            delegate.removeIdentityProviderOption(localId, identityProviderId);
+        } finally {
+            detach(localId);
+        }
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    // A read already in flight may predate the write, so later readers must not join it
+    private void detach(String localId) {
+        if (localId != null) {
+            inFlight.remove(localId);
+        }
+    }
+
+    private static List<IdentityProviderUsage> await(CompletableFuture<List<IdentityProviderUsage>> call) throws WayfException {
+        try {
+            return call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WayfException("Interrupted while waiting for an in-flight device history request", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof WayfException) {
+                throw (WayfException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new WayfException("Could not read device history", cause);
+            }
+        }
+    }
+}
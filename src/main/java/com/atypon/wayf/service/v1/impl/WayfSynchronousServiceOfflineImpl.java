@@ -0,0 +1,445 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.CircuitBreakerOpenException;
+import com.atypon.wayf.data.PendingWrite;
+import com.atypon.wayf.data.StoredDeviceHistory;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.DeviceHistoryStore;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Keeps working while the WAYF cloud is unreachable by backing another {@link WayfSynchronousService} with a local
+ * {@link DeviceHistoryStore}.
+ * <ul>
+ *     <li>Histories read within the freshness bound are served from the store without a request.</li>
+ *     <li>When the cloud is unreachable, histories up to the offline staleness bound are served instead of failing.</li>
+ *     <li>Writes made while the cloud is unreachable are persisted as pending writes and applied to the stored history,
+ *     and are replayed in order by a background reconciler once it is reachable again. While a localId has pending
+ *     writes its history is served locally.</li>
+ * </ul>
+ * Close this service to stop the reconciler; the store is owned by the caller.
+ */
+public class WayfSynchronousServiceOfflineImpl implements WayfSynchronousService, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(WayfSynchronousServiceOfflineImpl.class);
+
+    private final WayfSynchronousService delegate;
+    private final DeviceHistoryStore store;
+    private final ScheduledExecutorService reconciler;
+    private final ReentrantLock reconcileLock = new ReentrantLock();
+    private final ConcurrentHashMap<String, WriteLock> writeLocks = new ConcurrentHashMap<>();
+
+    private long freshMillis = TimeUnit.MINUTES.toMillis(1);
+    private long maxOfflineStalenessMillis = TimeUnit.DAYS.toMillis(1);
+
+    private final AtomicLong localReadCount = new AtomicLong();
+    private final AtomicLong offlineReadCount = new AtomicLong();
+    private final AtomicLong queuedWriteCount = new AtomicLong();
+
+    public WayfSynchronousServiceOfflineImpl(WayfSynchronousService delegate, DeviceHistoryStore store) {
+        this(delegate, store, 30, TimeUnit.SECONDS);
+    }
+
+    public WayfSynchronousServiceOfflineImpl(WayfSynchronousService delegate, DeviceHistoryStore store, long reconcileInterval, TimeUnit unit) {
+        this.delegate = delegate;
+        this.store = store;
+
+        this.reconciler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wayf-offline-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reconciler.scheduleWithFixedDelay(this::reconcileQuietly, reconcileInterval, reconcileInterval, unit);
+    }
+
+    /**
+     * How long a stored history is served without asking the WAYF cloud.
+     */
+    public WayfSynchronousServiceOfflineImpl freshFor(long duration, TimeUnit unit) {
+        this.freshMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * The oldest stored history that is served when the WAYF cloud is unreachable.
+     */
+    public WayfSynchronousServiceOfflineImpl maxOfflineStaleness(long duration, TimeUnit unit) {
+        this.maxOfflineStalenessMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    @Override
+    public void registerLocalId(String localId) throws WayfException {
+        if (localId == null || localId.isEmpty()) {
+            throw new IllegalArgumentException("In order to register a local ID, a non-null and non-empty value is required");
+        }
+
+        PendingWrite pendingWrite = new PendingWrite();
+        pendingWrite.setOperation(WayfOperation.REGISTER_LOCAL_ID);
+        pendingWrite.setLocalId(localId);
+
+        write(pendingWrite);
+    }
+
+    @Override
+    public List<IdentityProviderUsage> getDeviceHistory(String localId) throws WayfException {
+        if (localId == null || localId.isEmpty()) {
+            throw new IllegalArgumentException("A non-null and non-empty localId is required to read a device's history");
+        }
+
+        long now = System.currentTimeMillis();
+        StoredDeviceHistory stored = store.getHistory(localId);
+
+        if (stored != null && (store.hasPendingWrites(localId) || (!stored.isRefreshRequired() && now - stored.getStoredAtMillis() <= freshMillis))) {
+            localReadCount.incrementAndGet();
+            return stored.getHistory();
+        }
+
+        List<IdentityProviderUsage> history;
+        try {
+            history = delegate.getDeviceHistory(localId);
+        } catch (WayfException e) {
+            if (isUnavailable(e, WayfOperation.GET_DEVICE_HISTORY) && stored != null && now - stored.getStoredAtMillis() <= maxOfflineStalenessMillis) {
+                LOG.warn("WAYF cloud is unavailable, serving stored device history for localId [{}]", localId);
+
+                offlineReadCount.incrementAndGet();
+                return stored.getHistory();
+            }
+
+            throw e;
+        }
+
+        if (history != null) {
+            storeQuietly(localId, new StoredDeviceHistory(history, now, false));
+        }
+
+        return history;
+    }
+
+    @Override
+    public void getDeviceHistory(String localId, Consumer<? super IdentityProviderUsage> consumer) throws WayfException {
+        if (consumer == null) {
+            throw new IllegalArgumentException("A non-null consumer is required to read a device's history");
+        }
+
+        List<IdentityProviderUsage> history = getDeviceHistory(localId);
+        if (history != null) {
+            history.forEach(consumer);
+        }
+    }
+
+    @Override
+    public IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) throws WayfException {
+        if (localId == null || localId.isEmpty()) {
+            throw new IllegalArgumentException("A non-null and non-empty localId is required to add an IdentityProvider usage to a device");
+        }
+
+        if (identityProvider == null) {
+            throw new IllegalArgumentException("A non-null IdentityProvider is required to add an IdentityProvider usage to a device");
+        }
+
+        PendingWrite pendingWrite = new PendingWrite();
+        pendingWrite.setOperation(WayfOperation.ADD_IDENTITY_PROVIDER_USAGE);
+        pendingWrite.setLocalId(localId);
+        pendingWrite.setIdentityProvider(identityProvider);
+
+        IdentityProvider result = write(pendingWrite);
+        return result != null? result : identityProvider;
+    }
+
+    @Override
+    public void removeIdentityProviderOption(String localId, Long identityProviderId) throws WayfException {
+        if (localId == null || localId.isEmpty()) {
+            throw new IllegalArgumentException("A non-null and non-empty localId is required to remove an IdentityProvider from a device");
+        }
+
+        if (identityProviderId == null) {
+            throw new IllegalArgumentException("A non-null IdentityProvider ID is required to remove an IdentityProvider from a device");
+        }
+
+        PendingWrite pendingWrite = new PendingWrite();
+        pendingWrite.setOperation(WayfOperation.REMOVE_IDENTITY_PROVIDER_OPTION);
+        pendingWrite.setLocalId(localId);
+        pendingWrite.setIdentityProviderId(identityProviderId);
+
+        write(pendingWrite);
+    }
+
+    /**
+     * Replays pending writes in order until they are all sent or the WAYF cloud turns out to still be unreachable.
+     * Writes the cloud rejects are logged and dropped, since replaying them again would not succeed either. Returns
+     * the number of writes sent.
+     */
+    public int reconcile() throws WayfException {
+        if (!reconcileLock.tryLock()) {
+            return 0;
+        }
+
+        int sent = 0;
+        try {
+            for (PendingWrite pendingWrite : store.getPendingWrites()) {
+                try {
+                    send(pendingWrite);
+                    sent++;
+                } catch (WayfException e) {
+                    if (isUnavailable(e, pendingWrite.getOperation())) {
+                        LOG.debug("WAYF cloud is still unavailable, [{}] writes remain pending", store.getPendingWrites().size());
+                        return sent;
+                    }
+
+                    LOG.warn("WAYF cloud rejected pending [{}] for localId [{}], dropping it", pendingWrite.getOperation(), pendingWrite.getLocalId(), e);
+                }
+
+                store.removePendingWrite(pendingWrite.getSequence());
+            }
+
+            return sent;
+        } finally {
+            reconcileLock.unlock();
+        }
+    }
+
+    public int getPendingWriteCount() {
+        return store.getPendingWrites().size();
+    }
+
+    public long getLocalReadCount() {
+        return localReadCount.get();
+    }
+
+    public long getOfflineReadCount() {
+        return offlineReadCount.get();
+    }
+
+    public long getQueuedWriteCount() {
+        return queuedWriteCount.get();
+    }
+
+    @Override
+    public void close() {
+        reconciler.shutdownNow();
+    }
+
+    // Writes go straight to the cloud unless earlier writes for the same localId are still pending, in which case they
+    // queue up behind them to keep their order. Writes for one localId are serialized so that a write cannot be sent
+    // while another one for that localId is being queued
+    private IdentityProvider write(PendingWrite pendingWrite) throws WayfException {
+        String localId = pendingWrite.getLocalId();
+        WriteLock writeLock = lockWrites(localId);
+        try {
+            IdentityProvider result = null;
+
+            if (!store.hasPendingWrites(localId)) {
+                try {
+                    result = send(pendingWrite);
+                } catch (WayfException e) {
+                    if (!isUnavailable(e, pendingWrite.getOperation())) {
+                        throw e;
+                    }
+
+                    LOG.warn("WAYF cloud is unavailable, queueing [{}] for localId [{}]", pendingWrite.getOperation(), localId);
+                    queue(pendingWrite);
+                }
+            } else {
+                queue(pendingWrite);
+            }
+
+            applyToStoredHistory(pendingWrite);
+            return result;
+        } finally {
+            unlockWrites(localId, writeLock);
+        }
+    }
+
+    private WriteLock lockWrites(String localId) {
+        WriteLock writeLock = writeLocks.compute(localId, (key, existing) -> {
+            WriteLock lock = existing != null? existing : new WriteLock();
+            lock.holders++;
+            return lock;
+        });
+
+        writeLock.lock();
+        return writeLock;
+    }
+
+    // The lock is dropped from the map once no writer holds or waits for it, so the map only holds localIds being written
+    private void unlockWrites(String localId, WriteLock writeLock) {
+        writeLock.unlock();
+        writeLocks.computeIfPresent(localId, (key, existing) -> --existing.holders == 0? null : existing);
+    }
+
+    private IdentityProvider send(PendingWrite pendingWrite) throws WayfException {
+        switch (pendingWrite.getOperation()) {
+            case REGISTER_LOCAL_ID:
+                delegate.registerLocalId(pendingWrite.getLocalId());
+                return null;
+            case ADD_IDENTITY_PROVIDER_USAGE:
+                return delegate.addIdentityProviderUsage(pendingWrite.getLocalId(), pendingWrite.getIdentityProvider());
+            case REMOVE_IDENTITY_PROVIDER_OPTION:
+                delegate.removeIdentityProviderOption(pendingWrite.getLocalId(), pendingWrite.getIdentityProviderId());
+                return null;
+            default:
+                throw new IllegalArgumentException("Unsupported pending write [" + pendingWrite.getOperation() + "]");
+        }
+    }
+
+    private void queue(PendingWrite pendingWrite) throws WayfException {
+        pendingWrite.setCreatedAtMillis(System.currentTimeMillis());
+        store.addPendingWrite(pendingWrite);
+        queuedWriteCount.incrementAndGet();
+    }
+
+    // Mirrors the write on the stored history so that reads reflect it, and marks the history to be read again from
+    // the cloud, which computes the real frequencies, as soon as that is possible
+    private void applyToStoredHistory(PendingWrite pendingWrite) {
+        StoredDeviceHistory stored = store.getHistory(pendingWrite.getLocalId());
+        if (stored == null || pendingWrite.getOperation() == WayfOperation.REGISTER_LOCAL_ID) {
+            return;
+        }
+
+        List<IdentityProviderUsage> history = new ArrayList<>(stored.getHistory());
+
+        if (pendingWrite.getOperation() == WayfOperation.ADD_IDENTITY_PROVIDER_USAGE) {
+            IdentityProvider identityProvider = pendingWrite.getIdentityProvider();
+
+            // Stored usages may be shared with earlier readers, so the updated usage is a copy
+            IdentityProviderUsage usage = new IdentityProviderUsage();
+            usage.setIdp(identityProvider);
+            usage.setLastActiveDate(new Date());
+
+            if (identityProvider.getId() != null) {
+                for (int index = 0; index < history.size(); index++) {
+                    IdentityProviderUsage existing = history.get(index);
+
+                    if (existing.getIdp() != null && identityProvider.getId().equals(existing.getIdp().getId())) {
+                        usage.setFrequency(existing.getFrequency());
+                        history.remove(index);
+                        break;
+                    }
+                }
+            }
+
+            history.add(0, usage);
+        } else if (pendingWrite.getOperation() == WayfOperation.REMOVE_IDENTITY_PROVIDER_OPTION) {
+            history.removeIf(usage -> usage.getIdp() != null && Objects.equals(pendingWrite.getIdentityProviderId(), usage.getIdp().getId()));
+        }
+
+        storeQuietly(pendingWrite.getLocalId(), new StoredDeviceHistory(history, stored.getStoredAtMillis(), true));
+    }
+
+    private void storeQuietly(String localId, StoredDeviceHistory history) {
+        try {
+            store.putHistory(localId, history);
+        } catch (WayfException e) {
+            LOG.warn("Could not store device history for localId [{}]", localId, e);
+        }
+    }
+
+    private void reconcileQuietly() {
+        if (store.getPendingWrites().isEmpty()) {
+            return;
+        }
+
+        try {
+            int sent = reconcile();
+
+            if (sent > 0) {
+                LOG.info("Sent [{}] writes queued while the WAYF cloud was unavailable", sent);
+            }
+        } catch (Exception e) {
+            LOG.warn("Could not reconcile pending writes", e);
+        }
+    }
+
+    // Unreachable means the request may never have been processed: connection-level failures, an open circuit breaker,
+    // or a gateway/availability error from in front of the cloud. A non-idempotent write that timed out or got a gateway
+    // error after it was sent may still have been processed, so only a failure to connect or a 503 counts for it, as in
+    // RetryPolicy; replaying it later would otherwise apply it twice
+    private static boolean isUnavailable(WayfException e, WayfOperation operation) {
+        if (e instanceof CircuitBreakerOpenException) {
+            return true;
+        }
+
+        int status = e.getStatus();
+        if (status == 503) {
+            return true;
+        }
+
+        if (!operation.isIdempotent()) {
+            return status == 0 && isConnectFailure(e);
+        }
+
+        if (status == 502 || status == 504) {
+            return true;
+        }
+
+        if (status != 0) {
+            return false;
+        }
+
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof JsonProcessingException) {
+                return false;
+            }
+
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isConnectFailure(WayfException e) {
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof NoRouteToHostException || cause instanceof UnknownHostException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Holders is only changed inside the map's compute functions, which run atomically for a localId
+    private static class WriteLock extends ReentrantLock {
+        private int holders;
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.BatchItemResult;
+import com.atypon.wayf.data.PendingWrite;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.identity.DeviceIdentityProviderUsage;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.DeviceHistoryStore;
+import com.atypon.wayf.service.v1.WayfBatchService;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Write-behind decorator for {@link WayfSynchronousService}. {@link #addIdentityProviderUsage} enqueues the usage and
+ * returns the given IdentityProvider immediately, without the server-assigned ID; a background dispatcher drains the
+ * queue. All other operations, including history reads, go straight to the delegate and therefore do not observe usages
+ * that are still queued.
+ *
+ * By default the dispatcher sends each usage through the delegate, so decorators below this one (caching, offline) see
+ * every write. A {@link WayfBatchService} sends whole batches instead, but talks to the cloud directly: it must only be
+ * given when nothing below this decorator needs to observe usage writes.
+ *
+ * Settings must be applied before the first usage is enqueued, which starts the dispatcher.
+ */
+public class WayfSynchronousServiceWriteBehindImpl implements WayfSynchronousService, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(WayfSynchronousServiceWriteBehindImpl.class);
+
+    private static final long BLOCKED_PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    public enum OverflowPolicy {
+        DROP,
+        BLOCK,
+        CALLER_RUNS,
+        // Persists the usage as a PendingWrite in the store given to spillTo(); the dispatcher sends it once it has
+        // caught up with the queue
+        SPILL
+    }
+
+    // Set in producers while closed; the remaining bits count producers that are between the check and the offer
+    private static final int CLOSED = Integer.MIN_VALUE;
+
+    private final WayfSynchronousService delegate;
+    private final WayfBatchService batchService;
+
+    private int capacity = 10000;
+    private int batchSize = 100;
+    private long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private long shutdownTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+    private DeviceHistoryStore spillStore;
+
+    private final Queue<DeviceIdentityProviderUsage> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    // Producers register here before checking for CLOSED and deregister once their usage is queued. close() sets CLOSED
+    // and waits for registered producers before telling the dispatcher to finish, so no usage can be queued after that
+    private final AtomicInteger producers = new AtomicInteger();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean closed;
+    private volatile Thread dispatcher;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    public WayfSynchronousServiceWriteBehindImpl(WayfSynchronousService delegate) {
+        this(delegate, null);
+    }
+
+    public WayfSynchronousServiceWriteBehindImpl(WayfSynchronousService delegate, WayfBatchService batchService) {
+        this.delegate = delegate;
+        this.batchService = batchService;
+    }
+
+    public WayfSynchronousServiceWriteBehindImpl capacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The write-behind queue capacity must be positive");
+        }
+
+        this.capacity = capacity;
+        return this;
+    }
+
+    public WayfSynchronousServiceWriteBehindImpl batchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("The write-behind batch size must be positive");
+        }
+
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public WayfSynchronousServiceWriteBehindImpl flushInterval(long duration, TimeUnit unit) {
+        this.flushIntervalNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    public WayfSynchronousServiceWriteBehindImpl shutdownTimeout(long duration, TimeUnit unit) {
+        this.shutdownTimeoutMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    public WayfSynchronousServiceWriteBehindImpl overflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == OverflowPolicy.SPILL && spillStore == null) {
+            throw new IllegalArgumentException("The SPILL overflow policy needs a store, use spillTo()");
+        }
+
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Spills usages that do not fit in the queue to the given store. The store must not be shared with a
+     * {@link WayfSynchronousServiceOfflineImpl}, which would replay the same writes. Usages still spilled when this
+     * decorator is closed stay in the store and are sent once a dispatcher is started over it again.
+     */
+    public WayfSynchronousServiceWriteBehindImpl spillTo(DeviceHistoryStore spillStore) {
+        if (spillStore == null) {
+            throw new IllegalArgumentException("A non-null store is required to spill IdentityProvider usages");
+        }
+
+        this.spillStore = spillStore;
+        this.overflowPolicy = OverflowPolicy.SPILL;
+        return this;
+    }
+
+    public WayfSynchronousServiceWriteBehindImpl flushOnShutdown() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "wayf-write-behind-shutdown"));
+        return this;
+    }
+
+    @Override
+    public void registerLocalId(String localId) throws WayfException {
+        delegate.registerLocalId(localId);
+    }
+
+    @Override
+    public List<IdentityProviderUsage> getDeviceHistory(String localId) throws WayfException {
+        return delegate.getDeviceHistory(localId);
+    }
+
+    @Override
+    public void getDeviceHistory(String localId, Consumer<? super IdentityProviderUsage> consumer) throws WayfException {
+        delegate.getDeviceHistory(localId, consumer);
+    }
+
+    @Override
+    public IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) throws WayfException {
+        if (localId == null || localId.isEmpty()) {
+            throw new IllegalArgumentException("A non-null and non-empty localId is required to add an IdentityProvider usage to a device");
+        }
+
+        if (identityProvider == null) {
+            throw new IllegalArgumentException("A non-null IdentityProvider is required to add an IdentityProvider usage to a device");
+        }
+
+        Enqueued enqueued = tryEnqueue(localId, identityProvider);
+
+        if (enqueued == Enqueued.FULL) {
+            switch (overflowPolicy) {
+                case DROP:
+                    droppedCount.incrementAndGet();
+                    LOG.warn("Write-behind queue is full, dropping IdentityProvider usage for localId [{}]", localId);
+                    return identityProvider;
+                case CALLER_RUNS:
+                    return delegate.addIdentityProviderUsage(localId, identityProvider);
+                case SPILL:
+                    spill(localId, identityProvider);
+                    return identityProvider;
+                case BLOCK:
+                    // The producer deregisters between attempts so that it never holds up close()
+                    while ((enqueued = tryEnqueue(localId, identityProvider)) == Enqueued.FULL) {
+                        LockSupport.parkNanos(BLOCKED_PRODUCER_PARK_NANOS);
+                    }
+                    break;
+            }
+        }
+
+        if (enqueued == Enqueued.CLOSED) {
+            return delegate.addIdentityProviderUsage(localId, identityProvider);
+        }
+
+        return identityProvider;
+    }
+
+    @Override
+    public void removeIdentityProviderOption(String localId, Long identityProviderId) throws WayfException {
+        delegate.removeIdentityProviderOption(localId, identityProviderId);
+    }
+
+    /**
+     * Stops accepting queued writes and waits, up to the shutdown timeout, for the queue to be flushed. Usages added
+     * after this call go straight to the delegate.
+     */
+    @Override
+    public void close() {
+        producers.getAndAccumulate(CLOSED, (state, closedBit) -> state | closedBit);
+        while (producers.get() != CLOSED) {
+            Thread.yield();
+        }
+        closed = true;
+
+        Thread current = dispatcher;
+        if (current != null) {
+            LockSupport.unpark(current);
+
+            try {
+                current.join(shutdownTimeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Nothing can be enqueued any more, so once the dispatcher has finished whatever is left is flushed here
+        if (current == null || !current.isAlive()) {
+            List<DeviceIdentityProviderUsage> batch = new ArrayList<>(batchSize);
+            while (pollBatch(batch)) {
+                dispatchBatch(batch);
+            }
+
+            while (dispatchSpilled(batch)) {
+            }
+        }
+
+        if (queueDepth.get() > 0) {
+            LOG.warn("Write-behind queue was closed with [{}] IdentityProvider usages still pending", queueDepth.get());
+        }
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    private Enqueued tryEnqueue(String localId, IdentityProvider identityProvider) {
+        // A negative state has the CLOSED bit set
+        if (producers.getAndIncrement() < 0) {
+            producers.decrementAndGet();
+            return Enqueued.CLOSED;
+        }
+
+        try {
+            if (!reserveSlot()) {
+                return Enqueued.FULL;
+            }
+
+            queue.offer(new DeviceIdentityProviderUsage(localId, identityProvider));
+            startDispatcher();
+        } finally {
+            producers.decrementAndGet();
+        }
+
+        if (queueDepth.get() >= batchSize) {
+            LockSupport.unpark(dispatcher);
+        }
+
+        return Enqueued.QUEUED;
+    }
+
+    private boolean reserveSlot() {
+        int depth;
+        do {
+            depth = queueDepth.get();
+            if (depth >= capacity) {
+                return false;
+            }
+        } while (!queueDepth.compareAndSet(depth, depth + 1));
+
+        return true;
+    }
+
+    private void startDispatcher() {
+        if (started.compareAndSet(false, true)) {
+            Thread thread = new Thread(this::dispatch, "wayf-write-behind-dispatcher");
+            thread.setDaemon(true);
+            dispatcher = thread;
+            thread.start();
+        }
+    }
+
+    private void spill(String localId, IdentityProvider identityProvider) throws WayfException {
+        PendingWrite pendingWrite = new PendingWrite();
+        pendingWrite.setOperation(WayfOperation.ADD_IDENTITY_PROVIDER_USAGE);
+        pendingWrite.setLocalId(localId);
+        pendingWrite.setIdentityProvider(identityProvider);
+
+        spillStore.addPendingWrite(pendingWrite);
+        spilledCount.incrementAndGet();
+    }
+
+    private void dispatch() {
+        List<DeviceIdentityProviderUsage> batch = new ArrayList<>(batchSize);
+
+        while (!closed || !queue.isEmpty()) {
+            if (pollBatch(batch)) {
+                dispatchBatch(batch);
+            } else if (!dispatchSpilled(batch)) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+        }
+
+        while (dispatchSpilled(batch)) {
+        }
+    }
+
+    // Sends up to one batch of spilled usages and removes them from the store, unless the whole batch could not be sent
+    private boolean dispatchSpilled(List<DeviceIdentityProviderUsage> batch) {
+        if (spillStore == null) {
+            return false;
+        }
+
+        List<PendingWrite> spilled = new ArrayList<>(batchSize);
+        for (PendingWrite pendingWrite : spillStore.getPendingWrites()) {
+            if (pendingWrite.getOperation() == WayfOperation.ADD_IDENTITY_PROVIDER_USAGE && spilled.size() < batchSize) {
+                spilled.add(pendingWrite);
+            }
+        }
+
+        if (spilled.isEmpty()) {
+            return false;
+        }
+
+        batch.clear();
+        for (PendingWrite pendingWrite : spilled) {
+            batch.add(new DeviceIdentityProviderUsage(pendingWrite.getLocalId(), pendingWrite.getIdentityProvider()));
+        }
+
+        if (!dispatchBatch(batch)) {
+            return false;
+        }
+
+        try {
+            for (PendingWrite pendingWrite : spilled) {
+                spillStore.removePendingWrite(pendingWrite.getSequence());
+            }
+        } catch (WayfException e) {
+            LOG.error("Could not remove sent IdentityProvider usages from the spill store", e);
+            return false;
+        }
+
+        return true;
+    }
+
+    private boolean pollBatch(List<DeviceIdentityProviderUsage> batch) {
+        batch.clear();
+
+        DeviceIdentityProviderUsage usage;
+        while (batch.size() < batchSize && (usage = queue.poll()) != null) {
+            batch.add(usage);
+        }
+
+        queueDepth.addAndGet(-batch.size());
+        return !batch.isEmpty();
+    }
+
+    // Returns false only when the batch service rejected the whole batch
+    private boolean dispatchBatch(List<DeviceIdentityProviderUsage> batch) {
+        if (batchService == null) {
+            for (DeviceIdentityProviderUsage usage : batch) {
+                try {
+                    delegate.addIdentityProviderUsage(usage.getLocalId(), usage.getIdentityProvider());
+                    dispatchedCount.incrementAndGet();
+                } catch (WayfException | RuntimeException e) {
+                    failedCount.incrementAndGet();
+                    LOG.error("Could not add IdentityProvider usage for localId [" + usage.getLocalId() + "]", e);
+                }
+            }
+
+            return true;
+        }
+
+        try {
+            for (BatchItemResult<DeviceIdentityProviderUsage, IdentityProvider> result : batchService.addIdentityProviderUsages(batch)) {
+                if (result.isSuccess()) {
+                    dispatchedCount.incrementAndGet();
+                } else {
+                    failedCount.incrementAndGet();
+                    LOG.error("Could not add IdentityProvider usage for localId [" + result.getItem().getLocalId() + "]", result.getFailure());
+                }
+            }
+
+            return true;
+        } catch (RuntimeException e) {
+            failedCount.addAndGet(batch.size());
+            LOG.error("Could not dispatch batch of IdentityProvider usages", e);
+            return false;
+        }
+    }
+
+    private enum Enqueued {
+        QUEUED,
+        FULL,
+        CLOSED
+    }
+}
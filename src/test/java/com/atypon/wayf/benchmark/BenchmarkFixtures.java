@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.benchmark;
+
+import com.atypon.wayf.benchmark.SerializationBenchmark.Format;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.data.identity.OauthEntity;
+import com.atypon.wayf.data.identity.OauthProvider;
+import com.atypon.wayf.data.identity.OpenAthensEntity;
+import com.atypon.wayf.data.identity.SamlEntity;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.impl.SerializationHandlerObjectMapperImpl;
+import com.atypon.wayf.service.impl.SerializationHandlerContentNegotiatingImpl;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+final class BenchmarkFixtures {
+    static final String API_TOKEN = "ef3177ed-17d3-4a54-a7d3-99905c1ec109";
+    static final String LOCAL_ID = "= K01GfwwD4BWB0lgWScJwIfMZOSIp9Wgsw7i0Gcj7J/8cUKRDktD9/A==";
+
+    private BenchmarkFixtures() {
+    }
+
+    static SerializationHandler serializationHandler() {
+        return serializationHandler(Format.JSON);
+    }
+
+    static SerializationHandler serializationHandler(Format format) {
+        return format == Format.SMILE
+                ? new SerializationHandlerObjectMapperImpl(objectMapper(new SmileFactory()), SerializationHandler.SMILE_CONTENT_TYPE)
+                : new SerializationHandlerObjectMapperImpl(objectMapper(new JsonFactory()));
+    }
+
+    // What a client sends and reads for the format: Smile is negotiated, falling back to JSON
+    static SerializationHandler clientSerializationHandler(Format format) {
+        return format == Format.SMILE
+                ? new SerializationHandlerContentNegotiatingImpl(serializationHandler(Format.SMILE), serializationHandler(Format.JSON))
+                : serializationHandler(Format.JSON);
+    }
+
+    // Mirrors the ObjectMapper configuration used by WayfClient
+    private static ObjectMapper objectMapper(JsonFactory jsonFactory) {
+        ObjectMapper objectMapper = new ObjectMapper(jsonFactory);
+        objectMapper.setDateFormat(new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ"));
+        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return objectMapper;
+    }
+
+    static SamlEntity samlEntity(long id) {
+        SamlEntity samlEntity = new SamlEntity();
+        samlEntity.setId(id);
+        samlEntity.setName("Example University");
+        samlEntity.setEntityId("https://idp.example.edu/idp/shibboleth/" + id);
+        samlEntity.setFederationId("https://incommon.org");
+        samlEntity.setCreatedDate(new Date(1501581600000L));
+        return samlEntity;
+    }
+
+    static OpenAthensEntity openAthensEntity(long id) {
+        OpenAthensEntity openAthensEntity = new OpenAthensEntity();
+        openAthensEntity.setId(id);
+        openAthensEntity.setEntityId("https://idp.openathens.net/" + id);
+        openAthensEntity.setScope("example.ac.uk");
+        openAthensEntity.setOrganizationId("org-" + id);
+        return openAthensEntity;
+    }
+
+    static OauthEntity oauthEntity(long id) {
+        OauthEntity oauthEntity = new OauthEntity();
+        oauthEntity.setId(id);
+        oauthEntity.setProvider(OauthProvider.GOOGLE);
+        return oauthEntity;
+    }
+
+    static List<IdentityProviderUsage> history(int size) {
+        List<IdentityProviderUsage> history = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            IdentityProvider idp;
+            switch (i % 3) {
+                case 0:
+                    idp = samlEntity(i);
+                    break;
+                case 1:
+                    idp = openAthensEntity(i);
+                    break;
+                default:
+                    idp = oauthEntity(i);
+            }
+
+            IdentityProviderUsage usage = new IdentityProviderUsage();
+            usage.setIdp(idp);
+            usage.setFrequency(1.0 / (i + 1));
+            usage.setLastActiveDate(new Date(1501581600000L + i * 60000L));
+            history.add(usage);
+        }
+
+        return history;
+    }
+}
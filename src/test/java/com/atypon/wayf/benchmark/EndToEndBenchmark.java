@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.benchmark;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.data.identity.OauthEntity;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.impl.HttpRequestExecutorHttpClientImpl;
+import com.atypon.wayf.service.impl.HttpRequestExecutorUnirestImpl;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+import com.atypon.wayf.service.v1.impl.WayfServiceImpl;
+import com.atypon.wayf.simulator.WayfCloudSimulator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full client calls, including the transport, against an in-process simulation of the WAYF cloud.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    public enum Transport {
+        UNIREST,
+        HTTP_CLIENT
+    }
+
+    @Param({"UNIREST", "HTTP_CLIENT"})
+    public Transport transport;
+
+    @Param({"10"})
+    public int historySize;
+
+    @Param({"JSON", "SMILE"})
+    public SerializationBenchmark.Format format;
+
+    private WayfCloudSimulator simulator;
+    private HttpRequestExecutor<WayfRequest> executor;
+    private WayfSynchronousService service;
+    private IdentityProvider identityProvider;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        simulator = new WayfCloudSimulator()
+                .serializationHandler(BenchmarkFixtures.serializationHandler(format))
+                .seedHistory(BenchmarkFixtures.LOCAL_ID, BenchmarkFixtures.history(historySize))
+                .start();
+
+        SerializationHandler serializationHandler = BenchmarkFixtures.clientSerializationHandler(format);
+
+        executor = transport == Transport.UNIREST
+                ? new HttpRequestExecutorUnirestImpl(serializationHandler)
+                : new HttpRequestExecutorHttpClientImpl(serializationHandler);
+
+        service = new WayfServiceImpl()
+                .baseUrl(simulator.getBaseUrl())
+                .publisherApiToken(BenchmarkFixtures.API_TOKEN)
+                .serializationHandler(serializationHandler)
+                .httpRequestExecutor(executor);
+
+        identityProvider = new OauthEntity();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (executor instanceof Closeable) {
+            ((Closeable) executor).close();
+        }
+
+        simulator.close();
+    }
+
+    @Benchmark
+    public List<IdentityProviderUsage> getDeviceHistory() throws WayfException {
+        return service.getDeviceHistory(BenchmarkFixtures.LOCAL_ID);
+    }
+
+    @Benchmark
+    public void registerLocalId() throws WayfException {
+        service.registerLocalId(BenchmarkFixtures.LOCAL_ID);
+    }
+
+    @Benchmark
+    public IdentityProvider addIdentityProviderUsage() throws WayfException {
+        return service.addIdentityProviderUsage(BenchmarkFixtures.LOCAL_ID, identityProvider);
+    }
+}
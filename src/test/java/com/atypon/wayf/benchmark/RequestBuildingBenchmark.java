@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.benchmark;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.data.identity.OauthEntity;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import com.atypon.wayf.service.v1.WayfService;
+import com.atypon.wayf.service.v1.impl.WayfServiceImpl;
+import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.request.HttpRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Type;
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Measures everything WayfServiceImpl does before a request reaches the transport: URL lookup, localId encoding,
+ * header and route-parameter handling, and request object construction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBuildingBenchmark {
+    private static final String BASE_URL = "https://wayf-cloud-sandbox.literatumonline.com";
+
+    private WayfServiceImpl service;
+    private CapturingExecutor executor;
+    private OauthEntity identityProvider;
+
+    @Setup
+    public void setUp() {
+        executor = new CapturingExecutor();
+        service = new WayfServiceImpl()
+                .baseUrl(BASE_URL)
+                .publisherApiToken(BenchmarkFixtures.API_TOKEN)
+                .serializationHandler(BenchmarkFixtures.serializationHandler())
+                .httpRequestExecutor(executor);
+        identityProvider = BenchmarkFixtures.oauthEntity(1);
+    }
+
+    @Benchmark
+    public WayfRequest registerLocalId() throws WayfException {
+        service.registerLocalId(BenchmarkFixtures.LOCAL_ID);
+        return executor.lastRequest;
+    }
+
+    @Benchmark
+    public WayfRequest getDeviceHistory() throws WayfException {
+        service.getDeviceHistory(BenchmarkFixtures.LOCAL_ID);
+        return executor.lastRequest;
+    }
+
+    @Benchmark
+    public WayfRequest addIdentityProviderUsage() throws WayfException {
+        service.addIdentityProviderUsage(BenchmarkFixtures.LOCAL_ID, identityProvider);
+        return executor.lastRequest;
+    }
+
+    @Benchmark
+    public WayfRequest removeIdentityProviderOption() throws WayfException {
+        service.removeIdentityProviderOption(BenchmarkFixtures.LOCAL_ID, 42L);
+        return executor.lastRequest;
+    }
+
+    @Benchmark
+    public void urlEncode(Blackhole blackhole) throws Exception {
+        blackhole.consume(URLEncoder.encode(BenchmarkFixtures.LOCAL_ID, "UTF-8"));
+    }
+
+    // Baseline for getDeviceHistory: the request as it was built before URL templates were precomputed, with string
+    // concatenation, URLEncoder and Unirest's regex route-parameter substitution
+    @Benchmark
+    public HttpRequest getDeviceHistoryRouteParam() throws Exception {
+        return Unirest.get(BASE_URL + WayfService.DEVICE_HISTORY_URL)
+                .header(WayfService.PUBLISHER_API_TOKEN_HEADER, "Token " + BenchmarkFixtures.API_TOKEN)
+                .routeParam(WayfService.LOCAL_ID_URL_PARAM, URLEncoder.encode(BenchmarkFixtures.LOCAL_ID, "UTF-8"));
+    }
+
+    private static class CapturingExecutor implements HttpRequestExecutor<WayfRequest> {
+        private WayfRequest lastRequest;
+
+        @Override
+        public <T> T execute(WayfOperation operation, WayfRequest request, Type responseType) {
+            lastRequest = request;
+            return null;
+        }
+
+        @Override
+        public <T> void executeForEach(WayfOperation operation, WayfRequest request, Class<T> elementType, Consumer<? super T> consumer) {
+            lastRequest = request;
+        }
+    }
+}
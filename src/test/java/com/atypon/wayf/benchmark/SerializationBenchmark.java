@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.benchmark;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.SerializationHandler;
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips of IdentityProvider subtypes and device histories of varying length through
+ * SerializationHandlerObjectMapperImpl, as JSON and as Smile.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    private static final Type HISTORY_TYPE = new TypeReference<List<IdentityProviderUsage>>() {}.getType();
+
+    public enum Format {
+        JSON,
+        SMILE
+    }
+
+    @Param({"1", "10", "100"})
+    public int historySize;
+
+    @Param({"JSON", "SMILE"})
+    public Format format;
+
+    private SerializationHandler serializationHandler;
+    private List<IdentityProviderUsage> history;
+    private byte[] historyBytes;
+    private IdentityProvider[] identityProviders;
+    private byte[][] identityProviderBytes;
+
+    @Setup
+    public void setUp() throws WayfException {
+        serializationHandler = BenchmarkFixtures.serializationHandler(format);
+
+        history = BenchmarkFixtures.history(historySize);
+        historyBytes = serializationHandler.serializeToBytes(history);
+
+        identityProviders = new IdentityProvider[] {
+                BenchmarkFixtures.samlEntity(1),
+                BenchmarkFixtures.openAthensEntity(2),
+                BenchmarkFixtures.oauthEntity(3)
+        };
+
+        identityProviderBytes = new byte[identityProviders.length][];
+        for (int i = 0; i < identityProviders.length; i++) {
+            identityProviderBytes[i] = serializationHandler.serializeToBytes(identityProviders[i]);
+        }
+    }
+
+    @Benchmark
+    public void serializeIdentityProviders(Blackhole blackhole) throws WayfException {
+        for (IdentityProvider identityProvider : identityProviders) {
+            blackhole.consume(serializationHandler.serializeToBytes(identityProvider));
+        }
+    }
+
+    @Benchmark
+    public void deserializeIdentityProviders(Blackhole blackhole) throws WayfException {
+        for (byte[] bytes : identityProviderBytes) {
+            blackhole.consume((Object) serializationHandler.deserialize(bytes, IdentityProvider.class));
+        }
+    }
+
+    @Benchmark
+    public byte[] serializeHistory() throws WayfException {
+        return serializationHandler.serializeToBytes(history);
+    }
+
+    @Benchmark
+    public List<IdentityProviderUsage> deserializeHistory() throws WayfException {
+        return serializationHandler.deserialize(new ByteArrayInputStream(historyBytes), HISTORY_TYPE);
+    }
+
+    @Benchmark
+    public void deserializeHistoryEach(Blackhole blackhole) throws WayfException {
+        serializationHandler.deserializeEach(new ByteArrayInputStream(historyBytes), IdentityProviderUsage.class, blackhole::consume);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.benchmark;
+
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.impl.HttpClientConfiguration;
+import com.atypon.wayf.service.impl.HttpRequestExecutorHttp2Impl;
+import com.atypon.wayf.service.impl.HttpRequestExecutorUnirestImpl;
+import com.atypon.wayf.service.impl.VirtualThreads;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+import com.atypon.wayf.service.v1.impl.WayfServiceImpl;
+import com.atypon.wayf.simulator.LatencyDistribution;
+import com.atypon.wayf.simulator.WayfCloudSimulator;
+import com.mashape.unirest.http.Unirest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A burst of concurrent blocking getDeviceHistory calls against a simulated WAYF cloud that answers after a fixed delay.
+ * Compares the current path, Unirest on a bounded pool of platform threads, with the virtual-thread client mode. Run on
+ * Java 21 or later to get virtual threads; older runtimes fall back to platform threads for both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class VirtualThreadBenchmark {
+    private static final int PLATFORM_POOL_SIZE = 200;
+
+    public enum Execution {
+        PLATFORM_THREADS_UNIREST,
+        VIRTUAL_THREADS
+    }
+
+    @Param({"PLATFORM_THREADS_UNIREST", "VIRTUAL_THREADS"})
+    public Execution execution;
+
+    @Param({"2000"})
+    public int concurrency;
+
+    @Param({"20"})
+    public long responseDelayMillis;
+
+    private WayfCloudSimulator simulator;
+    private ExecutorService callers;
+    private HttpRequestExecutor<WayfRequest> executor;
+    private WayfSynchronousService service;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SerializationHandler serializationHandler = BenchmarkFixtures.serializationHandler();
+
+        simulator = new WayfCloudSimulator()
+                .serializationHandler(serializationHandler)
+                .latency(LatencyDistribution.fixed(responseDelayMillis))
+                .seedHistory(BenchmarkFixtures.LOCAL_ID, BenchmarkFixtures.history(10))
+                .start();
+
+        // The simulator only speaks HTTP/1.1, so both arms get a connection per concurrent call and only the threading
+        // differs
+        if (execution == Execution.PLATFORM_THREADS_UNIREST) {
+            callers = Executors.newFixedThreadPool(PLATFORM_POOL_SIZE);
+            Unirest.setConcurrency(concurrency, concurrency);
+            executor = new HttpRequestExecutorUnirestImpl(serializationHandler);
+        } else {
+            callers = VirtualThreads.newThreadPerTaskExecutor("wayf-benchmark-");
+            executor = new HttpRequestExecutorHttp2Impl(serializationHandler, new HttpClientConfiguration()
+                    .maxConnectionsTotal(concurrency)
+                    .maxConnectionsPerRoute(concurrency));
+        }
+
+        service = new WayfServiceImpl()
+                .baseUrl(simulator.getBaseUrl())
+                .publisherApiToken(BenchmarkFixtures.API_TOKEN)
+                .serializationHandler(serializationHandler)
+                .httpRequestExecutor(executor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        callers.shutdownNow();
+
+        if (executor instanceof Closeable) {
+            ((Closeable) executor).close();
+        }
+
+        simulator.close();
+    }
+
+    @Benchmark
+    public int concurrentGetDeviceHistory() throws Exception {
+        List<Future<List<IdentityProviderUsage>>> results = new ArrayList<>(concurrency);
+
+        for (int i = 0; i < concurrency; i++) {
+            results.add(callers.submit(() -> service.getDeviceHistory(BenchmarkFixtures.LOCAL_ID)));
+        }
+
+        int usages = 0;
+        for (Future<List<IdentityProviderUsage>> result : results) {
+            usages += result.get().size();
+        }
+
+        return usages;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.loadtest;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.SamlEntity;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives open-loop load through a {@link WayfSynchronousService}: requests are scheduled at the target rate whatever
+ * the service's response times, as independent users' logins arrive, and handed to a pool of workers. A closed loop,
+ * where each worker waits for its response before sending the next request, would instead slow down exactly when the
+ * service degrades and hide the latency users would see.
+ */
+final class LoadGenerator {
+    enum Arrival {
+        CONSTANT,
+        POISSON
+    }
+
+    private static final int IDENTITY_PROVIDER_COUNT = 50;
+
+    private final WayfSynchronousService service;
+    private final OperationMix mix;
+    private final List<String> localIds;
+    private final ConcurrentMap<String, Long> removableIdentityProviders;
+    private long drainTimeoutMillis = -1;
+
+    /**
+     * @param removableIdentityProviders an identity provider ID known to be in each device's history, if any; remove
+     *                                   operations take theirs from here, and add operations put theirs back
+     */
+    LoadGenerator(WayfSynchronousService service, OperationMix mix, List<String> localIds, ConcurrentMap<String, Long> removableIdentityProviders) {
+        if (localIds.isEmpty()) {
+            throw new IllegalArgumentException("At least one localId is required to generate load");
+        }
+
+        this.service = service;
+        this.mix = mix;
+        this.localIds = localIds;
+        this.removableIdentityProviders = removableIdentityProviders;
+    }
+
+    /**
+     * How long to wait for scheduled requests to finish once the last one has been scheduled. Defaults to the
+     * measurement's duration, and at least 30 seconds.
+     */
+    LoadGenerator drainTimeout(long duration, TimeUnit unit) {
+        this.drainTimeoutMillis = unit.toMillis(duration);
+        return this;
+    }
+
+    /**
+     * Runs the warmup and then the measurement, and waits for every scheduled request to finish. Requests scheduled
+     * during the warmup are sent but not reported. Measured requests still queued or running when the drain timeout
+     * runs out are abandoned and reported as unfinished, censored at that cutoff.
+     */
+    LoadTestReport run(double requestsPerSecond, Arrival arrival, long warmupMillis, long durationMillis, int workers, long seed) throws InterruptedException {
+        if (requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("The request rate must be positive");
+        }
+
+        LoadTestReport report = new LoadTestReport();
+        Random random = new Random(seed);
+        ExecutorService executor = Executors.newFixedThreadPool(workers, daemonThreads());
+
+        double meanIntervalNanos = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+        long start = System.nanoTime();
+        long measurementStart = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        long end = measurementStart + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+        // Kept as a double so that rounding does not drift the schedule at high rates
+        double next = start;
+        long scheduled = 0;
+        Set<Call> outstanding = ConcurrentHashMap.newKeySet();
+
+        try {
+            while (true) {
+                next += arrival == Arrival.POISSON? -Math.log(1 - random.nextDouble()) * meanIntervalNanos : meanIntervalNanos;
+
+                long intendedStart = (long) next;
+                if (intendedStart >= end) {
+                    break;
+                }
+
+                long wait;
+                while ((wait = intendedStart - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+
+                WayfOperation operation = mix.next(random);
+                String localId = localIds.get(random.nextInt(localIds.size()));
+                int identityProvider = random.nextInt(IDENTITY_PROVIDER_COUNT);
+
+                boolean measured = intendedStart >= measurementStart;
+                Call call = new Call(operation, localId, identityProvider, intendedStart, measured? report : null, outstanding);
+
+                if (measured) {
+                    scheduled++;
+                    outstanding.add(call);
+                }
+
+                executor.execute(call);
+            }
+        } finally {
+            executor.shutdown();
+
+            long timeoutMillis = drainTimeoutMillis >= 0? drainTimeoutMillis : Math.max(durationMillis, 30000);
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+
+                long cutoff = System.nanoTime();
+                for (Call call : outstanding) {
+                    call.censor(cutoff);
+                }
+            }
+        }
+
+        report.setMeasuredNanos(end - measurementStart);
+        report.setScheduled(scheduled);
+        return report;
+    }
+
+
+    static SamlEntity samlEntity(int index) {
+        SamlEntity samlEntity = new SamlEntity();
+        samlEntity.setName("Example University " + index);
+        samlEntity.setEntityId("https://idp" + index + ".example.edu/idp/shibboleth");
+        samlEntity.setFederationId("https://incommon.org");
+        return samlEntity;
+    }
+
+    // A measured call is reported exactly once: by itself when it finishes, or as unfinished if the run is cut off first
+    private final class Call implements Runnable {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int REPORTED = 2;
+
+        private final String localId;
+        private final int identityProvider;
+        private final long intendedStart;
+        private final LoadTestReport report;
+        private final Set<Call> outstanding;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private volatile WayfOperation operation;
+
+        private Call(WayfOperation operation, String localId, int identityProvider, long intendedStart, LoadTestReport report, Set<Call> outstanding) {
+            this.operation = operation;
+            this.localId = localId;
+            this.identityProvider = identityProvider;
+            this.intendedStart = intendedStart;
+            this.report = report;
+            this.outstanding = outstanding;
+        }
+
+        @Override
+        public void run() {
+            if (!state.compareAndSet(QUEUED, RUNNING)) {
+                return;
+            }
+
+            // A device with nothing known to remove gets an add instead, which gives later removes something to remove
+            Long removableId = operation == WayfOperation.REMOVE_IDENTITY_PROVIDER_OPTION? removableIdentityProviders.remove(localId) : null;
+            if (operation == WayfOperation.REMOVE_IDENTITY_PROVIDER_OPTION && removableId == null) {
+                operation = WayfOperation.ADD_IDENTITY_PROVIDER_USAGE;
+            }
+
+            long start = System.nanoTime();
+            boolean success = true;
+
+            try {
+                switch (operation) {
+                    case REGISTER_LOCAL_ID:
+                        service.registerLocalId(localId);
+                        break;
+                    case GET_DEVICE_HISTORY:
+                        service.getDeviceHistory(localId);
+                        break;
+                    case ADD_IDENTITY_PROVIDER_USAGE:
+                        IdentityProvider added = service.addIdentityProviderUsage(localId, samlEntity(identityProvider));
+                        removableIdentityProviders.put(localId, added.getId());
+                        break;
+                    case REMOVE_IDENTITY_PROVIDER_OPTION:
+                        service.removeIdentityProviderOption(localId, removableId);
+                        break;
+                }
+            } catch (WayfException | RuntimeException e) {
+                success = false;
+            }
+
+            if (report != null && state.compareAndSet(RUNNING, REPORTED)) {
+                report.record(operation, intendedStart, start, System.nanoTime(), success);
+            }
+
+            outstanding.remove(this);
+        }
+
+        private void censor(long cutoffNanos) {
+            if (state.getAndSet(REPORTED) != REPORTED) {
+                report.recordUnfinished(operation, intendedStart, cutoffNanos);
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads() {
+        AtomicInteger count = new AtomicInteger();
+
+        return runnable -> {
+            Thread thread = new Thread(runnable, "wayf-load-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.loadtest;
+
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.impl.HttpRequestExecutorHttpClientImpl;
+import com.atypon.wayf.service.v1.impl.WayfServiceImpl;
+import com.atypon.wayf.simulator.LatencyDistribution;
+import com.atypon.wayf.simulator.WayfCloudSimulator;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoadGeneratorTest {
+    private static final String API_TOKEN = "load-test-token";
+    private static final List<String> LOCAL_IDS = Arrays.asList("device-1", "device-2", "device-3");
+
+    private WayfCloudSimulator simulator;
+    private HttpRequestExecutorHttpClientImpl executor;
+
+    @After
+    public void tearDown() throws Exception {
+        if (executor != null) {
+            executor.close();
+        }
+
+        simulator.close();
+    }
+
+    @Test
+    public void testEveryScheduledRequestIsRecorded() throws Exception {
+        WayfServiceImpl service = start(new WayfCloudSimulator());
+
+        LoadTestReport report = new LoadGenerator(service, OperationMix.parse("register=1,history=2,add=2,remove=1"), LOCAL_IDS, new ConcurrentHashMap<>())
+                .run(200, LoadGenerator.Arrival.POISSON, 200, 500, 8, 1);
+
+        long recorded = 0;
+        for (WayfOperation operation : WayfOperation.values()) {
+            recorded += report.getCount(operation);
+            assertEquals(0, report.getErrors(operation));
+        }
+
+        assertEquals(report.getScheduled(), recorded);
+        assertTrue(report.getCount(WayfOperation.REMOVE_IDENTITY_PROVIDER_OPTION) > 0);
+    }
+
+    @Test
+    public void testResponseTimeIncludesTimeSpentBehindSlowRequests() throws Exception {
+        // One worker against a 20 ms service can keep up with 50 requests a second, so at 100 a second a queue builds
+        WayfServiceImpl service = start(new WayfCloudSimulator().latency(LatencyDistribution.fixed(20)));
+
+        LoadTestReport report = new LoadGenerator(service, OperationMix.parse("history=1"), LOCAL_IDS, new ConcurrentHashMap<>())
+                .run(100, LoadGenerator.Arrival.CONSTANT, 0, 1000, 1, 1);
+
+        long serviceP99 = report.getServiceTimes(WayfOperation.GET_DEVICE_HISTORY).getValueAtPercentile(99);
+        long responseP99 = report.getResponseTimes(WayfOperation.GET_DEVICE_HISTORY).getValueAtPercentile(99);
+
+        assertTrue("response p99 " + responseP99 + " vs service p99 " + serviceP99, responseP99 > 5 * serviceP99);
+    }
+
+    @Test
+    public void testRequestsUnfinishedAtTheCutoffAreReported() throws Exception {
+        // One worker against a 200 ms service gets through about 5 requests a second, far below the 100 scheduled
+        WayfServiceImpl service = start(new WayfCloudSimulator().latency(LatencyDistribution.fixed(200)));
+
+        LoadTestReport report = new LoadGenerator(service, OperationMix.parse("history=1"), LOCAL_IDS, new ConcurrentHashMap<>())
+                .drainTimeout(100, TimeUnit.MILLISECONDS)
+                .run(100, LoadGenerator.Arrival.CONSTANT, 0, 500, 1, 1);
+
+        long completed = report.getCount(WayfOperation.GET_DEVICE_HISTORY);
+        long unfinished = report.getUnfinished(WayfOperation.GET_DEVICE_HISTORY);
+
+        assertFalse(report.isValid());
+        assertTrue(unfinished > 0);
+        assertEquals(report.getScheduled(), completed + unfinished);
+        assertEquals(report.getScheduled(), report.getResponseTimes(WayfOperation.GET_DEVICE_HISTORY).getCount());
+
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        report.print(new PrintStream(printed, true, "UTF-8"), "HTTP_CLIENT", "saturated");
+        assertTrue(printed.toString("UTF-8").contains("INVALID: " + unfinished + " of " + report.getScheduled()));
+    }
+
+    private WayfServiceImpl start(WayfCloudSimulator simulator) throws Exception {
+        this.simulator = simulator.apiToken(API_TOKEN);
+
+        for (String localId : LOCAL_IDS) {
+            simulator.registerDevice(localId);
+        }
+
+        simulator.start();
+
+        SerializationHandler serializationHandler = WayfCloudSimulator.jsonSerializationHandler();
+        executor = new HttpRequestExecutorHttpClientImpl(serializationHandler);
+
+        return new WayfServiceImpl()
+                .baseUrl(simulator.getBaseUrl())
+                .publisherApiToken(API_TOKEN)
+                .serializationHandler(serializationHandler)
+                .httpRequestExecutor(executor);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.loadtest;
+
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.impl.HttpClientConfiguration;
+import com.atypon.wayf.service.impl.HttpRequestExecutorHttp2Impl;
+import com.atypon.wayf.service.impl.HttpRequestExecutorHttpClientImpl;
+import com.atypon.wayf.service.impl.HttpRequestExecutorUnirestImpl;
+import com.atypon.wayf.service.v1.impl.WayfServiceImpl;
+import com.atypon.wayf.simulator.LatencyDistribution;
+import com.atypon.wayf.simulator.WayfCloudSimulator;
+import com.mashape.unirest.http.Unirest;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the same open-loop load against a fresh {@link WayfCloudSimulator} with each transport in turn, printing a
+ * report for each and appending it to a CSV file. Run it with the {@code load-test} Maven profile.
+ */
+public final class LoadTest {
+    private static final String API_TOKEN = "load-test-token";
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestConfiguration configuration = LoadTestConfiguration.parse(args);
+
+        System.out.println("Load test: " + configuration.describe());
+
+        for (LoadTestConfiguration.Transport transport : configuration.transports) {
+            LoadTestReport report = run(configuration, transport);
+
+            report.print(System.out, transport.name(), configuration.describe());
+            report.appendCsv(configuration.report, transport.name(), configuration.describe());
+        }
+
+        System.out.println();
+        System.out.println("Report appended to " + configuration.report.toAbsolutePath());
+
+        // Unirest's client threads are not daemons
+        Unirest.shutdown();
+    }
+
+    static LoadTestReport run(LoadTestConfiguration configuration, LoadTestConfiguration.Transport transport) throws Exception {
+        List<String> localIds = new ArrayList<>(configuration.localIds);
+        for (int i = 0; i < configuration.localIds; i++) {
+            localIds.add("load-test-device-" + i);
+        }
+
+        try (WayfCloudSimulator simulator = new WayfCloudSimulator()
+                .apiToken(API_TOKEN)
+                .latency(configuration.latencyMedianMillis > 0
+                        ? LatencyDistribution.logNormal(configuration.latencyMedianMillis, configuration.latencyP99Millis)
+                        : LatencyDistribution.none())
+                .errorRate(configuration.errorRate, 503)
+                .workerThreads(configuration.serverWorkerThreads)
+                .seed(configuration.seed)) {
+
+            if (transport == LoadTestConfiguration.Transport.HTTP2) {
+                simulator.http2();
+            }
+
+            for (String localId : localIds) {
+                simulator.seedHistory(localId, history(configuration.initialHistorySize));
+            }
+
+            simulator.start();
+
+            SerializationHandler serializationHandler = WayfCloudSimulator.jsonSerializationHandler();
+            HttpRequestExecutor<WayfRequest> executor = executor(transport, serializationHandler, configuration.workers);
+
+            try {
+                WayfServiceImpl service = new WayfServiceImpl()
+                        .baseUrl(simulator.getBaseUrl())
+                        .publisherApiToken(API_TOKEN)
+                        .serializationHandler(serializationHandler)
+                        .httpRequestExecutor(executor);
+
+                return new LoadGenerator(service, configuration.mix, localIds, new ConcurrentHashMap<>())
+                        .run(configuration.requestsPerSecond, configuration.arrival,
+                                TimeUnit.SECONDS.toMillis(configuration.warmupSeconds), TimeUnit.SECONDS.toMillis(configuration.durationSeconds),
+                                configuration.workers, configuration.seed);
+            } finally {
+                if (executor instanceof Closeable) {
+                    ((Closeable) executor).close();
+                }
+            }
+        }
+    }
+
+    // Every transport gets as many connections as there are workers, so the pool is never what is being measured
+    private static HttpRequestExecutor<WayfRequest> executor(LoadTestConfiguration.Transport transport, SerializationHandler serializationHandler, int workers) {
+        HttpClientConfiguration httpClientConfiguration = new HttpClientConfiguration()
+                .maxConnectionsTotal(workers)
+                .maxConnectionsPerRoute(workers);
+
+        switch (transport) {
+            case HTTP_CLIENT:
+                return new HttpRequestExecutorHttpClientImpl(serializationHandler, httpClientConfiguration);
+            case HTTP2:
+                return new HttpRequestExecutorHttp2Impl(serializationHandler, httpClientConfiguration, HttpVersionPolicy.FORCE_HTTP_2);
+            default:
+                Unirest.setConcurrency(workers, workers);
+                return new HttpRequestExecutorUnirestImpl(serializationHandler);
+        }
+    }
+
+    private static List<IdentityProviderUsage> history(int size) {
+        List<IdentityProviderUsage> history = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            IdentityProviderUsage usage = new IdentityProviderUsage();
+            usage.setIdp(LoadGenerator.samlEntity(i));
+            usage.setFrequency(1.0 / (i + 1));
+            usage.setLastActiveDate(new Date(1501581600000L + i * 60000L));
+            history.add(usage);
+        }
+
+        return history;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.loadtest;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The settings of one load test, parsed from {@code key=value} arguments. Every setting has a default, so a run with
+ * no arguments is a short smoke test of every transport.
+ */
+final class LoadTestConfiguration {
+    enum Transport {
+        UNIREST,
+        HTTP_CLIENT,
+        HTTP2
+    }
+
+    double requestsPerSecond = 500;
+    LoadGenerator.Arrival arrival = LoadGenerator.Arrival.POISSON;
+    long warmupSeconds = 5;
+    long durationSeconds = 30;
+    OperationMix mix = OperationMix.parse("register=5,history=70,add=20,remove=5");
+    int localIds = 10000;
+    int initialHistorySize = 10;
+    int workers = 64;
+    List<Transport> transports = new ArrayList<>();
+    double latencyMedianMillis = 5;
+    double latencyP99Millis = 50;
+    int serverWorkerThreads = 64;
+    double errorRate = 0;
+    long seed = 42;
+    Path report = Paths.get("target", "load-test", "report.csv");
+
+    private LoadTestConfiguration() {
+        for (Transport transport : Transport.values()) {
+            transports.add(transport);
+        }
+    }
+
+    static LoadTestConfiguration parse(String... args) {
+        Map<String, String> settings = new HashMap<>();
+
+        for (String arg : args) {
+            if (arg.trim().isEmpty()) {
+                continue;
+            }
+
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected key=value but got [" + arg + "]");
+            }
+
+            settings.put(arg.substring(0, separator).trim(), arg.substring(separator + 1).trim());
+        }
+
+        LoadTestConfiguration configuration = new LoadTestConfiguration();
+
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            String value = setting.getValue();
+
+            switch (setting.getKey()) {
+                case "rate":
+                    configuration.requestsPerSecond = Double.parseDouble(value);
+                    break;
+                case "arrival":
+                    configuration.arrival = LoadGenerator.Arrival.valueOf(value.toUpperCase(Locale.ROOT));
+                    break;
+                case "warmup":
+                    configuration.warmupSeconds = Long.parseLong(value);
+                    break;
+                case "duration":
+                    configuration.durationSeconds = Long.parseLong(value);
+                    break;
+                case "mix":
+                    configuration.mix = OperationMix.parse(value);
+                    break;
+                case "localIds":
+                    configuration.localIds = Integer.parseInt(value);
+                    break;
+                case "historySize":
+                    configuration.initialHistorySize = Integer.parseInt(value);
+                    break;
+                case "workers":
+                    configuration.workers = Integer.parseInt(value);
+                    break;
+                case "transports":
+                    configuration.transports.clear();
+                    for (String transport : value.split(",")) {
+                        configuration.transports.add(Transport.valueOf(transport.trim().toUpperCase(Locale.ROOT)));
+                    }
+                    break;
+                case "latencyMedian":
+                    configuration.latencyMedianMillis = Double.parseDouble(value);
+                    break;
+                case "latencyP99":
+                    configuration.latencyP99Millis = Double.parseDouble(value);
+                    break;
+                case "serverThreads":
+                    configuration.serverWorkerThreads = Integer.parseInt(value);
+                    break;
+                case "errorRate":
+                    configuration.errorRate = Double.parseDouble(value);
+                    break;
+                case "seed":
+                    configuration.seed = Long.parseLong(value);
+                    break;
+                case "report":
+                    configuration.report = Paths.get(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown load test setting [" + setting.getKey() + "]");
+            }
+        }
+
+        return configuration;
+    }
+
+    /**
+     * Everything but the transport, so that rows of the report can be grouped by the configuration they ran under.
+     */
+    String describe() {
+        return String.format(Locale.ROOT, "rate=%s arrival=%s duration=%ds mix=%s localIds=%d historySize=%d workers=%d latency=%s/%sms serverThreads=%d errorRate=%s",
+                requestsPerSecond, arrival, durationSeconds, mix, localIds, initialHistorySize, workers,
+                latencyMedianMillis, latencyP99Millis, serverWorkerThreads, errorRate);
+    }
+}
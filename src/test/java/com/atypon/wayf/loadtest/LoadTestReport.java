@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.loadtest;
+
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.service.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-operation results of one load test run. Response time is measured from when a request was scheduled to start,
+ * so time spent waiting behind earlier, slower requests is counted instead of silently omitted; service time is
+ * measured from when it actually started, and is what a closed-loop benchmark would report.
+ * <p>
+ * Requests still unfinished when the run was cut off are counted separately and their response times are recorded as
+ * censored at the cutoff, which understates them. Such a run is not valid: the service could not keep up with the
+ * offered rate, and its percentiles are only lower bounds.
+ */
+final class LoadTestReport {
+    private static final String CSV_HEADER = "transport,configuration,operation,count,errors,unfinished,throughputPerSecond,"
+            + "p50Millis,p90Millis,p99Millis,p999Millis,maxMillis,serviceP50Millis,serviceP99Millis,valid";
+
+    private final Map<WayfOperation, OperationResults> results = new EnumMap<>(WayfOperation.class);
+    private long measuredNanos;
+    private long scheduled;
+
+    LoadTestReport() {
+        for (WayfOperation operation : WayfOperation.values()) {
+            results.put(operation, new OperationResults());
+        }
+    }
+
+    void record(WayfOperation operation, long intendedStartNanos, long startNanos, long endNanos, boolean success) {
+        OperationResults operationResults = results.get(operation);
+
+        operationResults.responseTimes.record(Math.max(0, endNanos - intendedStartNanos));
+        operationResults.serviceTimes.record(Math.max(0, endNanos - startNanos));
+        operationResults.count.increment();
+
+        if (!success) {
+            operationResults.errors.increment();
+        }
+    }
+
+    void recordUnfinished(WayfOperation operation, long intendedStartNanos, long cutoffNanos) {
+        OperationResults operationResults = results.get(operation);
+
+        operationResults.responseTimes.record(Math.max(0, cutoffNanos - intendedStartNanos));
+        operationResults.unfinished.increment();
+    }
+
+    void setMeasuredNanos(long measuredNanos) {
+        this.measuredNanos = measuredNanos;
+    }
+
+    void setScheduled(long scheduled) {
+        this.scheduled = scheduled;
+    }
+
+    /**
+     * Requests scheduled during the measurement; more than were completed if the run ended with requests unfinished.
+     */
+    long getScheduled() {
+        return scheduled;
+    }
+
+    long getCount(WayfOperation operation) {
+        return results.get(operation).count.sum();
+    }
+
+    long getErrors(WayfOperation operation) {
+        return results.get(operation).errors.sum();
+    }
+
+    long getUnfinished(WayfOperation operation) {
+        return results.get(operation).unfinished.sum();
+    }
+
+    long getUnfinished() {
+        long unfinished = 0;
+        for (OperationResults operationResults : results.values()) {
+            unfinished += operationResults.unfinished.sum();
+        }
+
+        return unfinished;
+    }
+
+    boolean isValid() {
+        return getUnfinished() == 0;
+    }
+
+    LatencyHistogram getResponseTimes(WayfOperation operation) {
+        return results.get(operation).responseTimes;
+    }
+
+    LatencyHistogram getServiceTimes(WayfOperation operation) {
+        return results.get(operation).serviceTimes;
+    }
+
+    void print(PrintStream out, String transport, String configuration) {
+        out.println();
+        out.println(transport + " (" + configuration + ")");
+        out.println(String.format(Locale.ROOT, "%-10s %9s %7s %10s %10s %9s %9s %9s %9s %9s | %9s %9s",
+                "operation", "count", "errors", "unfinished", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "svc p50", "svc p99"));
+
+        for (Map.Entry<WayfOperation, OperationResults> entry : results.entrySet()) {
+            OperationResults operationResults = entry.getValue();
+            if (operationResults.isEmpty()) {
+                continue;
+            }
+
+            LatencyHistogram responseTimes = operationResults.responseTimes;
+            LatencyHistogram serviceTimes = operationResults.serviceTimes;
+
+            out.println(String.format(Locale.ROOT, "%-10s %9d %7d %10d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f | %9.2f %9.2f",
+                    OperationMix.name(entry.getKey()),
+                    operationResults.count.sum(),
+                    operationResults.errors.sum(),
+                    operationResults.unfinished.sum(),
+                    throughput(operationResults.count.sum()),
+                    millis(responseTimes.getValueAtPercentile(50)),
+                    millis(responseTimes.getValueAtPercentile(90)),
+                    millis(responseTimes.getValueAtPercentile(99)),
+                    millis(responseTimes.getValueAtPercentile(99.9)),
+                    millis(responseTimes.getMax()),
+                    millis(serviceTimes.getValueAtPercentile(50)),
+                    millis(serviceTimes.getValueAtPercentile(99))));
+        }
+
+        if (!isValid()) {
+            out.println(String.format(Locale.ROOT, "INVALID: %d of %d scheduled requests were unfinished at the cutoff; "
+                    + "their response times are censored there, so percentiles are lower bounds", getUnfinished(), scheduled));
+        }
+    }
+
+    /**
+     * Appends one row per operation, so that runs of different transports and configurations can be compared.
+     */
+    void appendCsv(Path file, String transport, String configuration) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+
+        boolean newFile = !Files.exists(file);
+
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (newFile) {
+                writer.write(CSV_HEADER);
+                writer.write('\n');
+            }
+
+            for (Map.Entry<WayfOperation, OperationResults> entry : results.entrySet()) {
+                OperationResults operationResults = entry.getValue();
+                if (operationResults.isEmpty()) {
+                    continue;
+                }
+
+                LatencyHistogram responseTimes = operationResults.responseTimes;
+                LatencyHistogram serviceTimes = operationResults.serviceTimes;
+
+                writer.write(String.format(Locale.ROOT, "%s,\"%s\",%s,%d,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%b%n",
+                        transport,
+                        configuration,
+                        OperationMix.name(entry.getKey()),
+                        operationResults.count.sum(),
+                        operationResults.errors.sum(),
+                        operationResults.unfinished.sum(),
+                        throughput(operationResults.count.sum()),
+                        millis(responseTimes.getValueAtPercentile(50)),
+                        millis(responseTimes.getValueAtPercentile(90)),
+                        millis(responseTimes.getValueAtPercentile(99)),
+                        millis(responseTimes.getValueAtPercentile(99.9)),
+                        millis(responseTimes.getMax()),
+                        millis(serviceTimes.getValueAtPercentile(50)),
+                        millis(serviceTimes.getValueAtPercentile(99)),
+                        isValid()));
+            }
+        }
+    }
+
+    private double throughput(long count) {
+        return measuredNanos > 0? count * (double) TimeUnit.SECONDS.toNanos(1) / measuredNanos : 0;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static final class OperationResults {
+        private final LatencyHistogram responseTimes = new LatencyHistogram();
+        private final LatencyHistogram serviceTimes = new LatencyHistogram();
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder unfinished = new LongAdder();
+
+        private boolean isEmpty() {
+            return count.sum() == 0 && unfinished.sum() == 0;
+        }
+    }
+}
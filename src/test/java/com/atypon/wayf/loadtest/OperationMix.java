@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.loadtest;
+
+import com.atypon.wayf.data.WayfOperation;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Relative weights of the four WAYF operations, parsed from e.g. {@code register=5,history=70,add=20,remove=5}.
+ */
+final class OperationMix {
+    private final Map<WayfOperation, Integer> weights;
+    private final WayfOperation[] operations;
+    private final int[] cumulativeWeights;
+
+    private OperationMix(Map<WayfOperation, Integer> weights) {
+        this.weights = weights;
+        this.operations = weights.keySet().toArray(new WayfOperation[0]);
+        this.cumulativeWeights = new int[operations.length];
+
+        int total = 0;
+        for (int i = 0; i < operations.length; i++) {
+            total += weights.get(operations[i]);
+            cumulativeWeights[i] = total;
+        }
+
+        if (total <= 0) {
+            throw new IllegalArgumentException("An operation mix needs at least one positive weight");
+        }
+    }
+
+    static OperationMix parse(String mix) {
+        Map<WayfOperation, Integer> weights = new EnumMap<>(WayfOperation.class);
+
+        for (String entry : mix.split(",")) {
+            String[] nameAndWeight = entry.trim().split("=");
+            if (nameAndWeight.length != 2) {
+                throw new IllegalArgumentException("Expected name=weight in operation mix [" + mix + "]");
+            }
+
+            int weight = Integer.parseInt(nameAndWeight[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Operation weights must not be negative");
+            }
+
+            if (weight > 0) {
+                weights.put(operation(nameAndWeight[0].trim()), weight);
+            }
+        }
+
+        return new OperationMix(weights);
+    }
+
+    WayfOperation next(Random random) {
+        int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (value < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+
+        return operations[operations.length - 1];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder mix = new StringBuilder();
+
+        for (Map.Entry<WayfOperation, Integer> weight : weights.entrySet()) {
+            if (mix.length() > 0) {
+                mix.append(',');
+            }
+
+            mix.append(name(weight.getKey())).append('=').append(weight.getValue());
+        }
+
+        return mix.toString();
+    }
+
+    static String name(WayfOperation operation) {
+        switch (operation) {
+            case REGISTER_LOCAL_ID:
+                return "register";
+            case GET_DEVICE_HISTORY:
+                return "history";
+            case ADD_IDENTITY_PROVIDER_USAGE:
+                return "add";
+            default:
+                return "remove";
+        }
+    }
+
+    private static WayfOperation operation(String name) {
+        for (WayfOperation operation : WayfOperation.values()) {
+            if (name(operation).equalsIgnoreCase(name)) {
+                return operation;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown operation [" + name + "]; expected register, history, add or remove");
+    }
+}
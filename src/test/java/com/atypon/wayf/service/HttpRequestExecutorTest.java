@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service;
+
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that transports written against either execute signature work through the other.
+ */
+public class HttpRequestExecutorTest {
+    private static final String HISTORY = "[{\"frequency\":3},{\"frequency\":5}]";
+
+    @Test
+    public void testOriginalTransportServesOperationCalls() throws Exception {
+        OriginalExecutor executor = new OriginalExecutor();
+
+        List<?> history = executor.execute(WayfOperation.GET_DEVICE_HISTORY, HISTORY, new TypeReference<List<IdentityProviderUsage>>() {}.getType());
+        assertEquals(2, history.size());
+
+        List<IdentityProviderUsage> usages = new ArrayList<>();
+        executor.executeForEach(WayfOperation.GET_DEVICE_HISTORY, HISTORY, IdentityProviderUsage.class, usages::add);
+        assertEquals(5.0, usages.get(1).getFrequency(), 0);
+    }
+
+    @Test
+    public void testOriginalSignatureReachesOperationTransportWithoutOperation() throws Exception {
+        OperationExecutor executor = new OperationExecutor();
+
+        List<?> history = executor.execute(HISTORY, List.class);
+
+        assertEquals(2, history.size());
+        assertNull(executor.operation);
+    }
+
+    @Test
+    public void testTransportImplementingNeitherSignatureFailsClearly() throws Exception {
+        HttpRequestExecutor<String> executor = new HttpRequestExecutor<String>() {};
+
+        try {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, HISTORY, (Type) List.class);
+            fail("Expected a transport without execute to be rejected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("must implement"));
+        }
+    }
+
+    private static class OriginalExecutor implements HttpRequestExecutor<String> {
+        private final ObjectMapper mapper = new ObjectMapper();
+
+        @Override
+        public <T> T execute(String request, Class<T> responseClass) {
+            try {
+                return mapper.readValue(request, responseClass);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static class OperationExecutor implements HttpRequestExecutor<String> {
+        private final ObjectMapper mapper = new ObjectMapper();
+        private WayfOperation operation = WayfOperation.REGISTER_LOCAL_ID;
+
+        @Override
+        public <T> T execute(WayfOperation operation, String request, Type responseType) {
+            this.operation = operation;
+
+            try {
+                return mapper.readValue(request, mapper.constructType(responseType));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
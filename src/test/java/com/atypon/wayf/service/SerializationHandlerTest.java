@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a handler implementing only the original String-based methods still supports the newer ones.
+ */
+public class SerializationHandlerTest {
+    private static final String HISTORY = "[{\"frequency\":3},{\"frequency\":5}]";
+
+    private final SerializationHandler handler = new StringOnlySerializationHandler();
+
+    @Test
+    public void testStreamIsDeserializedThroughStringMethod() throws Exception {
+        List<?> history = handler.deserialize(stream(HISTORY), (Type) List.class);
+
+        assertEquals(2, history.size());
+    }
+
+    @Test
+    public void testStreamElementsAreDeserializedThroughStringMethod() throws Exception {
+        List<IdentityProviderUsage> usages = new ArrayList<>();
+
+        handler.deserializeEach(stream(HISTORY), IdentityProviderUsage.class, usages::add);
+
+        assertEquals(2, usages.size());
+        assertEquals(5.0, usages.get(1).getFrequency(), 0);
+    }
+
+    @Test
+    public void testBytesAreReadAndWrittenThroughStringMethods() throws Exception {
+        IdentityProviderUsage usage = new IdentityProviderUsage();
+        usage.setFrequency(3.0);
+
+        byte[] bytes = handler.serializeToBytes(usage);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        handler.serialize(usage, stream);
+
+        assertEquals(handler.serialize(usage), new String(stream.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(3.0, handler.<IdentityProviderUsage>deserialize(bytes, IdentityProviderUsage.class).getFrequency(), 0);
+    }
+
+    private static ByteArrayInputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class StringOnlySerializationHandler implements SerializationHandler {
+        private final ObjectMapper mapper = new ObjectMapper();
+
+        @Override
+        public <T> T deserialize(String json, Class<T> returnType) throws WayfException {
+            try {
+                return mapper.readValue(json, returnType);
+            } catch (IOException e) {
+                throw new WayfException("Could not deserialize type", e);
+            }
+        }
+
+        @Override
+        public String serialize(Object toSerialize) throws WayfException {
+            try {
+                return mapper.writeValueAsString(toSerialize);
+            } catch (IOException e) {
+                throw new WayfException("Could not serialize type", e);
+            }
+        }
+    }
+}
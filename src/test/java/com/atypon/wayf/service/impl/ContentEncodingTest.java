@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import com.atypon.wayf.service.metrics.RequestMetrics;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContentEncodingTest {
+    private static final byte[] RESPONSE_BODY = responseBody();
+
+    private final List<String> acceptEncodings = new CopyOnWriteArrayList<>();
+    private final List<String> contentEncodings = new CopyOnWriteArrayList<>();
+    private final List<byte[]> requestBodies = new CopyOnWriteArrayList<>();
+    private final List<RequestMetrics> metrics = new CopyOnWriteArrayList<>();
+
+    private HttpServer server;
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testDecodesGzipAndBothKindsOfDeflate() throws Exception {
+        byte[] bytes = "{\"name\":\"Example University\"}".getBytes(StandardCharsets.UTF_8);
+
+        assertArrayEquals(bytes, read(ContentEncoding.decode("gzip", new ByteArrayInputStream(ContentEncoding.gzip(bytes)))));
+        assertArrayEquals(bytes, read(ContentEncoding.decode("deflate", new ByteArrayInputStream(deflate(bytes, false)))));
+        assertArrayEquals(bytes, read(ContentEncoding.decode("deflate", new ByteArrayInputStream(deflate(bytes, true)))));
+        assertArrayEquals(bytes, read(ContentEncoding.decode(null, new ByteArrayInputStream(bytes))));
+    }
+
+    @Test
+    public void testEmptyBodyIsReadAsIdentity() throws Exception {
+        assertArrayEquals(new byte[0], read(ContentEncoding.decode("gzip", new ByteArrayInputStream(new byte[0]))));
+        assertArrayEquals(new byte[0], read(ContentEncoding.decode("deflate", new ByteArrayInputStream(new byte[0]))));
+        assertArrayEquals(new byte[0], read(ContentEncoding.decode("br", new ByteArrayInputStream(new byte[0]))));
+    }
+
+    @Test
+    public void testHttpClientExecutorDecompressesResponsesAndCompressesLargeRequests() throws Exception {
+        HttpClientConfiguration configuration = new HttpClientConfiguration().requestCompressionThresholdBytes(256);
+
+        try (HttpRequestExecutorHttpClientImpl executor = new HttpRequestExecutorHttpClientImpl(
+                new SerializationHandlerObjectMapperImpl(new ObjectMapper()), configuration).metricsListener(metrics::add)) {
+            assertCompression(executor);
+        }
+    }
+
+    @Test
+    public void testHttp2ExecutorDecompressesResponsesAndCompressesLargeRequests() throws Exception {
+        HttpClientConfiguration configuration = new HttpClientConfiguration().requestCompressionThresholdBytes(256);
+
+        try (HttpRequestExecutorHttp2Impl executor = new HttpRequestExecutorHttp2Impl(
+                new SerializationHandlerObjectMapperImpl(new ObjectMapper()), configuration).metricsListener(metrics::add)) {
+            assertCompression(executor);
+        }
+    }
+
+    private void assertCompression(HttpRequestExecutor<WayfRequest> executor) throws Exception {
+        byte[] small = "{\"id\":1}".getBytes(StandardCharsets.UTF_8);
+        byte[] large = RESPONSE_BODY;
+
+        List<?> response = executor.execute(WayfOperation.ADD_IDENTITY_PROVIDER_USAGE, post(small), List.class);
+        executor.execute(WayfOperation.ADD_IDENTITY_PROVIDER_USAGE, post(large), List.class);
+
+        assertEquals(ContentEncoding.ACCEPTED_ENCODINGS, acceptEncodings.get(0));
+        assertEquals(200, response.size());
+
+        // Below the threshold the body goes out as is
+        assertEquals("null", contentEncodings.get(0));
+        assertArrayEquals(small, requestBodies.get(0));
+        assertEquals(1.0, metrics.get(0).getRequestCompressionRatio(), 0.0);
+
+        // Above it the body is gzipped, and the server inflates it back to the original
+        assertEquals(ContentEncoding.GZIP, contentEncodings.get(1));
+        assertArrayEquals(large, requestBodies.get(1));
+        assertEquals(large.length, metrics.get(1).getUncompressedBytesSent());
+        assertTrue(metrics.get(1).getBytesSent() < large.length);
+
+        RequestMetrics responseMetrics = metrics.get(0);
+        assertEquals(ContentEncoding.gzip(RESPONSE_BODY).length, responseMetrics.getBytesReceived());
+        assertEquals(RESPONSE_BODY.length, responseMetrics.getUncompressedBytesReceived());
+        assertTrue(responseMetrics.getResponseCompressionRatio() > 5);
+    }
+
+    private WayfRequest post(byte[] body) {
+        return new WayfRequest(WayfRequest.Method.POST, baseUrl + "/1/device/local-id/history/idp")
+                .header("Content-Type", "application/json; charset=UTF-8")
+                .body(body);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        acceptEncodings.add(String.valueOf(acceptEncoding));
+        contentEncodings.add(String.valueOf(contentEncoding));
+
+        try (InputStream requestBody = ContentEncoding.decode(contentEncoding, exchange.getRequestBody())) {
+            requestBodies.add(read(requestBody));
+        }
+
+        byte[] body = RESPONSE_BODY;
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            body = ContentEncoding.gzip(body);
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(body);
+        }
+
+        exchange.close();
+    }
+
+    private static byte[] responseBody() {
+        List<String> entityIds = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            entityIds.add("https://idp.example.edu/idp/shibboleth/" + i);
+        }
+
+        try {
+            return new ObjectMapper().writeValueAsBytes(entityIds);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] deflate(byte[] bytes, boolean zlib) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, !zlib);
+
+        try (DeflaterOutputStream deflating = new DeflaterOutputStream(out, deflater)) {
+            deflating.write(bytes);
+        } finally {
+            deflater.end();
+        }
+
+        return out.toByteArray();
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+}
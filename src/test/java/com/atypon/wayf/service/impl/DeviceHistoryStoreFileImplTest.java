@@ -0,0 +1,359 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.PendingWrite;
+import com.atypon.wayf.data.StoredDeviceHistory;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.data.identity.SamlEntity;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeviceHistoryStoreFileImplTest {
+    private final SerializationHandlerObjectMapperImpl serializationHandler = new SerializationHandlerObjectMapperImpl(
+            new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStateIsReplayedOnReopen() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("wayf.log");
+
+        try (DeviceHistoryStoreFileImpl store = new DeviceHistoryStoreFileImpl(file, serializationHandler)) {
+            store.putHistory("local-id", new StoredDeviceHistory(history(1L), 1000, false));
+            store.putHistory("local-id", new StoredDeviceHistory(history(2L), 2000, true));
+
+            store.addPendingWrite(pendingWrite("local-id"));
+            PendingWrite sent = store.addPendingWrite(pendingWrite("other-id"));
+            store.removePendingWrite(sent.getSequence());
+        }
+
+        try (DeviceHistoryStoreFileImpl store = new DeviceHistoryStoreFileImpl(file, serializationHandler)) {
+            StoredDeviceHistory stored = store.getHistory("local-id");
+
+            assertEquals(2000, stored.getStoredAtMillis());
+            assertTrue(stored.isRefreshRequired());
+            assertEquals(Long.valueOf(2), stored.getHistory().get(0).getIdp().getId());
+            assertTrue(stored.getHistory().get(0).getIdp() instanceof SamlEntity);
+
+            List<PendingWrite> pendingWrites = store.getPendingWrites();
+            assertEquals(1, pendingWrites.size());
+            assertEquals("local-id", pendingWrites.get(0).getLocalId());
+            assertTrue(store.hasPendingWrites("local-id"));
+
+            // Sequence numbers keep increasing across restarts
+            assertEquals(3, store.addPendingWrite(pendingWrite("local-id")).getSequence());
+        }
+    }
+
+    @Test
+    public void testIncompleteRecordIsDiscarded() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("wayf.log");
+
+        try (DeviceHistoryStoreFileImpl store = new DeviceHistoryStoreFileImpl(file, serializationHandler)) {
+            store.putHistory("local-id", new StoredDeviceHistory(history(1L), 1000, false));
+        }
+
+        long completeBytes = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 100, 1, 2, 3}));
+        }
+
+        try (DeviceHistoryStoreFileImpl store = new DeviceHistoryStoreFileImpl(file, serializationHandler)) {
+            assertEquals(1000, store.getHistory("local-id").getStoredAtMillis());
+            assertEquals(completeBytes, Files.size(file));
+        }
+    }
+
+    @Test
+    public void testCorruptRecordIsQuarantinedAndLaterRecordsAreKept() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("wayf.log");
+        long corruptOffset;
+
+        try (DeviceHistoryStoreFileImpl store = new DeviceHistoryStoreFileImpl(file, serializationHandler)) {
+            store.putHistory("first-id", new StoredDeviceHistory(history(1L), 1000, false));
+            corruptOffset = Files.size(file) + 12;
+            store.putHistory("corrupt-id", new StoredDeviceHistory(history(2L), 2000, false));
+            store.putHistory("last-id", new StoredDeviceHistory(history(3L), 3000, false));
+            store.addPendingWrite(pendingWrite("last-id"));
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {'#'}), corruptOffset);
+        }
+
+        Path quarantined = folder.getRoot().toPath().resolve("wayf.log.corrupt");
+
+        try (DeviceHistoryStoreFileImpl store = new DeviceHistoryStoreFileImpl(file, serializationHandler)) {
+            assertEquals(1000, store.getHistory("first-id").getStoredAtMillis());
+            assertNull(store.getHistory("corrupt-id"));
+            assertEquals(3000, store.getHistory("last-id").getStoredAtMillis());
+            assertEquals(1, store.getPendingWrites().size());
+            assertTrue(Files.size(quarantined) > 0);
+        }
+
+        long quarantinedBytes = Files.size(quarantined);
+
+        // The log was rewritten without the corrupt record, so it is not quarantined again
+        try (DeviceHistoryStoreFileImpl store = new DeviceHistoryStoreFileImpl(file, serializationHandler)) {
+            assertEquals(3000, store.getHistory("last-id").getStoredAtMillis());
+            assertEquals(quarantinedBytes, Files.size(quarantined));
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyStoredHistoriesWithoutPendingWritesAreEvicted() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("wayf.log");
+
+        try (DeviceHistoryStoreFileImpl store = new DeviceHistoryStoreFileImpl(file, serializationHandler).maxHistories(2)) {
+            store.putHistory("pending-id", new StoredDeviceHistory(history(1L), 1000, false));
+            store.addPendingWrite(pendingWrite("pending-id"));
+            store.putHistory("old-id", new StoredDeviceHistory(history(2L), 2000, false));
+            store.putHistory("new-id", new StoredDeviceHistory(history(3L), 3000, false));
+
+            assertEquals(1000, store.getHistory("pending-id").getStoredAtMillis());
+            assertNull(store.getHistory("old-id"));
+            assertEquals(3000, store.getHistory("new-id").getStoredAtMillis());
+
+            // Storing a history again makes it the most recent
+            store.putHistory("new-id", new StoredDeviceHistory(history(3L), 4000, false));
+            store.removePendingWrite(store.getPendingWrites().get(0).getSequence());
+            store.putHistory("old-id", new StoredDeviceHistory(history(2L), 5000, false));
+
+            assertNull(store.getHistory("pending-id"));
+            assertEquals(4000, store.getHistory("new-id").getStoredAtMillis());
+        }
+
+        try (DeviceHistoryStoreFileImpl store = new DeviceHistoryStoreFileImpl(file, serializationHandler).maxHistories(2)) {
+            assertNull(store.getHistory("pending-id"));
+            assertEquals(4000, store.getHistory("new-id").getStoredAtMillis());
+            assertEquals(5000, store.getHistory("old-id").getStoredAtMillis());
+        }
+    }
+
+    @Test
+    public void testCompactionKeepsLiveRecords() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("wayf.log");
+
+        try (DeviceHistoryStoreFileImpl store = new DeviceHistoryStoreFileImpl(file, serializationHandler).compactionThresholdBytes(4096)) {
+            for (int i = 0; i < 200; i++) {
+                store.putHistory("local-id", new StoredDeviceHistory(history((long) i), i, false));
+            }
+            store.addPendingWrite(pendingWrite("local-id"));
+
+            assertTrue(Files.size(file) < 4096 * 2);
+        }
+
+        try (DeviceHistoryStoreFileImpl store = new DeviceHistoryStoreFileImpl(file, serializationHandler)) {
+            assertEquals(199, store.getHistory("local-id").getStoredAtMillis());
+            assertEquals(1, store.getPendingWrites().size());
+        }
+    }
+
+    @Test
+    public void testFailedWriteIsRolledBack() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("wayf.log");
+
+        try (FailingStore store = new FailingStore(file)) {
+            store.addPendingWrite(pendingWrite("local-id"));
+
+            store.channel.failNextWrite = true;
+            try {
+                store.addPendingWrite(pendingWrite("torn-id"));
+                fail("Expected the write to fail");
+            } catch (WayfException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+
+            store.addPendingWrite(pendingWrite("other-id"));
+        }
+
+        try (DeviceHistoryStoreFileImpl store = new DeviceHistoryStoreFileImpl(file, serializationHandler)) {
+            List<PendingWrite> pendingWrites = store.getPendingWrites();
+
+            assertEquals(2, pendingWrites.size());
+            assertEquals("local-id", pendingWrites.get(0).getLocalId());
+            assertEquals("other-id", pendingWrites.get(1).getLocalId());
+        }
+    }
+
+    private static List<IdentityProviderUsage> history(Long identityProviderId) {
+        SamlEntity identityProvider = new SamlEntity();
+        identityProvider.setId(identityProviderId);
+        identityProvider.setEntityId("https://idp.example.com/" + identityProviderId);
+
+        IdentityProviderUsage usage = new IdentityProviderUsage();
+        usage.setIdp(identityProvider);
+        usage.setFrequency(0.5);
+
+        return Collections.singletonList(usage);
+    }
+
+    private static PendingWrite pendingWrite(String localId) {
+        PendingWrite pendingWrite = new PendingWrite();
+        pendingWrite.setOperation(WayfOperation.REMOVE_IDENTITY_PROVIDER_OPTION);
+        pendingWrite.setLocalId(localId);
+        pendingWrite.setIdentityProviderId(7L);
+        return pendingWrite;
+    }
+
+    private class FailingStore extends DeviceHistoryStoreFileImpl {
+        private FailingChannel channel;
+
+        private FailingStore(Path file) throws WayfException {
+            super(file, serializationHandler);
+        }
+
+        @Override
+        FileChannel openChannel(OpenOption... options) throws IOException {
+            channel = new FailingChannel(super.openChannel(options));
+            return channel;
+        }
+    }
+
+    // Writes half of the next record and then fails, as a full disk would
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel delegate;
+        private volatile boolean failNextWrite;
+
+        private FailingChannel(FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (failNextWrite) {
+                failNextWrite = false;
+
+                ByteBuffer half = src.duplicate();
+                half.limit(half.position() + half.remaining() / 2);
+                src.position(src.position() + delegate.write(half));
+
+                throw new IOException("No space left on device");
+            }
+
+            return delegate.write(src);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.CircuitBreakerOpenException;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.service.AsynchronousHttpRequestExecutor;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import org.junit.Test;
+
+import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpRequestExecutorCircuitBreakerImplTest {
+
+    @Test
+    public void opensOnFailuresAndClosesAfterSuccessfulProbes() throws Exception {
+        StubExecutor stub = new StubExecutor();
+        CircuitBreaker circuitBreaker = new CircuitBreaker()
+                .windowSize(10)
+                .minimumCalls(4)
+                .openDuration(50, TimeUnit.MILLISECONDS)
+                .probeCalls(2);
+        HttpRequestExecutorCircuitBreakerImpl<String> executor = new HttpRequestExecutorCircuitBreakerImpl<>(stub, circuitBreaker);
+
+        stub.status = 503;
+        for (int i = 0; i < 4; i++) {
+            expectStatus(executor, 503);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        stub.status = 200;
+        try {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, "request", String.class);
+            fail("Expected the open circuit to fail fast");
+        } catch (CircuitBreakerOpenException e) {
+            assertEquals(4, stub.calls);
+        }
+
+        Thread.sleep(60);
+
+        executor.execute(WayfOperation.GET_DEVICE_HISTORY, "request", String.class);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+
+        executor.execute(WayfOperation.GET_DEVICE_HISTORY, "request", String.class);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertEquals(6, stub.calls);
+    }
+
+    @Test
+    public void clientErrorsDoNotOpenTheCircuit() {
+        StubExecutor stub = new StubExecutor();
+        CircuitBreaker circuitBreaker = new CircuitBreaker().windowSize(10).minimumCalls(4);
+        HttpRequestExecutorCircuitBreakerImpl<String> executor = new HttpRequestExecutorCircuitBreakerImpl<>(stub, circuitBreaker);
+
+        stub.status = 404;
+        for (int i = 0; i < 10; i++) {
+            expectStatus(executor, 404);
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void opensWhenLatencyPercentileIsExceeded() throws Exception {
+        StubExecutor stub = new StubExecutor();
+        CircuitBreaker circuitBreaker = new CircuitBreaker()
+                .windowSize(10)
+                .minimumCalls(10)
+                .latencyThreshold(80, 5, TimeUnit.MILLISECONDS);
+        HttpRequestExecutorCircuitBreakerImpl<String> executor = new HttpRequestExecutorCircuitBreakerImpl<>(stub, circuitBreaker);
+
+        stub.status = 200;
+        for (int i = 0; i < 8; i++) {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, "request", String.class);
+        }
+
+        stub.delayMillis = 10;
+        executor.execute(WayfOperation.GET_DEVICE_HISTORY, "request", String.class);
+        executor.execute(WayfOperation.GET_DEVICE_HISTORY, "request", String.class);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+
+        executor.execute(WayfOperation.GET_DEVICE_HISTORY, "request", String.class);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    }
+
+    @Test
+    public void halfOpenProbeThatThrowsAnErrorIsRecorded() throws Exception {
+        StubExecutor stub = new StubExecutor();
+        CircuitBreaker circuitBreaker = new CircuitBreaker()
+                .windowSize(10)
+                .minimumCalls(2)
+                .openDuration(20, TimeUnit.MILLISECONDS)
+                .probeCalls(1);
+        HttpRequestExecutorCircuitBreakerImpl<String> executor = new HttpRequestExecutorCircuitBreakerImpl<>(stub, circuitBreaker);
+
+        stub.status = 503;
+        expectStatus(executor, 503);
+        expectStatus(executor, 503);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        Thread.sleep(30);
+
+        stub.error = new AssertionError("probe failed");
+        try {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, "request", String.class);
+            fail("Expected the probe's error to propagate");
+        } catch (AssertionError e) {
+            assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        }
+
+        Thread.sleep(30);
+
+        stub.error = null;
+        stub.status = 200;
+        executor.execute(WayfOperation.GET_DEVICE_HISTORY, "request", String.class);
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void consumerExceptionsDoNotOpenTheCircuit() throws Exception {
+        StubExecutor stub = new StubExecutor();
+        CircuitBreaker circuitBreaker = new CircuitBreaker().windowSize(10).minimumCalls(4);
+        HttpRequestExecutorCircuitBreakerImpl<String> executor = new HttpRequestExecutorCircuitBreakerImpl<>(stub, circuitBreaker);
+
+        stub.status = 200;
+        for (int i = 0; i < 10; i++) {
+            try {
+                executor.executeForEach(WayfOperation.GET_DEVICE_HISTORY, "request", String.class, element -> {
+                    throw new IllegalStateException("caller failed");
+                });
+                fail("Expected the consumer's exception to propagate");
+            } catch (WayfException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    }
+
+    @Test
+    public void asynchronousExecutorFailsFastWhileOpen() throws Exception {
+        StubExecutor stub = new StubExecutor();
+        CircuitBreaker circuitBreaker = new CircuitBreaker().windowSize(10).minimumCalls(4);
+        AsynchronousHttpRequestExecutorCircuitBreakerImpl<String> executor = new AsynchronousHttpRequestExecutorCircuitBreakerImpl<>(stub, circuitBreaker);
+
+        stub.status = 503;
+        for (int i = 0; i < 4; i++) {
+            assertEquals(503, ((WayfException) asyncFailure(executor)).getStatus());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+
+        stub.status = 200;
+        assertTrue(asyncFailure(executor) instanceof CircuitBreakerOpenException);
+        assertEquals(4, stub.calls);
+    }
+
+    private static Throwable asyncFailure(AsynchronousHttpRequestExecutor<String> executor) throws InterruptedException {
+        try {
+            executor.executeAsync(WayfOperation.GET_DEVICE_HISTORY, "request", String.class).get();
+            fail("Expected the future to fail");
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    private static void expectStatus(HttpRequestExecutor<String> executor, int status) {
+        try {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, "request", String.class);
+            fail("Expected a WayfException");
+        } catch (WayfException e) {
+            assertEquals(status, e.getStatus());
+        }
+    }
+
+    private static class StubExecutor implements HttpRequestExecutor<String>, AsynchronousHttpRequestExecutor<String> {
+        private volatile int status;
+        private volatile long delayMillis;
+        private volatile Error error;
+        private int calls;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T execute(WayfOperation operation, String request, Type responseType) throws WayfException {
+            calls++;
+
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (error != null) {
+                throw error;
+            }
+
+            if (status > 299) {
+                throw new WayfException(status, "failed");
+            }
+
+            return (T) request;
+        }
+
+        @Override
+        public <T> void executeForEach(WayfOperation operation, String request, Class<T> elementType, Consumer<? super T> consumer) throws WayfException {
+            T element = execute(operation, request, elementType);
+
+            // Like the real transports, the consumer's exception surfaces wrapped
+            try {
+                consumer.accept(element);
+            } catch (RuntimeException e) {
+                throw new WayfException("Could not read the response", e);
+            }
+        }
+
+        @Override
+        public <T> CompletableFuture<T> executeAsync(WayfOperation operation, String request, Type responseType) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            try {
+                future.complete(execute(operation, request, responseType));
+            } catch (WayfException e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+    }
+}
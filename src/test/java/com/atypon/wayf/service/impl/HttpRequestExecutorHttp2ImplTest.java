@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.WayfRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpVersion;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.StringAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpRequestExecutorHttp2ImplTest {
+    private final ConcurrentLinkedQueue<Message<HttpRequest, String>> received = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ScheduledExecutorService responder = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile int responseStatus = 200;
+    private volatile long responseDelayMillis;
+
+    private HttpAsyncServer server;
+    private HttpRequestExecutorHttp2Impl executor;
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        server = H2ServerBootstrap.bootstrap()
+                .setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2)
+                .register("*", new EchoHandler())
+                .setIOSessionDecorator(session -> {
+                    connections.incrementAndGet();
+                    return session;
+                })
+                .create();
+        server.start();
+
+        ListenerEndpoint endpoint = server.listen(new InetSocketAddress("localhost", 0), URIScheme.HTTP).get(5, TimeUnit.SECONDS);
+        baseUrl = "http://localhost:" + ((InetSocketAddress) endpoint.getAddress()).getPort();
+
+        executor = new HttpRequestExecutorHttp2Impl(new SerializationHandlerObjectMapperImpl(new ObjectMapper()), new HttpClientConfiguration(), HttpVersionPolicy.FORCE_HTTP_2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.close();
+        server.close(CloseMode.IMMEDIATE);
+        responder.shutdownNow();
+    }
+
+    @Test
+    public void testSynchronousRequestUsesHttp2() throws Exception {
+        WayfRequest request = new WayfRequest(WayfRequest.Method.GET, baseUrl + "/1/device/local%252Fid/history")
+                .header("Authorization", "Token token");
+
+        Map<?, ?> response = executor.execute(WayfOperation.GET_DEVICE_HISTORY, request, Map.class);
+
+        Message<HttpRequest, String> message = received.poll();
+        assertEquals(HttpVersion.HTTP_2, message.getHead().getVersion());
+        assertEquals("/1/device/local%252Fid/history", message.getHead().getPath());
+        assertEquals("Token token", message.getHead().getFirstHeader("Authorization").getValue());
+        assertEquals("GET", response.get("method"));
+    }
+
+    @Test
+    public void testAsynchronousRequestSendsBody() throws Exception {
+        WayfRequest request = new WayfRequest(WayfRequest.Method.POST, baseUrl + "/1/device/local-id/history")
+                .header("Content-Type", "application/json; charset=UTF-8")
+                .body("{\"id\":1}".getBytes("UTF-8"));
+
+        Map<?, ?> response = executor.<Map<?, ?>>executeAsync(WayfOperation.ADD_IDENTITY_PROVIDER_USAGE, request, Map.class).get(5, TimeUnit.SECONDS);
+
+        Message<HttpRequest, String> message = received.poll();
+        assertEquals("{\"id\":1}", message.getBody());
+        assertEquals("application/json; charset=UTF-8", message.getHead().getFirstHeader("Content-Type").getValue());
+        assertEquals(1, message.getHead().getHeaders("Content-Type").length);
+        assertEquals("POST", response.get("method"));
+    }
+
+    @Test
+    public void testErrorStatusAndRetryAfterArePropagated() throws Exception {
+        responseStatus = 503;
+        WayfRequest request = new WayfRequest(WayfRequest.Method.GET, baseUrl + "/1/device/local-id/history");
+
+        try {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, request, Map.class);
+            fail("Expected a 503 to fail the request");
+        } catch (WayfException e) {
+            assertEquals(503, e.getStatus());
+            assertEquals(TimeUnit.SECONDS.toMillis(2), e.getRetryAfterMillis());
+        }
+
+        try {
+            executor.executeAsync(WayfOperation.GET_DEVICE_HISTORY, request, Map.class).get(5, TimeUnit.SECONDS);
+            fail("Expected a 503 to fail the request");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof WayfException);
+            assertEquals(503, ((WayfException) e.getCause()).getStatus());
+        }
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneConnection() throws Exception {
+        responseDelayMillis = 300;
+        WayfRequest request = new WayfRequest(WayfRequest.Method.GET, baseUrl + "/1/device/local-id/history");
+
+        List<CompletableFuture<Map<?, ?>>> responses = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            responses.add(executor.<Map<?, ?>>executeAsync(WayfOperation.GET_DEVICE_HISTORY, request, Map.class));
+        }
+
+        for (CompletableFuture<Map<?, ?>> response : responses) {
+            assertEquals("GET", response.get(5, TimeUnit.SECONDS).get("method"));
+        }
+
+        assertEquals(1, connections.get());
+    }
+
+    private class EchoHandler implements AsyncServerRequestHandler<Message<HttpRequest, String>> {
+        @Override
+        public AsyncRequestConsumer<Message<HttpRequest, String>> prepare(HttpRequest request, EntityDetails entityDetails, HttpContext context) {
+            return new BasicRequestConsumer<>(entityDetails != null? new StringAsyncEntityConsumer() : null);
+        }
+
+        @Override
+        public void handle(Message<HttpRequest, String> message, ResponseTrigger responseTrigger, HttpContext context) throws HttpException, IOException {
+            received.add(message);
+
+            AsyncResponseBuilder response = AsyncResponseBuilder.create(responseStatus);
+
+            if (responseStatus == 503) {
+                response.setHeader("Retry-After", "2")
+                        .setEntity("{\"message\":\"Unavailable\"}", ContentType.APPLICATION_JSON);
+            } else {
+                response.setEntity("{\"method\":\"" + message.getHead().getMethod() + "\"}", ContentType.APPLICATION_JSON);
+            }
+
+            if (responseDelayMillis > 0) {
+                responder.schedule(() -> {
+                    responseTrigger.submitResponse(response.build(), context);
+                    return null;
+                }, responseDelayMillis, TimeUnit.MILLISECONDS);
+            } else {
+                responseTrigger.submitResponse(response.build(), context);
+            }
+        }
+    }
+}
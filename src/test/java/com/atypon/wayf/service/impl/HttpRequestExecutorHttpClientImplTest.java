@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.service.metrics.RequestMetrics;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpRequestExecutorHttpClientImplTest {
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    private HttpServer server;
+    private HttpRequestExecutorHttpClientImpl executor;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            respond(exchange, 200, "{\"method\":\"" + exchange.getRequestMethod() + "\"}");
+        });
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200, "{}");
+        });
+        server.createContext("/unavailable", exchange -> {
+            exchange.getResponseHeaders().add("Retry-After", "2");
+            respond(exchange, 503, "{\"message\":\"Unavailable\"}");
+        });
+        server.createContext("/brotli", exchange -> {
+            int status = exchange.getRequestURI().getQuery() != null? Integer.parseInt(exchange.getRequestURI().getQuery()) : 200;
+
+            exchange.getResponseHeaders().add("Content-Encoding", "br");
+            exchange.getResponseHeaders().add("Retry-After", "2");
+            respond(exchange, status, "{}");
+        });
+        server.start();
+
+        executor = new HttpRequestExecutorHttpClientImpl(new SerializationHandlerObjectMapperImpl(new ObjectMapper()),
+                new HttpClientConfiguration().socketTimeoutMillis(200));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testResponseIsDeserialized() throws Exception {
+        Map<?, ?> response = executor.execute(WayfOperation.GET_DEVICE_HISTORY, new WayfRequest(WayfRequest.Method.GET, url("/1/device/local-id/history")), Map.class);
+
+        assertEquals("GET", response.get("method"));
+    }
+
+    @Test
+    public void testSequentialRequestsReuseOnePooledConnection() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, new WayfRequest(WayfRequest.Method.GET, url("/1/device/local-id/history")), Map.class);
+        }
+
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void testRequestSerializationTimeIsReported() throws Exception {
+        AtomicReference<RequestMetrics> reported = new AtomicReference<>();
+        executor.metricsListener(reported::set);
+
+        WayfRequest request = new WayfRequest(WayfRequest.Method.POST, url("/1/device/local-id/history"))
+                .body("{}".getBytes(StandardCharsets.UTF_8))
+                .serializationNanos(1234);
+        executor.execute(WayfOperation.ADD_IDENTITY_PROVIDER_USAGE, request, Map.class);
+
+        assertEquals(1234, reported.get().getSerializationNanos());
+    }
+
+    @Test
+    public void testErrorStatusAndRetryAfterAreMapped() {
+        try {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, new WayfRequest(WayfRequest.Method.GET, url("/unavailable")), Map.class);
+            fail("Expected a 503 to fail the request");
+        } catch (WayfException e) {
+            assertEquals(503, e.getStatus());
+            assertEquals("Unavailable", e.getMessage());
+            assertEquals(TimeUnit.SECONDS.toMillis(2), e.getRetryAfterMillis());
+        }
+    }
+
+    @Test
+    public void testUndecodableBodyKeepsTheStatus() {
+        try {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, new WayfRequest(WayfRequest.Method.GET, url("/brotli?503")), Map.class);
+            fail("Expected a 503 to fail the request");
+        } catch (WayfException e) {
+            assertEquals(503, e.getStatus());
+            assertEquals(TimeUnit.SECONDS.toMillis(2), e.getRetryAfterMillis());
+        }
+
+        try {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, new WayfRequest(WayfRequest.Method.GET, url("/brotli")), Map.class);
+            fail("Expected an undecodable body to fail the request");
+        } catch (WayfException e) {
+            assertEquals(200, e.getStatus());
+        }
+    }
+
+    @Test
+    public void testSocketTimeoutFailsWithoutStatus() {
+        try {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, new WayfRequest(WayfRequest.Method.GET, url("/slow")), Map.class);
+            fail("Expected the request to time out");
+        } catch (WayfException e) {
+            assertEquals(0, e.getStatus());
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+}
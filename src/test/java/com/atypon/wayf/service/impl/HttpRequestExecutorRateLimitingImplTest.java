@@ -0,0 +1,230 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.ConcurrencyLimitExceededException;
+import com.atypon.wayf.data.RateLimitExceededException;
+import com.atypon.wayf.data.RequestPriority;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import org.junit.Test;
+
+import java.lang.reflect.Type;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpRequestExecutorRateLimitingImplTest {
+
+    @Test
+    public void testBackgroundCallsLeaveReservedTokensForInteractiveCalls() throws Exception {
+        StubExecutor stub = new StubExecutor();
+        HttpRequestExecutorRateLimitingImpl<String> executor = new HttpRequestExecutorRateLimitingImpl<>(stub)
+                .publisherKey(request -> request)
+                .reservedForInteractive(0.4)
+                .perPublisherRateLimit(0.001, 5)
+                .maxWait(0, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 3; i++) {
+            executor.execute(WayfOperation.REGISTER_LOCAL_ID, "publisher", Void.class);
+        }
+        expectRateLimited(executor, WayfOperation.REGISTER_LOCAL_ID, "publisher");
+
+        for (int i = 0; i < 2; i++) {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, "publisher", Void.class);
+        }
+        expectRateLimited(executor, WayfOperation.GET_DEVICE_HISTORY, "publisher");
+
+        // Another publisher has a bucket of its own
+        executor.execute(WayfOperation.REGISTER_LOCAL_ID, "other-publisher", Void.class);
+
+        assertEquals(6, stub.calls.get());
+        assertEquals(1, executor.getRejectedCount(WayfOperation.REGISTER_LOCAL_ID));
+        assertEquals(1, executor.getRejectedCount(WayfOperation.GET_DEVICE_HISTORY));
+    }
+
+    @Test
+    public void testPublisherOverItsLimitLeavesSharedTokensForOthers() throws Exception {
+        StubExecutor stub = new StubExecutor();
+        HttpRequestExecutorRateLimitingImpl<String> executor = new HttpRequestExecutorRateLimitingImpl<>(stub)
+                .rateLimit(WayfOperation.GET_DEVICE_HISTORY, 0.001, 4)
+                .publisherKey(request -> request)
+                .perPublisherRateLimit(0.001, 2)
+                .maxWait(0, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < 2; i++) {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, "noisy-publisher", Void.class);
+        }
+        for (int i = 0; i < 3; i++) {
+            expectRateLimited(executor, WayfOperation.GET_DEVICE_HISTORY, "noisy-publisher");
+        }
+
+        for (int i = 0; i < 2; i++) {
+            executor.execute(WayfOperation.GET_DEVICE_HISTORY, "quiet-publisher", Void.class);
+        }
+
+        assertEquals(4, stub.calls.get());
+        assertEquals(3, executor.getRejectedCount(WayfOperation.GET_DEVICE_HISTORY));
+    }
+
+    @Test
+    public void testPublisherTokenIsReturnedWhenTheSharedLimitRejects() throws Exception {
+        StubExecutor stub = new StubExecutor();
+        HttpRequestExecutorRateLimitingImpl<String> executor = new HttpRequestExecutorRateLimitingImpl<>(stub)
+                .rateLimit(WayfOperation.GET_DEVICE_HISTORY, 0.001, 1)
+                .publisherKey(request -> request)
+                .perPublisherRateLimit(0.001, 2)
+                .maxWait(0, TimeUnit.MILLISECONDS);
+
+        executor.execute(WayfOperation.GET_DEVICE_HISTORY, "publisher", Void.class);
+        expectRateLimited(executor, WayfOperation.GET_DEVICE_HISTORY, "publisher");
+
+        // The call the shared limit rejected gave its publisher token back
+        executor.execute(WayfOperation.REGISTER_LOCAL_ID, "publisher", Void.class);
+        expectRateLimited(executor, WayfOperation.REGISTER_LOCAL_ID, "publisher");
+
+        assertEquals(2, stub.calls.get());
+    }
+
+    @Test
+    public void testOnlyIdlePublishersAreEvicted() throws Exception {
+        HttpRequestExecutorRateLimitingImpl<String> throttled = new HttpRequestExecutorRateLimitingImpl<>(new StubExecutor())
+                .publisherKey(request -> request)
+                .perPublisherRateLimit(0.001, 1)
+                .maxPublishers(1)
+                .maxWait(0, TimeUnit.MILLISECONDS);
+
+        throttled.execute(WayfOperation.GET_DEVICE_HISTORY, "a", Void.class);
+        throttled.execute(WayfOperation.GET_DEVICE_HISTORY, "b", Void.class);
+
+        // Dropping either publisher's empty bucket would hand it a fresh burst
+        assertEquals(2, throttled.getPublisherCount());
+        expectRateLimited(throttled, WayfOperation.GET_DEVICE_HISTORY, "a");
+
+        throttled.removePublisher("a");
+        assertEquals(1, throttled.getPublisherCount());
+
+        HttpRequestExecutorRateLimitingImpl<String> idle = new HttpRequestExecutorRateLimitingImpl<>(new StubExecutor())
+                .publisherKey(request -> request)
+                .perPublisherRateLimit(1000000, 1)
+                .maxPublishers(2);
+
+        for (String publisher : new String[] {"a", "b", "c"}) {
+            idle.execute(WayfOperation.GET_DEVICE_HISTORY, publisher, Void.class);
+            Thread.sleep(1);
+        }
+
+        assertEquals(1, idle.getPublisherCount());
+    }
+
+    @Test
+    public void testCallsWaitForTokens() throws Exception {
+        StubExecutor stub = new StubExecutor();
+        HttpRequestExecutorRateLimitingImpl<String> executor = new HttpRequestExecutorRateLimitingImpl<>(stub)
+                .rateLimit(WayfOperation.GET_DEVICE_HISTORY, 50, 1)
+                .maxWait(1, TimeUnit.SECONDS);
+
+        executor.execute(WayfOperation.GET_DEVICE_HISTORY, "publisher", Void.class);
+        executor.execute(WayfOperation.GET_DEVICE_HISTORY, "publisher", Void.class);
+
+        assertEquals(2, stub.calls.get());
+        assertEquals(2, executor.getWaitTimeHistogram(WayfOperation.GET_DEVICE_HISTORY).getCount());
+        assertTrue(executor.getWaitTimeHistogram(WayfOperation.GET_DEVICE_HISTORY).getMax() >= TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test
+    public void testBulkheadKeepsPermitsForInteractiveCalls() throws Exception {
+        StubExecutor stub = new StubExecutor();
+        HttpRequestExecutorRateLimitingImpl<String> executor = new HttpRequestExecutorRateLimitingImpl<>(stub)
+                .reservedForInteractive(0.5)
+                .maxConcurrentCalls(WayfOperation.REGISTER_LOCAL_ID, 2)
+                .maxWait(0, TimeUnit.MILLISECONDS);
+
+        ExecutorService callers = Executors.newSingleThreadExecutor();
+        try {
+            Future<Object> blocked = callers.submit(() -> executor.execute(WayfOperation.REGISTER_LOCAL_ID, StubExecutor.BLOCK, Void.class));
+            assertTrue(stub.entered.await(5, TimeUnit.SECONDS));
+
+            try {
+                executor.execute(WayfOperation.REGISTER_LOCAL_ID, "publisher", Void.class);
+                fail("Expected a second background call to be rejected");
+            } catch (ConcurrencyLimitExceededException e) {
+                assertEquals(1, executor.getRejectedCount(WayfOperation.REGISTER_LOCAL_ID));
+            }
+
+            executor.priority(WayfOperation.REGISTER_LOCAL_ID, RequestPriority.INTERACTIVE);
+            executor.execute(WayfOperation.REGISTER_LOCAL_ID, "publisher", Void.class);
+
+            stub.release.countDown();
+            blocked.get(5, TimeUnit.SECONDS);
+        } finally {
+            callers.shutdownNow();
+        }
+
+        assertEquals(2, stub.calls.get());
+    }
+
+    private static void expectRateLimited(HttpRequestExecutorRateLimitingImpl<String> executor, WayfOperation operation, String request) {
+        try {
+            executor.execute(operation, request, Void.class);
+            fail("Expected the call to be rate limited");
+        } catch (RateLimitExceededException e) {
+            assertTrue(e.getRetryAfterMillis() > 0);
+        } catch (WayfException e) {
+            fail("Unexpected failure " + e);
+        }
+    }
+
+    private static class StubExecutor implements HttpRequestExecutor<String> {
+        private static final String BLOCK = "block";
+
+        private final AtomicInteger calls = new AtomicInteger();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public <T> T execute(WayfOperation operation, String request, Type responseType) {
+            calls.incrementAndGet();
+
+            if (BLOCK.equals(request)) {
+                entered.countDown();
+
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public <T> void executeForEach(WayfOperation operation, String request, Class<T> elementType, Consumer<? super T> consumer) {
+            calls.incrementAndGet();
+        }
+    }
+}
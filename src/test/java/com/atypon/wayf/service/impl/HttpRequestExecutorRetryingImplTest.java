@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.service.AsynchronousHttpRequestExecutor;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import com.atypon.wayf.service.metrics.HistogramMetricsListener;
+import org.junit.Test;
+
+import java.lang.reflect.Type;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HttpRequestExecutorRetryingImplTest {
+
+    @Test
+    public void retriesIdempotentServerErrors() throws Exception {
+        StubExecutor stub = new StubExecutor(500, 502, 200);
+        HistogramMetricsListener metrics = new HistogramMetricsListener();
+        HttpRequestExecutorRetryingImpl<String> executor = new HttpRequestExecutorRetryingImpl<>(stub, fastPolicy()).metricsListener(metrics);
+
+        assertEquals("request", executor.execute(WayfOperation.GET_DEVICE_HISTORY, "request", String.class));
+        assertEquals(3, stub.calls);
+        assertEquals(2, metrics.getRetryCount(WayfOperation.GET_DEVICE_HISTORY));
+    }
+
+    @Test
+    public void onlyRetriesRejectedRequestsForNonIdempotentOperations() throws Exception {
+        StubExecutor stub = new StubExecutor(500);
+        HttpRequestExecutorRetryingImpl<String> executor = new HttpRequestExecutorRetryingImpl<>(stub, fastPolicy());
+
+        expectStatus(executor, WayfOperation.ADD_IDENTITY_PROVIDER_USAGE, 500);
+        assertEquals(1, stub.calls);
+
+        stub = new StubExecutor(429, 503, 200);
+        executor = new HttpRequestExecutorRetryingImpl<>(stub, fastPolicy());
+
+        executor.execute(WayfOperation.ADD_IDENTITY_PROVIDER_USAGE, "request", String.class);
+        assertEquals(3, stub.calls);
+    }
+
+    @Test
+    public void stopsRetryingWhenTheBudgetIsExhausted() {
+        StubExecutor stub = new StubExecutor(503, 503, 503, 503, 503, 503);
+        RetryPolicy policy = fastPolicy().maxAttempts(10).retryBudget(new RetryBudget(0, 2));
+        HttpRequestExecutorRetryingImpl<String> executor = new HttpRequestExecutorRetryingImpl<>(stub, policy);
+
+        expectStatus(executor, WayfOperation.GET_DEVICE_HISTORY, 503);
+        assertEquals(3, stub.calls);
+    }
+
+    @Test
+    public void retriesAsynchronousRequests() throws Exception {
+        StubExecutor stub = new StubExecutor(503, 200);
+        AsynchronousHttpRequestExecutorRetryingImpl<String> executor = new AsynchronousHttpRequestExecutorRetryingImpl<>(stub, fastPolicy());
+
+        CompletableFuture<String> future = executor.executeAsync(WayfOperation.REMOVE_IDENTITY_PROVIDER_OPTION, "request", String.class);
+
+        assertEquals("request", future.get(5, TimeUnit.SECONDS));
+        assertEquals(2, stub.calls);
+    }
+
+    @Test
+    public void parsesRetryAfterSeconds() {
+        assertEquals(120_000, HttpResponseHandler.parseRetryAfter("120"));
+        assertEquals(0, HttpResponseHandler.parseRetryAfter(null));
+        assertEquals(0, HttpResponseHandler.parseRetryAfter("Thu, 01 Jan 1970 00:00:00 GMT"));
+    }
+
+    private static RetryPolicy fastPolicy() {
+        return new RetryPolicy().backoff(1, 5, TimeUnit.MILLISECONDS);
+    }
+
+    private static void expectStatus(HttpRequestExecutor<String> executor, WayfOperation operation, int status) {
+        try {
+            executor.execute(operation, "request", String.class);
+            fail("Expected a WayfException");
+        } catch (WayfException e) {
+            assertEquals(status, e.getStatus());
+        }
+    }
+
+    private static class StubExecutor implements HttpRequestExecutor<String>, AsynchronousHttpRequestExecutor<String> {
+        private final Deque<Integer> statuses;
+        private volatile int calls;
+
+        private StubExecutor(Integer... statuses) {
+            this.statuses = new ArrayDeque<>(Arrays.asList(statuses));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized <T> T execute(WayfOperation operation, String request, Type responseType) throws WayfException {
+            calls++;
+
+            int status = statuses.size() > 1? statuses.poll() : statuses.peek();
+            if (status > 299) {
+                throw new WayfException(status, "failed");
+            }
+
+            return (T) request;
+        }
+
+        @Override
+        public <T> void executeForEach(WayfOperation operation, String request, Class<T> elementType, Consumer<? super T> consumer) throws WayfException {
+            execute(operation, request, elementType);
+        }
+
+        @Override
+        public <T> CompletableFuture<T> executeAsync(WayfOperation operation, String request, Type responseType) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+
+            try {
+                future.complete(execute(operation, request, responseType));
+            } catch (WayfException e) {
+                future.completeExceptionally(e);
+            }
+
+            return future;
+        }
+    }
+}
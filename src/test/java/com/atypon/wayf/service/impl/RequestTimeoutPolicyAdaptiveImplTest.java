@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.service.metrics.RequestMetrics;
+import org.junit.Test;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RequestTimeoutPolicyAdaptiveImplTest {
+    private static final WayfOperation OPERATION = WayfOperation.GET_DEVICE_HISTORY;
+
+    @Test
+    public void testTimedOutRequestsGrowTheTimeout() throws Exception {
+        RequestTimeoutPolicyAdaptiveImpl policy = new RequestTimeoutPolicyAdaptiveImpl()
+                .window(20, TimeUnit.MILLISECONDS)
+                .minimumSamples(10)
+                .minimumTimeoutMillis(1);
+
+        for (int i = 0; i < 10; i++) {
+            policy.onRequestCompleted(metrics(100, null));
+        }
+        Thread.sleep(25);
+
+        // Rotating into the second window derives 2 x 100ms from the first; every request in it then times out, and
+        // is recorded at no less than the 200ms it was given
+        for (int i = 0; i < 10; i++) {
+            policy.onRequestCompleted(metrics(150, new WayfException("Could not execute HTTP request", new SocketTimeoutException("Read timed out"))));
+        }
+        assertTimeoutNear(200, policy.getTimeoutMillis(OPERATION));
+        Thread.sleep(25);
+
+        policy.onRequestCompleted(metrics(100, null));
+        assertTimeoutNear(400, policy.getTimeoutMillis(OPERATION));
+    }
+
+    @Test
+    public void testFailedRequestsCount() throws Exception {
+        RequestTimeoutPolicyAdaptiveImpl policy = new RequestTimeoutPolicyAdaptiveImpl()
+                .window(20, TimeUnit.MILLISECONDS)
+                .minimumSamples(10)
+                .minimumTimeoutMillis(1);
+
+        for (int i = 0; i < 10; i++) {
+            policy.onRequestCompleted(metrics(300, new WayfException(503, "Unavailable")));
+        }
+        Thread.sleep(25);
+        policy.onRequestCompleted(metrics(100, null));
+
+        assertTimeoutNear(600, policy.getTimeoutMillis(OPERATION));
+    }
+
+    private static RequestMetrics metrics(long totalMillis, Throwable exception) {
+        RequestMetrics metrics = new RequestMetrics(OPERATION);
+        metrics.setTotalNanos(TimeUnit.MILLISECONDS.toNanos(totalMillis));
+        metrics.setException(exception);
+        return metrics;
+    }
+
+    // The latency histogram reports values to within 1.6%
+    private static void assertTimeoutNear(int expectedMillis, int timeoutMillis) {
+        assertTrue("Expected about " + expectedMillis + "ms but was " + timeoutMillis + "ms", Math.abs(timeoutMillis - expectedMillis) <= expectedMillis / 50);
+    }
+}
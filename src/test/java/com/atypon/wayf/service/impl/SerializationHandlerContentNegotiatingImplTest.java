@@ -0,0 +1,264 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.ErrorResponse;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.data.identity.SamlEntity;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.metrics.RequestMetrics;
+import com.atypon.wayf.service.v1.impl.WayfServiceImpl;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SerializationHandlerContentNegotiatingImplTest {
+    private static final String ACCEPT = "application/x-jackson-smile, application/json;q=0.5";
+
+    private final SerializationHandler json = new SerializationHandlerObjectMapperImpl(objectMapper(new JsonFactory()));
+    private final SerializationHandler smile = new SerializationHandlerObjectMapperImpl(objectMapper(new SmileFactory()), SerializationHandler.SMILE_CONTENT_TYPE);
+    private final List<IdentityProviderUsage> history = history(50);
+
+    private final List<String> requestAccepts = new CopyOnWriteArrayList<>();
+    private final List<String> requestContentTypes = new CopyOnWriteArrayList<>();
+    private final List<RequestMetrics> metrics = new CopyOnWriteArrayList<>();
+
+    private volatile boolean serverSpeaksSmile;
+    private volatile boolean serverReadsSmile = true;
+    private volatile int responseStatus = 200;
+
+    private HttpServer server;
+    private HttpRequestExecutorHttpClientImpl executor;
+    private SerializationHandlerContentNegotiatingImpl serializationHandler;
+    private WayfServiceImpl service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/1/device/", this::handle);
+        server.start();
+
+        serializationHandler = new SerializationHandlerContentNegotiatingImpl(smile, json);
+        executor = new HttpRequestExecutorHttpClientImpl(serializationHandler).metricsListener(metrics::add);
+        service = new WayfServiceImpl()
+                .baseUrl("http://127.0.0.1:" + server.getAddress().getPort())
+                .publisherApiToken("token")
+                .serializationHandler(serializationHandler)
+                .httpRequestExecutor(executor);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testSmileIsNegotiatedAndSmallerThanJson() throws Exception {
+        serverSpeaksSmile = true;
+
+        List<IdentityProviderUsage> received = service.getDeviceHistory("local-id");
+
+        assertEquals(ACCEPT, requestAccepts.get(0));
+        assertEquals(history.size(), received.size());
+        assertEquals(history.get(49).getIdp().getId(), received.get(49).getIdp().getId());
+        assertEquals(history.get(49).getLastActiveDate(), received.get(49).getLastActiveDate());
+        assertTrue(serializationHandler.isPreferredAccepted());
+
+        long smileBytes = metrics.get(0).getBytesReceived();
+        assertEquals(smile.serializeToBytes(history).length, smileBytes);
+        assertTrue(smileBytes < json.serializeToBytes(history).length);
+
+        // Once the server has answered in Smile, request bodies are sent in Smile too
+        IdentityProvider echoed = service.addIdentityProviderUsage("local-id", samlEntity(7));
+
+        assertEquals(SerializationHandler.SMILE_CONTENT_TYPE, requestContentTypes.get(1));
+        assertEquals(Long.valueOf(7), echoed.getId());
+    }
+
+    @Test
+    public void testRejectedSmileRequestBodyFallsBackToJson() throws Exception {
+        serverSpeaksSmile = true;
+        serverReadsSmile = false;
+
+        service.getDeviceHistory("local-id");
+        assertTrue(serializationHandler.isPreferredAccepted());
+
+        // The 415 is answered by sending the same call again as JSON
+        IdentityProvider echoed = service.addIdentityProviderUsage("local-id", samlEntity(7));
+
+        assertEquals(SerializationHandler.SMILE_CONTENT_TYPE, requestContentTypes.get(1));
+        assertEquals(SerializationHandler.JSON_CONTENT_TYPE, requestContentTypes.get(2));
+        assertEquals(Long.valueOf(7), echoed.getId());
+        assertEquals(415, metrics.get(1).getStatus());
+        assertFalse(serializationHandler.isPreferredAccepted());
+
+        // Smile responses keep being read, but request bodies stay JSON
+        service.getDeviceHistory("local-id");
+        echoed = service.addIdentityProviderUsage("local-id", samlEntity(8));
+
+        assertEquals(SerializationHandler.JSON_CONTENT_TYPE, requestContentTypes.get(4));
+        assertEquals(Long.valueOf(8), echoed.getId());
+        assertEquals(5, requestContentTypes.size());
+    }
+
+    @Test
+    public void testRejectedSmileRequestBodyIsResentAsJsonAsynchronously() throws Exception {
+        serverReadsSmile = false;
+
+        SamlEntity entity = samlEntity(7);
+        WayfRequest request = new WayfRequest(WayfRequest.Method.POST, "http://127.0.0.1:" + server.getAddress().getPort() + "/1/device/local-id/history")
+                .header("Content-Type", SerializationHandler.SMILE_CONTENT_TYPE)
+                .body(smile.serializeToBytes(entity))
+                .bodySource(entity);
+
+        try (HttpRequestExecutorHttp2Impl http2Executor = new HttpRequestExecutorHttp2Impl(serializationHandler)) {
+            IdentityProvider echoed = http2Executor.<IdentityProvider>executeAsync(WayfOperation.ADD_IDENTITY_PROVIDER_USAGE, request, IdentityProvider.class)
+                    .get(5, TimeUnit.SECONDS);
+
+            assertEquals(Long.valueOf(7), echoed.getId());
+        }
+
+        assertEquals(SerializationHandler.SMILE_CONTENT_TYPE, requestContentTypes.get(0));
+        assertEquals(SerializationHandler.JSON_CONTENT_TYPE, requestContentTypes.get(1));
+    }
+
+    @Test
+    public void testJsonOnlyServerFallsBackToJson() throws Exception {
+        serverSpeaksSmile = false;
+
+        List<IdentityProviderUsage> received = new ArrayList<>();
+        service.getDeviceHistory("local-id", received::add);
+        IdentityProvider echoed = service.addIdentityProviderUsage("local-id", samlEntity(7));
+
+        assertEquals(history.size(), received.size());
+        assertEquals(SerializationHandler.JSON_CONTENT_TYPE, requestContentTypes.get(1));
+        assertEquals(Long.valueOf(7), echoed.getId());
+        assertFalse(serializationHandler.isPreferredAccepted());
+    }
+
+    @Test
+    public void testErrorResponseIsReadInTheNegotiatedFormat() throws Exception {
+        serverSpeaksSmile = true;
+        responseStatus = 404;
+
+        try {
+            service.getDeviceHistory("local-id");
+            fail("Expected a 404 to fail the request");
+        } catch (WayfException e) {
+            assertEquals(404, e.getStatus());
+            assertEquals("Device not found", e.getMessage());
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        String requestContentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        requestAccepts.add(String.valueOf(accept));
+        requestContentTypes.add(String.valueOf(requestContentType));
+
+        SerializationHandler responseFormat = serverSpeaksSmile && accept != null && accept.contains(SerializationHandler.SMILE_CONTENT_TYPE)? smile : json;
+
+        try (InputStream requestBody = exchange.getRequestBody()) {
+            Object response;
+
+            if (!serverReadsSmile && SerializationHandler.SMILE_CONTENT_TYPE.equals(requestContentType)) {
+                exchange.sendResponseHeaders(415, -1);
+                return;
+            }
+
+            if (responseStatus != 200) {
+                ErrorResponse errorResponse = new ErrorResponse();
+                errorResponse.setMessage("Device not found");
+                response = errorResponse;
+            } else if ("POST".equals(exchange.getRequestMethod())) {
+                SerializationHandler requestFormat = SerializationHandler.SMILE_CONTENT_TYPE.equals(requestContentType)? smile : json;
+                response = requestFormat.deserialize(requestBody, IdentityProvider.class);
+            } else {
+                response = history;
+            }
+
+            byte[] body = responseFormat.serializeToBytes(response);
+            exchange.getResponseHeaders().set("Content-Type", responseFormat.getContentType());
+            exchange.sendResponseHeaders(responseStatus, body.length);
+
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(body);
+            }
+        } catch (WayfException e) {
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static ObjectMapper objectMapper(JsonFactory jsonFactory) {
+        ObjectMapper objectMapper = new ObjectMapper(jsonFactory);
+        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return objectMapper;
+    }
+
+    private static SamlEntity samlEntity(long id) {
+        SamlEntity samlEntity = new SamlEntity();
+        samlEntity.setId(id);
+        samlEntity.setName("Example University");
+        samlEntity.setEntityId("https://idp.example.edu/idp/shibboleth/" + id);
+        samlEntity.setFederationId("https://incommon.org");
+        return samlEntity;
+    }
+
+    private static List<IdentityProviderUsage> history(int size) {
+        List<IdentityProviderUsage> history = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            IdentityProviderUsage usage = new IdentityProviderUsage();
+            usage.setIdp(samlEntity(i));
+            usage.setFrequency(1.0 / (i + 1));
+            usage.setLastActiveDate(new Date(1501581600000L + i * 60000L));
+            history.add(usage);
+        }
+
+        return history;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.data.identity.OauthEntity;
+import com.atypon.wayf.data.identity.OauthProvider;
+import com.atypon.wayf.data.identity.OpenAthensEntity;
+import com.atypon.wayf.data.identity.SamlEntity;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SerializationHandlerObjectMapperImplTest {
+    private static final String HISTORY_JSON = "[" +
+            "{\"lastActiveDate\":\"2017-08-01 10:00:00+0000\",\"frequency\":0.5,\"idp\":{\"type\":\"SAML\",\"id\":1,\"entityId\":\"https://idp.example.org\",\"federationId\":\"fed\"}}," +
+            "{\"frequency\":0.3,\"idp\":{\"type\":\"OPEN_ATHENS\",\"id\":2,\"entityId\":\"athens\",\"organizationId\":\"org\"}}," +
+            "{\"frequency\":0.2,\"idp\":{\"type\":\"OAUTH\",\"id\":3,\"provider\":\"GOOGLE\"},\"unknownField\":true}" +
+            "]";
+
+    private final SerializationHandlerObjectMapperImpl serializationHandler = new SerializationHandlerObjectMapperImpl(objectMapper());
+
+    @Test
+    public void testDeviceHistoryIsTyped() throws Exception {
+        List<IdentityProviderUsage> history = serializationHandler.deserialize(
+                new ByteArrayInputStream(HISTORY_JSON.getBytes(StandardCharsets.UTF_8)),
+                new TypeReference<List<IdentityProviderUsage>>() {}.getType());
+
+        assertDeviceHistory(history);
+    }
+
+    @Test
+    public void testDeviceHistoryIsStreamed() throws Exception {
+        List<IdentityProviderUsage> history = new ArrayList<>();
+
+        serializationHandler.deserializeEach(
+                new ByteArrayInputStream(HISTORY_JSON.getBytes(StandardCharsets.UTF_8)),
+                IdentityProviderUsage.class,
+                history::add);
+
+        assertDeviceHistory(history);
+    }
+
+    @Test
+    public void testIdentityProviderRoundTripsThroughBytes() throws Exception {
+        SamlEntity samlEntity = new SamlEntity();
+        samlEntity.setId(7L);
+        samlEntity.setEntityId("https://idp.example.org");
+
+        byte[] bytes = serializationHandler.serializeToBytes(samlEntity);
+        IdentityProvider identityProvider = serializationHandler.deserialize(bytes, IdentityProvider.class);
+
+        assertTrue(identityProvider instanceof SamlEntity);
+        assertEquals(Long.valueOf(7), identityProvider.getId());
+        assertEquals("https://idp.example.org", ((SamlEntity) identityProvider).getEntityId());
+        assertEquals(new String(bytes, StandardCharsets.UTF_8), serializationHandler.serialize(samlEntity));
+    }
+
+    private static void assertDeviceHistory(List<IdentityProviderUsage> history) {
+        assertEquals(3, history.size());
+
+        assertTrue(history.get(0).getIdp() instanceof SamlEntity);
+        assertEquals("https://idp.example.org", ((SamlEntity) history.get(0).getIdp()).getEntityId());
+        assertEquals(Long.valueOf(1), history.get(0).getIdp().getId());
+        assertEquals(1501581600000L, history.get(0).getLastActiveDate().getTime());
+
+        assertTrue(history.get(1).getIdp() instanceof OpenAthensEntity);
+        assertEquals("org", ((OpenAthensEntity) history.get(1).getIdp()).getOrganizationId());
+
+        assertTrue(history.get(2).getIdp() instanceof OauthEntity);
+        assertEquals(OauthProvider.GOOGLE, ((OauthEntity) history.get(2).getIdp()).getProvider());
+    }
+
+    private static ObjectMapper objectMapper() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.setDateFormat(new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ"));
+        objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return objectMapper;
+    }
+}
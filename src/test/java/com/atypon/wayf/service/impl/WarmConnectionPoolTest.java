@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.impl;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class WarmConnectionPoolTest {
+    private HttpServer server;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private final AtomicInteger pings = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            pings.incrementAndGet();
+
+            byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(404, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(new HttpClientConfiguration().getMaxConnectionsPerRoute());
+    }
+
+    @After
+    public void tearDown() {
+        connectionManager.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testWarmUpOpensDistinctConnections() throws Exception {
+        WarmConnectionPool pool = new WarmConnectionPool(connectionManager, new HttpClientConfiguration().warmConnections(4));
+
+        assertEquals(4, pool.warmUp(baseUrl()));
+        assertEquals(4, connectionManager.getTotalStats().getAvailable());
+        assertEquals(4, pings.get());
+    }
+
+    @Test
+    public void testPingSendsOneRequestOverEachWarmConnection() throws Exception {
+        WarmConnectionPool pool = new WarmConnectionPool(connectionManager, new HttpClientConfiguration().warmConnections(3));
+        pool.warmUp(baseUrl());
+
+        pool.ping();
+
+        assertEquals(6, pings.get());
+        assertEquals(3, connectionManager.getTotalStats().getAvailable());
+    }
+
+    @Test
+    public void testPingReopensClosedConnections() throws Exception {
+        WarmConnectionPool pool = new WarmConnectionPool(connectionManager, new HttpClientConfiguration().warmConnections(3));
+        pool.warmUp(baseUrl());
+
+        connectionManager.closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        assertEquals(0, connectionManager.getTotalStats().getAvailable());
+
+        pool.ping();
+
+        assertEquals(3, connectionManager.getTotalStats().getAvailable());
+    }
+
+    private String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/1";
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.metrics;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesAreWithinPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1_000);
+        }
+
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(100_000_000, histogram.getMax());
+        assertWithinPrecision(50_000_000, histogram.getValueAtPercentile(50));
+        assertWithinPrecision(99_000_000, histogram.getValueAtPercentile(99));
+        assertWithinPrecision(99_900_000, histogram.getValueAtPercentile(99.9));
+        assertEquals(100_000_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void bucketsCoverTheWholeLongRange() {
+        for (int shift = 0; shift < 63; shift++) {
+            long value = 1L << shift;
+
+            assertTrue(LatencyHistogram.highestEquivalentValue(LatencyHistogram.bucketIndex(value)) >= value);
+            assertTrue(LatencyHistogram.highestEquivalentValue(LatencyHistogram.bucketIndex(value - 1)) >= value - 1);
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void listenerTracksLatencyAndErrorsPerOperation() {
+        HistogramMetricsListener listener = new HistogramMetricsListener();
+
+        RequestMetrics success = new RequestMetrics(WayfOperation.GET_DEVICE_HISTORY);
+        success.setStatus(200);
+        success.setTotalNanos(2_000_000);
+        success.setBytesReceived(512);
+        listener.onRequestCompleted(success);
+
+        RequestMetrics failure = new RequestMetrics(WayfOperation.GET_DEVICE_HISTORY);
+        failure.setStatus(500);
+        failure.setTotalNanos(8_000_000);
+        failure.setException(new WayfException(500, "failed"));
+        listener.onRequestCompleted(failure);
+
+        assertEquals(2, listener.getRequestCount(WayfOperation.GET_DEVICE_HISTORY));
+        assertEquals(1, listener.getErrorCount(WayfOperation.GET_DEVICE_HISTORY));
+        assertEquals(512, listener.getBytesReceived(WayfOperation.GET_DEVICE_HISTORY));
+        assertWithinPrecision(8_000_000, listener.getLatencyHistogram(WayfOperation.GET_DEVICE_HISTORY).getValueAtPercentile(99));
+        assertEquals(0, listener.getRequestCount(WayfOperation.REGISTER_LOCAL_ID));
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        assertTrue("Expected ~" + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 64);
+    }
+}
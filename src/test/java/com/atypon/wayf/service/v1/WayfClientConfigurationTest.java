@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1;
+
+import com.atypon.wayf.data.WayfEnvironment;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.impl.HttpRequestExecutorHttpClientImpl;
+import com.atypon.wayf.service.impl.HttpRequestExecutorUnirestImpl;
+import com.atypon.wayf.simulator.WayfCloudSimulator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WayfClientConfigurationTest {
+    private static final String API_TOKEN = "ef3177ed-17d3-4a54-a7d3-99905c1ec109";
+    private static final String LOCAL_ID = "configuration-test-device";
+
+    @Test
+    public void testDefaultsAreBuiltOnceUnderConcurrentStartup() throws Exception {
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            List<Future<WayfClientConfiguration>> configurations = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                configurations.add(executor.submit((Callable<WayfClientConfiguration>) () -> {
+                    start.await();
+                    return WayfClientConfiguration.defaults();
+                }));
+            }
+
+            start.countDown();
+
+            WayfClientConfiguration first = configurations.get(0).get();
+            for (Future<WayfClientConfiguration> configuration : configurations) {
+                assertSame(first, configuration.get());
+            }
+
+            assertNotNull(first.getEnvironmentUrl(WayfEnvironment.SANDBOX));
+            assertNotNull(first.getEnvironmentUrl(WayfEnvironment.PRODUCTION));
+            assertTrue(first.getHttpRequestExecutor() instanceof HttpRequestExecutorUnirestImpl);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPrewarmedConfigurationServesClients() throws Exception {
+        SerializationHandler serializationHandler = WayfCloudSimulator.jsonSerializationHandler();
+
+        try (WayfCloudSimulator simulator = new WayfCloudSimulator().apiToken(API_TOKEN).start();
+             HttpRequestExecutorHttpClientImpl httpClientExecutor = new HttpRequestExecutorHttpClientImpl(serializationHandler)) {
+
+            WayfClientConfiguration configuration = WayfClientConfiguration.builder()
+                    .environmentUrl(WayfEnvironment.SANDBOX, simulator.getBaseUrl())
+                    .serializationHandler(serializationHandler)
+                    .httpRequestExecutor(httpClientExecutor)
+                    .prewarmSerialization()
+                    .warmUpConnections(WayfEnvironment.SANDBOX)
+                    .build();
+
+            assertTrue(configuration.getBuildNanos() > 0);
+            assertSame(httpClientExecutor, configuration.getHttpRequestExecutor());
+            assertTrue(configuration.getAsynchronousHttpRequestExecutor() instanceof HttpRequestExecutorUnirestImpl);
+
+            WayfSynchronousService service = WayfClient.connect(configuration)
+                    .to(WayfEnvironment.SANDBOX)
+                    .as(API_TOKEN)
+                    .synchronously();
+
+            service.registerLocalId(LOCAL_ID);
+            assertEquals(0, service.getDeviceHistory(LOCAL_ID).size());
+        }
+    }
+
+    @Test
+    public void testUnreachableWarmUpDoesNotFailStartup() throws Exception {
+        try (HttpRequestExecutorHttpClientImpl httpClientExecutor = new HttpRequestExecutorHttpClientImpl(WayfCloudSimulator.jsonSerializationHandler())) {
+            WayfClientConfiguration configuration = WayfClientConfiguration.builder()
+                    .environmentUrl(WayfEnvironment.SANDBOX, "http://127.0.0.1:1")
+                    .httpRequestExecutor(httpClientExecutor)
+                    .warmUpConnections(WayfEnvironment.SANDBOX)
+                    .build();
+
+            assertEquals("http://127.0.0.1:1", configuration.getEnvironmentUrl(WayfEnvironment.SANDBOX));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1;
+
+import com.atypon.wayf.data.WayfEnvironment;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.impl.HttpClientConfiguration;
+import com.atypon.wayf.simulator.LatencyDistribution;
+import com.atypon.wayf.simulator.WayfCloudSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class WayfClientTest {
+    private static final String API_TOKEN = "ef3177ed-17d3-4a54-a7d3-99905c1ec109";
+    private static final String LOCAL_ID = "client-test-device";
+    private static final int CALLS = 20;
+
+    private WayfCloudSimulator simulator;
+    private WayfClientConfiguration configuration;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new WayfCloudSimulator()
+                .apiToken(API_TOKEN)
+                .latency(LatencyDistribution.fixed(300))
+                .http2()
+                .registerDevice(LOCAL_ID)
+                .start();
+
+        configuration = WayfClientConfiguration.builder()
+                .environmentUrl(WayfEnvironment.SANDBOX, simulator.getBaseUrl())
+                .serializationHandler(WayfCloudSimulator.jsonSerializationHandler())
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        simulator.close();
+    }
+
+    @Test
+    public void testHttp2MultiplexesConcurrentCallsOnOneConnection() throws Exception {
+        ExecutorService callers = Executors.newFixedThreadPool(CALLS);
+
+        try (WayfClient client = WayfClient.connect(configuration).to(WayfEnvironment.SANDBOX).as(API_TOKEN)
+                .usingHttp2(new HttpClientConfiguration())) {
+            WayfSynchronousService service = client.synchronously();
+
+            List<Future<List<IdentityProviderUsage>>> results = new ArrayList<>();
+            for (int i = 0; i < CALLS; i++) {
+                results.add(callers.submit(() -> service.getDeviceHistory(LOCAL_ID)));
+            }
+
+            for (Future<List<IdentityProviderUsage>> result : results) {
+                assertEquals(0, result.get(10, TimeUnit.SECONDS).size());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+
+        assertEquals(CALLS, simulator.getPeakConcurrentRequests());
+        assertEquals(1, simulator.getConnectionCount());
+    }
+
+    @Test
+    public void testVirtualThreadsMultiplexConcurrentCallsOnOneConnection() throws Exception {
+        try (WayfClient client = WayfClient.connect(configuration).to(WayfEnvironment.SANDBOX).as(API_TOKEN).onVirtualThreads()) {
+            WayfAsynchronousService service = client.asynchronously();
+
+            List<CompletableFuture<List<IdentityProviderUsage>>> results = new ArrayList<>();
+            for (int i = 0; i < CALLS; i++) {
+                results.add(service.getDeviceHistory(LOCAL_ID));
+            }
+
+            for (CompletableFuture<List<IdentityProviderUsage>> result : results) {
+                assertEquals(0, result.get(10, TimeUnit.SECONDS).size());
+            }
+        }
+
+        assertEquals(CALLS, simulator.getPeakConcurrentRequests());
+        assertEquals(1, simulator.getConnectionCount());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.impl.VirtualThreads;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WayfAsynchronousServiceVirtualThreadImplTest {
+    private static final int CALLS = 500;
+
+    @Test
+    public void testBlockingCallsRunConcurrently() throws Exception {
+        BlockingService delegate = new BlockingService(CALLS);
+        ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("wayf-test-");
+
+        try {
+            WayfAsynchronousServiceVirtualThreadImpl service = new WayfAsynchronousServiceVirtualThreadImpl(delegate, executor);
+
+            List<CompletableFuture<List<IdentityProviderUsage>>> results = new ArrayList<>();
+            for (int i = 0; i < CALLS; i++) {
+                results.add(service.getDeviceHistory("local-id-" + i));
+            }
+
+            // Every call has to be blocked inside the delegate at the same time before any of them is released
+            assertTrue(delegate.entered.await(10, TimeUnit.SECONDS));
+            delegate.release.countDown();
+
+            for (CompletableFuture<List<IdentityProviderUsage>> result : results) {
+                assertEquals(1, result.get(5, TimeUnit.SECONDS).size());
+            }
+            assertTrue(delegate.threadName.startsWith("wayf-test-"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailuresCompleteTheFuture() throws Exception {
+        BlockingService delegate = new BlockingService(1);
+        delegate.failure = new WayfException(503, "unavailable");
+        delegate.release.countDown();
+
+        WayfAsynchronousServiceVirtualThreadImpl service = new WayfAsynchronousServiceVirtualThreadImpl(delegate);
+
+        try {
+            service.getDeviceHistory("local-id").get(5, TimeUnit.SECONDS);
+            fail("Expected the delegate's failure");
+        } catch (ExecutionException e) {
+            assertSame(delegate.failure, e.getCause());
+        }
+    }
+
+    @Test
+    public void testErrorsCompleteTheFuture() throws Exception {
+        BlockingService delegate = new BlockingService(1);
+        delegate.failure = new AssertionError("delegate failed");
+        delegate.release.countDown();
+
+        WayfAsynchronousServiceVirtualThreadImpl service = new WayfAsynchronousServiceVirtualThreadImpl(delegate);
+
+        try {
+            service.getDeviceHistory("local-id").get(5, TimeUnit.SECONDS);
+            fail("Expected the delegate's error");
+        } catch (ExecutionException e) {
+            assertSame(delegate.failure, e.getCause());
+        }
+    }
+
+    private static class BlockingService implements WayfSynchronousService {
+        private final CountDownLatch entered;
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile Throwable failure;
+        private volatile String threadName;
+
+        private BlockingService(int calls) {
+            this.entered = new CountDownLatch(calls);
+        }
+
+        @Override
+        public void registerLocalId(String localId) {
+        }
+
+        @Override
+        public List<IdentityProviderUsage> getDeviceHistory(String localId) throws WayfException {
+            threadName = Thread.currentThread().getName();
+            entered.countDown();
+
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (failure instanceof WayfException) {
+                throw (WayfException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+
+            return Collections.singletonList(new IdentityProviderUsage());
+        }
+
+        @Override
+        public void getDeviceHistory(String localId, Consumer<? super IdentityProviderUsage> consumer) throws WayfException {
+            getDeviceHistory(localId).forEach(consumer);
+        }
+
+        @Override
+        public IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) {
+            return identityProvider;
+        }
+
+        @Override
+        public void removeIdentityProviderOption(String localId, Long identityProviderId) {
+        }
+    }
+}
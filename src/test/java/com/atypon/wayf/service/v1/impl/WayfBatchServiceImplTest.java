@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.BatchItemResult;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.identity.DeviceIdentityProviderUsage;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.data.identity.OauthEntity;
+import com.atypon.wayf.service.v1.WayfAsynchronousService;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WayfBatchServiceImplTest {
+
+    @Test
+    public void testConcurrencyIsBounded() {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            SlowService service = new SlowService(executor);
+            WayfBatchServiceImpl batchService = new WayfBatchServiceImpl(service, 3);
+
+            List<String> localIds = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                localIds.add("local-id-" + i);
+            }
+
+            List<BatchItemResult<String, Void>> results = batchService.registerLocalIds(localIds);
+
+            assertEquals(50, results.size());
+            assertTrue(service.maxInFlight.get() <= 3);
+            for (int i = 0; i < 50; i++) {
+                assertEquals(localIds.get(i), results.get(i).getItem());
+                assertTrue(results.get(i).isSuccess());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailuresAreReportedPerItem() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            WayfBatchServiceImpl batchService = new WayfBatchServiceImpl(new SlowService(executor), 2);
+
+            OauthEntity good = new OauthEntity();
+            List<BatchItemResult<DeviceIdentityProviderUsage, IdentityProvider>> results = batchService.addIdentityProviderUsages(Arrays.asList(
+                    new DeviceIdentityProviderUsage("a", good),
+                    new DeviceIdentityProviderUsage("fail", good),
+                    new DeviceIdentityProviderUsage("b", null)));
+
+            assertTrue(results.get(0).isSuccess());
+            assertSame(good, results.get(0).getResult());
+
+            assertFalse(results.get(1).isSuccess());
+            assertTrue(results.get(1).getFailure() instanceof WayfException);
+
+            assertFalse(results.get(2).isSuccess());
+            assertTrue(results.get(2).getFailure() instanceof IllegalArgumentException);
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+    }
+
+    private static class SlowService implements WayfAsynchronousService {
+        private final ExecutorService executor;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+
+        private SlowService(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public CompletableFuture<Void> registerLocalId(String localId) {
+            return CompletableFuture.supplyAsync(() -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                return null;
+            }, executor);
+        }
+
+        @Override
+        public CompletableFuture<List<IdentityProviderUsage>> getDeviceHistory(String localId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<IdentityProvider> addIdentityProviderUsage(String localId, IdentityProvider identityProvider) {
+            if (identityProvider == null) {
+                throw new IllegalArgumentException("A non-null IdentityProvider is required");
+            }
+
+            CompletableFuture<IdentityProvider> future = new CompletableFuture<>();
+            if ("fail".equals(localId)) {
+                executor.execute(() -> future.completeExceptionally(new WayfException(500, "failed")));
+            } else {
+                executor.execute(() -> future.complete(identityProvider));
+            }
+            return future;
+        }
+
+        @Override
+        public CompletableFuture<Void> removeIdentityProviderOption(String localId, Long identityProviderId) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.BatchItemResult;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.v1.WayfAsynchronousService;
+import org.junit.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WayfDeviceHistoryProcessorTest {
+
+    @Test
+    public void testOrderedModePublishesInArrivalOrder() {
+        ControlledService service = new ControlledService(false);
+        CollectingSubscriber subscriber = subscribe(new WayfDeviceHistoryProcessor(service, 3, true),
+                new ListPublisher(Arrays.asList("a", "b", "c", "d", "e")), Long.MAX_VALUE);
+
+        assertEquals(Arrays.asList("a", "b", "c"), service.pendingLocalIds());
+
+        service.complete("c");
+        service.complete("b");
+        assertEquals(Collections.emptyList(), subscriber.localIds());
+
+        service.complete("a");
+        assertEquals(Arrays.asList("a", "b", "c"), subscriber.localIds());
+        assertEquals(Arrays.asList("d", "e"), service.pendingLocalIds());
+
+        service.complete("e");
+        service.complete("d");
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), subscriber.localIds());
+        assertTrue(subscriber.completed);
+        assertEquals(3, service.maxInFlight);
+    }
+
+    @Test
+    public void testUnorderedModePublishesAsCompletedAndReportsFailures() {
+        ControlledService service = new ControlledService(false);
+        CollectingSubscriber subscriber = subscribe(new WayfDeviceHistoryProcessor(service, 8, false),
+                new ListPublisher(Arrays.asList("a", "fail", "b")), Long.MAX_VALUE);
+
+        service.complete("b");
+        service.complete("fail");
+        assertFalse(subscriber.completed);
+
+        service.complete("a");
+
+        assertEquals(Arrays.asList("b", "fail", "a"), subscriber.localIds());
+        assertTrue(subscriber.results.get(0).isSuccess());
+        assertFalse(subscriber.results.get(1).isSuccess());
+        assertTrue(subscriber.results.get(1).getFailure() instanceof WayfException);
+        assertTrue(subscriber.completed);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void testDemandLimitsWhatIsRequestedFromUpstream() {
+        List<String> localIds = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            localIds.add("local-id-" + i);
+        }
+
+        ListPublisher publisher = new ListPublisher(localIds);
+        CollectingSubscriber subscriber = subscribe(new WayfDeviceHistoryProcessor(new ControlledService(true), 8, true), publisher, 2);
+
+        assertEquals(2, subscriber.results.size());
+        assertEquals(2, publisher.requested);
+
+        subscriber.subscription.request(5);
+
+        assertEquals(7, subscriber.results.size());
+        assertEquals(7, publisher.requested);
+        assertFalse(subscriber.completed);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        assertEquals(100, subscriber.results.size());
+        assertTrue(subscriber.completed);
+    }
+
+    @Test
+    public void testNonPositiveRequestFailsTheStream() {
+        ListPublisher publisher = new ListPublisher(Arrays.asList("a", "b"));
+        CollectingSubscriber subscriber = subscribe(new WayfDeviceHistoryProcessor(new ControlledService(true), 8, true), publisher, 0);
+
+        subscriber.subscription.request(-1);
+
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertTrue(publisher.cancelled);
+    }
+
+    private static CollectingSubscriber subscribe(WayfDeviceHistoryProcessor processor, ListPublisher publisher, long initialRequest) {
+        CollectingSubscriber subscriber = new CollectingSubscriber(initialRequest);
+
+        publisher.subscribe(processor);
+        processor.subscribe(subscriber);
+
+        return subscriber;
+    }
+
+    private static class ListPublisher implements Publisher<String> {
+        private final List<String> items;
+        private long requested;
+        private boolean cancelled;
+
+        private ListPublisher(List<String> items) {
+            this.items = items;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super String> subscriber) {
+            subscriber.onSubscribe(new Subscription() {
+                private int index;
+                private long demand;
+                private boolean emitting;
+
+                @Override
+                public synchronized void request(long n) {
+                    requested = requested + n < 0? Long.MAX_VALUE : requested + n;
+                    demand = demand + n < 0? Long.MAX_VALUE : demand + n;
+
+                    if (emitting) {
+                        return;
+                    }
+
+                    emitting = true;
+                    while (demand > 0 && index < items.size() && !cancelled) {
+                        demand--;
+                        subscriber.onNext(items.get(index++));
+                    }
+
+                    if (index == items.size() && !cancelled) {
+                        index++;
+                        subscriber.onComplete();
+                    }
+                    emitting = false;
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+            });
+        }
+    }
+
+    private static class CollectingSubscriber implements Subscriber<BatchItemResult<String, List<IdentityProviderUsage>>> {
+        private final long initialRequest;
+        private final List<BatchItemResult<String, List<IdentityProviderUsage>>> results = new ArrayList<>();
+        private Subscription subscription;
+        private boolean completed;
+        private Throwable error;
+
+        private CollectingSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(BatchItemResult<String, List<IdentityProviderUsage>> result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+
+        private List<String> localIds() {
+            List<String> localIds = new ArrayList<>();
+            for (BatchItemResult<String, List<IdentityProviderUsage>> result : results) {
+                localIds.add(result.getItem());
+            }
+            return localIds;
+        }
+    }
+
+    private static class ControlledService implements WayfAsynchronousService {
+        private final boolean completeImmediately;
+        private final Map<String, CompletableFuture<List<IdentityProviderUsage>>> pending = new LinkedHashMap<>();
+        private int maxInFlight;
+
+        private ControlledService(boolean completeImmediately) {
+            this.completeImmediately = completeImmediately;
+        }
+
+        @Override
+        public CompletableFuture<List<IdentityProviderUsage>> getDeviceHistory(String localId) {
+            if (completeImmediately) {
+                return CompletableFuture.completedFuture(Collections.emptyList());
+            }
+
+            CompletableFuture<List<IdentityProviderUsage>> future = new CompletableFuture<>();
+            pending.put(localId, future);
+            maxInFlight = Math.max(maxInFlight, pending.size());
+            return future;
+        }
+
+        private List<String> pendingLocalIds() {
+            return new ArrayList<>(pending.keySet());
+        }
+
+        private void complete(String localId) {
+            CompletableFuture<List<IdentityProviderUsage>> future = pending.remove(localId);
+
+            if ("fail".equals(localId)) {
+                future.completeExceptionally(new WayfException(500, "failed"));
+            } else {
+                future.complete(Collections.emptyList());
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> registerLocalId(String localId) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<IdentityProvider> addIdentityProviderUsage(String localId, IdentityProvider identityProvider) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Void> removeIdentityProviderOption(String localId, Long identityProviderId) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.ConcurrencyLimitExceededException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.service.HttpRequestExecutor;
+import com.atypon.wayf.service.v1.WayfService;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+import org.junit.Test;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WayfMultiTenantServiceImplTest {
+
+    @Test
+    public void testCallsCarryTheirPublishersToken() throws Exception {
+        StubExecutor executor = new StubExecutor();
+        WayfMultiTenantServiceImpl service = newService(executor);
+
+        WayfSynchronousService first = service.forPublisher("first-token");
+        WayfSynchronousService second = service.forPublisher("second-token");
+        assertSame(first, service.forPublisher("first-token"));
+
+        first.registerLocalId("local-id");
+        second.registerLocalId("local-id");
+        second.removeIdentityProviderOption("local-id", 7L);
+
+        List<String> tokens = new ArrayList<>();
+        for (WayfRequest request : executor.requests) {
+            tokens.add(request.getHeader(WayfService.PUBLISHER_API_TOKEN_HEADER));
+        }
+
+        assertEquals(3, tokens.size());
+        assertEquals("Token first-token", tokens.get(0));
+        assertEquals("Token second-token", tokens.get(1));
+        assertEquals("Token second-token", tokens.get(2));
+
+        assertEquals(1, service.getMetrics("first-token").getCallCount());
+        assertEquals(2, service.getMetrics("second-token").getCallCount());
+        assertNull(service.getMetrics("unknown-token"));
+        assertEquals(2, service.getPublisherCount());
+    }
+
+    @Test
+    public void testConcurrencyLimitIsPerPublisher() throws Exception {
+        StubExecutor executor = new StubExecutor();
+        executor.entered = new CountDownLatch(2);
+        executor.release = new CountDownLatch(1);
+
+        WayfMultiTenantServiceImpl service = newService(executor).maxConcurrentCallsPerPublisher(2);
+        WayfSynchronousService busy = service.forPublisher("busy-token");
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+
+        try {
+            List<Future<?>> blocked = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                blocked.add(callers.submit(() -> {
+                    busy.registerLocalId("local-id");
+                    return null;
+                }));
+            }
+            assertTrue(executor.entered.await(5, TimeUnit.SECONDS));
+
+            try {
+                busy.registerLocalId("local-id");
+                fail("Expected the publisher's third concurrent call to be rejected");
+            } catch (ConcurrencyLimitExceededException e) {
+                assertEquals(1, service.getMetrics("busy-token").getRejectedCount());
+                assertEquals(2, service.getMetrics("busy-token").getInFlight());
+            }
+
+            executor.release.countDown();
+            service.forPublisher("other-token").registerLocalId("local-id");
+
+            for (Future<?> call : blocked) {
+                call.get(5, TimeUnit.SECONDS);
+            }
+            assertEquals(0, service.getMetrics("busy-token").getInFlight());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    private static WayfMultiTenantServiceImpl newService(StubExecutor executor) {
+        return new WayfMultiTenantServiceImpl()
+                .baseUrl("https://wayf.example.com")
+                .httpRequestExecutor(executor);
+    }
+
+    private static class StubExecutor implements HttpRequestExecutor<WayfRequest> {
+        private final ConcurrentLinkedQueue<WayfRequest> requests = new ConcurrentLinkedQueue<>();
+        private volatile CountDownLatch entered;
+        private volatile CountDownLatch release;
+
+        @Override
+        public <T> T execute(WayfOperation operation, WayfRequest request, Type responseType) {
+            requests.add(request);
+
+            if (release != null && release.getCount() > 0) {
+                entered.countDown();
+
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public <T> void executeForEach(WayfOperation operation, WayfRequest request, Class<T> elementType, Consumer<? super T> consumer) {
+            requests.add(request);
+        }
+    }
+}
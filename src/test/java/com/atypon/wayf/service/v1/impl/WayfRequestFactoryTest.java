@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.WayfRequest;
+import com.atypon.wayf.service.v1.WayfService;
+import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.request.HttpRequest;
+import org.junit.Test;
+
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class WayfRequestFactoryTest {
+    private static final String BASE_URL = "https://wayf-cloud-sandbox.literatumonline.com";
+
+    private static final String[] LOCAL_IDS = {
+            "simple-local_id.1*",
+            "a b+c=d/e?f&g#h%i$j",
+            "tab\tnewline\n~'!()",
+            "café 日本",
+            "emoji 😀 pair",
+            "unpaired \ud83d surrogate \ude00",
+            "{localId}"
+    };
+
+    @Test
+    public void testUrlsMatchRouteParamEncoding() throws Exception {
+        WayfRequestFactory factory = newFactory();
+
+        for (String localId : LOCAL_IDS) {
+            assertEquals(localId, expectedUrl(WayfService.REGISTER_LOCAL_ID_URL, localId, null), factory.registerLocalId(localId).getUrl());
+            assertEquals(localId, expectedUrl(WayfService.DEVICE_HISTORY_URL, localId, null), factory.getDeviceHistory(localId).getUrl());
+            assertEquals(localId, expectedUrl(WayfService.REMOVE_IDENTITY_PROVIDER_OPTION, localId, 42L), factory.removeIdentityProviderOption(localId, 42L).getUrl());
+        }
+    }
+
+    @Test
+    public void testConcurrentRequestBuilding() throws Exception {
+        WayfRequestFactory factory = newFactory();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+
+            for (int thread = 0; thread < 8; thread++) {
+                results.add(executor.submit((Callable<Void>) () -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+
+                    for (int i = 0; i < 2000; i++) {
+                        String localId = LOCAL_IDS[random.nextInt(LOCAL_IDS.length)] + i;
+                        long identityProviderId = random.nextLong(1, Long.MAX_VALUE);
+
+                        WayfRequest request = factory.removeIdentityProviderOption(localId, identityProviderId);
+
+                        assertEquals(expectedUrl(WayfService.REMOVE_IDENTITY_PROVIDER_OPTION, localId, identityProviderId), request.getUrl());
+                        assertEquals("Token token", request.getHeader(WayfService.PUBLISHER_API_TOKEN_HEADER));
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (Future<Void> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static WayfRequestFactory newFactory() {
+        WayfRequestFactory factory = new WayfRequestFactory();
+        factory.setBaseUrl(BASE_URL);
+        factory.setPublisherApiToken("token");
+        return factory;
+    }
+
+    // The URL as built before the templates were precomputed
+    private static String expectedUrl(String path, String localId, Long identityProviderId) throws Exception {
+        HttpRequest request = Unirest.get(BASE_URL + path)
+                .routeParam(WayfService.LOCAL_ID_URL_PARAM, URLEncoder.encode(localId, "UTF-8"));
+
+        if (identityProviderId != null) {
+            request.routeParam(WayfService.IDP_ID, identityProviderId.toString());
+        }
+
+        return request.getUrl();
+    }
+}
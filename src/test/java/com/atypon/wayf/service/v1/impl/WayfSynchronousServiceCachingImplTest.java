@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.data.identity.OauthEntity;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+
+public class WayfSynchronousServiceCachingImplTest {
+
+    @Test
+    public void testRepeatReadsAreServedFromCache() throws WayfException {
+        CountingService delegate = new CountingService();
+        WayfSynchronousServiceCachingImpl cache = new WayfSynchronousServiceCachingImpl(delegate);
+
+        cache.getDeviceHistory("local-id");
+        cache.getDeviceHistory("local-id");
+
+        assertEquals(1, delegate.historyReads);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testWritesInvalidateHistory() throws WayfException {
+        CountingService delegate = new CountingService();
+        WayfSynchronousServiceCachingImpl cache = new WayfSynchronousServiceCachingImpl(delegate);
+
+        cache.getDeviceHistory("local-id");
+        cache.addIdentityProviderUsage("local-id", new OauthEntity());
+        cache.getDeviceHistory("local-id");
+        cache.removeIdentityProviderOption("local-id", 1L);
+        cache.getDeviceHistory("local-id");
+
+        assertEquals(3, delegate.historyReads);
+    }
+
+    @Test
+    public void testExpiredEntriesAreReloaded() throws Exception {
+        CountingService delegate = new CountingService();
+        WayfSynchronousServiceCachingImpl cache = new WayfSynchronousServiceCachingImpl(delegate)
+                .timeToLive(1, TimeUnit.MILLISECONDS);
+
+        cache.getDeviceHistory("local-id");
+        Thread.sleep(5);
+        cache.getDeviceHistory("local-id");
+
+        assertEquals(2, delegate.historyReads);
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() throws WayfException {
+        CountingService delegate = new CountingService();
+        WayfSynchronousServiceCachingImpl cache = new WayfSynchronousServiceCachingImpl(delegate).maxEntries(2);
+
+        cache.getDeviceHistory("a");
+        cache.getDeviceHistory("b");
+        cache.getDeviceHistory("a");
+        cache.getDeviceHistory("c");
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+
+        cache.getDeviceHistory("a");
+        assertEquals(3, delegate.historyReads);
+    }
+
+    @Test
+    public void testReadInFlightDuringWriteIsNotCached() throws Exception {
+        BlockingService delegate = new BlockingService();
+        WayfSynchronousServiceCachingImpl cache = new WayfSynchronousServiceCachingImpl(delegate);
+
+        Thread writer = new Thread(() -> {
+            try {
+                cache.addIdentityProviderUsage("local-id", new OauthEntity());
+            } catch (WayfException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        delegate.writeEntered.await();
+
+        // The read starts while the write is in progress and returns only after the write has completed
+        Thread reader = new Thread(() -> {
+            try {
+                cache.getDeviceHistory("local-id");
+            } catch (WayfException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+        delegate.readEntered.await();
+
+        delegate.writeRelease.countDown();
+        writer.join();
+        delegate.readRelease.countDown();
+        reader.join();
+
+        delegate.blockReads = false;
+        cache.getDeviceHistory("local-id");
+
+        assertEquals(2, delegate.historyReads);
+    }
+
+    private static class BlockingService extends CountingService {
+        private final CountDownLatch writeEntered = new CountDownLatch(1);
+        private final CountDownLatch writeRelease = new CountDownLatch(1);
+        private final CountDownLatch readEntered = new CountDownLatch(1);
+        private final CountDownLatch readRelease = new CountDownLatch(1);
+        private volatile boolean blockReads = true;
+
+        @Override
+        public List<IdentityProviderUsage> getDeviceHistory(String localId) {
+            if (blockReads) {
+                readEntered.countDown();
+                await(readRelease);
+            }
+
+            return super.getDeviceHistory(localId);
+        }
+
+        @Override
+        public IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) {
+            writeEntered.countDown();
+            await(writeRelease);
+
+            return identityProvider;
+        }
+
+        private static void await(CountDownLatch latch) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static class CountingService implements WayfSynchronousService {
+        volatile int historyReads;
+
+        @Override
+        public void registerLocalId(String localId) {
+        }
+
+        @Override
+        public List<IdentityProviderUsage> getDeviceHistory(String localId) {
+            historyReads++;
+            return Collections.singletonList(new IdentityProviderUsage());
+        }
+
+        @Override
+        public void getDeviceHistory(String localId, Consumer<? super IdentityProviderUsage> consumer) {
+            getDeviceHistory(localId).forEach(consumer);
+        }
+
+        @Override
+        public IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) {
+            return identityProvider;
+        }
+
+        @Override
+        public void removeIdentityProviderOption(String localId, Long identityProviderId) {
+        }
+    }
+}
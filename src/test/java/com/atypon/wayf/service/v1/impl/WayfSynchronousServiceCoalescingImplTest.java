@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class WayfSynchronousServiceCoalescingImplTest {
+    private static final int CALLERS = 8;
+
+    @Test
+    public void testConcurrentReadsShareOneRequest() throws Exception {
+        BlockingService delegate = new BlockingService();
+        WayfSynchronousServiceCoalescingImpl service = new WayfSynchronousServiceCoalescingImpl(delegate);
+
+        List<Future<List<IdentityProviderUsage>>> results = readConcurrently(service, delegate);
+
+        List<IdentityProviderUsage> first = results.get(0).get(5, TimeUnit.SECONDS);
+        for (Future<List<IdentityProviderUsage>> result : results) {
+            assertSame(first, result.get(5, TimeUnit.SECONDS));
+        }
+
+        assertEquals(1, delegate.historyReads.get());
+        assertEquals(CALLERS - 1, service.getCoalescedCount());
+        assertEquals(0, service.getInFlightCount());
+    }
+
+    @Test
+    public void testFailureIsSharedAndNotRemembered() throws Exception {
+        BlockingService delegate = new BlockingService();
+        delegate.failure = new WayfException(503, "unavailable");
+        WayfSynchronousServiceCoalescingImpl service = new WayfSynchronousServiceCoalescingImpl(delegate);
+
+        for (Future<List<IdentityProviderUsage>> result : readConcurrently(service, delegate)) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Expected the shared failure");
+            } catch (Exception e) {
+                assertSame(delegate.failure, e.getCause());
+            }
+        }
+
+        delegate.failure = null;
+        delegate.release.countDown();
+        service.getDeviceHistory("local-id");
+
+        assertEquals(2, delegate.historyReads.get());
+    }
+
+    @Test
+    public void testErrorReleasesFollowers() throws Exception {
+        BlockingService delegate = new BlockingService();
+        delegate.failure = new Error("delegate failed");
+        WayfSynchronousServiceCoalescingImpl service = new WayfSynchronousServiceCoalescingImpl(delegate);
+
+        for (Future<List<IdentityProviderUsage>> result : readConcurrently(service, delegate)) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Expected the shared error");
+            } catch (ExecutionException e) {
+                assertSame(delegate.failure, e.getCause());
+            }
+        }
+
+        assertEquals(0, service.getInFlightCount());
+    }
+
+    // Starts the callers, waits until the leader is inside the delegate and every follower is waiting, then releases it
+    private static List<Future<List<IdentityProviderUsage>>> readConcurrently(WayfSynchronousServiceCoalescingImpl service, BlockingService delegate) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        List<Future<List<IdentityProviderUsage>>> results = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < CALLERS; i++) {
+                results.add(executor.submit(() -> service.getDeviceHistory("local-id")));
+            }
+
+            delegate.entered.await(5, TimeUnit.SECONDS);
+            while (service.getCoalescedCount() < CALLERS - 1) {
+                Thread.sleep(1);
+            }
+
+            delegate.release.countDown();
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static class BlockingService implements WayfSynchronousService {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger historyReads = new AtomicInteger();
+        private volatile Throwable failure;
+
+        @Override
+        public void registerLocalId(String localId) {
+        }
+
+        @Override
+        public List<IdentityProviderUsage> getDeviceHistory(String localId) throws WayfException {
+            historyReads.incrementAndGet();
+            entered.countDown();
+
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (failure instanceof WayfException) {
+                throw (WayfException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+
+            return new ArrayList<>(Collections.singletonList(new IdentityProviderUsage()));
+        }
+
+        @Override
+        public void getDeviceHistory(String localId, Consumer<? super IdentityProviderUsage> consumer) throws WayfException {
+            getDeviceHistory(localId).forEach(consumer);
+        }
+
+        @Override
+        public IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) {
+            return identityProvider;
+        }
+
+        @Override
+        public void removeIdentityProviderOption(String localId, Long identityProviderId) {
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.data.identity.OauthEntity;
+import com.atypon.wayf.service.impl.DeviceHistoryStoreFileImpl;
+import com.atypon.wayf.service.impl.SerializationHandlerObjectMapperImpl;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class WayfSynchronousServiceOfflineImplTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CloudStub cloud;
+    private DeviceHistoryStoreFileImpl store;
+    private WayfSynchronousServiceOfflineImpl service;
+
+    @Before
+    public void setUp() throws Exception {
+        cloud = new CloudStub();
+        store = new DeviceHistoryStoreFileImpl(folder.getRoot().toPath().resolve("wayf.log"),
+                new SerializationHandlerObjectMapperImpl(new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)));
+        service = new WayfSynchronousServiceOfflineImpl(cloud, store, 1, TimeUnit.HOURS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        service.close();
+        store.close();
+    }
+
+    @Test
+    public void testFreshHistoryIsServedLocally() throws WayfException {
+        service.getDeviceHistory("local-id");
+        service.getDeviceHistory("local-id");
+
+        assertEquals(1, cloud.historyReads);
+        assertEquals(1, service.getLocalReadCount());
+    }
+
+    @Test
+    public void testStoredHistoryIsServedWhileOffline() throws WayfException {
+        service.freshFor(0, TimeUnit.MILLISECONDS);
+        cloud.addUsage(1L);
+        service.getDeviceHistory("local-id");
+
+        cloud.available = false;
+
+        assertEquals(1, service.getDeviceHistory("local-id").size());
+        assertEquals(1, service.getOfflineReadCount());
+    }
+
+    @Test
+    public void testOfflineWritesAreQueuedAndReconciled() throws WayfException {
+        cloud.addUsage(1L);
+        service.getDeviceHistory("local-id");
+
+        cloud.available = false;
+        service.addIdentityProviderUsage("local-id", identityProvider(2L));
+        service.removeIdentityProviderOption("local-id", 1L);
+
+        List<IdentityProviderUsage> localHistory = service.getDeviceHistory("local-id");
+        assertEquals(1, localHistory.size());
+        assertEquals(Long.valueOf(2), localHistory.get(0).getIdp().getId());
+        assertEquals(2, service.getPendingWriteCount());
+
+        assertEquals(0, service.reconcile());
+
+        cloud.available = true;
+        assertEquals(2, service.reconcile());
+        assertEquals(0, service.getPendingWriteCount());
+
+        // The reconciled history is read from the cloud again
+        int reads = cloud.historyReads;
+        assertEquals(Long.valueOf(2), service.getDeviceHistory("local-id").get(0).getIdp().getId());
+        assertEquals(reads + 1, cloud.historyReads);
+    }
+
+    @Test
+    public void testTimedOutUsageIsNotQueued() throws WayfException {
+        cloud.failure = new WayfException("Could not execute HTTP request", new SocketTimeoutException("Read timed out"));
+
+        try {
+            service.addIdentityProviderUsage("local-id", identityProvider(1L));
+            fail("Expected the timeout to reach the caller");
+        } catch (WayfException e) {
+            assertSame(cloud.failure, e);
+        }
+
+        for (int status : new int[] {502, 504}) {
+            cloud.failure = new WayfException(status, "Gateway error");
+
+            try {
+                service.addIdentityProviderUsage("local-id", identityProvider(1L));
+                fail("Expected the gateway error to reach the caller");
+            } catch (WayfException e) {
+                assertSame(cloud.failure, e);
+            }
+        }
+
+        assertEquals(0, service.getPendingWriteCount());
+
+        // An idempotent write is safe to replay, so it is still queued
+        cloud.failure = new WayfException("Could not execute HTTP request", new SocketTimeoutException("Read timed out"));
+        service.removeIdentityProviderOption("local-id", 1L);
+
+        assertEquals(1, service.getPendingWriteCount());
+    }
+
+    @Test
+    public void testPendingWritesOnlyQueueWritesForTheSameLocalId() throws WayfException {
+        cloud.available = false;
+        service.removeIdentityProviderOption("offline-id", 1L);
+        assertEquals(1, service.getPendingWriteCount());
+
+        cloud.available = true;
+        service.addIdentityProviderUsage("other-id", identityProvider(2L));
+        assertEquals(1, service.getPendingWriteCount());
+        assertEquals(Long.valueOf(2), cloud.history.get(0).getIdp().getId());
+
+        service.addIdentityProviderUsage("offline-id", identityProvider(3L));
+        assertEquals(2, service.getPendingWriteCount());
+    }
+
+    private static IdentityProvider identityProvider(Long id) {
+        OauthEntity identityProvider = new OauthEntity();
+        identityProvider.setId(id);
+        return identityProvider;
+    }
+
+    private static class CloudStub implements WayfSynchronousService {
+        private final List<IdentityProviderUsage> history = new ArrayList<>();
+        private boolean available = true;
+        private WayfException failure;
+        private int historyReads;
+
+        private void addUsage(Long identityProviderId) {
+            IdentityProviderUsage usage = new IdentityProviderUsage();
+            usage.setIdp(identityProvider(identityProviderId));
+            history.add(0, usage);
+        }
+
+        private void checkAvailable() throws WayfException {
+            if (!available) {
+                throw new WayfException("Could not execute HTTP request", new ConnectException("Connection refused"));
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        @Override
+        public void registerLocalId(String localId) throws WayfException {
+            checkAvailable();
+        }
+
+        @Override
+        public List<IdentityProviderUsage> getDeviceHistory(String localId) throws WayfException {
+            checkAvailable();
+            historyReads++;
+            return new ArrayList<>(history);
+        }
+
+        @Override
+        public void getDeviceHistory(String localId, Consumer<? super IdentityProviderUsage> consumer) throws WayfException {
+            getDeviceHistory(localId).forEach(consumer);
+        }
+
+        @Override
+        public IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) throws WayfException {
+            checkAvailable();
+            addUsage(identityProvider.getId());
+            return identityProvider;
+        }
+
+        @Override
+        public void removeIdentityProviderOption(String localId, Long identityProviderId) throws WayfException {
+            checkAvailable();
+            history.removeIf(usage -> identityProviderId.equals(usage.getIdp().getId()));
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.service.v1.impl;
+
+import com.atypon.wayf.data.BatchItemResult;
+import com.atypon.wayf.data.PendingWrite;
+import com.atypon.wayf.data.StoredDeviceHistory;
+import com.atypon.wayf.data.identity.DeviceIdentityProviderUsage;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.data.identity.OauthEntity;
+import com.atypon.wayf.service.DeviceHistoryStore;
+import com.atypon.wayf.service.v1.WayfBatchService;
+import com.atypon.wayf.service.v1.WayfSynchronousService;
+import com.atypon.wayf.service.v1.impl.WayfSynchronousServiceWriteBehindImpl.OverflowPolicy;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WayfSynchronousServiceWriteBehindImplTest {
+
+    @Test
+    public void testUsagesAreDispatchedInBatches() throws Exception {
+        RecordingBatchService batchService = new RecordingBatchService();
+        WayfSynchronousServiceWriteBehindImpl writeBehind = new WayfSynchronousServiceWriteBehindImpl(new RecordingService(), batchService)
+                .batchSize(3);
+
+        for (int i = 0; i < 10; i++) {
+            writeBehind.addIdentityProviderUsage("local-id-" + i, new OauthEntity());
+        }
+        writeBehind.close();
+
+        assertEquals(10, writeBehind.getDispatchedCount());
+        assertEquals(10, batchService.usages.get());
+        for (int size : batchService.batchSizes) {
+            assertTrue(size <= 3);
+        }
+    }
+
+    @Test
+    public void testDropPolicyDropsWhenFull() throws Exception {
+        RecordingService delegate = new RecordingService();
+        RecordingBatchService batchService = new RecordingBatchService().blockFirstBatch();
+        WayfSynchronousServiceWriteBehindImpl writeBehind = fillWhileDispatcherIsBlocked(delegate, batchService, OverflowPolicy.DROP);
+
+        writeBehind.addIdentityProviderUsage("overflow", new OauthEntity());
+
+        assertEquals(1, writeBehind.getDroppedCount());
+        assertEquals(0, delegate.usages.get());
+
+        batchService.release.countDown();
+        writeBehind.close();
+
+        assertEquals(3, writeBehind.getDispatchedCount());
+    }
+
+    @Test
+    public void testCallerRunsPolicyWritesDirectlyWhenFull() throws Exception {
+        RecordingService delegate = new RecordingService();
+        RecordingBatchService batchService = new RecordingBatchService().blockFirstBatch();
+        WayfSynchronousServiceWriteBehindImpl writeBehind = fillWhileDispatcherIsBlocked(delegate, batchService, OverflowPolicy.CALLER_RUNS);
+
+        writeBehind.addIdentityProviderUsage("overflow", new OauthEntity());
+
+        assertEquals(1, delegate.usages.get());
+        assertEquals(0, writeBehind.getDroppedCount());
+
+        batchService.release.countDown();
+        writeBehind.close();
+
+        assertEquals(3, writeBehind.getDispatchedCount());
+    }
+
+    @Test
+    public void testBlockPolicyWaitsForSpace() throws Exception {
+        RecordingService delegate = new RecordingService();
+        RecordingBatchService batchService = new RecordingBatchService().blockFirstBatch();
+        WayfSynchronousServiceWriteBehindImpl writeBehind = fillWhileDispatcherIsBlocked(delegate, batchService, OverflowPolicy.BLOCK);
+
+        Thread producer = new Thread(() -> {
+            try {
+                writeBehind.addIdentityProviderUsage("overflow", new OauthEntity());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        producer.start();
+
+        producer.join(100);
+        assertTrue(producer.isAlive());
+
+        batchService.release.countDown();
+        producer.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(producer.isAlive());
+
+        writeBehind.close();
+
+        assertEquals(4, writeBehind.getDispatchedCount());
+        assertEquals(0, delegate.usages.get());
+    }
+
+    @Test
+    public void testSpillPolicyStoresOverflowAndSendsItLater() throws Exception {
+        RecordingService delegate = new RecordingService();
+        RecordingBatchService batchService = new RecordingBatchService().blockFirstBatch();
+        InMemoryStore store = new InMemoryStore();
+        WayfSynchronousServiceWriteBehindImpl writeBehind = new WayfSynchronousServiceWriteBehindImpl(delegate, batchService)
+                .capacity(2)
+                .batchSize(1)
+                .spillTo(store);
+
+        writeBehind.addIdentityProviderUsage("first", new OauthEntity());
+        batchService.entered.await();
+        writeBehind.addIdentityProviderUsage("second", new OauthEntity());
+        writeBehind.addIdentityProviderUsage("third", new OauthEntity());
+
+        writeBehind.addIdentityProviderUsage("overflow", new OauthEntity());
+
+        assertEquals(1, writeBehind.getSpilledCount());
+        assertEquals("overflow", store.pendingWrites.firstEntry().getValue().getLocalId());
+        assertEquals(0, writeBehind.getDroppedCount());
+
+        batchService.release.countDown();
+        writeBehind.close();
+
+        assertEquals(4, writeBehind.getDispatchedCount());
+        assertTrue(store.pendingWrites.isEmpty());
+        assertEquals(0, delegate.usages.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSpillPolicyNeedsAStore() {
+        new WayfSynchronousServiceWriteBehindImpl(new RecordingService()).overflowPolicy(OverflowPolicy.SPILL);
+    }
+
+    @Test
+    public void testUsagesAreDispatchedThroughTheDelegateWithoutABatchService() throws Exception {
+        RecordingService delegate = new RecordingService();
+        WayfSynchronousServiceWriteBehindImpl writeBehind = new WayfSynchronousServiceWriteBehindImpl(delegate);
+
+        for (int i = 0; i < 10; i++) {
+            writeBehind.addIdentityProviderUsage("local-id-" + i, new OauthEntity());
+        }
+        writeBehind.close();
+
+        assertEquals(10, delegate.usages.get());
+        assertEquals(10, writeBehind.getDispatchedCount());
+    }
+
+    @Test
+    public void testCloseFlushesEveryUsageFromConcurrentProducers() throws Exception {
+        RecordingService delegate = new RecordingService();
+        RecordingBatchService batchService = new RecordingBatchService();
+        WayfSynchronousServiceWriteBehindImpl writeBehind = new WayfSynchronousServiceWriteBehindImpl(delegate, batchService)
+                .capacity(64)
+                .batchSize(16)
+                .overflowPolicy(OverflowPolicy.BLOCK);
+
+        int producers = 8;
+        int usagesPerProducer = 2000;
+        CountDownLatch startGate = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int p = 0; p < producers; p++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    startGate.await();
+                    for (int i = 0; i < usagesPerProducer; i++) {
+                        writeBehind.addIdentityProviderUsage("local-id", new OauthEntity());
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        startGate.countDown();
+        while (batchService.usages.get() < 1000) {
+            Thread.sleep(1);
+        }
+
+        // Producers still running when the service closes fall back to the delegate
+        writeBehind.close();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, writeBehind.getQueueDepth());
+        assertEquals(producers * usagesPerProducer, batchService.usages.get() + delegate.usages.get());
+        assertEquals(batchService.usages.get(), writeBehind.getDispatchedCount());
+    }
+
+    @Test
+    public void testCloseBeforeAnyUsageWritesDirectly() throws Exception {
+        RecordingService delegate = new RecordingService();
+        WayfSynchronousServiceWriteBehindImpl writeBehind = new WayfSynchronousServiceWriteBehindImpl(delegate, new RecordingBatchService());
+
+        writeBehind.close();
+        writeBehind.addIdentityProviderUsage("local-id", new OauthEntity());
+
+        assertEquals(1, delegate.usages.get());
+        assertEquals(0, writeBehind.getQueueDepth());
+    }
+
+    // Capacity 2: the dispatcher takes the first usage and blocks in the batch service, then two more fill the queue
+    private static WayfSynchronousServiceWriteBehindImpl fillWhileDispatcherIsBlocked(RecordingService delegate, RecordingBatchService batchService,
+                                                                                     OverflowPolicy overflowPolicy) throws Exception {
+        WayfSynchronousServiceWriteBehindImpl writeBehind = new WayfSynchronousServiceWriteBehindImpl(delegate, batchService)
+                .capacity(2)
+                .batchSize(1)
+                .overflowPolicy(overflowPolicy);
+
+        writeBehind.addIdentityProviderUsage("first", new OauthEntity());
+        batchService.entered.await();
+
+        writeBehind.addIdentityProviderUsage("second", new OauthEntity());
+        writeBehind.addIdentityProviderUsage("third", new OauthEntity());
+        assertEquals(2, writeBehind.getQueueDepth());
+
+        return writeBehind;
+    }
+
+    private static class RecordingBatchService implements WayfBatchService {
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger usages = new AtomicInteger();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean blockFirstBatch;
+
+        private RecordingBatchService blockFirstBatch() {
+            this.blockFirstBatch = true;
+            return this;
+        }
+
+        @Override
+        public List<BatchItemResult<String, Void>> registerLocalIds(Collection<String> localIds) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<BatchItemResult<DeviceIdentityProviderUsage, IdentityProvider>> addIdentityProviderUsages(Collection<DeviceIdentityProviderUsage> batch) {
+            if (blockFirstBatch) {
+                blockFirstBatch = false;
+                entered.countDown();
+
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            batchSizes.add(batch.size());
+            usages.addAndGet(batch.size());
+
+            List<BatchItemResult<DeviceIdentityProviderUsage, IdentityProvider>> results = new ArrayList<>();
+            for (DeviceIdentityProviderUsage usage : batch) {
+                results.add(BatchItemResult.success(usage, usage.getIdentityProvider()));
+            }
+            return results;
+        }
+    }
+
+    private static class InMemoryStore implements DeviceHistoryStore {
+        private final ConcurrentSkipListMap<Long, PendingWrite> pendingWrites = new ConcurrentSkipListMap<>();
+        private final AtomicLong sequence = new AtomicLong();
+
+        @Override
+        public StoredDeviceHistory getHistory(String localId) {
+            return null;
+        }
+
+        @Override
+        public void putHistory(String localId, StoredDeviceHistory history) {
+        }
+
+        @Override
+        public PendingWrite addPendingWrite(PendingWrite pendingWrite) {
+            pendingWrite.setSequence(sequence.incrementAndGet());
+            pendingWrites.put(pendingWrite.getSequence(), pendingWrite);
+            return pendingWrite;
+        }
+
+        @Override
+        public List<PendingWrite> getPendingWrites() {
+            return new ArrayList<>(pendingWrites.values());
+        }
+
+        @Override
+        public boolean hasPendingWrites(String localId) {
+            for (Map.Entry<Long, PendingWrite> entry : pendingWrites.entrySet()) {
+                if (entry.getValue().getLocalId().equals(localId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void removePendingWrite(long sequence) {
+            pendingWrites.remove(sequence);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class RecordingService implements WayfSynchronousService {
+        private final AtomicInteger usages = new AtomicInteger();
+
+        @Override
+        public void registerLocalId(String localId) {
+        }
+
+        @Override
+        public List<IdentityProviderUsage> getDeviceHistory(String localId) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void getDeviceHistory(String localId, Consumer<? super IdentityProviderUsage> consumer) {
+        }
+
+        @Override
+        public IdentityProvider addIdentityProviderUsage(String localId, IdentityProvider identityProvider) {
+            usages.incrementAndGet();
+            return identityProvider;
+        }
+
+        @Override
+        public void removeIdentityProviderOption(String localId, Long identityProviderId) {
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.simulator;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link WayfCloudSimulator} takes to answer a request, not counting time spent queued for a worker thread.
+ */
+public interface LatencyDistribution {
+    long sampleNanos(Random random);
+
+    static LatencyDistribution none() {
+        return random -> 0;
+    }
+
+    static LatencyDistribution fixed(long millis) {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        return random -> nanos;
+    }
+
+    static LatencyDistribution uniform(long minMillis, long maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("A uniform latency needs 0 <= min <= max");
+        }
+
+        long minNanos = TimeUnit.MILLISECONDS.toNanos(minMillis);
+        long rangeNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis) - minNanos;
+        return random -> minNanos + (long) (random.nextDouble() * rangeNanos);
+    }
+
+    /**
+     * A long-tailed latency, as real services show, given by its median and 99th percentile.
+     */
+    static LatencyDistribution logNormal(double medianMillis, double p99Millis) {
+        if (medianMillis <= 0 || p99Millis < medianMillis) {
+            throw new IllegalArgumentException("A log-normal latency needs 0 < median <= p99");
+        }
+
+        // 2.326 is the standard normal's 99th percentile
+        double sigma = Math.log(p99Millis / medianMillis) / 2.326;
+        double medianNanos = TimeUnit.MILLISECONDS.toNanos(1) * medianMillis;
+        return random -> (long) (medianNanos * Math.exp(sigma * random.nextGaussian()));
+    }
+}
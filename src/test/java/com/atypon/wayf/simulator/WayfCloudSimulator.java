@@ -0,0 +1,904 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.simulator;
+
+import com.atypon.wayf.data.ErrorResponse;
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.data.identity.OauthEntity;
+import com.atypon.wayf.data.identity.OpenAthensEntity;
+import com.atypon.wayf.data.identity.SamlEntity;
+import com.atypon.wayf.service.SerializationHandler;
+import com.atypon.wayf.service.impl.SerializationHandlerObjectMapperImpl;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for the WAYF cloud, serving the four device endpoints from in-memory state so that the client's
+ * concurrency, caching and resilience behaviour can be measured offline and reproducibly.
+ * <p>
+ * Latency, injected errors and capacity limits are configured before {@link #start()}:
+ * <ul>
+ *     <li>each request waits for a {@link LatencyDistribution} sample, per operation if wanted;</li>
+ *     <li>{@link #errorRate(WayfOperation, double, int)} fails that share of requests with the given status;</li>
+ *     <li>{@link #workerThreads(int)} bounds how many requests are served at once, queueing the rest, while
+ *     {@link #maxConcurrentRequests(int)} and {@link #maxRequestsPerSecond(double)} shed load with a 503 or 429.</li>
+ * </ul>
+ * It speaks HTTP/1.1 unless {@link #http2()} is set. Devices must be registered before their history can be read or changed, as with the real service; adding an
+ * identity provider a device already used records one more use of it rather than a second entry.
+ */
+public class WayfCloudSimulator implements Closeable {
+    static {
+        // Without TCP_NODELAY every response stalls on Nagle's algorithm and delayed ACKs for tens of milliseconds
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        // The default of 200 idle connections would have the server close connections a large client pool still holds
+        System.setProperty("sun.net.httpserver.maxIdleConnections", "10000");
+    }
+
+    private static final String DEVICE_PATH = "/1/device/";
+    private static final String HISTORY_SEGMENT = "history";
+    private static final String IDP_SEGMENT = "idp";
+
+    private SerializationHandler serializationHandler = jsonSerializationHandler();
+    private String apiToken;
+    private LatencyDistribution latency = LatencyDistribution.none();
+    private final Map<WayfOperation, LatencyDistribution> operationLatencies = new EnumMap<>(WayfOperation.class);
+    private final Map<WayfOperation, InjectedError> injectedErrors = new EnumMap<>(WayfOperation.class);
+    private int retryAfterSeconds;
+    private int workerThreads;
+    private int maxConcurrentRequests;
+    private double maxRequestsPerSecond;
+    private boolean http2;
+    private Random random = new Random(0);
+
+    private final ConcurrentMap<String, Device> devices = new ConcurrentHashMap<>();
+    private final AtomicLong identityProviderIds = new AtomicLong();
+    private final Map<WayfOperation, LongAdder> requestCounts = new EnumMap<>(WayfOperation.class);
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder injectedErrorCount = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private TokenBucket tokenBucket;
+    private ExecutorService executor;
+    private HttpServer server;
+    private HttpAsyncServer http2Server;
+    private int port;
+
+    public WayfCloudSimulator() {
+        for (WayfOperation operation : WayfOperation.values()) {
+            requestCounts.put(operation, new LongAdder());
+        }
+    }
+
+    /**
+     * Writes every response body and reads request bodies. Defaults to JSON configured as WayfClient configures it.
+     */
+    public WayfCloudSimulator serializationHandler(SerializationHandler serializationHandler) {
+        this.serializationHandler = serializationHandler;
+        return this;
+    }
+
+    /**
+     * Requires {@code Authorization: Token <apiToken>} on every request, answering 401 otherwise. By default any
+     * token is accepted.
+     */
+    public WayfCloudSimulator apiToken(String apiToken) {
+        this.apiToken = apiToken;
+        return this;
+    }
+
+    public WayfCloudSimulator latency(LatencyDistribution latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    public WayfCloudSimulator latency(WayfOperation operation, LatencyDistribution latency) {
+        operationLatencies.put(operation, latency);
+        return this;
+    }
+
+    /**
+     * Fails the given share of requests, of every operation, with the given status.
+     */
+    public WayfCloudSimulator errorRate(double rate, int status) {
+        for (WayfOperation operation : WayfOperation.values()) {
+            errorRate(operation, rate, status);
+        }
+
+        return this;
+    }
+
+    public WayfCloudSimulator errorRate(WayfOperation operation, double rate, int status) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("An error rate must be between 0 and 1");
+        }
+
+        injectedErrors.put(operation, new InjectedError(rate, status));
+        return this;
+    }
+
+    /**
+     * Sent as Retry-After with injected 429 and 503 responses and with shed load. 0, the default, sends none.
+     */
+    public WayfCloudSimulator retryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    /**
+     * Serves at most this many requests at once and queues the rest, so that throughput saturates at
+     * {@code workerThreads / latency}. 0, the default, serves every request as soon as it arrives.
+     */
+    public WayfCloudSimulator workerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    /**
+     * Answers 503 to requests arriving while this many are already being served. 0, the default, has no limit.
+     */
+    public WayfCloudSimulator maxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        return this;
+    }
+
+    /**
+     * Answers 429 to requests beyond this rate, allowing bursts of up to one second's worth. 0, the default, has no
+     * limit.
+     */
+    public WayfCloudSimulator maxRequestsPerSecond(double maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+        return this;
+    }
+
+    /**
+     * Speaks HTTP/2 without TLS, with prior knowledge, instead of HTTP/1.1, so that clients forcing HTTP/2 multiplex
+     * their requests on one connection.
+     */
+    public WayfCloudSimulator http2() {
+        this.http2 = true;
+        return this;
+    }
+
+    /**
+     * Seeds the latency and error injection draws. Requests interleave differently from run to run, so the seed fixes
+     * the sequence of draws rather than which request gets which.
+     */
+    public WayfCloudSimulator seed(long seed) {
+        this.random = new Random(seed);
+        return this;
+    }
+
+    public WayfCloudSimulator start() throws IOException {
+        if (server != null || http2Server != null) {
+            throw new IllegalStateException("The simulator has already been started");
+        }
+
+        if (maxRequestsPerSecond > 0) {
+            tokenBucket = new TokenBucket(maxRequestsPerSecond);
+        }
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "wayf-simulator-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        executor = workerThreads > 0
+                ? Executors.newFixedThreadPool(workerThreads, threadFactory)
+                : Executors.newCachedThreadPool(threadFactory);
+
+        if (http2) {
+            startHttp2Server();
+            return this;
+        }
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext(DEVICE_PATH, exchange -> handle(new HttpServerExchange(exchange)));
+        server.setExecutor(executor);
+        server.start();
+        port = server.getAddress().getPort();
+
+        return this;
+    }
+
+    // The stream limit is raised so that it is never what is being measured
+    private void startHttp2Server() throws IOException {
+        http2Server = H2ServerBootstrap.bootstrap()
+                .setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2)
+                .setH2Config(H2Config.custom().setMaxConcurrentStreams(Integer.MAX_VALUE).build())
+                .setCanonicalHostName("127.0.0.1")
+                .register(DEVICE_PATH + "*", new Http2RequestHandler())
+                .setIOSessionDecorator(session -> {
+                    connections.incrementAndGet();
+                    return session;
+                })
+                .create();
+        http2Server.start();
+
+        try {
+            ListenerEndpoint endpoint = http2Server.listen(new InetSocketAddress("127.0.0.1", 0), URIScheme.HTTP).get();
+            port = ((InetSocketAddress) endpoint.getAddress()).getPort();
+        } catch (InterruptedException | ExecutionException e) {
+            http2Server.close(CloseMode.IMMEDIATE);
+            throw new IOException("Could not start the HTTP/2 simulator", e);
+        }
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + port;
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+
+        if (http2Server != null) {
+            http2Server.close(CloseMode.IMMEDIATE);
+        }
+
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public WayfCloudSimulator registerDevice(String localId) {
+        devices.computeIfAbsent(localId, id -> new Device());
+        return this;
+    }
+
+    /**
+     * Registers the device if needed and records the given usages, keeping their identity provider IDs where set.
+     */
+    public WayfCloudSimulator seedHistory(String localId, List<IdentityProviderUsage> history) {
+        Device device = devices.computeIfAbsent(localId, id -> new Device());
+
+        for (IdentityProviderUsage usage : history) {
+            IdentityProvider identityProvider = usage.getIdp();
+
+            if (identityProvider.getId() == null) {
+                identityProvider.setId(identityProviderIds.incrementAndGet());
+            } else {
+                identityProviderIds.accumulateAndGet(identityProvider.getId(), Math::max);
+            }
+
+            device.seed(identityProvider, usage.getLastActiveDate());
+        }
+
+        return this;
+    }
+
+    public boolean isRegistered(String localId) {
+        return devices.containsKey(localId);
+    }
+
+    public List<IdentityProviderUsage> getHistory(String localId) {
+        Device device = devices.get(localId);
+        return device != null? device.history() : null;
+    }
+
+    public int getDeviceCount() {
+        return devices.size();
+    }
+
+    public long getRequestCount(WayfOperation operation) {
+        return requestCounts.get(operation).sum();
+    }
+
+    public long getRequestCount() {
+        long total = 0;
+        for (LongAdder count : requestCounts.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Requests turned away by {@link #maxConcurrentRequests(int)} or {@link #maxRequestsPerSecond(double)}.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    public long getInjectedErrorCount() {
+        return injectedErrorCount.sum();
+    }
+
+    /**
+     * The most requests that were being served at once, not counting those queued for a worker thread.
+     */
+    public int getPeakConcurrentRequests() {
+        return peakInFlight.get();
+    }
+
+    /**
+     * Connections accepted so far. Only counted when speaking HTTP/2.
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    private void handle(Exchange exchange) throws IOException {
+        try {
+            byte[] requestBody = readRequestBody(exchange);
+            Route route = Route.parse(exchange.getMethod(), exchange.getRawPath());
+
+            if (route == null) {
+                sendError(exchange, 404, "No such endpoint");
+                return;
+            }
+
+            requestCounts.get(route.operation).increment();
+            int concurrent = inFlight.incrementAndGet();
+            peakInFlight.accumulateAndGet(concurrent, Math::max);
+
+            try {
+                serve(exchange, route, requestBody, concurrent);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void serve(Exchange exchange, Route route, byte[] requestBody, int concurrent) throws IOException {
+        // Load is shed straight away, as an overloaded service's front end would
+        if (maxConcurrentRequests > 0 && concurrent > maxConcurrentRequests) {
+            rejectedCount.increment();
+            sendRetryableError(exchange, 503, "Too many concurrent requests");
+            return;
+        }
+
+        if (tokenBucket != null && !tokenBucket.tryAcquire()) {
+            rejectedCount.increment();
+            sendRetryableError(exchange, 429, "Rate limit exceeded");
+            return;
+        }
+
+        sleep(operationLatencies.getOrDefault(route.operation, latency).sampleNanos(random));
+
+        if (apiToken != null && !("Token " + apiToken).equals(exchange.getRequestHeader("Authorization"))) {
+            sendError(exchange, 401, "Invalid API token");
+            return;
+        }
+
+        InjectedError injectedError = injectedErrors.get(route.operation);
+        if (injectedError != null && random.nextDouble() < injectedError.rate) {
+            injectedErrorCount.increment();
+            sendRetryableError(exchange, injectedError.status, "Injected failure");
+            return;
+        }
+
+        if (route.operation == WayfOperation.REGISTER_LOCAL_ID) {
+            registerDevice(route.localId);
+            send(exchange, 200, null);
+            return;
+        }
+
+        Device device = devices.get(route.localId);
+        if (device == null) {
+            sendError(exchange, 404, "Device not found");
+            return;
+        }
+
+        switch (route.operation) {
+            case GET_DEVICE_HISTORY:
+                send(exchange, 200, device.historyBody());
+                break;
+            case ADD_IDENTITY_PROVIDER_USAGE:
+                addIdentityProviderUsage(exchange, device, requestBody);
+                break;
+            case REMOVE_IDENTITY_PROVIDER_OPTION:
+                if (device.remove(route.identityProviderId)) {
+                    send(exchange, 200, null);
+                } else {
+                    sendError(exchange, 404, "Identity provider not found");
+                }
+                break;
+            default:
+                sendError(exchange, 404, "No such endpoint");
+        }
+    }
+
+    private void addIdentityProviderUsage(Exchange exchange, Device device, byte[] requestBody) throws IOException {
+        IdentityProvider identityProvider;
+        try {
+            identityProvider = serializationHandler.deserialize(requestBody, IdentityProvider.class);
+        } catch (WayfException e) {
+            sendError(exchange, 400, "Could not read identity provider");
+            return;
+        }
+
+        send(exchange, 200, serialize(device.use(identityProvider, identityProviderIds)));
+    }
+
+    private void sendRetryableError(Exchange exchange, int status, String message) throws IOException {
+        if (retryAfterSeconds > 0 && (status == 429 || status == 503)) {
+            exchange.setResponseHeader("Retry-After", Integer.toString(retryAfterSeconds));
+        }
+
+        sendError(exchange, status, message);
+    }
+
+    private void sendError(Exchange exchange, int status, String message) throws IOException {
+        ErrorResponse errorResponse = new ErrorResponse();
+        errorResponse.setMessage(message);
+
+        send(exchange, status, serialize(errorResponse));
+    }
+
+    private void send(Exchange exchange, int status, byte[] body) throws IOException {
+        exchange.send(status, body, body != null? serializationHandler.getContentType() : null);
+    }
+
+    private byte[] serialize(Object body) {
+        try {
+            return serializationHandler.serializeToBytes(body);
+        } catch (WayfException e) {
+            throw new IllegalStateException("Could not serialize simulated response", e);
+        }
+    }
+
+    private static byte[] readRequestBody(Exchange exchange) throws IOException {
+        boolean gzipped = "gzip".equalsIgnoreCase(exchange.getRequestHeader("Content-Encoding"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+
+        try (InputStream requestBody = gzipped? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+            for (int read; (read = requestBody.read(buffer)) != -1; ) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static void sleep(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A JSON handler configured as WayfClient configures its own, for clients talking to the simulator.
+     */
+    public static SerializationHandler jsonSerializationHandler() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.setDateFormat(new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ"));
+        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        return new SerializationHandlerObjectMapperImpl(objectMapper);
+    }
+
+    /**
+     * A request and its response on either server. Closing it without sending a response answers 500.
+     */
+    private interface Exchange extends Closeable {
+        String getMethod();
+        String getRawPath();
+        String getRequestHeader(String name);
+        InputStream getRequestBody() throws IOException;
+        void setResponseHeader(String name, String value);
+
+        /**
+         * Sends the response, without a body if it is null.
+         */
+        void send(int status, byte[] body, String contentType) throws IOException;
+    }
+
+    private static final class HttpServerExchange implements Exchange {
+        private final HttpExchange exchange;
+
+        private HttpServerExchange(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public String getMethod() {
+            return exchange.getRequestMethod();
+        }
+
+        @Override
+        public String getRawPath() {
+            return exchange.getRequestURI().getRawPath();
+        }
+
+        @Override
+        public String getRequestHeader(String name) {
+            return exchange.getRequestHeaders().getFirst(name);
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return exchange.getRequestBody();
+        }
+
+        @Override
+        public void setResponseHeader(String name, String value) {
+            exchange.getResponseHeaders().set(name, value);
+        }
+
+        @Override
+        public void send(int status, byte[] body, String contentType) throws IOException {
+            if (body == null) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(status, body.length);
+
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(body);
+            }
+        }
+
+        @Override
+        public void close() {
+            exchange.close();
+        }
+    }
+
+    // Requests are served on the simulator's executor, since serving one sleeps for its latency
+    private final class Http2RequestHandler implements AsyncServerRequestHandler<Message<HttpRequest, byte[]>> {
+        @Override
+        public AsyncRequestConsumer<Message<HttpRequest, byte[]>> prepare(HttpRequest request, EntityDetails entityDetails, HttpContext context) {
+            return new BasicRequestConsumer<>(entityDetails != null? new BasicAsyncEntityConsumer() : null);
+        }
+
+        @Override
+        public void handle(Message<HttpRequest, byte[]> message, ResponseTrigger responseTrigger, HttpContext context) {
+            executor.execute(() -> {
+                try {
+                    WayfCloudSimulator.this.handle(new Http2Exchange(message, responseTrigger, context));
+                } catch (IOException e) {
+                    // The stream was reset by the client
+                }
+            });
+        }
+    }
+
+    private static final class Http2Exchange implements Exchange {
+        private final Message<HttpRequest, byte[]> message;
+        private final AsyncServerRequestHandler.ResponseTrigger responseTrigger;
+        private final HttpContext context;
+        private final Map<String, String> responseHeaders = new LinkedHashMap<>();
+        private boolean sent;
+
+        private Http2Exchange(Message<HttpRequest, byte[]> message, AsyncServerRequestHandler.ResponseTrigger responseTrigger, HttpContext context) {
+            this.message = message;
+            this.responseTrigger = responseTrigger;
+            this.context = context;
+        }
+
+        @Override
+        public String getMethod() {
+            return message.getHead().getMethod();
+        }
+
+        @Override
+        public String getRawPath() {
+            String path = message.getHead().getPath();
+            int query = path.indexOf('?');
+            return query >= 0? path.substring(0, query) : path;
+        }
+
+        @Override
+        public String getRequestHeader(String name) {
+            Header header = message.getHead().getFirstHeader(name);
+            return header != null? header.getValue() : null;
+        }
+
+        @Override
+        public InputStream getRequestBody() {
+            return new ByteArrayInputStream(message.getBody() != null? message.getBody() : new byte[0]);
+        }
+
+        @Override
+        public void setResponseHeader(String name, String value) {
+            responseHeaders.put(name, value);
+        }
+
+        @Override
+        public void send(int status, byte[] body, String contentType) throws IOException {
+            AsyncResponseBuilder response = AsyncResponseBuilder.create(status);
+            for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+                response.setHeader(header.getKey(), header.getValue());
+            }
+
+            if (body != null) {
+                response.setEntity(body, ContentType.parse(contentType));
+            }
+
+            sent = true;
+            try {
+                responseTrigger.submitResponse(response.build(), context);
+            } catch (HttpException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!sent) {
+                send(500, null, null);
+            }
+        }
+    }
+
+    private static final class InjectedError {
+        private final double rate;
+        private final int status;
+
+        private InjectedError(double rate, int status) {
+            this.rate = rate;
+            this.status = status;
+        }
+    }
+
+    /**
+     * A request's operation and route parameters, decoded from the path the client double-encodes.
+     */
+    private static final class Route {
+        private final WayfOperation operation;
+        private final String localId;
+        private final long identityProviderId;
+
+        private Route(WayfOperation operation, String localId, long identityProviderId) {
+            this.operation = operation;
+            this.localId = localId;
+            this.identityProviderId = identityProviderId;
+        }
+
+        private static Route parse(String method, String rawPath) {
+            String[] segments = rawPath.substring(DEVICE_PATH.length()).split("/", -1);
+            String localId = decode(segments[0]);
+
+            if (localId == null || localId.isEmpty()) {
+                return null;
+            }
+
+            if (segments.length == 1 && "POST".equals(method)) {
+                return new Route(WayfOperation.REGISTER_LOCAL_ID, localId, 0);
+            }
+
+            if (segments.length == 2 && HISTORY_SEGMENT.equals(segments[1]) && "GET".equals(method)) {
+                return new Route(WayfOperation.GET_DEVICE_HISTORY, localId, 0);
+            }
+
+            if (segments.length == 3 && HISTORY_SEGMENT.equals(segments[1]) && IDP_SEGMENT.equals(segments[2]) && "POST".equals(method)) {
+                return new Route(WayfOperation.ADD_IDENTITY_PROVIDER_USAGE, localId, 0);
+            }
+
+            if (segments.length == 4 && HISTORY_SEGMENT.equals(segments[1]) && IDP_SEGMENT.equals(segments[2]) && "DELETE".equals(method)) {
+                try {
+                    return new Route(WayfOperation.REMOVE_IDENTITY_PROVIDER_OPTION, localId, Long.parseLong(segments[3]));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+
+            return null;
+        }
+
+        // The client form-encodes the localId and then percent-encodes the result again
+        private static String decode(String segment) {
+            try {
+                return URLDecoder.decode(URLDecoder.decode(segment, "UTF-8"), "UTF-8");
+            } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A device's identity provider usages, keyed by what identifies the provider rather than by its ID. The serialized
+     * history is cached until the next change, so reads cost the simulator next to nothing.
+     */
+    private final class Device {
+        private final Map<String, Usage> usages = new LinkedHashMap<>();
+        private byte[] historyBody;
+
+        private synchronized IdentityProvider use(IdentityProvider identityProvider, AtomicLong ids) {
+            Usage usage = usages.get(identityKey(identityProvider));
+
+            if (usage == null) {
+                identityProvider.setId(ids.incrementAndGet());
+                identityProvider.setCreatedDate(new Date());
+
+                usage = new Usage(identityProvider);
+                usages.put(identityKey(identityProvider), usage);
+            }
+
+            usage.count++;
+            usage.lastActiveDate = new Date();
+            historyBody = null;
+
+            return usage.identityProvider;
+        }
+
+        private synchronized void seed(IdentityProvider identityProvider, Date lastActiveDate) {
+            Usage usage = new Usage(identityProvider);
+            usage.count = 1;
+            usage.lastActiveDate = lastActiveDate != null? lastActiveDate : new Date();
+
+            // Seeded usages are kept as given, even where two of them identify the same provider
+            String key = identityKey(identityProvider);
+            usages.put(usages.containsKey(key)? "#" + identityProvider.getId() : key, usage);
+            historyBody = null;
+        }
+
+        private synchronized boolean remove(long identityProviderId) {
+            boolean removed = usages.values().removeIf(usage -> usage.identityProvider.getId() == identityProviderId);
+
+            if (removed) {
+                historyBody = null;
+            }
+
+            return removed;
+        }
+
+        private synchronized List<IdentityProviderUsage> history() {
+            long total = 0;
+            for (Usage usage : usages.values()) {
+                total += usage.count;
+            }
+
+            List<Usage> mostRecentFirst = new ArrayList<>(usages.values());
+            mostRecentFirst.sort((a, b) -> b.lastActiveDate.compareTo(a.lastActiveDate));
+
+            List<IdentityProviderUsage> history = new ArrayList<>(mostRecentFirst.size());
+            for (Usage usage : mostRecentFirst) {
+                IdentityProviderUsage identityProviderUsage = new IdentityProviderUsage();
+                identityProviderUsage.setIdp(usage.identityProvider);
+                identityProviderUsage.setFrequency((double) usage.count / total);
+                identityProviderUsage.setLastActiveDate(usage.lastActiveDate);
+                history.add(identityProviderUsage);
+            }
+
+            return history;
+        }
+
+        private synchronized byte[] historyBody() {
+            if (historyBody == null) {
+                historyBody = serialize(history());
+            }
+
+            return historyBody;
+        }
+    }
+
+    private static String identityKey(IdentityProvider identityProvider) {
+        if (identityProvider instanceof SamlEntity) {
+            return "SAML:" + ((SamlEntity) identityProvider).getEntityId();
+        } else if (identityProvider instanceof OpenAthensEntity) {
+            OpenAthensEntity openAthensEntity = (OpenAthensEntity) identityProvider;
+            return "OPEN_ATHENS:" + openAthensEntity.getEntityId() + ":" + openAthensEntity.getOrganizationId();
+        } else if (identityProvider instanceof OauthEntity) {
+            return "OAUTH:" + ((OauthEntity) identityProvider).getProvider();
+        }
+
+        return identityProvider.getClass().getName() + ":" + identityProvider.getName();
+    }
+
+    private static final class TokenBucket {
+        private final double permitsPerNano;
+        private final double capacity;
+        private double permits;
+        private long lastRefill = System.nanoTime();
+
+        private TokenBucket(double permitsPerSecond) {
+            this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(1, permitsPerSecond);
+            this.permits = capacity;
+        }
+
+        private synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            permits = Math.min(capacity, permits + (now - lastRefill) * permitsPerNano);
+            lastRefill = now;
+
+            if (permits < 1) {
+                return false;
+            }
+
+            permits--;
+            return true;
+        }
+    }
+
+    private static final class Usage {
+        private final IdentityProvider identityProvider;
+        private long count;
+        private Date lastActiveDate;
+
+        private Usage(IdentityProvider identityProvider) {
+            this.identityProvider = identityProvider;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 Atypon Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.atypon.wayf.simulator;
+
+import com.atypon.wayf.data.WayfException;
+import com.atypon.wayf.data.WayfOperation;
+import com.atypon.wayf.data.identity.IdentityProvider;
+import com.atypon.wayf.data.identity.IdentityProviderUsage;
+import com.atypon.wayf.data.identity.OauthEntity;
+import com.atypon.wayf.data.identity.OauthProvider;
+import com.atypon.wayf.data.identity.SamlEntity;
+import com.atypon.wayf.service.impl.HttpRequestExecutorHttpClientImpl;
+import com.atypon.wayf.service.impl.SerializationHandlerObjectMapperImpl;
+import com.atypon.wayf.service.v1.impl.WayfServiceImpl;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.After;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WayfCloudSimulatorTest {
+    private static final String API_TOKEN = "ef3177ed-17d3-4a54-a7d3-99905c1ec109";
+    private static final String LOCAL_ID = "= K01GfwwD4BWB0lgWScJwIfMZOSIp9Wgsw7i0Gcj7J/8cUKRDktD9/A==";
+
+    private WayfCloudSimulator simulator;
+    private HttpRequestExecutorHttpClientImpl executor;
+
+    @After
+    public void tearDown() throws Exception {
+        if (executor != null) {
+            executor.close();
+        }
+
+        simulator.close();
+    }
+
+    @Test
+    public void testDeviceLifecycle() throws Exception {
+        WayfServiceImpl service = start(new WayfCloudSimulator().apiToken(API_TOKEN));
+
+        service.registerLocalId(LOCAL_ID);
+        assertTrue(simulator.isRegistered(LOCAL_ID));
+
+        IdentityProvider saml = service.addIdentityProviderUsage(LOCAL_ID, samlEntity());
+        IdentityProvider samlAgain = service.addIdentityProviderUsage(LOCAL_ID, samlEntity());
+        IdentityProvider oauth = service.addIdentityProviderUsage(LOCAL_ID, oauthEntity());
+
+        assertEquals(saml.getId(), samlAgain.getId());
+        assertNotEquals(saml.getId(), oauth.getId());
+
+        List<IdentityProviderUsage> history = service.getDeviceHistory(LOCAL_ID);
+        assertEquals(2, history.size());
+        assertEquals(oauth.getId(), history.get(0).getIdp().getId());
+        assertEquals(1.0 / 3, history.get(0).getFrequency(), 1e-9);
+        assertEquals(2.0 / 3, history.get(1).getFrequency(), 1e-9);
+
+        service.removeIdentityProviderOption(LOCAL_ID, saml.getId());
+
+        assertEquals(1, service.getDeviceHistory(LOCAL_ID).size());
+        assertEquals(1, simulator.getHistory(LOCAL_ID).size());
+        assertEquals(2, simulator.getRequestCount(WayfOperation.GET_DEVICE_HISTORY));
+    }
+
+    @Test
+    public void testUnregisteredDevicesAndBadTokensAreRejected() throws Exception {
+        WayfServiceImpl service = start(new WayfCloudSimulator().apiToken(API_TOKEN));
+
+        assertStatus(404, () -> service.getDeviceHistory(LOCAL_ID));
+
+        service.publisherApiToken("not-the-token");
+        assertStatus(401, () -> service.registerLocalId(LOCAL_ID));
+    }
+
+    @Test
+    public void testInjectedErrorsAndRateLimit() throws Exception {
+        WayfServiceImpl service = start(new WayfCloudSimulator()
+                .errorRate(WayfOperation.GET_DEVICE_HISTORY, 1.0, 503)
+                .retryAfterSeconds(2)
+                .maxRequestsPerSecond(2));
+
+        service.registerLocalId(LOCAL_ID);
+
+        try {
+            service.getDeviceHistory(LOCAL_ID);
+            fail("Expected the injected 503");
+        } catch (WayfException e) {
+            assertEquals(503, e.getStatus());
+            assertEquals(TimeUnit.SECONDS.toMillis(2), e.getRetryAfterMillis());
+        }
+
+        // Two requests used up the burst allowance of a 2 per second limit
+        assertStatus(429, () -> service.registerLocalId(LOCAL_ID));
+        assertEquals(1, simulator.getInjectedErrorCount());
+        assertEquals(1, simulator.getRejectedCount());
+    }
+
+    @Test
+    public void testWorkerThreadsBoundConcurrency() throws Exception {
+        WayfServiceImpl service = start(new WayfCloudSimulator()
+                .workerThreads(2)
+                .latency(LatencyDistribution.fixed(50))
+                .seedHistory(LOCAL_ID, new ArrayList<>()));
+
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<List<IdentityProviderUsage>>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(callers.submit(() -> service.getDeviceHistory(LOCAL_ID)));
+            }
+
+            for (Future<List<IdentityProviderUsage>> result : results) {
+                assertTrue(result.get(10, TimeUnit.SECONDS).isEmpty());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+
+        assertEquals(2, simulator.getPeakConcurrentRequests());
+        assertEquals(8, simulator.getRequestCount());
+    }
+
+    private WayfServiceImpl start(WayfCloudSimulator simulator) throws Exception {
+        this.simulator = simulator.start();
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.setDateFormat(new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ"));
+        objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+        SerializationHandlerObjectMapperImpl serializationHandler = new SerializationHandlerObjectMapperImpl(objectMapper);
+        executor = new HttpRequestExecutorHttpClientImpl(serializationHandler);
+
+        return new WayfServiceImpl()
+                .baseUrl(simulator.getBaseUrl())
+                .publisherApiToken(API_TOKEN)
+                .serializationHandler(serializationHandler)
+                .httpRequestExecutor(executor);
+    }
+
+    private static void assertStatus(int status, Call call) {
+        try {
+            call.run();
+            fail("Expected a " + status + " response");
+        } catch (WayfException e) {
+            assertEquals(status, e.getStatus());
+        }
+    }
+
+    private static SamlEntity samlEntity() {
+        SamlEntity samlEntity = new SamlEntity();
+        samlEntity.setEntityId("https://idp.example.edu/idp/shibboleth");
+        samlEntity.setFederationId("https://incommon.org");
+        return samlEntity;
+    }
+
+    private static OauthEntity oauthEntity() {
+        OauthEntity oauthEntity = new OauthEntity();
+        oauthEntity.setProvider(OauthProvider.GOOGLE);
+        return oauthEntity;
+    }
+
+    private interface Call {
+        void run() throws WayfException;
+    }
+}